@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.NoBenchmarksException;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once for each of several thread counts, with the GC
+ * profiler, so that each result shows both the time and the bytes allocated
+ * per operation.
+ *
+ * Usage:
+ * <pre>
+ * java -jar target/benchmarks.jar [jmh options] [benchmark regexps]
+ * </pre>
+ * The thread counts come from the system property
+ * {@code htrace.benchmark.threads}.  By default, the SamplerBenchmarks are
+ * run with 1, 8, 32 and 128 threads, since sampler contention only shows at
+ * high thread counts, and the other benchmarks with 1, 4 and 16 threads.
+ * Setting the property applies the same counts to every benchmark.  Any
+ * other JMH command-line options, such as -f, -wi, -i or -rf, are passed
+ * through.
+ * To run JMH without the sweep, use
+ * {@code java -cp target/benchmarks.jar org.openjdk.jmh.Main}.
+ */
+public class BenchmarkRunner {
+  public static final String THREADS_PROPERTY = "htrace.benchmark.threads";
+
+  public static final String THREADS_DEFAULT = "1,4,16";
+
+  /**
+   * The default thread counts of the benchmark classes which don't use
+   * {@link #THREADS_DEFAULT}.
+   */
+  private static final String[][] CLASS_THREADS_DEFAULTS = new String[][] {
+    new String[] { SamplerBenchmarks.class.getName(), "1,8,32,128" },
+  };
+
+  public static void main(String[] args)
+      throws CommandLineOptionException, RunnerException {
+    CommandLineOptions cmdOptions = new CommandLineOptions(args);
+    Collection<RunResult> results = new ArrayList<RunResult>();
+    String threadsStr = System.getProperty(THREADS_PROPERTY);
+    if (threadsStr != null) {
+      sweep(cmdOptions, threadsStr, Collections.<String>emptyList(), results);
+    } else {
+      List<String> classPatterns = new ArrayList<String>();
+      for (String[] entry : CLASS_THREADS_DEFAULTS) {
+        String classPattern = Pattern.quote(entry[0] + ".");
+        classPatterns.add("^" + classPattern);
+        // Exclude every benchmark outside of the class.
+        sweep(cmdOptions, entry[1],
+            Collections.singletonList("^(?!" + classPattern + ")"), results);
+      }
+      sweep(cmdOptions, THREADS_DEFAULT, classPatterns, results);
+    }
+    System.out.println();
+    System.out.println("Ran " + results.size() + " benchmark(s).");
+  }
+
+  /**
+   * Run the benchmarks once for each thread count.
+   *
+   * @param cmdOptions  The JMH options from the command line.
+   * @param threadsStr  The comma-separated thread counts.
+   * @param excludes    Regexps of benchmarks to leave out, in addition to the
+   *                      ones excluded on the command line.
+   * @param results     Where to add the results.
+   */
+  private static void sweep(CommandLineOptions cmdOptions, String threadsStr,
+      List<String> excludes, Collection<RunResult> results)
+      throws RunnerException {
+    for (String str : threadsStr.split(",")) {
+      int threads = Integer.parseInt(str.trim());
+      ChainedOptionsBuilder builder = new OptionsBuilder().
+          parent(cmdOptions).
+          threads(threads).
+          addProfiler(GCProfiler.class);
+      if (cmdOptions.getIncludes().isEmpty()) {
+        builder.include(BenchmarkRunner.class.getPackage().getName() + ".*");
+      }
+      for (String exclude : excludes) {
+        builder.exclude(exclude);
+      }
+      try {
+        results.addAll(new Runner(builder.build()).run());
+      } catch (NoBenchmarksException e) {
+        // The command line left out all of these benchmarks.
+        return;
+      }
+    }
+  }
+}
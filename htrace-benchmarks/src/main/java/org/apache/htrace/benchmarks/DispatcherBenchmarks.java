@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.htrace.core.HTraceConfiguration;
+import org.apache.htrace.core.Span;
+import org.apache.htrace.core.SpanDispatcher;
+import org.apache.htrace.core.SpanReceiver;
+import org.apache.htrace.core.TraceScope;
+import org.apache.htrace.core.Tracer;
+import org.apache.htrace.core.TracerPool;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Benchmarks for closing sampled scopes when the SpanReceiver is slow,
+ * delivering spans inline and through a {@link SpanDispatcher}.
+ *
+ * With a dispatcher, closing a scope only costs the handoff.  Spans which
+ * arrive faster than the receiver can take them are dropped, so the number
+ * published and dropped is reported with each result, as the "published"
+ * and "dropped" secondary results.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class DispatcherBenchmarks {
+  /**
+   * The number of dispatcher threads, or 0 to deliver spans inline.  See
+   * {@link SpanDispatcher#THREADS_KEY}.
+   */
+  @Param({"0", "1"})
+  public int dispatcherThreads;
+
+  /**
+   * A receiver which takes a couple of microseconds per span, like one which
+   * does some I/O.
+   */
+  public static class SlowSpanReceiver extends SpanReceiver {
+    private static final long DELAY_NANOS = 2000;
+
+    @Override
+    public boolean retainsSpans() {
+      return false;
+    }
+
+    @Override
+    public void receiveSpan(Span span) {
+      long end = System.nanoTime() + DELAY_NANOS;
+      while (System.nanoTime() < end) {
+        // spin
+      }
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * The number of spans the dispatcher published and dropped in each
+   * iteration.  The dispatcher's counts cover all threads, so only the first
+   * thread reports them, and JMH sums the threads' counters.
+   */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class DispatchCounts {
+    public long published;
+
+    public long dropped;
+
+    private SpanDispatcher dispatcher;
+
+    private long startPublished;
+
+    private long startDropped;
+
+    @Setup(Level.Iteration)
+    public void start(DispatcherBenchmarks benchmarks, ThreadParams params) {
+      published = 0;
+      dropped = 0;
+      dispatcher = null;
+      if (params.getThreadIndex() == 0) {
+        dispatcher = benchmarks.tracer.getTracerPool().getDispatcher();
+      }
+      if (dispatcher != null) {
+        startPublished = dispatcher.getNumPublished();
+        startDropped = dispatcher.getNumDropped();
+      }
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() {
+      if (dispatcher != null) {
+        published = dispatcher.getNumPublished() - startPublished;
+        dropped = dispatcher.getNumDropped() - startDropped;
+      }
+    }
+  }
+
+  private Tracer tracer;
+
+  @Setup
+  public void setup() {
+    TracerPool pool = new TracerPool("DispatcherBenchmarks");
+    pool.addReceiver(new SlowSpanReceiver());
+    tracer = new Tracer.Builder("DispatcherBenchmarks").
+        tracerPool(pool).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            Tracer.SAMPLER_CLASSES_KEY, "AlwaysSampler",
+            SpanDispatcher.THREADS_KEY, Integer.toString(dispatcherThreads))).
+        build();
+  }
+
+  @TearDown
+  public void tearDown() {
+    tracer.close();
+  }
+
+  @Benchmark
+  public void slowReceiver(DispatchCounts counts) {
+    TraceScope scope = tracer.newScope("slow");
+    scope.close();
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.htrace.core.HTraceConfiguration;
+import org.apache.htrace.core.TraceExecutorService;
+import org.apache.htrace.core.TraceScope;
+import org.apache.htrace.core.Tracer;
+import org.apache.htrace.core.TracerPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks for handing traced work to another thread with
+ * {@link TraceExecutorService}, which wraps tasks in TraceRunnable and
+ * TraceCallable.
+ *
+ * The plain cases submit the same tasks to the same executor without
+ * tracing, as a baseline for the cost of the handoff itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ExecutorBenchmarks {
+  private static final int EXECUTOR_THREADS = 2;
+
+  private static final Callable<Integer> CALLABLE = new Callable<Integer>() {
+    @Override
+    public Integer call() {
+      return 1;
+    }
+  };
+
+  private static final Runnable RUNNABLE = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+
+  private Tracer tracer;
+
+  private ExecutorService plain;
+
+  private TraceExecutorService traced;
+
+  @Setup
+  public void setup() {
+    TracerPool pool = new TracerPool("ExecutorBenchmarks");
+    pool.addReceiver(new NullSpanReceiver());
+    tracer = new Tracer.Builder("ExecutorBenchmarks").
+        tracerPool(pool).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            Tracer.SAMPLER_CLASSES_KEY, "AlwaysSampler")).
+        build();
+    plain = Executors.newFixedThreadPool(EXECUTOR_THREADS);
+    traced = tracer.newTraceExecutorService(
+        Executors.newFixedThreadPool(EXECUTOR_THREADS));
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    plain.shutdown();
+    traced.shutdown();
+    plain.awaitTermination(1, TimeUnit.MINUTES);
+    traced.awaitTermination(1, TimeUnit.MINUTES);
+    tracer.close();
+  }
+
+  @Benchmark
+  public Integer plainCallable() throws Exception {
+    return plain.submit(CALLABLE).get();
+  }
+
+  @Benchmark
+  public Integer tracedCallable() throws Exception {
+    TraceScope scope = tracer.newScope("parent");
+    try {
+      return traced.submit(CALLABLE).get();
+    } finally {
+      scope.close();
+    }
+  }
+
+  @Benchmark
+  public Object plainRunnable() throws Exception {
+    return plain.submit(RUNNABLE).get();
+  }
+
+  @Benchmark
+  public Object tracedRunnable() throws Exception {
+    TraceScope scope = tracer.newScope("parent");
+    try {
+      return traced.submit(RUNNABLE).get();
+    } finally {
+      scope.close();
+    }
+  }
+
+  /**
+   * The cost of wrapping and running a task on the same thread, without the
+   * executor.
+   */
+  @Benchmark
+  public Integer wrapCallableInline() throws Exception {
+    TraceScope scope = tracer.newScope("parent");
+    try {
+      return tracer.wrap(CALLABLE, "child").call();
+    } finally {
+      scope.close();
+    }
+  }
+}
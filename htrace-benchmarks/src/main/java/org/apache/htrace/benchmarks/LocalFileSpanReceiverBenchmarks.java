@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.htrace.core.HTraceConfiguration;
+import org.apache.htrace.core.LocalFileSpanReceiver;
+import org.apache.htrace.core.MilliSpan;
+import org.apache.htrace.core.Span;
+import org.apache.htrace.core.SpanId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks for the throughput of {@link LocalFileSpanReceiver}.
+ *
+ * Each iteration writes to a new file in java.io.tmpdir, which is deleted
+ * at the end of the iteration, so that long runs do not fill the disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class LocalFileSpanReceiverBenchmarks {
+  private static final int BATCH_SIZE = 64;
+
+  @Param({"5000"})
+  public int capacity;
+
+  @Param({"none", "gzip"})
+  public String compression;
+
+  private Span[] spans;
+
+  private File file;
+
+  private LocalFileSpanReceiver receiver;
+
+  @Setup(Level.Trial)
+  public void createSpans() {
+    spans = new Span[BATCH_SIZE];
+    SpanId parent = SpanId.fromRandom();
+    for (int i = 0; i < spans.length; i++) {
+      spans[i] = new MilliSpan.Builder().
+          spanId(parent.newChildId()).
+          parents(new SpanId[] { parent }).
+          tracerId("LocalFileSpanReceiverBenchmarks/192.168.1.2").
+          description("BlockReader#read").
+          begin(1450000000000L + i).
+          end(1450000000123L + i).
+          build();
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void openReceiver() throws IOException {
+    file = File.createTempFile("LocalFileSpanReceiverBenchmarks", ".json");
+    receiver = new LocalFileSpanReceiver(HTraceConfiguration.fromKeyValuePairs(
+        LocalFileSpanReceiver.PATH_KEY, file.getAbsolutePath(),
+        LocalFileSpanReceiver.CAPACITY_KEY, Integer.toString(capacity),
+        LocalFileSpanReceiver.COMPRESSION_KEY, compression));
+  }
+
+  @TearDown(Level.Iteration)
+  public void closeReceiver() throws IOException {
+    receiver.close();
+    if (!file.delete()) {
+      throw new IOException("Failed to delete " + file);
+    }
+  }
+
+  @Benchmark
+  public void receiveSpan() {
+    receiver.receiveSpan(spans[0]);
+  }
+
+  /**
+   * Deliver a batch of spans at once, as the SpanDispatcher does.  The score
+   * is in batches; multiply by {@link #BATCH_SIZE} for spans.
+   */
+  @Benchmark
+  public void receiveSpans() {
+    receiver.receiveSpans(spans, 0, spans.length);
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.benchmarks;
+
+import org.apache.htrace.core.Span;
+import org.apache.htrace.core.SpanReceiver;
+
+/**
+ * A SpanReceiver which discards spans, so that benchmarks measure the cost
+ * of tracing rather than of storing spans.
+ */
+public class NullSpanReceiver extends SpanReceiver {
+  @Override
+  public boolean retainsSpans() {
+    return false;
+  }
+
+  @Override
+  public void receiveSpan(Span span) {
+  }
+
+  @Override
+  public void receiveSpans(Span[] spans, int offset, int len) {
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.htrace.core.AdaptiveSampler;
+import org.apache.htrace.core.CountSampler;
+import org.apache.htrace.core.HTraceConfiguration;
+import org.apache.htrace.core.ProbabilitySampler;
+import org.apache.htrace.core.RateLimitingSampler;
+import org.apache.htrace.core.Sampler;
+import org.apache.htrace.core.TracerPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for {@link Sampler#next()}.
+ *
+ * All threads share one sampler, as they share a Tracer's samplers, so the
+ * multi-threaded runs show contention on the sampler's state.
+ * SharedCounterSampler is a baseline for CountSampler: a 1-in-N sampler
+ * built on a single AtomicLong, the obvious thread-safe alternative.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class SamplerBenchmarks {
+  @Param({"AlwaysSampler", "NeverSampler", "CountSampler",
+      "ProbabilitySampler", "RateLimitingSampler", "AdaptiveSampler",
+      "SharedCounterSampler"})
+  public String sampler;
+
+  private static final int FREQUENCY = 100;
+
+  /**
+   * A thread-safe 1-in-N sampler which shares one counter between all
+   * threads.
+   */
+  private static class SharedCounterSampler extends Sampler {
+    private final AtomicLong count = new AtomicLong(0);
+
+    @Override
+    public boolean next() {
+      return (count.getAndIncrement() % FREQUENCY) == 0;
+    }
+  }
+
+  private Sampler instance;
+
+  @Setup
+  public void setup() {
+    if (sampler.equals("SharedCounterSampler")) {
+      instance = new SharedCounterSampler();
+      return;
+    }
+    // The AdaptiveSampler reads the span counts of the pool.
+    TracerPool pool = new TracerPool("SamplerBenchmarks");
+    instance = new Sampler.Builder(HTraceConfiguration.fromKeyValuePairs(
+            CountSampler.SAMPLER_FREQUENCY_CONF_KEY,
+                Integer.toString(FREQUENCY),
+            ProbabilitySampler.SAMPLER_FRACTION_CONF_KEY, "0.01",
+            RateLimitingSampler.SAMPLER_TRACES_PER_SECOND_CONF_KEY, "1000",
+            AdaptiveSampler.SAMPLER_TARGET_SPANS_PER_SECOND_CONF_KEY, "1000")).
+        className(sampler).
+        tracerPool(pool).
+        build();
+  }
+
+  @Benchmark
+  public boolean next() {
+    return instance.next();
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.htrace.core.HTraceConfiguration;
+import org.apache.htrace.core.TraceScope;
+import org.apache.htrace.core.Tracer;
+import org.apache.htrace.core.TracerPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks for opening and closing trace scopes.
+ *
+ * The sampled cases deliver spans to a {@link NullSpanReceiver}, so they
+ * measure span creation, the thread-local scope stack, and delivery, but not
+ * storage.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ScopeBenchmarks {
+  /**
+   * Whether spans are recycled.  See {@link Tracer#RECYCLE_SPANS_KEY}.
+   */
+  @Param({"false", "true"})
+  public boolean recycle;
+
+  private Tracer sampled;
+
+  private Tracer unsampled;
+
+  @Setup
+  public void setup() {
+    sampled = newTracer("AlwaysSampler");
+    unsampled = newTracer("NeverSampler");
+  }
+
+  private Tracer newTracer(String sampler) {
+    TracerPool pool = new TracerPool("ScopeBenchmarks-" + sampler);
+    pool.addReceiver(new NullSpanReceiver());
+    return new Tracer.Builder("ScopeBenchmarks").
+        tracerPool(pool).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            Tracer.SAMPLER_CLASSES_KEY, sampler,
+            Tracer.RECYCLE_SPANS_KEY, Boolean.toString(recycle))).
+        build();
+  }
+
+  /**
+   * Closing the last Tracer in a pool also closes the pool's receivers.
+   */
+  @TearDown
+  public void tearDown() {
+    sampled.close();
+    unsampled.close();
+  }
+
+  @Benchmark
+  public void sampled() {
+    TraceScope scope = sampled.newScope("sampled");
+    scope.close();
+  }
+
+  @Benchmark
+  public void unsampled() {
+    TraceScope scope = unsampled.newScope("unsampled");
+    scope.close();
+  }
+
+  @Benchmark
+  public void nestedSampled() {
+    TraceScope outer = sampled.newScope("outer");
+    TraceScope middle = sampled.newScope("middle");
+    TraceScope inner = sampled.newScope("inner");
+    inner.close();
+    middle.close();
+    outer.close();
+  }
+
+  @Benchmark
+  public void nestedUnsampled() {
+    TraceScope outer = unsampled.newScope("outer");
+    TraceScope middle = unsampled.newScope("middle");
+    TraceScope inner = unsampled.newScope("inner");
+    inner.close();
+    middle.close();
+    outer.close();
+  }
+
+  /**
+   * A sampled scope with annotations, as a typical instrumented call makes.
+   */
+  @Benchmark
+  public void sampledAnnotated() {
+    TraceScope scope = sampled.newScope("annotated");
+    scope.addKVAnnotation("path", "/foo/bar");
+    scope.addTimelineAnnotation("opened");
+    scope.close();
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.htrace.core.SpanId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for generating, formatting and parsing span IDs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class SpanIdBenchmarks {
+  private SpanId spanId;
+
+  private String spanIdString;
+
+  private byte[] spanIdBytes;
+
+  @Setup
+  public void setup() {
+    spanId = SpanId.fromRandom();
+    spanIdString = spanId.toString();
+    spanIdBytes = spanId.toBytes();
+  }
+
+  @Benchmark
+  public SpanId fromRandom() {
+    return SpanId.fromRandom();
+  }
+
+  @Benchmark
+  public SpanId newChildId() {
+    return spanId.newChildId();
+  }
+
+  @Benchmark
+  public String toHexString() {
+    return spanId.toString();
+  }
+
+  @Benchmark
+  public SpanId fromHexString() {
+    return SpanId.fromString(spanIdString);
+  }
+
+  @Benchmark
+  public byte[] toBytes() {
+    return spanId.toBytes();
+  }
+
+  @Benchmark
+  public SpanId fromBytes() {
+    return SpanId.fromBytes(spanIdBytes, 0);
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.htrace.core.MilliSpan;
+import org.apache.htrace.core.Span;
+import org.apache.htrace.core.SpanId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for converting spans to and from JSON.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class SpanJsonBenchmarks {
+  /**
+   * The number of KV and timeline annotations on the span.
+   */
+  @Param({"0", "4"})
+  public int annotations;
+
+  private MilliSpan span;
+
+  private String json;
+
+  @Setup
+  public void setup() throws Exception {
+    SpanId parent = SpanId.fromRandom();
+    span = new MilliSpan.Builder().
+        spanId(parent.newChildId()).
+        parents(new SpanId[] { parent }).
+        tracerId("SpanJsonBenchmarks/192.168.1.2").
+        description("BlockReader#read").
+        begin(1450000000000L).
+        end(1450000000123L).
+        build();
+    for (int i = 0; i < annotations; i++) {
+      span.addKVAnnotation("key" + i, "value" + i);
+      span.addTimelineAnnotation("event " + i);
+    }
+    json = span.toJson();
+  }
+
+  @Benchmark
+  public String toJson() {
+    return span.toJson();
+  }
+
+  @Benchmark
+  public Span fromJson() throws Exception {
+    return MilliSpan.fromJson(json);
+  }
+
+  @Benchmark
+  public Span roundTrip() throws Exception {
+    return MilliSpan.fromJson(span.toJson());
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Sampler that adjusts its sampling probability to hold a target number of
+ * spans per second.
+ *
+ * Every interval, the sampler compares the number of spans delivered in the
+ * last interval with {@link #SAMPLER_TARGET_SPANS_PER_SECOND_CONF_KEY}, and
+ * scales its probability to match.  The probability can fall quickly, but
+ * only doubles per interval when it rises, so that a brief lull does not
+ * cause a flood.
+ *
+ * The sampler also polls {@link SpanReceiver#getLoad()} on every receiver in
+ * its TracerPool, and the load of the pool's {@link SpanDispatcher}.  If any
+ * of them is above {@link #SAMPLER_LOAD_THRESHOLD_CONF_KEY}, the probability
+ * is cut hard, whatever the span rate, so that the receivers can catch up
+ * before they start dropping spans.
+ *
+ * When it is created with a TracerPool, the sampler reads the span counts of
+ * the pool's Tracers, so the target applies to all spans delivered by the
+ * pool.  Without a TracerPool, it counts sampled traces instead, and cannot
+ * see receiver load.
+ */
+public class AdaptiveSampler extends Sampler {
+  private static final Log LOG = LogFactory.getLog(AdaptiveSampler.class);
+
+  public final static String SAMPLER_TARGET_SPANS_PER_SECOND_CONF_KEY =
+      "sampler.adaptive.target.spans.per.second";
+
+  public final static String SAMPLER_INTERVAL_MS_CONF_KEY =
+      "sampler.adaptive.interval.ms";
+
+  public final static int SAMPLER_INTERVAL_MS_DEFAULT = 1000;
+
+  public final static String SAMPLER_INITIAL_FRACTION_CONF_KEY =
+      "sampler.adaptive.initial.fraction";
+
+  public final static double SAMPLER_INITIAL_FRACTION_DEFAULT = 0.01;
+
+  /**
+   * The lowest sampling probability.  This must be greater than 0, so that
+   * the sampler can recover.
+   */
+  public final static String SAMPLER_MIN_FRACTION_CONF_KEY =
+      "sampler.adaptive.min.fraction";
+
+  public final static double SAMPLER_MIN_FRACTION_DEFAULT = 0.000001;
+
+  /**
+   * The receiver load above which we cut the sampling probability.
+   */
+  public final static String SAMPLER_LOAD_THRESHOLD_CONF_KEY =
+      "sampler.adaptive.load.threshold";
+
+  public final static double SAMPLER_LOAD_THRESHOLD_DEFAULT = 0.75;
+
+  /**
+   * How much the probability may grow in one interval.
+   */
+  private final static double MAX_INCREASE = 2.0;
+
+  /**
+   * How much the probability is cut when a receiver is overloaded.
+   */
+  private final static double OVERLOAD_BACKOFF = 0.1;
+
+  private final double targetSpansPerSecond;
+
+  private final long intervalNanos;
+
+  private final double minFraction;
+
+  private final double loadThreshold;
+
+  /**
+   * The pool whose spans we count and whose receivers we watch, or null.
+   */
+  private final TracerPool tracerPool;
+
+  /**
+   * Counts sampled traces, when there is no pool.
+   */
+  private final AtomicLong numSampled = new AtomicLong(0);
+
+  /**
+   * Held by the thread which is adjusting the probability.  Threads which
+   * find it taken carry on with the current probability rather than wait.
+   */
+  private final ReentrantLock adjustLock = new ReentrantLock();
+
+  /**
+   * The time at which the next adjustment is due.  Written under adjustLock.
+   */
+  private volatile long nextAdjustNanos;
+
+  /**
+   * The time of the last adjustment.  Guarded by adjustLock.
+   */
+  private long lastAdjustNanos;
+
+  /**
+   * The count at the last adjustment.  Guarded by adjustLock.
+   */
+  private long lastCount;
+
+  private volatile double fraction;
+
+  public AdaptiveSampler(HTraceConfiguration conf) {
+    this(conf, null);
+  }
+
+  public AdaptiveSampler(HTraceConfiguration conf, TracerPool tracerPool) {
+    String targetStr = conf.get(SAMPLER_TARGET_SPANS_PER_SECOND_CONF_KEY);
+    if (targetStr == null) {
+      throw new IllegalArgumentException("You must set " +
+          SAMPLER_TARGET_SPANS_PER_SECOND_CONF_KEY + " to use the " +
+          "AdaptiveSampler.");
+    }
+    this.targetSpansPerSecond = Double.parseDouble(targetStr);
+    if (!(targetSpansPerSecond > 0)) {
+      throw new IllegalArgumentException(
+          SAMPLER_TARGET_SPANS_PER_SECOND_CONF_KEY + " must be positive.");
+    }
+    int intervalMs = conf.getInt(SAMPLER_INTERVAL_MS_CONF_KEY,
+        SAMPLER_INTERVAL_MS_DEFAULT);
+    if (intervalMs < 1) {
+      throw new IllegalArgumentException(SAMPLER_INTERVAL_MS_CONF_KEY +
+          " must be at least 1.");
+    }
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+    this.minFraction = getFraction(conf, SAMPLER_MIN_FRACTION_CONF_KEY,
+        SAMPLER_MIN_FRACTION_DEFAULT);
+    this.fraction = Math.max(minFraction, getFraction(conf,
+        SAMPLER_INITIAL_FRACTION_CONF_KEY, SAMPLER_INITIAL_FRACTION_DEFAULT));
+    this.loadThreshold = getDouble(conf, SAMPLER_LOAD_THRESHOLD_CONF_KEY,
+        SAMPLER_LOAD_THRESHOLD_DEFAULT);
+    this.tracerPool = tracerPool;
+    long now = System.nanoTime();
+    this.lastAdjustNanos = now;
+    this.lastCount = getCount();
+    this.nextAdjustNanos = now + intervalNanos;
+    if (LOG.isTraceEnabled()) {
+      LOG.trace("Created new AdaptiveSampler with targetSpansPerSecond = " +
+          targetSpansPerSecond + ", intervalMs = " + intervalMs +
+          ", fraction = " + fraction + ", minFraction = " + minFraction +
+          ", loadThreshold = " + loadThreshold + ".");
+    }
+  }
+
+  private static double getDouble(HTraceConfiguration conf, String key,
+                                  double defaultValue) {
+    String str = conf.get(key);
+    if (str == null) {
+      return defaultValue;
+    }
+    return Double.parseDouble(str.trim());
+  }
+
+  private static double getFraction(HTraceConfiguration conf, String key,
+                                    double defaultValue) {
+    double val = getDouble(conf, key, defaultValue);
+    if (!((val > 0) && (val <= 1))) {
+      throw new IllegalArgumentException(key + " must be greater than 0 " +
+          "and no more than 1.");
+    }
+    return val;
+  }
+
+  @Override
+  public boolean next() {
+    long now = System.nanoTime();
+    if ((now - nextAdjustNanos >= 0) && adjustLock.tryLock()) {
+      try {
+        // Another thread may have adjusted while we were getting the lock.
+        if (now - nextAdjustNanos >= 0) {
+          adjust(now);
+        }
+      } finally {
+        adjustLock.unlock();
+      }
+    }
+    if (ThreadLocalRandom.current().nextDouble() >= fraction) {
+      return false;
+    }
+    if (tracerPool == null) {
+      numSampled.incrementAndGet();
+    }
+    return true;
+  }
+
+  /**
+   * @return        The number of spans delivered by our TracerPool, or the
+   *                  number of sampled traces if there is no pool.
+   */
+  private long getCount() {
+    if (tracerPool == null) {
+      return numSampled.get();
+    }
+    return tracerPool.getCount(Tracer.COUNT_SPANS) -
+        tracerPool.getCount(Tracer.COUNT_SHORT_SPANS);
+  }
+
+  /**
+   * Adjust the probability.  Must be called with adjustLock held.
+   */
+  private void adjust(long now) {
+    long count = getCount();
+    long numSpans = count - lastCount;
+    long elapsedNanos = now - lastAdjustNanos;
+    lastCount = count;
+    lastAdjustNanos = now;
+    nextAdjustNanos = now + intervalNanos;
+    double prevFraction = fraction;
+    fraction = computeFraction(prevFraction, numSpans, elapsedNanos,
+        getLoad());
+    if (LOG.isTraceEnabled()) {
+      LOG.trace("AdaptiveSampler: saw " + numSpans + " span(s) in " +
+          TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms.  Changed " +
+          "fraction from " + prevFraction + " to " + fraction + ".");
+    }
+  }
+
+  /**
+   * Compute the next sampling probability.
+   *
+   * @param cur             The current probability.
+   * @param numSpans        The number of spans seen in the last interval.
+   * @param elapsedNanos    The length of the last interval.
+   * @param load            The highest receiver load.
+   * @return                The new probability.
+   */
+  double computeFraction(double cur, long numSpans, long elapsedNanos,
+                         double load) {
+    double next;
+    if (load >= loadThreshold) {
+      next = cur * OVERLOAD_BACKOFF;
+    } else if ((numSpans <= 0) || (elapsedNanos <= 0)) {
+      next = cur * MAX_INCREASE;
+    } else {
+      double spansPerSecond =
+          (numSpans * (double)TimeUnit.SECONDS.toNanos(1)) / elapsedNanos;
+      next = Math.min(cur * (targetSpansPerSecond / spansPerSecond),
+          cur * MAX_INCREASE);
+    }
+    return Math.max(minFraction, Math.min(1.0, next));
+  }
+
+  /**
+   * @return        The highest load reported by the receivers and the
+   *                  dispatcher of our TracerPool.
+   */
+  double getLoad() {
+    if (tracerPool == null) {
+      return 0.0;
+    }
+    double load = 0.0;
+    for (SpanReceiver receiver : tracerPool.getReceivers()) {
+      try {
+        load = Math.max(load, receiver.getLoad());
+      } catch (Throwable t) {
+        LOG.debug("Error getting the load of " + receiver, t);
+      }
+    }
+    SpanDispatcher dispatcher = tracerPool.getDispatcher();
+    if (dispatcher != null) {
+      load = Math.max(load, dispatcher.getLoad());
+    }
+    return load;
+  }
+
+  /**
+   * @return        The current sampling probability.
+   */
+  public double getFraction() {
+    return fraction;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.Locale;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.htrace.core.Tracer.ThreadCarrier;
+
+/**
+ * Where each thread's tracing state, its {@link ThreadCarrier}, is kept.
+ *
+ * There is one ContextStorage per process, shared by every Tracer, since the
+ * current trace scope is shared by every library using HTrace.  It is chosen
+ * by the {@link Tracer#CONTEXT_STORAGE_PROPERTY} system property.
+ */
+abstract class ContextStorage {
+  private static final Log LOG = LogFactory.getLog(ContextStorage.class);
+
+  static final String THREAD_LOCAL = "thread-local";
+
+  static final String TRANSIENT = "transient";
+
+  /**
+   * Get the calling thread's carrier, creating it if needed.
+   *
+   * @return The carrier.
+   */
+  abstract ThreadCarrier get();
+
+  /**
+   * Get the calling thread's carrier without creating it.
+   *
+   * @return The carrier, or null if the thread has none.
+   */
+  abstract ThreadCarrier peek();
+
+  /**
+   * Called when the calling thread has closed or detached all of its scopes.
+   *
+   * @param carrier   The calling thread's carrier.
+   */
+  abstract void idle(ThreadCarrier carrier);
+
+  /**
+   * Create the storage named by a system property value.
+   *
+   * @param name    The name of the storage, or null for the default.
+   * @return        The storage.
+   */
+  static ContextStorage create(String name) {
+    if (name == null) {
+      return new ThreadLocalStorage();
+    }
+    String str = name.trim().toLowerCase(Locale.ROOT);
+    if (str.equals(THREAD_LOCAL)) {
+      return new ThreadLocalStorage();
+    } else if (str.equals(TRANSIENT)) {
+      return new TransientStorage();
+    }
+    LOG.error("Unknown context storage " + name + ".  Valid values are " +
+        THREAD_LOCAL + " and " + TRANSIENT + ".  Using " + THREAD_LOCAL +
+        ".");
+    return new ThreadLocalStorage();
+  }
+
+  /**
+   * Keeps a carrier for as long as its thread lives.
+   *
+   * This is the fastest choice for a bounded set of long-lived threads,
+   * since a thread's Tracer contexts and span pools are set up once and
+   * reused for every trace.
+   */
+  static final class ThreadLocalStorage extends ContextStorage {
+    private final ThreadLocal<ThreadCarrier> carriers =
+        new ThreadLocal<ThreadCarrier>();
+
+    @Override
+    ThreadCarrier get() {
+      ThreadCarrier carrier = carriers.get();
+      if (carrier == null) {
+        carrier = new ThreadCarrier(false);
+        carriers.set(carrier);
+      }
+      return carrier;
+    }
+
+    @Override
+    ThreadCarrier peek() {
+      return carriers.get();
+    }
+
+    @Override
+    void idle(ThreadCarrier carrier) {
+    }
+  }
+
+  /**
+   * Keeps a carrier only while its thread is tracing.
+   *
+   * When the last scope in a thread is closed or detached, the carrier's
+   * counts are folded into its Tracers.  If the thread was in any spans, the
+   * carrier is then dropped.  A thread which has only opened NullScopes keeps
+   * its carrier, so that unsampled calls do not allocate.  This suits servers
+   * which run each request on its own short-lived thread, where per-thread
+   * state would otherwise pile up until the thread exits.  Threads do not
+   * recycle spans under this storage, since their span pools would not
+   * outlive a trace.
+   */
+  static final class TransientStorage extends ContextStorage {
+    private final ThreadLocal<ThreadCarrier> carriers =
+        new ThreadLocal<ThreadCarrier>();
+
+    @Override
+    ThreadCarrier get() {
+      ThreadCarrier carrier = carriers.get();
+      if (carrier == null) {
+        carrier = new ThreadCarrier(true);
+        carriers.set(carrier);
+      }
+      return carrier;
+    }
+
+    @Override
+    ThreadCarrier peek() {
+      return carriers.get();
+    }
+
+    @Override
+    void idle(ThreadCarrier carrier) {
+      if (carrier.release()) {
+        carriers.remove();
+      }
+    }
+  }
+}
@@ -21,19 +21,37 @@ import java.util.concurrent.ThreadLocalRandom;
 /**
  * Sampler that returns true every N calls. Specify the frequency interval by configuring a
  * {@code long} value for {@link #SAMPLER_FREQUENCY_CONF_KEY}.
+ *
+ * <p>To keep threads from contending on one shared count, calls are counted
+ * in a {@link StripedCounter}, and each stripe samples every Nth call it
+ * counts.  Every thread always uses the same stripe, and the threads which
+ * share a stripe share its count, so a thread which makes only a few calls
+ * before exiting leaves its calls counted for the next one.  Each stripe
+ * starts at a random point in [0, N), so that samplers created at the same
+ * time don't all sample the same calls.  Across all threads, the number of
+ * calls sampled is within one per stripe of the total divided by N.</p>
  */
 public class CountSampler extends Sampler {
   public final static String SAMPLER_FREQUENCY_CONF_KEY = "sampler.frequency";
 
   final long frequency;
-  long count = ThreadLocalRandom.current().nextLong();
+
+  private final StripedCounter counter = new StripedCounter();
 
   public CountSampler(HTraceConfiguration conf) {
     this.frequency = Long.parseLong(conf.get(SAMPLER_FREQUENCY_CONF_KEY), 10);
+    if (frequency < 1) {
+      throw new IllegalArgumentException(SAMPLER_FREQUENCY_CONF_KEY +
+          " must be at least 1.");
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int i = 0; i < StripedCounter.NUM_STRIPES; i++) {
+      counter.addToStripe(i, random.nextLong(frequency));
+    }
   }
 
   @Override
   public boolean next() {
-    return (count++ % frequency) == 0;
+    return (counter.incrementStripe() % frequency) == 0;
   }
 }
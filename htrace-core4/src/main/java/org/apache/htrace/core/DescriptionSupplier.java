@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+/**
+ * Supplies the description of a span, when it is needed.
+ *
+ * {@link Tracer#newScope(DescriptionSupplier)} only asks for the description
+ * when it actually creates a span.  When the sampler decides not to trace,
+ * the cost of building the description is never paid.
+ *
+ * <p>For example:</p>
+ * <pre>
+ * <code>
+ * try (TraceScope scope = tracer.newScope(new DescriptionSupplier() {
+ *       public String getDescription() {
+ *         return "read " + path + " offset " + off;
+ *       }
+ *     })) {
+ *   ...
+ * }
+ * </code>
+ * </pre>
+ *
+ * @see DescriptionTemplate
+ */
+public interface DescriptionSupplier {
+  /**
+   * @return The description of the span.
+   */
+  String getDescription();
+}
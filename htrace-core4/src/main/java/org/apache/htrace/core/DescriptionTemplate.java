@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+/**
+ * A span description made of a template and arguments, which is only
+ * formatted if a span is created.
+ *
+ * Each {} in the template is replaced by the next argument, converted with
+ * String#valueOf.  Placeholders without an argument are left as they are, and
+ * extra arguments are ignored.  For example:
+ *
+ * <pre>
+ * <code>
+ * tracer.newScope(new DescriptionTemplate("read {} offset {}", path, off));
+ * </code>
+ * </pre>
+ */
+public final class DescriptionTemplate implements DescriptionSupplier {
+  private final String template;
+
+  private final Object[] args;
+
+  public DescriptionTemplate(String template, Object... args) {
+    this.template = template;
+    this.args = args;
+  }
+
+  @Override
+  public String getDescription() {
+    if ((args == null) || (args.length == 0)) {
+      return template;
+    }
+    StringBuilder bld = new StringBuilder(template.length() + 16 * args.length);
+    int start = 0;
+    int argIdx = 0;
+    while (argIdx < args.length) {
+      int idx = template.indexOf("{}", start);
+      if (idx < 0) {
+        break;
+      }
+      bld.append(template, start, idx);
+      bld.append(String.valueOf(args[argIdx++]));
+      start = idx + 2;
+    }
+    bld.append(template, start, template.length());
+    return bld.toString();
+  }
+
+  @Override
+  public String toString() {
+    return getDescription();
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.io.IOException;
+
+/**
+ * The JMX view of a {@link FlightRecorderSpanReceiver}.
+ *
+ * Each flight recorder is registered as
+ * {@code org.apache.htrace:type=FlightRecorder,id=<id>}, where the ID is
+ * {@link SpanReceiver#getId()}.
+ */
+public interface FlightRecorderMXBean {
+  long getCapacityBytes();
+
+  /**
+   * @return The number of bytes of spans in the ring.
+   */
+  long getUsedBytes();
+
+  /**
+   * @return The number of spans in the ring.
+   */
+  long getNumBufferedSpans();
+
+  /**
+   * @return The number of spans written into the ring so far.
+   */
+  long getNumRecorded();
+
+  /**
+   * @return The number of spans which were overwritten by newer ones.
+   */
+  long getNumOverwritten();
+
+  /**
+   * @return The number of dumps written so far.
+   */
+  long getNumDumps();
+
+  /**
+   * Dump the ring to a new file in the dump directory.
+   *
+   * @return The path of the file.
+   */
+  String dump() throws IOException;
+
+  /**
+   * Dump the ring to a file.
+   *
+   * @param path  The path of the file, which is overwritten if it exists.
+   * @return      The number of spans written.
+   */
+  long dumpTo(String path) throws IOException;
+}
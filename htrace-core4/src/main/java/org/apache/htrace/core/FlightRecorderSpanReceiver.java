@@ -0,0 +1,509 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the most recent spans in a fixed-size in-memory ring, and writes them
+ * out only when asked to.
+ *
+ * Every span is serialized as JSON into a ring of bytes which is allocated
+ * up front, on or off the heap.  When the ring is full, the oldest spans are
+ * overwritten.  In the steady state this receiver does no I/O and allocates
+ * nothing, so it is cheap enough to run with every span sampled, keeping the
+ * last few seconds or minutes of full traces around for when something goes
+ * wrong.
+ *
+ * The ring is dumped as JSON lines, in the same format as
+ * {@link LocalFileSpanReceiver}, when:
+ * <ul>
+ * <li>{@link #dump(OutputStream)} or {@link #dumpTo(String)} is called,
+ * directly or over JMX,</li>
+ * <li>{@link #trigger(String)} is called, for example from a signal handler
+ * or a health check, or</li>
+ * <li>a span takes at least {@link #LATENCY_THRESHOLD_MS_KEY}.</li>
+ * </ul>
+ * Triggered dumps are written to {@link #DUMP_DIR_KEY} on a background
+ * thread, after {@link #TRIGGER_DELAY_MS_KEY}, so that they also catch the
+ * parents of a slow span, which finish after it does.  They are rate-limited
+ * by {@link #MIN_TRIGGER_INTERVAL_MS_KEY}.
+ */
+public class FlightRecorderSpanReceiver extends SpanReceiver {
+  private static final Log LOG =
+      LogFactory.getLog(FlightRecorderSpanReceiver.class);
+
+  /**
+   * The size of the ring in bytes.
+   */
+  public final static String CAPACITY_BYTES_KEY =
+      "flight.recorder.span.receiver.capacity.bytes";
+  public final static int CAPACITY_BYTES_DEFAULT = 32 * 1024 * 1024;
+
+  /**
+   * Whether to allocate the ring outside the Java heap.
+   */
+  public final static String OFF_HEAP_KEY =
+      "flight.recorder.span.receiver.off.heap";
+  public final static boolean OFF_HEAP_DEFAULT = false;
+
+  /**
+   * Where triggered dumps are written.  The default is java.io.tmpdir.
+   */
+  public final static String DUMP_DIR_KEY =
+      "flight.recorder.span.receiver.dump.dir";
+
+  /**
+   * Trigger a dump when a span takes at least this long.  -1, the default,
+   * disables this.
+   */
+  public final static String LATENCY_THRESHOLD_MS_KEY =
+      "flight.recorder.span.receiver.latency.threshold.ms";
+  public final static int LATENCY_THRESHOLD_MS_DEFAULT = -1;
+
+  /**
+   * How long to wait after a trigger before dumping.
+   */
+  public final static String TRIGGER_DELAY_MS_KEY =
+      "flight.recorder.span.receiver.trigger.delay.ms";
+  public final static int TRIGGER_DELAY_MS_DEFAULT = 1000;
+
+  /**
+   * The minimum interval between triggered dumps.  Triggers which come
+   * sooner are ignored.
+   */
+  public final static String MIN_TRIGGER_INTERVAL_MS_KEY =
+      "flight.recorder.span.receiver.min.trigger.interval.ms";
+  public final static int MIN_TRIGGER_INTERVAL_MS_DEFAULT = 60000;
+
+  /**
+   * The length of the header which precedes each span in the ring.
+   */
+  private static final int HEADER_LENGTH = 4;
+
+  private static final byte[] NEWLINE = new byte[] { (byte)0xa };
+
+  private final int capacity;
+
+  private final String dumpDir;
+
+  private final long latencyThresholdMs;
+
+  private final long triggerDelayMs;
+
+  private final long minTriggerIntervalMs;
+
+  /**
+   * Protects the ring and the positions.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final ByteBuffer ring;
+
+  /**
+   * The total number of bytes ever written to the ring.  The next span goes
+   * at writePos % capacity.
+   */
+  private long writePos = 0;
+
+  /**
+   * The position of the oldest span still in the ring.
+   */
+  private long readPos = 0;
+
+  private long numBuffered = 0;
+
+  private long numRecorded = 0;
+
+  private long numOverwritten = 0;
+
+  private final AtomicLong numTooLarge = new AtomicLong(0);
+
+  private final AtomicLong numDumps = new AtomicLong(0);
+
+  /**
+   * The last time a trigger was accepted, or 0.
+   */
+  private final AtomicLong lastTriggerMs = new AtomicLong(0);
+
+  private final ScheduledThreadPoolExecutor dumper;
+
+  private final ObjectName mbeanName;
+
+  private volatile boolean closed = false;
+
+  private final class Bean implements FlightRecorderMXBean {
+    @Override
+    public long getCapacityBytes() {
+      return capacity;
+    }
+
+    @Override
+    public long getUsedBytes() {
+      return FlightRecorderSpanReceiver.this.getUsedBytes();
+    }
+
+    @Override
+    public long getNumBufferedSpans() {
+      return FlightRecorderSpanReceiver.this.getNumBufferedSpans();
+    }
+
+    @Override
+    public long getNumRecorded() {
+      return FlightRecorderSpanReceiver.this.getNumRecorded();
+    }
+
+    @Override
+    public long getNumOverwritten() {
+      return FlightRecorderSpanReceiver.this.getNumOverwritten();
+    }
+
+    @Override
+    public long getNumDumps() {
+      return numDumps.get();
+    }
+
+    @Override
+    public String dump() throws IOException {
+      return dumpToDir().getAbsolutePath();
+    }
+
+    @Override
+    public long dumpTo(String path) throws IOException {
+      return FlightRecorderSpanReceiver.this.dumpTo(path);
+    }
+  }
+
+  public FlightRecorderSpanReceiver(HTraceConfiguration conf) {
+    this.capacity = conf.getInt(CAPACITY_BYTES_KEY, CAPACITY_BYTES_DEFAULT);
+    if (capacity < 1024) {
+      throw new IllegalArgumentException(CAPACITY_BYTES_KEY +
+          " must be at least 1024.");
+    }
+    this.dumpDir = conf.get(DUMP_DIR_KEY,
+        System.getProperty("java.io.tmpdir", "/tmp"));
+    this.latencyThresholdMs = conf.getInt(LATENCY_THRESHOLD_MS_KEY,
+        LATENCY_THRESHOLD_MS_DEFAULT);
+    this.triggerDelayMs = Math.max(0,
+        conf.getInt(TRIGGER_DELAY_MS_KEY, TRIGGER_DELAY_MS_DEFAULT));
+    this.minTriggerIntervalMs = Math.max(0,
+        conf.getInt(MIN_TRIGGER_INTERVAL_MS_KEY,
+            MIN_TRIGGER_INTERVAL_MS_DEFAULT));
+    if (conf.getBoolean(OFF_HEAP_KEY, OFF_HEAP_DEFAULT)) {
+      this.ring = ByteBuffer.allocateDirect(capacity);
+    } else {
+      this.ring = ByteBuffer.allocate(capacity);
+    }
+    this.dumper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r,
+            "FlightRecorderSpanReceiver(" + getId() + ")");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.mbeanName = MBeans.flightRecorderName(this);
+    MBeans.register(mbeanName, new Bean());
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Created new FlightRecorderSpanReceiver with capacity = " +
+          capacity + " bytes, offHeap = " + ring.isDirect() +
+          ", dumpDir = " + dumpDir + ", latencyThresholdMs = " +
+          latencyThresholdMs);
+    }
+  }
+
+  @Override
+  public boolean retainsSpans() {
+    return false;
+  }
+
+  @Override
+  public void receiveSpan(Span span) {
+    // Serialize outside the lock, into the thread's reusable codec buffer.
+    SpanJsonCodec codec = SpanJsonCodec.local();
+    int len = codec.encode(span);
+    record(codec.getBuffer(), len);
+    checkLatency(span);
+  }
+
+  @Override
+  public void receiveSpans(Span[] spans, int offset, int len) {
+    SpanJsonCodec codec = SpanJsonCodec.local();
+    int end = offset + len;
+    for (int i = offset; i < end; i++) {
+      record(codec.getBuffer(), codec.encode(spans[i]));
+      checkLatency(spans[i]);
+    }
+  }
+
+  private void checkLatency(Span span) {
+    if (latencyThresholdMs < 0) {
+      return;
+    }
+    long duration = span.getStopTimeMillis() - span.getStartTimeMillis();
+    if (duration >= latencyThresholdMs) {
+      trigger("span " + span.getSpanId() + " (" + span.getDescription() +
+          ") took " + duration + " ms");
+    }
+  }
+
+  /**
+   * Write a serialized span into the ring, overwriting the oldest spans if
+   * needed.
+   */
+  private void record(byte[] buf, int len) {
+    int total = HEADER_LENGTH + len;
+    if (total > capacity) {
+      numTooLarge.incrementAndGet();
+      return;
+    }
+    lock.lock();
+    try {
+      while (writePos + total - readPos > capacity) {
+        readPos += HEADER_LENGTH + getInt(readPos);
+        numBuffered--;
+        numOverwritten++;
+      }
+      putInt(writePos, len);
+      put(writePos + HEADER_LENGTH, buf, 0, len);
+      writePos += total;
+      numBuffered++;
+      numRecorded++;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void putInt(long pos, int val) {
+    for (int i = 0; i < HEADER_LENGTH; i++) {
+      ring.put((int)((pos + i) % capacity), (byte)(val >>> (8 * i)));
+    }
+  }
+
+  private int getInt(long pos) {
+    int val = 0;
+    for (int i = 0; i < HEADER_LENGTH; i++) {
+      val |= (ring.get((int)((pos + i) % capacity)) & 0xff) << (8 * i);
+    }
+    return val;
+  }
+
+  private void put(long pos, byte[] src, int off, int len) {
+    int idx = (int)(pos % capacity);
+    int first = Math.min(len, capacity - idx);
+    ring.position(idx);
+    ring.put(src, off, first);
+    if (first < len) {
+      ring.position(0);
+      ring.put(src, off + first, len - first);
+    }
+  }
+
+  /**
+   * Copy the contents of the ring, oldest span first.
+   */
+  private byte[] snapshot() {
+    lock.lock();
+    try {
+      byte[] copy = new byte[(int)(writePos - readPos)];
+      int idx = (int)(readPos % capacity);
+      int first = Math.min(copy.length, capacity - idx);
+      ring.position(idx);
+      ring.get(copy, 0, first);
+      if (first < copy.length) {
+        ring.position(0);
+        ring.get(copy, first, copy.length - first);
+      }
+      return copy;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Write the spans in the ring to a stream as JSON lines, oldest first.
+   * Spans which arrive while the dump is being written are not included.
+   *
+   * @param out     The stream.  It is not closed.
+   * @return        The number of spans written.
+   */
+  public long dump(OutputStream out) throws IOException {
+    byte[] copy = snapshot();
+    long numSpans = 0;
+    int pos = 0;
+    while (pos < copy.length) {
+      int len = (copy[pos] & 0xff) | ((copy[pos + 1] & 0xff) << 8) |
+          ((copy[pos + 2] & 0xff) << 16) | ((copy[pos + 3] & 0xff) << 24);
+      pos += HEADER_LENGTH;
+      out.write(copy, pos, len);
+      out.write(NEWLINE);
+      pos += len;
+      numSpans++;
+    }
+    out.flush();
+    numDumps.incrementAndGet();
+    return numSpans;
+  }
+
+  /**
+   * Write the spans in the ring to a file.
+   *
+   * @param path    The path of the file, which is overwritten if it exists.
+   * @return        The number of spans written.
+   */
+  public long dumpTo(String path) throws IOException {
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(path));
+    try {
+      return dump(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Dump the ring to a new file in the dump directory.
+   */
+  File dumpToDir() throws IOException {
+    File file;
+    long now = System.currentTimeMillis();
+    do {
+      file = new File(dumpDir, "htrace-flight-recorder-" + getId() + "-" +
+          now + ".json");
+      now++;
+    } while (file.exists());
+    long numSpans = dumpTo(file.getAbsolutePath());
+    LOG.info("Dumped " + numSpans + " span(s) to " + file);
+    return file;
+  }
+
+  /**
+   * Ask for the ring to be dumped to the dump directory.
+   *
+   * This returns right away.  The dump is written on a background thread
+   * after the trigger delay.  Triggers are ignored if the last accepted
+   * trigger was less than the minimum trigger interval ago.
+   *
+   * @param reason  Why the dump was triggered, for the log.
+   * @return        True if a dump was scheduled.
+   */
+  public boolean trigger(final String reason) {
+    if (closed) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    long last = lastTriggerMs.get();
+    if (((last != 0) && (now - last < minTriggerIntervalMs)) ||
+        (!lastTriggerMs.compareAndSet(last, now))) {
+      return false;
+    }
+    LOG.info("FlightRecorderSpanReceiver(" + getId() + ") triggered: " +
+        reason);
+    try {
+      dumper.schedule(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            dumpToDir();
+          } catch (Throwable t) {
+            LOG.error("Failed to write the dump triggered by: " + reason, t);
+          }
+        }
+      }, triggerDelayMs, TimeUnit.MILLISECONDS);
+    } catch (RuntimeException e) {
+      // The receiver was closed concurrently.
+      return false;
+    }
+    return true;
+  }
+
+  public long getUsedBytes() {
+    lock.lock();
+    try {
+      return writePos - readPos;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getNumBufferedSpans() {
+    lock.lock();
+    try {
+      return numBuffered;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getNumRecorded() {
+    lock.lock();
+    try {
+      return numRecorded;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getNumOverwritten() {
+    lock.lock();
+    try {
+      return numOverwritten;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of spans which were too large to fit in the ring.
+   */
+  public long getNumTooLarge() {
+    return numTooLarge.get();
+  }
+
+  /**
+   * Stop accepting triggers.  Dumps which were already triggered are still
+   * written.  The ring can still be dumped directly.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    dumper.shutdown();
+    try {
+      if (!dumper.awaitTermination(60, TimeUnit.SECONDS)) {
+        LOG.warn("Timed out waiting for triggered dumps to finish.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    MBeans.unregister(mbeanName);
+  }
+}
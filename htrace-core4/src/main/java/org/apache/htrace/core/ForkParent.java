@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+/**
+ * The trace context a forked task carries to the thread which runs it: just
+ * the ID of the span which was current when the task was created, and the
+ * thread which created it.
+ *
+ * Fork-join tasks are often run by the thread which forked them, in the
+ * middle of that thread's span.  Opening a child span for each of them would
+ * cost more than the work they do.  So a child scope is only opened when the
+ * task runs somewhere else: on another thread, or after the forking thread
+ * has moved on from the parent span.
+ *
+ * The thread which runs the task may already be in a span of another trace,
+ * for example a worker which runs a stolen task while it waits in join.  The
+ * child span still has the captured span as its only parent, and the
+ * worker's span becomes current again when the task is done.
+ */
+final class ForkParent {
+  private final Tracer tracer;
+  private final SpanId parentId;
+  private final Thread origin;
+  private final String description;
+
+  /**
+   * Capture the current span of the calling thread.
+   *
+   * @param tracer        The tracer to open child scopes with.
+   * @param description   The description of child spans, or null to use the
+   *                        name of the thread which runs the task.
+   */
+  ForkParent(Tracer tracer, String description) {
+    this.tracer = tracer;
+    this.parentId = Tracer.getCurrentSpanId();
+    this.origin = Thread.currentThread();
+    this.description = description;
+  }
+
+  /**
+   * Called by the thread which runs the task, before running it.
+   *
+   * @return A child scope of the parent span, which the caller must close
+   *           after running the task; or null if none is needed.
+   */
+  TraceScope enter() {
+    if (!parentId.isValid()) {
+      return null;
+    }
+    Thread thread = Thread.currentThread();
+    if ((thread == origin) && parentId.equals(Tracer.peekCurrentSpanId())) {
+      return null;
+    }
+    String desc = description;
+    if (desc == null) {
+      desc = thread.getName();
+    }
+    return tracer.newScopeWithOnlyParent(desc, parentId);
+  }
+}
@@ -0,0 +1,589 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A SpanReceiver which aggregates span durations into latency histograms,
+ * keyed by tracer ID and description, instead of storing the spans.
+ *
+ * Each thread records into its own histograms, so recording takes no locks
+ * and writes no shared memory.  Each histogram takes about 4KB, so once there
+ * are {@link #MAX_THREAD_HISTOGRAMS_KEY} of them, threads record into
+ * histograms shared by all threads instead, which are updated atomically.
+ * Every {@link #INTERVAL_MS_KEY}, a background
+ * thread merges the counts recorded since the last interval, and passes one
+ * summary span per tracer ID and description to the delegate receiver
+ * ({@link #DELEGATE_KEY}), for example a LocalFileSpanReceiver or an
+ * HTracedSpanReceiver.  A summary span covers the interval, has the same
+ * tracer ID and description as the spans it summarizes, and has these KV
+ * annotations:
+ *
+ * <ul>
+ *   <li>count, mean, p50, p90, p99, p999, max: the number of spans, and
+ *       their latencies in milliseconds.  Percentiles are the upper bounds
+ *       of the histogram buckets holding them.</li>
+ *   <li>buckets: the non-empty buckets, as space-separated "index:count"
+ *       pairs, so that intervals and processes can be merged later.  Values
+ *       below 8 have a bucket each; above that, each power of two is split
+ *       into 8 equal buckets.</li>
+ * </ul>
+ *
+ * The summary spans of the last interval can also be read with
+ * {@link #getLastSummaries()}, which is the only way to get them if no
+ * delegate is configured.
+ */
+public class HistogramSpanReceiver extends SpanReceiver {
+  private static final Log LOG = LogFactory.getLog(HistogramSpanReceiver.class);
+
+  /**
+   * The class name of the receiver to send summary spans to.  Optional.
+   */
+  public final static String DELEGATE_KEY =
+      "histogram.span.receiver.delegate";
+
+  public final static String INTERVAL_MS_KEY =
+      "histogram.span.receiver.interval.ms";
+
+  public final static int INTERVAL_MS_DEFAULT = 60000;
+
+  /**
+   * The maximum number of distinct descriptions to track per thread.  Spans
+   * with other descriptions are counted as dropped.
+   */
+  public final static String MAX_DESCRIPTIONS_KEY =
+      "histogram.span.receiver.max.descriptions";
+
+  public final static int MAX_DESCRIPTIONS_DEFAULT = 1000;
+
+  /**
+   * The maximum number of histograms owned by single threads, summed over
+   * all threads.  Past this, threads record into shared histograms, of which
+   * there are at most {@link #MAX_DESCRIPTIONS_KEY}.
+   */
+  public final static String MAX_THREAD_HISTOGRAMS_KEY =
+      "histogram.span.receiver.max.thread.histograms";
+
+  public final static int MAX_THREAD_HISTOGRAMS_DEFAULT = 4096;
+
+  /**
+   * The counts recorded for one tracer ID and description, by one thread, or
+   * by all of the threads which could not have their own.  Only the owning
+   * thread writes an unshared cell, so it can update the counters with plain
+   * reads and ordered writes.  The counters are never reset; readers take
+   * the difference from the last time they looked.
+   */
+  private static final class Cell {
+    /**
+     * Index of the sum of the recorded values in {@link #counts}.
+     */
+    static final int SUM = LatencyHistogram.NUM_BUCKETS;
+
+    final Key key;
+
+    final boolean shared;
+
+    final AtomicLongArray counts =
+        new AtomicLongArray(LatencyHistogram.NUM_BUCKETS + 1);
+
+    /**
+     * The counts at the last snapshot.  Only accessed by the snapshotting
+     * thread.
+     */
+    final long[] prev = new long[LatencyHistogram.NUM_BUCKETS + 1];
+
+    Cell(Key key, boolean shared) {
+      this.key = key;
+      this.shared = shared;
+    }
+
+    void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      int index = LatencyHistogram.bucketIndex(value);
+      if (shared) {
+        counts.incrementAndGet(index);
+        counts.addAndGet(SUM, value);
+      } else {
+        counts.lazySet(index, counts.get(index) + 1);
+        counts.lazySet(SUM, counts.get(SUM) + value);
+      }
+    }
+  }
+
+  /**
+   * The cells of one thread.
+   */
+  private static final class Recorder {
+    final Thread owner;
+
+    /**
+     * Maps tracer ID to description to cell, which may be a shared cell.
+     * Only the owning thread adds entries, but the snapshotting thread
+     * iterates over them.
+     */
+    final ConcurrentHashMap<String, ConcurrentHashMap<String, Cell>> cells =
+        new ConcurrentHashMap<String, ConcurrentHashMap<String, Cell>>();
+
+    int numCells = 0;
+
+    Recorder(Thread owner) {
+      this.owner = owner;
+    }
+  }
+
+  /**
+   * Identifies a histogram.
+   */
+  static final class Key {
+    final String tracerId;
+    final String description;
+
+    Key(String tracerId, String description) {
+      this.tracerId = tracerId;
+      this.description = description;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key)o;
+      return tracerId.equals(other.tracerId) &&
+          description.equals(other.description);
+    }
+
+    @Override
+    public int hashCode() {
+      return tracerId.hashCode() * 31 + description.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return tracerId + "/" + description;
+    }
+  }
+
+  private final SpanReceiver delegate;
+
+  private final long intervalMs;
+
+  private final int maxDescriptions;
+
+  private final int maxThreadCells;
+
+  private final CopyOnWriteArrayList<Recorder> recorders =
+      new CopyOnWriteArrayList<Recorder>();
+
+  private final ThreadLocal<Recorder> recorder = new ThreadLocal<Recorder>() {
+    @Override
+    protected Recorder initialValue() {
+      Recorder r = new Recorder(Thread.currentThread());
+      recorders.add(r);
+      return r;
+    }
+  };
+
+  /**
+   * The number of unshared cells, over all threads.
+   */
+  private final AtomicInteger numThreadCells = new AtomicInteger(0);
+
+  /**
+   * The cells shared by the threads which could not have their own.
+   */
+  private final ConcurrentHashMap<Key, Cell> sharedCells =
+      new ConcurrentHashMap<Key, Cell>();
+
+  private final AtomicInteger numSharedCells = new AtomicInteger(0);
+
+  private final AtomicLong numDropped = new AtomicLong(0);
+
+  /**
+   * The summary spans of the last interval.
+   */
+  private volatile List<Span> lastSummaries = Collections.emptyList();
+
+  /**
+   * The start of the current interval.  Protected by the lock on this
+   * object.
+   */
+  private long intervalStartMs;
+
+  private boolean closed = false;
+
+  private final Thread exporter;
+
+  public HistogramSpanReceiver(HTraceConfiguration conf) {
+    this(conf, buildDelegate(conf));
+  }
+
+  /**
+   * Create a receiver which sends its summaries to the given receiver.
+   *
+   * @param conf      The configuration.
+   * @param delegate  The receiver to send summaries to, or null to keep
+   *                    only the last interval's summaries in memory.
+   */
+  public HistogramSpanReceiver(HTraceConfiguration conf,
+                               SpanReceiver delegate) {
+    this.intervalMs = conf.getInt(INTERVAL_MS_KEY, INTERVAL_MS_DEFAULT);
+    if (intervalMs < 1) {
+      throw new IllegalArgumentException(INTERVAL_MS_KEY +
+          " must be at least 1.");
+    }
+    this.maxDescriptions = conf.getInt(MAX_DESCRIPTIONS_KEY,
+        MAX_DESCRIPTIONS_DEFAULT);
+    if (maxDescriptions < 1) {
+      throw new IllegalArgumentException(MAX_DESCRIPTIONS_KEY +
+          " must be at least 1.");
+    }
+    this.maxThreadCells = conf.getInt(MAX_THREAD_HISTOGRAMS_KEY,
+        MAX_THREAD_HISTOGRAMS_DEFAULT);
+    if (maxThreadCells < 0) {
+      throw new IllegalArgumentException(MAX_THREAD_HISTOGRAMS_KEY +
+          " must not be negative.");
+    }
+    this.delegate = delegate;
+    this.intervalStartMs = System.currentTimeMillis();
+    this.exporter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runExporter();
+      }
+    }, "HistogramSpanReceiver-" + getId());
+    this.exporter.setDaemon(true);
+    this.exporter.start();
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Created new HistogramSpanReceiver with delegate = " +
+          ((delegate == null) ? "none" : delegate.getClass().getName()) +
+          ", intervalMs = " + intervalMs + ", maxDescriptions = " +
+          maxDescriptions + ", maxThreadHistograms = " + maxThreadCells);
+    }
+  }
+
+  private static SpanReceiver buildDelegate(HTraceConfiguration conf) {
+    String className = conf.get(DELEGATE_KEY);
+    if ((className == null) || className.isEmpty()) {
+      return null;
+    }
+    return new SpanReceiver.Builder(conf).className(className).build();
+  }
+
+  public SpanReceiver getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public boolean retainsSpans() {
+    return false;
+  }
+
+  @Override
+  public void receiveSpan(Span span) {
+    record(recorder.get(), span);
+  }
+
+  @Override
+  public void receiveSpans(Span[] spans, int offset, int len) {
+    Recorder r = recorder.get();
+    int end = offset + len;
+    for (int i = offset; i < end; i++) {
+      record(r, spans[i]);
+    }
+  }
+
+  private void record(Recorder r, Span span) {
+    String tracerId = span.getTracerId();
+    ConcurrentHashMap<String, Cell> byDescription = r.cells.get(tracerId);
+    if (byDescription == null) {
+      byDescription = new ConcurrentHashMap<String, Cell>();
+      r.cells.put(tracerId, byDescription);
+    }
+    String description = span.getDescription();
+    Cell cell = byDescription.get(description);
+    if (cell == null) {
+      if (r.numCells >= maxDescriptions) {
+        numDropped.incrementAndGet();
+        return;
+      }
+      cell = newCell(new Key(tracerId, description));
+      if (cell == null) {
+        numDropped.incrementAndGet();
+        return;
+      }
+      byDescription.put(description, cell);
+      r.numCells++;
+    }
+    cell.record(span.getAccumulatedMillis());
+  }
+
+  /**
+   * Get a cell for a thread to record a new key into: a cell of its own if
+   * there is room for one, or else the cell all threads share for the key.
+   *
+   * @return The cell, or null if there is no room for a shared cell either.
+   */
+  private Cell newCell(Key key) {
+    if (numThreadCells.incrementAndGet() <= maxThreadCells) {
+      return new Cell(key, false);
+    }
+    numThreadCells.decrementAndGet();
+    Cell cell = sharedCells.get(key);
+    if (cell != null) {
+      return cell;
+    }
+    if (numSharedCells.incrementAndGet() > maxDescriptions) {
+      numSharedCells.decrementAndGet();
+      return null;
+    }
+    cell = new Cell(key, true);
+    Cell prev = sharedCells.putIfAbsent(key, cell);
+    if (prev != null) {
+      numSharedCells.decrementAndGet();
+      return prev;
+    }
+    return cell;
+  }
+
+  /**
+   * @return The number of spans which were not recorded because their
+   *           thread had too many descriptions, or there were too many
+   *           shared histograms.
+   */
+  public long getNumDropped() {
+    return numDropped.get();
+  }
+
+  /**
+   * Merge the counts recorded since the last snapshot.
+   *
+   * @return The histograms for the interval, by key.  Keys with no new
+   *           spans are left out.
+   */
+  synchronized Map<Key, LatencyHistogram> snapshot() {
+    HashMap<Key, LatencyHistogram> histograms =
+        new HashMap<Key, LatencyHistogram>();
+    ArrayList<Recorder> dead = new ArrayList<Recorder>();
+    for (Recorder r : recorders) {
+      // A thread's writes are visible once it is seen to have exited, so
+      // this is the last time we need to read its recorder.
+      boolean isDead = !r.owner.isAlive();
+      if (isDead) {
+        dead.add(r);
+      }
+      for (ConcurrentHashMap<String, Cell> byDescription : r.cells.values()) {
+        for (Cell cell : byDescription.values()) {
+          if (!cell.shared) {
+            merge(cell, histograms);
+            if (isDead) {
+              numThreadCells.decrementAndGet();
+            }
+          }
+        }
+      }
+    }
+    recorders.removeAll(dead);
+    for (Cell cell : sharedCells.values()) {
+      merge(cell, histograms);
+    }
+    return histograms;
+  }
+
+  private static void merge(Cell cell, HashMap<Key, LatencyHistogram> out) {
+    LatencyHistogram histogram = null;
+    for (int i = 0; i < LatencyHistogram.NUM_BUCKETS; i++) {
+      long cur = cell.counts.get(i);
+      long delta = cur - cell.prev[i];
+      if (delta == 0) {
+        continue;
+      }
+      cell.prev[i] = cur;
+      if (histogram == null) {
+        histogram = out.get(cell.key);
+        if (histogram == null) {
+          histogram = new LatencyHistogram();
+          out.put(cell.key, histogram);
+        }
+      }
+      histogram.addBucketCount(i, delta);
+    }
+    if (histogram != null) {
+      // The sum is written after the buckets, so it may include a value
+      // whose bucket we did not see.  It evens out at the next snapshot.
+      long sum = cell.counts.get(Cell.SUM);
+      histogram.addSum(sum - cell.prev[Cell.SUM]);
+      cell.prev[Cell.SUM] = sum;
+    }
+  }
+
+  /**
+   * Build a summary span for one histogram.
+   */
+  static Span toSummarySpan(Key key, LatencyHistogram histogram,
+                            long startMs, long endMs) {
+    Span span = new MilliSpan.Builder().
+        spanId(SpanId.fromRandom()).
+        tracerId(key.tracerId).
+        description(key.description).
+        begin(startMs).
+        end(endMs).
+        build();
+    span.addKVAnnotation("count", Long.toString(histogram.getCount()));
+    span.addKVAnnotation("mean",
+        String.format(Locale.ROOT, "%.3f", histogram.getMean()));
+    span.addKVAnnotation("p50",
+        Long.toString(histogram.getValueAtPercentile(50)));
+    span.addKVAnnotation("p90",
+        Long.toString(histogram.getValueAtPercentile(90)));
+    span.addKVAnnotation("p99",
+        Long.toString(histogram.getValueAtPercentile(99)));
+    span.addKVAnnotation("p999",
+        Long.toString(histogram.getValueAtPercentile(99.9)));
+    span.addKVAnnotation("max", Long.toString(histogram.getMax()));
+    StringBuilder bld = new StringBuilder();
+    for (int i = 0; i < LatencyHistogram.NUM_BUCKETS; i++) {
+      long count = histogram.getBucketCount(i);
+      if (count != 0) {
+        if (bld.length() > 0) {
+          bld.append(' ');
+        }
+        bld.append(i).append(':').append(count);
+      }
+    }
+    span.addKVAnnotation("buckets", bld.toString());
+    return span;
+  }
+
+  /**
+   * @return The summary spans of the last interval, one per tracer ID and
+   *           description with spans in it.  Empty until the first
+   *           interval ends.
+   */
+  public List<Span> getLastSummaries() {
+    return lastSummaries;
+  }
+
+  /**
+   * Take a snapshot, keep its summaries, and send them to the delegate.
+   */
+  void export() {
+    Map<Key, LatencyHistogram> histograms;
+    long startMs, endMs;
+    synchronized (this) {
+      histograms = snapshot();
+      startMs = intervalStartMs;
+      endMs = System.currentTimeMillis();
+      intervalStartMs = endMs;
+    }
+    Span[] spans = new Span[histograms.size()];
+    int i = 0;
+    for (Iterator<Map.Entry<Key, LatencyHistogram>> iter =
+             histograms.entrySet().iterator(); iter.hasNext(); ) {
+      Map.Entry<Key, LatencyHistogram> entry = iter.next();
+      spans[i++] = toSummarySpan(entry.getKey(), entry.getValue(),
+          startMs, endMs);
+    }
+    lastSummaries = Collections.unmodifiableList(Arrays.asList(spans));
+    if ((delegate == null) || (spans.length == 0)) {
+      return;
+    }
+    try {
+      delegate.receiveSpans(spans, 0, spans.length);
+    } catch (Throwable e) {
+      LOG.error("Delegate receiver " + delegate.getClass().getName() +
+          " threw an exception", e);
+    }
+  }
+
+  private void runExporter() {
+    long nextMs = System.currentTimeMillis() + intervalMs;
+    while (true) {
+      synchronized (this) {
+        while (!closed) {
+          long waitMs = nextMs - System.currentTimeMillis();
+          if (waitMs <= 0) {
+            break;
+          }
+          try {
+            wait(waitMs);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (closed) {
+          return;
+        }
+      }
+      nextMs += intervalMs;
+      export();
+    }
+  }
+
+  /**
+   * Exports what has been recorded since the last interval, then closes the
+   * delegate.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
+    try {
+      exporter.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    export();
+    if (delegate != null) {
+      try {
+        delegate.close();
+      } catch (Throwable e) {
+        LOG.error("Error closing delegate receiver " +
+            delegate.getClass().getName(), e);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "HistogramSpanReceiver(" + ((delegate == null) ? "" :
+        delegate.getClass().getName()) + ")";
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative long values, such as latencies, with
+ * log-linear buckets.
+ *
+ * Values below 8 get a bucket each.  Above that, every power of two is split
+ * into 8 equal buckets, so a bucket's width is at most 1/8th of the values it
+ * holds.  488 buckets cover every non-negative long.
+ *
+ * This class is not thread-safe.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final long[] counts = new long[NUM_BUCKETS];
+
+  private long totalCount = 0;
+
+  private long sum = 0;
+
+  private long min = Long.MAX_VALUE;
+
+  private long max = 0;
+
+  /**
+   * Get the bucket a value falls into.
+   *
+   * @param value   The value.  Negative values are treated as 0.
+   * @return        The bucket index.
+   */
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (value < 0) ? 0 : (int)value;
+    }
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    return ((shift + 1) << SUB_BUCKET_BITS) +
+        (int)((value >>> shift) - SUB_BUCKETS);
+  }
+
+  /**
+   * @param index   A bucket index.
+   * @return        The lowest value which falls into that bucket.
+   */
+  static long bucketLowerBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = (index >>> SUB_BUCKET_BITS) - 1;
+    long mantissa = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+    return mantissa << shift;
+  }
+
+  /**
+   * @param index   A bucket index.
+   * @return        The highest value which falls into that bucket.
+   */
+  static long bucketUpperBound(int index) {
+    if (index == NUM_BUCKETS - 1) {
+      return Long.MAX_VALUE;
+    }
+    return bucketLowerBound(index + 1) - 1;
+  }
+
+  /**
+   * Record a value.
+   *
+   * @param value   The value.  Negative values are recorded as 0.
+   */
+  void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts[bucketIndex(value)]++;
+    totalCount++;
+    sum += value;
+    if (value < min) {
+      min = value;
+    }
+    if (value > max) {
+      max = value;
+    }
+  }
+
+  /**
+   * Add a number of values to a bucket, without knowing their exact values.
+   * The minimum and maximum are widened to the bounds of the bucket, and the
+   * sum is left alone; use {@link #addSum(long)} if it is known.
+   *
+   * @param index   The bucket index.
+   * @param count   The number of values to add.
+   */
+  void addBucketCount(int index, long count) {
+    if (count <= 0) {
+      return;
+    }
+    counts[index] += count;
+    totalCount += count;
+    min = Math.min(min, bucketLowerBound(index));
+    max = Math.max(max, bucketUpperBound(index));
+  }
+
+  void addSum(long value) {
+    sum += value;
+  }
+
+  /**
+   * Add the counts from another histogram into this one.
+   *
+   * @param other   The other histogram.
+   */
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * Halve every count, so that older values gradually carry less weight.
+   * The minimum and maximum are kept.
+   */
+  void decay() {
+    totalCount = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts[i] >>>= 1;
+      totalCount += counts[i];
+    }
+    sum >>>= 1;
+  }
+
+  void reset() {
+    Arrays.fill(counts, 0);
+    totalCount = 0;
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+  }
+
+  long getCount() {
+    return totalCount;
+  }
+
+  long getBucketCount(int index) {
+    return counts[index];
+  }
+
+  /**
+   * @return        The smallest value recorded, or 0 if there are none.
+   */
+  long getMin() {
+    return (totalCount == 0) ? 0 : min;
+  }
+
+  long getMax() {
+    return max;
+  }
+
+  double getMean() {
+    return (totalCount == 0) ? 0.0 : ((double)sum) / totalCount;
+  }
+
+  /**
+   * Get the value at a percentile.
+   *
+   * @param percentile  The percentile, from 0 to 100.
+   * @return            The highest value in the bucket which holds the
+   *                      percentile, capped at the maximum recorded value;
+   *                      or 0 if the histogram is empty.
+   */
+  long getValueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    double fraction = Math.max(0.0, Math.min(100.0, percentile)) / 100.0;
+    long target = Math.max(1L, (long)Math.ceil(fraction * totalCount));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(bucketUpperBound(i), max);
+      }
+    }
+    return max;
+  }
+}
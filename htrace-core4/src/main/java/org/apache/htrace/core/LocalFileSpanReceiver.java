@@ -16,9 +16,6 @@
  */
 package org.apache.htrace.core;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -27,198 +24,628 @@ import java.io.BufferedWriter;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Writes the spans it receives to a local file.
+ *
+ * Application threads only serialize spans and append them to an in-memory
+ * buffer.  To keep threads from contending on one buffer, there is a buffer
+ * per stripe, and each thread uses the stripe picked by its ID.  When a
+ * buffer fills up, it is swapped for the stripe's spare buffer and queued
+ * for a background flusher thread, which writes every queued buffer with a
+ * single writev, and then syncs the file according to the fsync policy.
+ * The flusher also writes out partly full buffers every
+ * {@link #MAX_LINGER_MS_KEY}, so that spans do not sit in memory
+ * indefinitely when the load is light.
+ *
+ * If the flusher falls more than {@link #MAX_PENDING_BUFFERS_KEY} buffers
+ * behind, new full buffers are dropped rather than blocking the application.
+ *
+ * The file can be rolled over into segments by size or age, with a cap on
+ * the number of segments kept, and compressed with gzip.  Compression is
+ * done by the flusher too.
  */
 public class LocalFileSpanReceiver extends SpanReceiver {
   private static final Log LOG = LogFactory.getLog(LocalFileSpanReceiver.class);
   public static final String PATH_KEY = "local.file.span.receiver.path";
+
+  /**
+   * The number of spans each buffer holds.
+   */
   public static final String CAPACITY_KEY = "local.file.span.receiver.capacity";
   public static final int CAPACITY_DEFAULT = 5000;
-  private static ObjectWriter JSON_WRITER = new ObjectMapper().writer();
+
+  /**
+   * The longest time a span waits in a buffer before it is written out.
+   */
+  public static final String MAX_LINGER_MS_KEY =
+      "local.file.span.receiver.max.linger.ms";
+  public static final int MAX_LINGER_MS_DEFAULT = 1000;
+
+  /**
+   * The maximum number of full buffers waiting for the flusher.
+   */
+  public static final String MAX_PENDING_BUFFERS_KEY =
+      "local.file.span.receiver.max.pending.buffers";
+  public static final int MAX_PENDING_BUFFERS_DEFAULT = 16;
+
+  /**
+   * When to sync the file to disk: "none", "interval", or "batch".  See
+   * {@link FsyncPolicy}.
+   */
+  public static final String FSYNC_KEY = "local.file.span.receiver.fsync";
+  public static final String FSYNC_DEFAULT = "none";
+
+  /**
+   * How often to sync the file under the "interval" policy.
+   */
+  public static final String FSYNC_INTERVAL_MS_KEY =
+      "local.file.span.receiver.fsync.interval.ms";
+  public static final int FSYNC_INTERVAL_MS_DEFAULT = 1000;
+
+  /**
+   * Roll the file over into a new segment once it is at least this many
+   * bytes.  0, the default, means never.  See {@link SegmentWriter} for how
+   * segments are named.
+   */
+  public static final String ROLL_SIZE_BYTES_KEY =
+      "local.file.span.receiver.roll.size.bytes";
+
+  /**
+   * Roll the file over into a new segment once it is at least this old.
+   * 0, the default, means never.
+   */
+  public static final String ROLL_INTERVAL_MS_KEY =
+      "local.file.span.receiver.roll.interval.ms";
+
+  /**
+   * The number of rolled segments to keep.  Older ones are deleted.  0, the
+   * default, means keep them all.
+   */
+  public static final String MAX_SEGMENTS_KEY =
+      "local.file.span.receiver.max.segments";
+  public static final int MAX_SEGMENTS_DEFAULT = 0;
+
+  /**
+   * How to compress the file: "none" or "gzip".  With gzip, each batch the
+   * flusher writes is a separate gzip member, so everything but the batch
+   * being written can be read back after a crash.
+   */
+  public static final String COMPRESSION_KEY =
+      "local.file.span.receiver.compression";
+  public static final String COMPRESSION_DEFAULT = "none";
+
+  /**
+   * When the flusher syncs the file to disk.  The file is always synced on
+   * close, unless the policy is NONE.
+   */
+  public enum FsyncPolicy {
+    /**
+     * Leave it to the operating system.
+     */
+    NONE,
+
+    /**
+     * Sync after a write if the last sync was at least
+     * {@link #FSYNC_INTERVAL_MS_KEY} ago.
+     */
+    INTERVAL,
+
+    /**
+     * Sync after every write.  Each write covers everything which was
+     * queued when the flusher woke up.
+     */
+    BATCH;
+
+    static FsyncPolicy fromString(String str) {
+      try {
+        return valueOf(str.trim().toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unknown value " + str + " for " +
+            FSYNC_KEY + ".  Valid values are none, interval, and batch.");
+      }
+    }
+  }
+
+  /**
+   * The minimum interval between warnings about dropped spans.
+   */
+  private static final long DROP_WARNING_INTERVAL_MS = 60000;
+
+  /**
+   * A buffer of serialized spans.
+   */
+  private static final class Buffer {
+    final Stripe stripe;
+    final byte[][] spans;
+    int len = 0;
+
+    Buffer(Stripe stripe, int capacity) {
+      this.stripe = stripe;
+      this.spans = new byte[capacity][];
+    }
+
+    boolean isFull() {
+      return len == spans.length;
+    }
+
+    void clear() {
+      Arrays.fill(spans, 0, len, null);
+      len = 0;
+    }
+  }
+
+  /**
+   * The buffers of one stripe.  Protected by the stripe's lock.
+   */
+  private final class Stripe {
+    final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The buffer which spans are added to, or null once the receiver is
+     * closed.
+     */
+    Buffer active;
+
+    /**
+     * An empty buffer to swap in when the active one fills up, or null if
+     * the flusher has not returned one yet.
+     */
+    Buffer spare;
+
+    Stripe() {
+      this.active = new Buffer(this, capacity);
+      this.spare = new Buffer(this, capacity);
+    }
+
+    /**
+     * Swap out the active buffer.  Must be called with the lock held.
+     *
+     * @return The old active buffer.
+     */
+    Buffer swap() {
+      Buffer old = active;
+      if (spare != null) {
+        active = spare;
+        spare = null;
+      } else {
+        active = new Buffer(this, capacity);
+      }
+      return old;
+    }
+  }
+
   private final String path;
 
-  private byte[][] bufferedSpans;
-  private int bufferedSpansIndex;
-  private final ReentrantLock bufferLock = new ReentrantLock();
+  private final int capacity;
+
+  private final long maxLingerMs;
+
+  private final int maxPendingBuffers;
+
+  private final FsyncPolicy fsyncPolicy;
+
+  private final long fsyncIntervalMs;
+
+  private final Stripe[] stripes;
+
+  /**
+   * Protects pending and closing, and is used to wake the flusher.
+   */
+  private final ReentrantLock flushLock = new ReentrantLock();
+
+  private final Condition flushCond = flushLock.newCondition();
+
+  /**
+   * Full buffers waiting to be written, oldest first.
+   */
+  private final ArrayDeque<Buffer> pending = new ArrayDeque<Buffer>();
+
+  private boolean closing = false;
+
+  private final AtomicLong numDropped = new AtomicLong(0);
 
-  private final FileOutputStream stream;
-  private final FileChannel channel;
-  private final ReentrantLock channelLock = new ReentrantLock();
+  private final AtomicLong lastDropWarningMs = new AtomicLong(0);
+
+  /**
+   * Writes the spans to the file.  Only accessed by the flusher, and by
+   * close once the flusher has exited.
+   */
+  private final SegmentWriter writer;
+
+  /**
+   * The time of the last sync.  Only accessed by the flusher.
+   */
+  private long lastFsyncMs;
+
+  private final Thread flusher;
 
   public LocalFileSpanReceiver(HTraceConfiguration conf) {
+    this(conf, true);
+  }
+
+  /**
+   * Create a receiver which writes records in a different format.  Subclasses
+   * should override {@link #encode(Span)}.
+   *
+   * @param conf      The configuration.
+   * @param newlines  Whether to end each record with a newline.  Subclasses
+   *                    whose records carry their own length should pass
+   *                    false.
+   */
+  protected LocalFileSpanReceiver(HTraceConfiguration conf,
+                                  boolean newlines) {
     int capacity = conf.getInt(CAPACITY_KEY, CAPACITY_DEFAULT);
     if (capacity < 1) {
       throw new IllegalArgumentException(CAPACITY_KEY + " must not be " +
           "less than 1.");
     }
+    this.capacity = capacity;
+    this.maxLingerMs = conf.getInt(MAX_LINGER_MS_KEY, MAX_LINGER_MS_DEFAULT);
+    if (maxLingerMs < 1) {
+      throw new IllegalArgumentException(MAX_LINGER_MS_KEY + " must not be " +
+          "less than 1.");
+    }
+    this.maxPendingBuffers = conf.getInt(MAX_PENDING_BUFFERS_KEY,
+        MAX_PENDING_BUFFERS_DEFAULT);
+    if (maxPendingBuffers < 1) {
+      throw new IllegalArgumentException(MAX_PENDING_BUFFERS_KEY +
+          " must not be less than 1.");
+    }
+    this.fsyncPolicy = FsyncPolicy.fromString(
+        conf.get(FSYNC_KEY, FSYNC_DEFAULT));
+    this.fsyncIntervalMs = conf.getInt(FSYNC_INTERVAL_MS_KEY,
+        FSYNC_INTERVAL_MS_DEFAULT);
     String pathStr = conf.get(PATH_KEY);
     if (pathStr == null || pathStr.isEmpty()) {
       path = getUniqueLocalTraceFileName();
     } else {
       path = pathStr;
     }
-    boolean success = false;
+    long rollSizeBytes = getLong(conf, ROLL_SIZE_BYTES_KEY, 0);
+    long rollIntervalMs = getLong(conf, ROLL_INTERVAL_MS_KEY, 0);
+    int maxSegments = conf.getInt(MAX_SEGMENTS_KEY, MAX_SEGMENTS_DEFAULT);
+    SegmentWriter.Compression compression =
+        SegmentWriter.Compression.fromString(
+            conf.get(COMPRESSION_KEY, COMPRESSION_DEFAULT));
     try {
-      this.stream = new FileOutputStream(path, true);
+      this.writer = new SegmentWriter(path, rollSizeBytes, rollIntervalMs,
+          maxSegments, compression, newlines);
     } catch (IOException ioe) {
       LOG.error("Error opening " + path + ": " + ioe.getMessage());
       throw new RuntimeException(ioe);
     }
-    this.channel = stream.getChannel();
-    if (this.channel == null) {
-      try {
-        this.stream.close();
-      } catch (IOException e) {
-        LOG.error("Error closing " + path, e);
-      }
-      LOG.error("Failed to get channel for " + path);
-      throw new RuntimeException("Failed to get channel for " + path);
+    this.stripes = new Stripe[StripedCounter.numStripes(16)];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
     }
-    this.bufferedSpans = new byte[capacity][];
-    this.bufferedSpansIndex = 0;
+    this.lastFsyncMs = System.currentTimeMillis();
+    this.flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runFlusher();
+      }
+    }, "LocalFileSpanReceiver(" + path + ")");
+    this.flusher.setDaemon(true);
+    this.flusher.start();
     if (LOG.isDebugEnabled()) {
       LOG.debug("Created new LocalFileSpanReceiver with path = " + path +
-                ", capacity = " + capacity);
+                ", capacity = " + capacity + ", maxLingerMs = " +
+                maxLingerMs + ", maxPendingBuffers = " + maxPendingBuffers +
+                ", fsync = " + fsyncPolicy + ", stripes = " + stripes.length +
+                ", rollSizeBytes = " + rollSizeBytes + ", rollIntervalMs = " +
+                rollIntervalMs + ", maxSegments = " + maxSegments +
+                ", compression = " + compression);
     }
   }
 
-  /**
-   * Number of buffers to use in FileChannel#write.
-   *
-   * On UNIX, FileChannel#write uses writev-- a kernel interface that allows
-   * us to send multiple buffers at once.  This is more efficient than making a
-   * separate write call for each buffer, since it minimizes the number of
-   * transitions from userspace to kernel space.
-   */
-  private final int WRITEV_SIZE = 20;
-
-  private final static ByteBuffer newlineBuf = 
-      ByteBuffer.wrap(new byte[] { (byte)0xa });
+  private static long getLong(HTraceConfiguration conf, String key,
+                              long defaultVal) {
+    String str = conf.get(key);
+    if ((str == null) || str.trim().isEmpty()) {
+      return defaultVal;
+    }
+    long val;
+    try {
+      val = Long.parseLong(str.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Bad value for " + key + ": " + str);
+    }
+    if (val < 0) {
+      throw new IllegalArgumentException(key + " must not be negative.");
+    }
+    return val;
+  }
 
   /**
-   * Flushes a bufferedSpans array.
+   * Writes a list of buffers as one batch.
    */
-  private void doFlush(byte[][] toFlush, int len) throws IOException {
-    int bidx = 0, widx = 0;
-    ByteBuffer writevBufs[] = new ByteBuffer[2 * WRITEV_SIZE];
-
-    while (true) {
-      if (widx == writevBufs.length) {
-        channel.write(writevBufs);
-        widx = 0;
-      }
-      if (bidx == len) {
-        break;
+  private void doFlush(List<Buffer> toFlush) throws IOException {
+    writer.beginBatch();
+    for (Buffer buffer : toFlush) {
+      for (int bidx = 0; bidx < buffer.len; bidx++) {
+        writer.append(buffer.spans[bidx]);
       }
-      writevBufs[widx] = ByteBuffer.wrap(toFlush[bidx]);
-      writevBufs[widx + 1] = newlineBuf;
-      bidx++;
-      widx+=2;
-    }
-    if (widx > 0) {
-      channel.write(writevBufs, 0, widx);
     }
+    writer.endBatch();
+  }
+
+  /**
+   * Serialize a span into a record.  This is called on the thread which
+   * delivers the span, without any locks held, so it must be thread-safe.
+   * The default writes the span as a line of JSON, using the encoding cached
+   * on the span if another receiver already produced it.
+   *
+   * @param span    The span.
+   * @return        The record.  The receiver keeps it until it is written,
+   *                  so it must not be reused.
+   */
+  protected byte[] encode(Span span) {
+    return SpanEncoding.JSON.encode(span);
+  }
+
+  @Override
+  public boolean retainsSpans() {
+    return false;
   }
 
   @Override
   public void receiveSpan(Span span) {
     // Serialize the span data into a byte[].  Note that we're not holding the
     // lock here, to improve concurrency.
-    byte jsonBuf[] = null;
+    byte jsonBuf[] = encode(span);
+    Stripe stripe = stripes[StripedCounter.stripe(stripes.length)];
+    stripe.lock.lock();
     try {
-      jsonBuf = JSON_WRITER.writeValueAsBytes(span);
-    } catch (JsonProcessingException e) {
-        LOG.error("receiveSpan(path=" + path + ", span=" + span + "): " +
-                  "Json processing error: " + e.getMessage());
-      return;
+      Buffer buffer = stripe.active;
+      if (buffer == null) {
+        LOG.debug("receiveSpan(path=" + path + ", span=" + span + "): " +
+                  "LocalFileSpanReceiver for " + path + " is closed.");
+        return;
+      }
+      buffer.spans[buffer.len++] = jsonBuf;
+      if (buffer.isFull()) {
+        submit(stripe);
+      }
+    } finally {
+      stripe.lock.unlock();
     }
+  }
 
-    // Grab the bufferLock and put our jsonBuf into the list of buffers to
-    // flush. 
-    byte toFlush[][] = null;
-    bufferLock.lock();
+  @Override
+  public void receiveSpans(Span[] spans, int offset, int len) {
+    // Serialize all the spans before taking the lock, as receiveSpan does.
+    byte jsonBufs[][] = new byte[len][];
+    for (int i = 0; i < len; i++) {
+      jsonBufs[i] = encode(spans[offset + i]);
+    }
+    // Take the stripe lock once for the whole batch.  A large batch may fill
+    // up more than one buffer.
+    Stripe stripe = stripes[StripedCounter.stripe(stripes.length)];
+    stripe.lock.lock();
     try {
-      if (bufferedSpans == null) {
-        LOG.debug("receiveSpan(path=" + path + ", span=" + span + "): " +
+      if (stripe.active == null) {
+        LOG.debug("receiveSpans(path=" + path + ", len=" + len + "): " +
                   "LocalFileSpanReceiver for " + path + " is closed.");
         return;
       }
-      bufferedSpans[bufferedSpansIndex] = jsonBuf;
-      bufferedSpansIndex++;
-      if (bufferedSpansIndex == bufferedSpans.length) {
-        // If we've hit the limit for the number of buffers to flush, 
-        // swap out the existing bufferedSpans array for a new array, and
-        // prepare to flush those spans to disk.
-        toFlush = bufferedSpans;
-        bufferedSpansIndex = 0;
-        bufferedSpans = new byte[bufferedSpans.length][];
+      for (int i = 0; i < len; i++) {
+        Buffer buffer = stripe.active;
+        buffer.spans[buffer.len++] = jsonBufs[i];
+        if (buffer.isFull()) {
+          submit(stripe);
+        }
       }
     } finally {
-      bufferLock.unlock();
-    }
-    if (toFlush != null) {
-      // We released the bufferLock above, to avoid blocking concurrent
-      // receiveSpan calls.  But now, we must take the channelLock, to make
-      // sure that we have sole access to the output channel.  If we did not do
-      // this, we might get interleaved output.
-      //
-      // There is a small chance that another thread doing a flush of more
-      // recent spans could get ahead of us here, and take the lock before we
-      // do.  This is ok, since spans don't have to be written out in order.
-      channelLock.lock();
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * Queue a stripe's full active buffer for the flusher.  Called with the
+   * stripe lock held, so that once the flusher has swept a stripe, every
+   * full buffer from it is already queued.
+   */
+  private void submit(Stripe stripe) {
+    flushLock.lock();
+    try {
+      if (pending.size() < maxPendingBuffers) {
+        pending.add(stripe.swap());
+        flushCond.signal();
+        return;
+      }
+    } finally {
+      flushLock.unlock();
+    }
+    int len = stripe.active.len;
+    stripe.active.clear();
+    dropped(len);
+  }
+
+  private void dropped(int len) {
+    long dropped = numDropped.addAndGet(len);
+    long now = System.currentTimeMillis();
+    long last = lastDropWarningMs.get();
+    if ((now - last >= DROP_WARNING_INTERVAL_MS) &&
+        lastDropWarningMs.compareAndSet(last, now)) {
+      LOG.warn("LocalFileSpanReceiver for " + path + " can't keep up, so " +
+          "spans are being dropped.  " + dropped + " span(s) dropped so far.");
+    }
+  }
+
+  /**
+   * @return The number of spans dropped because the flusher fell behind.
+   */
+  public long getNumDropped() {
+    return numDropped.get();
+  }
+
+  @Override
+  public double getLoad() {
+    flushLock.lock();
+    try {
+      return ((double)pending.size()) / maxPendingBuffers;
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /**
+   * Queue the partly full buffers of every stripe for the flusher.  Like
+   * {@link #submit(Stripe)}, this holds the stripe lock while queueing, so
+   * the buffers of each stripe stay in order.  Partly full buffers are queued
+   * even if the queue is full, since there is at most one per stripe.
+   *
+   * @param close   If true, leave the stripes closed, so that they take no
+   *                  more spans.
+   */
+  private void sweep(boolean close) {
+    for (Stripe stripe : stripes) {
+      stripe.lock.lock();
       try {
-        doFlush(toFlush, toFlush.length);
-      } catch (IOException ioe) {
-        LOG.error("Error flushing buffers to " + path + ": " +
-            ioe.getMessage());
+        Buffer buffer = stripe.active;
+        if ((buffer == null) || ((buffer.len == 0) && (!close))) {
+          continue;
+        }
+        Buffer old = close ? buffer : stripe.swap();
+        if (close) {
+          stripe.active = null;
+        }
+        if (old.len > 0) {
+          flushLock.lock();
+          try {
+            pending.add(old);
+          } finally {
+            flushLock.unlock();
+          }
+        }
       } finally {
-        channelLock.unlock();
+        stripe.lock.unlock();
       }
     }
   }
 
+  /**
+   * Give written buffers back to their stripes to reuse.
+   */
+  private static void recycle(List<Buffer> buffers) {
+    for (Buffer buffer : buffers) {
+      buffer.clear();
+      Stripe stripe = buffer.stripe;
+      stripe.lock.lock();
+      try {
+        if ((stripe.spare == null) && (stripe.active != null)) {
+          stripe.spare = buffer;
+        }
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+  }
+
+  private void runFlusher() {
+    ArrayList<Buffer> toFlush = new ArrayList<Buffer>();
+    long nextSweepMs = System.currentTimeMillis() + maxLingerMs;
+    boolean done = false;
+    while (!done) {
+      flushLock.lock();
+      try {
+        while (pending.isEmpty() && (!closing)) {
+          long waitMs = nextSweepMs - System.currentTimeMillis();
+          if (waitMs <= 0) {
+            break;
+          }
+          flushCond.await(waitMs, TimeUnit.MILLISECONDS);
+        }
+        done = closing;
+      } catch (InterruptedException e) {
+        LOG.warn("LocalFileSpanReceiver for " + path + ": flusher " +
+            "interrupted.");
+        done = true;
+      } finally {
+        flushLock.unlock();
+      }
+      long now = System.currentTimeMillis();
+      if (done || (now >= nextSweepMs)) {
+        sweep(done);
+        nextSweepMs = now + maxLingerMs;
+      }
+      flushLock.lock();
+      try {
+        toFlush.addAll(pending);
+        pending.clear();
+      } finally {
+        flushLock.unlock();
+      }
+      write(toFlush, done);
+      recycle(toFlush);
+      toFlush.clear();
+    }
+  }
+
+  /**
+   * Write buffers to the file, and sync it if the policy says so.
+   */
+  private void write(List<Buffer> toFlush, boolean last) {
+    try {
+      if (!toFlush.isEmpty()) {
+        doFlush(toFlush);
+      }
+      long now = System.currentTimeMillis();
+      if ((fsyncPolicy != FsyncPolicy.NONE) &&
+          (last || (fsyncPolicy == FsyncPolicy.BATCH) ||
+           (now - lastFsyncMs >= fsyncIntervalMs))) {
+        writer.sync();
+        lastFsyncMs = now;
+      }
+      if (!last) {
+        writer.maybeRoll(now);
+      }
+    } catch (IOException ioe) {
+      LOG.error("Error flushing buffers to " + path + ": " +
+          ioe.getMessage());
+    }
+  }
+
   @Override
   public void close() throws IOException {
-    byte toFlush[][] = null;
-    int numToFlush = 0;
-    bufferLock.lock();
+    flushLock.lock();
     try {
-      if (bufferedSpans == null) {
+      if (closing) {
         LOG.info("LocalFileSpanReceiver for " + path + " was already closed.");
         return;
       }
-      numToFlush = bufferedSpansIndex;
-      bufferedSpansIndex = 0;
-      toFlush = bufferedSpans;
-      bufferedSpans = null;
+      closing = true;
+      flushCond.signal();
     } finally {
-      bufferLock.unlock();
+      flushLock.unlock();
     }
-    channelLock.lock();
     try {
-      doFlush(toFlush, numToFlush);
-    } catch (IOException ioe) {
-      LOG.error("Error flushing buffers to " + path + ": " +
-          ioe.getMessage());
-    } finally {
-      try {
-        stream.close();
-      } catch (IOException e) {
-        LOG.error("Error closing stream for " + path, e);
-      }
-      channelLock.unlock();
+      flusher.join();
+    } catch (InterruptedException e) {
+      LOG.error("Interrupted while waiting for the flusher of " + path +
+          " to finish.");
+      Thread.currentThread().interrupt();
+    }
+    try {
+      writer.close();
+    } catch (IOException e) {
+      LOG.error("Error closing " + path, e);
     }
   }
 
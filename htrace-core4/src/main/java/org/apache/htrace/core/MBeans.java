@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Registers the HTrace MBeans with the platform MBean server.
+ *
+ * Registration is best effort: a failure is logged, and tracing carries on
+ * without the MBean.
+ */
+final class MBeans {
+  private static final Log LOG = LogFactory.getLog(MBeans.class);
+
+  static final String DOMAIN = "org.apache.htrace";
+
+  private MBeans() {
+  }
+
+  static ObjectName tracerPoolName(TracerPool pool) {
+    return newName(DOMAIN + ":type=TracerPool,name=" +
+        ObjectName.quote(pool.getName()));
+  }
+
+  static ObjectName spanReceiverName(SpanReceiver receiver) {
+    return newName(DOMAIN + ":type=SpanReceiver,id=" + receiver.getId());
+  }
+
+  static ObjectName flightRecorderName(FlightRecorderSpanReceiver receiver) {
+    return newName(DOMAIN + ":type=FlightRecorder,id=" + receiver.getId());
+  }
+
+  private static ObjectName newName(String str) {
+    try {
+      return new ObjectName(str);
+    } catch (Exception e) {
+      throw new RuntimeException("Invalid MBean name " + str, e);
+    }
+  }
+
+  /**
+   * Register an MBean.
+   *
+   * @param name    The name to register it under.
+   * @param mbean   The MBean.
+   * @return        True if the MBean was registered.  False if the name was
+   *                  already in use, or registration failed.  Only the
+   *                  caller which registered a name should unregister it.
+   */
+  static boolean register(ObjectName name, Object mbean) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(name)) {
+        LOG.debug("Not registering " + mbean + " as " + name +
+            " since that name is already in use.");
+        return false;
+      }
+      server.registerMBean(mbean, name);
+      LOG.trace("Registered " + name);
+      return true;
+    } catch (Throwable t) {
+      LOG.warn("Failed to register " + mbean + " as " + name, t);
+      return false;
+    }
+  }
+
+  static void unregister(ObjectName name) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+        LOG.trace("Unregistered " + name);
+      }
+    } catch (Throwable t) {
+      LOG.warn("Failed to unregister " + name, t);
+    }
+  }
+}
@@ -18,23 +18,20 @@ package org.apache.htrace.core;
 
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -44,23 +41,87 @@ import java.util.Map;
  */
 @JsonDeserialize(using = MilliSpan.MilliSpanDeserializer.class)
 public class MilliSpan implements Span {
-  private static ObjectMapper OBJECT_MAPPER = new ObjectMapper();
-  private static ObjectReader JSON_READER = OBJECT_MAPPER.reader(MilliSpan.class);
-  private static ObjectWriter JSON_WRITER = OBJECT_MAPPER.writer();
-  private static final SpanId EMPTY_PARENT_ARRAY[] = new SpanId[0];
+  static final SpanId EMPTY_PARENT_ARRAY[] = new SpanId[0];
   private static final String EMPTY_STRING = "";
 
+  /**
+   * Markers in kvValues for values which are kept as numbers.  They are
+   * compared by identity, so they must not be interned.
+   */
+  private static final String LONG_VALUE = new String("long");
+  private static final String DOUBLE_VALUE = new String("double");
+
+  static final int KV_STRING = 0;
+  static final int KV_LONG = 1;
+  static final int KV_DOUBLE = 2;
+
+  /**
+   * The initial capacity of the annotation arrays.
+   */
+  private static final int INITIAL_ANNOTATIONS = 4;
+
+  /**
+   * Once a span has more key-value annotations than this, we index the keys
+   * rather than scanning them.
+   */
+  private static final int MAX_SCANNED_KVS = 16;
+
   private long begin;
   private long end;
-  private final String description;
+  private String description;
   private SpanId parents[];
-  private final SpanId spanId;
-  private Map<String, String> traceInfo = null;
+  private SpanId spanId;
   private String tracerId;
-  private List<TimelineAnnotation> timeline = null;
+
+  /**
+   * The key-value annotations, as parallel arrays with kvCount entries in
+   * use.  A value is the String in kvValues, unless that is LONG_VALUE or
+   * DOUBLE_VALUE, in which case it is the number in kvNumbers.  Numbers are
+   * only formatted when the span is serialized or its annotations are read.
+   */
+  private String[] kvKeys = null;
+  private String[] kvValues = null;
+  private long[] kvNumbers = null;
+  private int kvCount = 0;
+
+  /**
+   * Maps keys to their index in kvKeys, or null if there are few enough
+   * keys to scan.
+   */
+  private HashMap<String, Integer> kvIndex = null;
+
+  /**
+   * The timeline annotations, as parallel arrays with timelineCount entries
+   * in use.
+   */
+  private long[] timelineTimes = null;
+  private String[] timelineMessages = null;
+  private int timelineCount = 0;
+
+  /**
+   * Cached encodings of this span, as pairs of SpanEncoding and byte[], or
+   * null if there are none.  The array is never modified once it is
+   * published; a new one replaces it.
+   */
+  private volatile Object[] encodings = null;
+
+  /**
+   * Incremented whenever the span changes, so that an encoding made while
+   * the span was changing is not cached.
+   */
+  private volatile int modCount = 0;
+
+  /**
+   * True if the ID of this span may have been handed to another span as a
+   * parent.  Such spans are never filtered out for being short, since their
+   * children would be left pointing at a parent which was never delivered.
+   * Only the thread which owns the span sets this.
+   */
+  private boolean propagated = false;
 
   @Override
   public Span child(String childDescription) {
+    propagated = true;
     return new MilliSpan.Builder().
       begin(System.currentTimeMillis()).
       end(0).
@@ -147,9 +208,7 @@ public class MilliSpan implements Span {
     this.description = EMPTY_STRING;
     this.parents = EMPTY_PARENT_ARRAY;
     this.spanId = SpanId.INVALID;
-    this.traceInfo = null;
     this.tracerId = EMPTY_STRING;
-    this.timeline = null;
   }
 
   private MilliSpan(Builder builder) {
@@ -158,9 +217,47 @@ public class MilliSpan implements Span {
     this.description = builder.description;
     this.parents = builder.parents;
     this.spanId = builder.spanId;
-    this.traceInfo = builder.traceInfo;
     this.tracerId = builder.tracerId;
-    this.timeline = builder.timeline;
+    if (builder.traceInfo != null) {
+      for (Map.Entry<String, String> entry : builder.traceInfo.entrySet()) {
+        // Find the slot first, since it may allocate kvValues.
+        int i = kvSlot(entry.getKey());
+        kvValues[i] = entry.getValue();
+      }
+    }
+    if (builder.timeline != null) {
+      for (TimelineAnnotation annotation : builder.timeline) {
+        appendTimeline(annotation.getTime(), annotation.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Reinitialize this span so that it can be reused.
+   *
+   * This is only used for recycled spans.  The annotation arrays are
+   * cleared rather than discarded, so that they can be reused as well.
+   */
+  void reinit(String tracerId, long begin, String description,
+        SpanId spanId, SpanId parents[]) {
+    this.begin = begin;
+    this.end = 0;
+    this.description = description;
+    this.parents = parents;
+    this.spanId = spanId;
+    this.tracerId = tracerId;
+    modified();
+    this.propagated = false;
+    if (kvCount > 0) {
+      Arrays.fill(kvKeys, 0, kvCount, null);
+      Arrays.fill(kvValues, 0, kvCount, null);
+      kvCount = 0;
+      kvIndex = null;
+    }
+    if (timelineCount > 0) {
+      Arrays.fill(timelineMessages, 0, timelineCount, null);
+      timelineCount = 0;
+    }
   }
 
   @Override
@@ -170,6 +267,7 @@ public class MilliSpan implements Span {
         throw new IllegalStateException("Span for " + description
             + " has not been started");
       end = System.currentTimeMillis();
+      modified();
     }
   }
 
@@ -214,6 +312,7 @@ public class MilliSpan implements Span {
   @Override
   public void setParents(SpanId[] parents) {
     this.parents = parents;
+    modified();
   }
 
   @Override
@@ -228,32 +327,241 @@ public class MilliSpan implements Span {
 
   @Override
   public void addKVAnnotation(String key, String value) {
-    if (traceInfo == null)
-      traceInfo = new HashMap<String, String>();
-    traceInfo.put(key, value);
+    int i = kvSlot(key);
+    kvValues[i] = value;
+    modified();
+  }
+
+  /**
+   * Add a numeric key-value annotation.  The value is kept as a number, and
+   * only turned into a string when it is read or serialized.
+   *
+   * @param key         The key to set.
+   * @param value       The value to set.
+   */
+  public void addKVAnnotation(String key, long value) {
+    int i = kvSlot(key);
+    kvValues[i] = LONG_VALUE;
+    kvNumbers()[i] = value;
+    modified();
+  }
+
+  /**
+   * Add a numeric key-value annotation.  The value is kept as a number, and
+   * only turned into a string when it is read or serialized.
+   *
+   * @param key         The key to set.
+   * @param value       The value to set.
+   */
+  public void addKVAnnotation(String key, double value) {
+    int i = kvSlot(key);
+    kvValues[i] = DOUBLE_VALUE;
+    kvNumbers()[i] = Double.doubleToRawLongBits(value);
+    modified();
+  }
+
+  /**
+   * Find the index of a key-value annotation.
+   *
+   * @param key     The key.
+   * @return        The index, or -1 if there is no annotation with that key.
+   */
+  int findKV(Object key) {
+    if (kvIndex != null) {
+      Integer i = kvIndex.get(key);
+      return (i == null) ? -1 : i.intValue();
+    }
+    for (int i = 0; i < kvCount; i++) {
+      String cur = kvKeys[i];
+      if ((cur == key) || ((cur != null) && cur.equals(key))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Get the index of a key-value annotation, adding a slot for it if needed.
+   */
+  private int kvSlot(String key) {
+    int i = findKV(key);
+    if (i >= 0) {
+      return i;
+    }
+    if (kvKeys == null) {
+      kvKeys = new String[INITIAL_ANNOTATIONS];
+      kvValues = new String[INITIAL_ANNOTATIONS];
+    } else if (kvCount == kvKeys.length) {
+      int capacity = 2 * kvKeys.length;
+      kvKeys = Arrays.copyOf(kvKeys, capacity);
+      kvValues = Arrays.copyOf(kvValues, capacity);
+      if (kvNumbers != null) {
+        kvNumbers = Arrays.copyOf(kvNumbers, capacity);
+      }
+    }
+    kvKeys[kvCount] = key;
+    if (kvIndex != null) {
+      kvIndex.put(key, kvCount);
+    } else if (kvCount == MAX_SCANNED_KVS) {
+      kvIndex = new HashMap<String, Integer>();
+      for (int j = 0; j <= kvCount; j++) {
+        kvIndex.put(kvKeys[j], j);
+      }
+    }
+    return kvCount++;
+  }
+
+  private long[] kvNumbers() {
+    if ((kvNumbers == null) || (kvNumbers.length < kvKeys.length)) {
+      kvNumbers = (kvNumbers == null) ? new long[kvKeys.length] :
+          Arrays.copyOf(kvNumbers, kvKeys.length);
+    }
+    return kvNumbers;
+  }
+
+  /**
+   * Add to a numeric key-value annotation.  If the annotation is missing or
+   * is not a long, it is set to the delta.
+   */
+  void incrementKVAnnotation(String key, long delta) {
+    int i = kvSlot(key);
+    if (kvValues[i] == LONG_VALUE) {
+      kvNumbers[i] += delta;
+    } else {
+      kvValues[i] = LONG_VALUE;
+      kvNumbers()[i] = delta;
+    }
+    modified();
+  }
+
+  /**
+   * @return  The value of a long key-value annotation, or 0 if it is missing
+   *            or is not a long.
+   */
+  long getLongKVAnnotation(String key) {
+    int i = findKV(key);
+    return ((i >= 0) && (kvValues[i] == LONG_VALUE)) ? kvNumbers[i] : 0;
+  }
+
+  void markPropagated() {
+    propagated = true;
+  }
+
+  boolean isPropagated() {
+    return propagated;
+  }
+
+  int getKVCount() {
+    return kvCount;
+  }
+
+  String getKVKey(int i) {
+    return kvKeys[i];
+  }
+
+  /**
+   * @return  KV_STRING, KV_LONG, or KV_DOUBLE.
+   */
+  int getKVType(int i) {
+    String value = kvValues[i];
+    if (value == LONG_VALUE) {
+      return KV_LONG;
+    } else if (value == DOUBLE_VALUE) {
+      return KV_DOUBLE;
+    }
+    return KV_STRING;
+  }
+
+  /**
+   * @return  The bits of a numeric value.  For a double, these are the raw
+   *            long bits.
+   */
+  long getKVNumber(int i) {
+    return kvNumbers[i];
+  }
+
+  /**
+   * @return  A value as a string, formatting it if it is a number.
+   */
+  String getKVValue(int i) {
+    switch (getKVType(i)) {
+      case KV_LONG:
+        return Long.toString(kvNumbers[i]);
+      case KV_DOUBLE:
+        return Double.toString(Double.longBitsToDouble(kvNumbers[i]));
+      default:
+        return kvValues[i];
+    }
   }
 
   @Override
   public void addTimelineAnnotation(String msg) {
-    if (timeline == null) {
-      timeline = new ArrayList<TimelineAnnotation>();
+    appendTimeline(System.currentTimeMillis(), msg);
+    modified();
+  }
+
+  private void appendTimeline(long time, String msg) {
+    if (timelineTimes == null) {
+      timelineTimes = new long[INITIAL_ANNOTATIONS];
+      timelineMessages = new String[INITIAL_ANNOTATIONS];
+    } else if (timelineCount == timelineTimes.length) {
+      int capacity = 2 * timelineTimes.length;
+      timelineTimes = Arrays.copyOf(timelineTimes, capacity);
+      timelineMessages = Arrays.copyOf(timelineMessages, capacity);
     }
-    timeline.add(new TimelineAnnotation(System.currentTimeMillis(), msg));
+    timelineTimes[timelineCount] = time;
+    timelineMessages[timelineCount] = msg;
+    timelineCount++;
   }
 
+  int getTimelineCount() {
+    return timelineCount;
+  }
+
+  long getTimelineTime(int i) {
+    return timelineTimes[i];
+  }
+
+  String getTimelineMessage(int i) {
+    return timelineMessages[i];
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This builds a new map each time, in the order the annotations were
+   * added.  Serializing the span with {@link #toJson()} reads the
+   * annotations directly, without building the map.
+   */
   @Override
   public Map<String, String> getKVAnnotations() {
-    if (traceInfo == null)
+    if (kvCount == 0) {
       return Collections.emptyMap();
-    return Collections.unmodifiableMap(traceInfo);
+    }
+    Map<String, String> map = new LinkedHashMap<String, String>(
+        kvCount * 4 / 3 + 1);
+    for (int i = 0; i < kvCount; i++) {
+      map.put(kvKeys[i], getKVValue(i));
+    }
+    return Collections.unmodifiableMap(map);
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * This builds a new list each time.
+   */
   @Override
   public List<TimelineAnnotation> getTimelineAnnotations() {
-    if (timeline == null) {
+    if (timelineCount == 0) {
       return Collections.emptyList();
     }
-    return Collections.unmodifiableList(timeline);
+    TimelineAnnotation[] annotations = new TimelineAnnotation[timelineCount];
+    for (int i = 0; i < timelineCount; i++) {
+      annotations[i] =
+          new TimelineAnnotation(timelineTimes[i], timelineMessages[i]);
+    }
+    return Collections.unmodifiableList(Arrays.asList(annotations));
   }
 
   @Override
@@ -264,84 +572,177 @@ public class MilliSpan implements Span {
   @Override
   public void setTracerId(String tracerId) {
     this.tracerId = tracerId;
+    modified();
+  }
+
+  /**
+   * Drop the cached encodings after the span has changed.
+   */
+  private void modified() {
+    modCount++;
+    encodings = null;
+  }
+
+  /**
+   * Get an encoding of this span, caching it if the span is finished.
+   *
+   * Two threads which encode the same span at once may both do the work,
+   * and one of their cache entries may be lost.  That is harmless.  If the
+   * span is changed while it is being encoded, for example by an
+   * annotation from another thread, the encoding is returned but not
+   * cached.  Spans are still meant to have a single writer: an encoding
+   * made during a change may see some of the change, but not all of it.
+   */
+  byte[] getEncoding(SpanEncoding encoding) {
+    int stamp = modCount;
+    Object[] cache = encodings;
+    if (cache != null) {
+      for (int i = 0; i < cache.length; i += 2) {
+        if (cache[i] == encoding) {
+          return (byte[])cache[i + 1];
+        }
+      }
+    }
+    byte[] bytes = encoding.doEncode(this);
+    if (end != 0) {
+      Object[] newCache;
+      if (cache == null) {
+        newCache = new Object[2];
+      } else {
+        newCache = Arrays.copyOf(cache, cache.length + 2);
+      }
+      newCache[newCache.length - 2] = encoding;
+      newCache[newCache.length - 1] = bytes;
+      if (modCount == stamp) {
+        encodings = newCache;
+        // A change which raced with the store above must not leave our
+        // encoding behind.
+        if (modCount != stamp) {
+          encodings = null;
+        }
+      }
+    }
+    return bytes;
   }
 
   @Override
   public String toJson() {
-    StringWriter writer = new StringWriter();
-    try {
-      JSON_WRITER.writeValue(writer, this);
-    } catch (IOException e) {
-      // An IOException should not be possible when writing to a string.
-      throw new RuntimeException(e);
-    }
-    return writer.toString();
+    return SpanJsonCodec.local().toJson(this);
   }
 
+  /**
+   * Deserializes a span with Jackson's streaming API.  Spans are usually
+   * decoded with {@link SpanJsonCodec}; this is for code which reads spans
+   * as part of larger Jackson documents.
+   */
   public static class MilliSpanDeserializer
         extends JsonDeserializer<MilliSpan> {
     @Override
     public MilliSpan deserialize(JsonParser jp, DeserializationContext ctxt)
           throws IOException, JsonProcessingException {
-      JsonNode root = jp.getCodec().readTree(jp);
-      Builder builder = new Builder();
-      JsonNode bNode = root.get("b");
-      if (bNode != null) {
-        builder.begin(bNode.asLong());
+      if (jp.getCurrentToken() != JsonToken.START_OBJECT) {
+        throw ctxt.mappingException(MilliSpan.class);
       }
-      JsonNode eNode = root.get("e");
-      if (eNode != null) {
-        builder.end(eNode.asLong());
+      Builder builder = new Builder();
+      while (jp.nextToken() == JsonToken.FIELD_NAME) {
+        String field = jp.getCurrentName();
+        JsonToken token = jp.nextToken();
+        if (field.length() != 1) {
+          jp.skipChildren();
+          continue;
+        }
+        switch (field.charAt(0)) {
+          case 'a':
+            builder.spanId(SpanId.fromString(jp.getValueAsString()));
+            break;
+          case 'b':
+            builder.begin(jp.getValueAsLong());
+            break;
+          case 'e':
+            builder.end(jp.getValueAsLong());
+            break;
+          case 'd':
+            builder.description(jp.getValueAsString(EMPTY_STRING));
+            break;
+          case 'r':
+            builder.tracerId(jp.getValueAsString(EMPTY_STRING));
+            break;
+          case 'p':
+            builder.parents(readParents(jp, token));
+            break;
+          case 'n':
+            builder.traceInfo(readTraceInfo(jp, token));
+            break;
+          case 't':
+            builder.timeline(readTimeline(jp, token));
+            break;
+          default:
+            jp.skipChildren();
+            break;
+        }
       }
-      JsonNode dNode = root.get("d");
-      if (dNode != null) {
-        builder.description(dNode.asText());
+      return builder.build();
+    }
+
+    private static SpanId[] readParents(JsonParser jp, JsonToken token)
+        throws IOException {
+      if (token != JsonToken.START_ARRAY) {
+        jp.skipChildren();
+        return EMPTY_PARENT_ARRAY;
       }
-      JsonNode sNode = root.get("a");
-      if (sNode != null) {
-        builder.spanId(SpanId.fromString(sNode.asText()));
+      SpanId[] parents = EMPTY_PARENT_ARRAY;
+      while (jp.nextToken() != JsonToken.END_ARRAY) {
+        parents = Arrays.copyOf(parents, parents.length + 1);
+        parents[parents.length - 1] = SpanId.fromString(jp.getValueAsString());
       }
-      JsonNode rNode = root.get("r");
-      if (rNode != null) {
-        builder.tracerId(rNode.asText());
+      return parents;
+    }
+
+    private static Map<String, String> readTraceInfo(JsonParser jp,
+          JsonToken token) throws IOException {
+      HashMap<String, String> traceInfo = new HashMap<String, String>();
+      if (token != JsonToken.START_OBJECT) {
+        jp.skipChildren();
+        return traceInfo;
       }
-      JsonNode parentsNode = root.get("p");
-      LinkedList<SpanId> parents = new LinkedList<SpanId>();
-      if (parentsNode != null) {
-        for (Iterator<JsonNode> iter = parentsNode.elements();
-             iter.hasNext(); ) {
-          JsonNode parentIdNode = iter.next();
-          parents.add(SpanId.fromString(parentIdNode.asText()));
-        }
+      while (jp.nextToken() == JsonToken.FIELD_NAME) {
+        String key = jp.getCurrentName();
+        jp.nextToken();
+        traceInfo.put(key, jp.getValueAsString(EMPTY_STRING));
+        jp.skipChildren();
       }
-      builder.parents(parents);
-      JsonNode traceInfoNode = root.get("n");
-      if (traceInfoNode != null) {
-        HashMap<String, String> traceInfo = new HashMap<String, String>();
-        for (Iterator<String> iter = traceInfoNode.fieldNames();
-             iter.hasNext(); ) {
-          String field = iter.next();
-          traceInfo.put(field, traceInfoNode.get(field).asText());
-        }
-        builder.traceInfo(traceInfo);
+      return traceInfo;
+    }
+
+    private static List<TimelineAnnotation> readTimeline(JsonParser jp,
+          JsonToken token) throws IOException {
+      ArrayList<TimelineAnnotation> timeline =
+          new ArrayList<TimelineAnnotation>();
+      if (token != JsonToken.START_ARRAY) {
+        jp.skipChildren();
+        return timeline;
       }
-      JsonNode timelineNode = root.get("t");
-      if (timelineNode != null) {
-        LinkedList<TimelineAnnotation> timeline =
-            new LinkedList<TimelineAnnotation>();
-        for (Iterator<JsonNode> iter = timelineNode.elements();
-             iter.hasNext(); ) {
-          JsonNode ann = iter.next();
-          timeline.add(new TimelineAnnotation(ann.get("t").asLong(),
-              ann.get("m").asText()));
+      while (jp.nextToken() == JsonToken.START_OBJECT) {
+        long time = 0;
+        String msg = EMPTY_STRING;
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+          String field = jp.getCurrentName();
+          jp.nextToken();
+          if (field.equals("t")) {
+            time = jp.getValueAsLong();
+          } else if (field.equals("m")) {
+            msg = jp.getValueAsString(EMPTY_STRING);
+          } else {
+            jp.skipChildren();
+          }
         }
-        builder.timeline(timeline);
+        timeline.add(new TimelineAnnotation(time, msg));
       }
-      return builder.build();
+      return timeline;
     }
   }
 
   public static MilliSpan fromJson(String json) throws IOException {
-    return JSON_READER.readValue(json);
+    return SpanJsonCodec.local().decode(json.getBytes(StandardCharsets.UTF_8));
   }
 }
@@ -62,6 +62,16 @@ class NullScope extends TraceScope {
     // do nothing
   }
 
+  @Override
+  public void addKVAnnotation(String key, long value) {
+    // do nothing
+  }
+
+  @Override
+  public void addKVAnnotation(String key, double value) {
+    // do nothing
+  }
+
   @Override
   public void addTimelineAnnotation(String msg) {
     // do nothing
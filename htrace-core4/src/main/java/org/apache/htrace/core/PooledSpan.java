@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A MilliSpan which is handed out by a {@link SpanPool} and returned to it
+ * once every SpanReceiver is done with it.
+ *
+ * Each PooledSpan owns the TraceScope which manages it, so that recycling the
+ * span also recycles the scope.  It also owns the arrays which hold its
+ * parents, so that creating a child span does not allocate a new parents
+ * array.
+ */
+final class PooledSpan extends MilliSpan {
+  private static final AtomicIntegerFieldUpdater<PooledSpan> REFS =
+      AtomicIntegerFieldUpdater.newUpdater(PooledSpan.class, "refs");
+
+  /**
+   * The pool which this span will be returned to.
+   */
+  final SpanPool pool;
+
+  /**
+   * The scope which manages this span.
+   */
+  final TraceScope scope;
+
+  private final SpanId[] oneParent = new SpanId[1];
+
+  private final SpanId[] twoParents = new SpanId[2];
+
+  /**
+   * The number of holders which have not yet released this span.
+   */
+  private volatile int refs;
+
+  /**
+   * The next span in the pool's stack of spans returned by other threads.
+   */
+  PooledSpan nextReturned;
+
+  PooledSpan(Tracer tracer, SpanPool pool) {
+    this.pool = pool;
+    this.scope = new TraceScope(tracer, this, null);
+  }
+
+  /**
+   * Reinitialize this span so that it can be handed out again.
+   *
+   * @param tracerId        The tracer ID.
+   * @param begin           The start time in milliseconds.
+   * @param description     The description.
+   * @param spanId          The span ID.
+   * @param firstParent     The first parent, or null if there are no parents.
+   * @param secondParent    The second parent, or null if there is at most one
+   *                          parent.
+   * @return                this
+   */
+  PooledSpan reset(String tracerId, long begin, String description,
+        SpanId spanId, SpanId firstParent, SpanId secondParent) {
+    SpanId[] parents;
+    if (firstParent == null) {
+      parents = EMPTY_PARENT_ARRAY;
+    } else if (secondParent == null) {
+      parents = oneParent;
+      parents[0] = firstParent;
+    } else {
+      parents = twoParents;
+      parents[0] = firstParent;
+      parents[1] = secondParent;
+    }
+    reinit(tracerId, begin, description, spanId, parents);
+    return this;
+  }
+
+  /**
+   * Set the number of holders which must release this span before it can be
+   * recycled.
+   *
+   * @param refs    The number of holders.
+   */
+  void setRefs(int refs) {
+    REFS.set(this, refs);
+  }
+
+  /**
+   * Release one reference to this span, returning it to the pool if this was
+   * the last one.
+   */
+  void release() {
+    int remaining = REFS.decrementAndGet(this);
+    if (remaining == 0) {
+      pool.free(this);
+    } else if (remaining < 0) {
+      Tracer.throwClientError("Span " + getSpanId() + " was released " +
+          "more times than it was retained.");
+    }
+  }
+}
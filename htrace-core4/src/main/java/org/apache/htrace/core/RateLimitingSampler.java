@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Sampler that caps the number of traces started per second.
+ *
+ * Configure the steady rate with {@link #SAMPLER_TRACES_PER_SECOND_CONF_KEY},
+ * which may be fractional, and the number of traces which may be started
+ * back-to-back after a quiet period with {@link #SAMPLER_BURST_CONF_KEY}.
+ *
+ * This is a token bucket.  Rather than storing a token count and a refill
+ * time separately, the whole bucket is packed into a single long: the
+ * "theoretical arrival time" at which the bucket would be full again.  Taking
+ * a token pushes that time forward by one emission interval, with a single
+ * compareAndSet.  A request is refused when doing so would push the time
+ * more than a full burst into the future.  Refusals do not write to the
+ * shared state at all, so an overloaded sampler costs one volatile read per
+ * call.
+ */
+public class RateLimitingSampler extends Sampler {
+  private static final Log LOG = LogFactory.getLog(RateLimitingSampler.class);
+
+  public final static String SAMPLER_TRACES_PER_SECOND_CONF_KEY =
+      "sampler.traces.per.second";
+
+  /**
+   * The maximum number of traces which can be started at once.  Defaults to
+   * the number of traces per second, rounded up.
+   */
+  public final static String SAMPLER_BURST_CONF_KEY = "sampler.burst";
+
+  /**
+   * Cap the burst window so that the arithmetic below can't overflow.
+   */
+  private final static long MAX_BURST_NANOS = TimeUnit.DAYS.toNanos(365);
+
+  /**
+   * The number of nanoseconds between traces at the steady rate.
+   */
+  private final long intervalNanos;
+
+  /**
+   * How far in the future the theoretical arrival time may be.
+   */
+  private final long burstNanos;
+
+  /**
+   * The time at which the bucket would be full again, in System#nanoTime
+   * units.
+   */
+  private final AtomicLong fullAt;
+
+  public RateLimitingSampler(HTraceConfiguration conf) {
+    String rateStr = conf.get(SAMPLER_TRACES_PER_SECOND_CONF_KEY);
+    if (rateStr == null) {
+      throw new IllegalArgumentException("You must set " +
+          SAMPLER_TRACES_PER_SECOND_CONF_KEY + " to use the " +
+          "RateLimitingSampler.");
+    }
+    double tracesPerSecond = Double.parseDouble(rateStr);
+    String burstStr = conf.get(SAMPLER_BURST_CONF_KEY);
+    long burst = (burstStr == null) ?
+        Math.max(1L, (long)Math.ceil(tracesPerSecond)) :
+        Long.parseLong(burstStr.trim(), 10);
+    this.intervalNanos = computeIntervalNanos(tracesPerSecond);
+    this.burstNanos = computeBurstNanos(intervalNanos, burst);
+    this.fullAt = new AtomicLong(System.nanoTime());
+    if (LOG.isTraceEnabled()) {
+      LOG.trace("Created new RateLimitingSampler with tracesPerSecond = " +
+          tracesPerSecond + ", burst = " + burst + ".");
+    }
+  }
+
+  private static long computeIntervalNanos(double tracesPerSecond) {
+    if (Double.isNaN(tracesPerSecond) || (tracesPerSecond < 0)) {
+      throw new IllegalArgumentException(SAMPLER_TRACES_PER_SECOND_CONF_KEY +
+          " must not be negative.");
+    }
+    if (tracesPerSecond == 0) {
+      return 0;
+    }
+    double interval = TimeUnit.SECONDS.toNanos(1) / tracesPerSecond;
+    return Math.max(1L, (long)Math.min(interval, MAX_BURST_NANOS));
+  }
+
+  private static long computeBurstNanos(long intervalNanos, long burst) {
+    if (burst < 1) {
+      throw new IllegalArgumentException(SAMPLER_BURST_CONF_KEY +
+          " must be at least 1.");
+    }
+    if (burst > MAX_BURST_NANOS / Math.max(1L, intervalNanos)) {
+      return MAX_BURST_NANOS;
+    }
+    return burst * intervalNanos;
+  }
+
+  @Override
+  public boolean next() {
+    return next(System.nanoTime());
+  }
+
+  /**
+   * Try to take a token.
+   *
+   * @param now     The current time in System#nanoTime units.
+   * @return        True if we got a token.
+   */
+  boolean next(long now) {
+    if (intervalNanos == 0) {
+      return false;
+    }
+    while (true) {
+      long cur = fullAt.get();
+      // If the bucket filled up in the past, start from now.  Comparing
+      // differences keeps this correct when nanoTime wraps.
+      long base = (cur - now < 0) ? now : cur;
+      long next = base + intervalNanos;
+      if (next - now > burstNanos) {
+        return false;
+      }
+      if (fullAt.compareAndSet(cur, next)) {
+        return true;
+      }
+    }
+  }
+}
@@ -48,6 +48,7 @@ public abstract class Sampler {
     private final HTraceConfiguration conf;
     private String className;
     private ClassLoader classLoader = Builder.class.getClassLoader();
+    private TracerPool tracerPool;
 
     public Builder(HTraceConfiguration conf) {
       this.conf = conf;
@@ -56,6 +57,7 @@ public abstract class Sampler {
 
     public Builder reset() {
       this.className = null;
+      this.tracerPool = null;
       return this;
     }
 
@@ -69,6 +71,19 @@ public abstract class Sampler {
       return this;
     }
 
+    /**
+     * Set the TracerPool which the sampler's Tracer will use.  Samplers with
+     * a constructor which takes an HTraceConfiguration and a TracerPool will
+     * be created with it, so that they can watch the pool's receivers.
+     *
+     * @param tracerPool  The TracerPool.
+     * @return            this
+     */
+    public Builder tracerPool(TracerPool tracerPool) {
+      this.tracerPool = tracerPool;
+      return this;
+    }
+
     private void throwError(String errorStr) {
       LOG.error(errorStr);
       throw new RuntimeException(errorStr);
@@ -96,23 +111,39 @@ public abstract class Sampler {
       if (!str.contains(".")) {
         str = DEFAULT_PACKAGE + "." + str;
       }
-      Class cls = null;
+      Class<? extends Sampler> cls = null;
       try {
-        cls = classLoader.loadClass(str);
+        cls = classLoader.loadClass(str).asSubclass(Sampler.class);
       } catch (ClassNotFoundException e) {
         throwError("Cannot find Sampler class " + str);
+      } catch (ClassCastException e) {
+        throwError("Class " + str + " is not a Sampler.");
       }
-      Constructor<Sampler> ctor = null;
-      try {
-        ctor = cls.getConstructor(HTraceConfiguration.class);
-      } catch (NoSuchMethodException e) {
-        throwError("Cannot find a constructor for class " +
-            str + " which takes an HTraceConfiguration.");
+      Constructor<? extends Sampler> ctor = null;
+      if (tracerPool != null) {
+        try {
+          ctor = cls.getConstructor(HTraceConfiguration.class,
+              TracerPool.class);
+        } catch (NoSuchMethodException e) {
+          // Fall back on the constructor which takes just a configuration.
+        }
+      }
+      if (ctor == null) {
+        try {
+          ctor = cls.getConstructor(HTraceConfiguration.class);
+        } catch (NoSuchMethodException e) {
+          throwError("Cannot find a constructor for class " +
+              str + " which takes an HTraceConfiguration.");
+        }
       }
       Sampler sampler = null;
       try {
         LOG.debug("Creating new instance of " + str + "...");
-        sampler = ctor.newInstance(conf);
+        if (ctor.getParameterTypes().length == 2) {
+          sampler = ctor.newInstance(conf, tracerPool);
+        } else {
+          sampler = ctor.newInstance(conf);
+        }
       } catch (ReflectiveOperationException e) {
         throwError("Reflection error when constructing " +
             str + ".", e);
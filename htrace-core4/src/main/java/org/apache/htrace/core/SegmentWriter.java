@@ -0,0 +1,389 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes batches of records to a file, rolling it over
+ * into numbered segments by size or age, and optionally compressing it.
+ *
+ * The active segment is always at the configured path.  When it rolls, it
+ * is renamed to path.[timestamp], where the timestamp is the time of the
+ * roll in milliseconds (bumped if needed to keep the names unique), and a
+ * new file is started at the path.  Only the
+ * newest maxSegments rolled segments are kept.
+ *
+ * With gzip compression, each batch is written as a complete gzip member.
+ * A gzip file may hold any number of members, so the segment can be read
+ * with zcat or GZIPInputStream, and if the process crashes in the middle of
+ * a batch, only that batch is lost.
+ *
+ * This class is not thread-safe.
+ */
+final class SegmentWriter {
+  private static final Log LOG = LogFactory.getLog(SegmentWriter.class);
+
+  enum Compression {
+    NONE,
+    GZIP;
+
+    static Compression fromString(String str) {
+      try {
+        return valueOf(str.trim().toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unknown compression " + str +
+            ".  Valid values are none and gzip.");
+      }
+    }
+  }
+
+  /**
+   * Number of buffers to use in FileChannel#write.
+   *
+   * On UNIX, FileChannel#write uses writev-- a kernel interface that allows
+   * us to send multiple buffers at once.  This is more efficient than making a
+   * separate write call for each buffer, since it minimizes the number of
+   * transitions from userspace to kernel space.
+   */
+  private static final int WRITEV_SIZE = 20;
+
+  private final static byte[] NEWLINE = new byte[] { (byte)0xa };
+
+  /**
+   * A gzip member header with no optional fields, no modification time, and
+   * an unknown operating system.
+   */
+  private final static byte[] GZIP_HEADER = new byte[] {
+      (byte)0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff
+  };
+
+  /**
+   * A ByteArrayOutputStream whose contents can be written without copying.
+   */
+  private static final class Output extends ByteArrayOutputStream {
+    Output() {
+      super(65536);
+    }
+
+    ByteBuffer toByteBuffer() {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+  }
+
+  private final File file;
+
+  private final long rollSizeBytes;
+
+  private final long rollIntervalMs;
+
+  private final int maxSegments;
+
+  private final Compression compression;
+
+  private final boolean newlines;
+
+  private final ByteBuffer[] writevBufs = new ByteBuffer[2 * WRITEV_SIZE];
+
+  private int writevLen = 0;
+
+  private final Deflater deflater;
+
+  private final CRC32 crc;
+
+  private final Output compressed;
+
+  private DeflaterOutputStream deflaterStream;
+
+  private FileOutputStream stream;
+
+  private FileChannel channel;
+
+  /**
+   * The number of bytes in the active segment.
+   */
+  private long segmentBytes;
+
+  /**
+   * When the active segment was started.
+   */
+  private long segmentStartMs;
+
+  private boolean needsSync = false;
+
+  /**
+   * The timestamp in the name of the last rolled segment.
+   */
+  private long lastRollTimestamp = 0;
+
+  /**
+   * Open the active segment.
+   *
+   * @param path            The path of the active segment.
+   * @param rollSizeBytes   Roll once the segment is at least this big, or 0
+   *                          to never roll by size.
+   * @param rollIntervalMs  Roll once the segment is at least this old, or 0
+   *                          to never roll by age.
+   * @param maxSegments     The number of rolled segments to keep, or 0 to
+   *                          keep them all.
+   * @param compression     How to compress the segments.
+   * @param newlines        Whether to end each record with a newline.
+   */
+  SegmentWriter(String path, long rollSizeBytes, long rollIntervalMs,
+                int maxSegments, Compression compression, boolean newlines)
+                throws IOException {
+    this.file = new File(path).getAbsoluteFile();
+    this.rollSizeBytes = rollSizeBytes;
+    this.rollIntervalMs = rollIntervalMs;
+    this.maxSegments = maxSegments;
+    this.compression = compression;
+    this.newlines = newlines;
+    if (compression == Compression.GZIP) {
+      this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      this.crc = new CRC32();
+      this.compressed = new Output();
+    } else {
+      this.deflater = null;
+      this.crc = null;
+      this.compressed = null;
+    }
+    open();
+    // Don't append gzip members after what may be a member truncated by a
+    // crash.  Start a new segment instead.
+    if ((compression == Compression.GZIP) && (segmentBytes > 0)) {
+      roll(System.currentTimeMillis());
+    }
+  }
+
+  private void open() throws IOException {
+    stream = new FileOutputStream(file, true);
+    channel = stream.getChannel();
+    segmentBytes = channel.size();
+    segmentStartMs = System.currentTimeMillis();
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Start a batch of records.
+   */
+  void beginBatch() {
+    if (compression == Compression.GZIP) {
+      deflater.reset();
+      crc.reset();
+      compressed.reset();
+      compressed.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+      deflaterStream = new DeflaterOutputStream(compressed, deflater, 8192);
+    }
+  }
+
+  /**
+   * Add a record to the current batch.  The record may not be written until
+   * {@link #endBatch()} is called, so it must not be modified until then.
+   *
+   * @param record  The record, without a newline.
+   */
+  void append(byte[] record) throws IOException {
+    if (compression == Compression.GZIP) {
+      deflaterStream.write(record);
+      crc.update(record);
+      if (newlines) {
+        deflaterStream.write(NEWLINE);
+        crc.update(NEWLINE);
+      }
+      return;
+    }
+    if (writevLen + 2 > writevBufs.length) {
+      flushWritev();
+    }
+    writevBufs[writevLen++] = ByteBuffer.wrap(record);
+    if (newlines) {
+      // Each newline needs its own ByteBuffer, since writing a buffer
+      // consumes it.
+      writevBufs[writevLen++] = ByteBuffer.wrap(NEWLINE);
+    }
+  }
+
+  /**
+   * Finish the current batch, writing out anything which is still buffered.
+   */
+  void endBatch() throws IOException {
+    if (compression == Compression.GZIP) {
+      deflaterStream.finish();
+      deflaterStream = null;
+      writeIntLE(compressed, (int)crc.getValue());
+      writeIntLE(compressed, (int)deflater.getBytesRead());
+      ByteBuffer buf = compressed.toByteBuffer();
+      while (buf.hasRemaining()) {
+        segmentBytes += channel.write(buf);
+      }
+    } else {
+      flushWritev();
+    }
+    needsSync = true;
+  }
+
+  private static void writeIntLE(Output out, int val) {
+    out.write(val & 0xff);
+    out.write((val >>> 8) & 0xff);
+    out.write((val >>> 16) & 0xff);
+    out.write((val >>> 24) & 0xff);
+  }
+
+  private void flushWritev() throws IOException {
+    int off = 0;
+    while (off < writevLen) {
+      segmentBytes += channel.write(writevBufs, off, writevLen - off);
+      while ((off < writevLen) && (!writevBufs[off].hasRemaining())) {
+        off++;
+      }
+    }
+    Arrays.fill(writevBufs, 0, writevLen, null);
+    writevLen = 0;
+  }
+
+  /**
+   * Sync the active segment to disk, if anything was written since the last
+   * sync.
+   */
+  void sync() throws IOException {
+    if (needsSync) {
+      channel.force(false);
+      needsSync = false;
+    }
+  }
+
+  /**
+   * Roll the active segment if it is big enough or old enough.
+   *
+   * @param now     The current time in milliseconds.
+   * @return        True if the segment was rolled.
+   */
+  boolean maybeRoll(long now) throws IOException {
+    if (segmentBytes == 0) {
+      return false;
+    }
+    if (((rollSizeBytes > 0) && (segmentBytes >= rollSizeBytes)) ||
+        ((rollIntervalMs > 0) && (now - segmentStartMs >= rollIntervalMs))) {
+      roll(now);
+      return true;
+    }
+    return false;
+  }
+
+  private void roll(long now) throws IOException {
+    stream.close();
+    // Segment timestamps are strictly increasing, so that sorting the
+    // segments by name sorts them by age.
+    long timestamp = Math.max(now, lastRollTimestamp + 1);
+    File rolled = new File(file.getPath() + "." + timestamp);
+    while (rolled.exists()) {
+      timestamp++;
+      rolled = new File(file.getPath() + "." + timestamp);
+    }
+    lastRollTimestamp = timestamp;
+    if (!file.renameTo(rolled)) {
+      LOG.error("Failed to rename " + file + " to " + rolled +
+          ".  Continuing to append to " + file + ".");
+    } else if (LOG.isDebugEnabled()) {
+      LOG.debug("Rolled " + segmentBytes + " bytes from " + file + " to " +
+          rolled);
+    }
+    open();
+    deleteOldSegments();
+  }
+
+  /**
+   * List the rolled segments, oldest first.
+   */
+  List<File> listSegments() {
+    final String prefix = file.getName() + ".";
+    File[] files = file.getParentFile().listFiles();
+    List<File> segments = new ArrayList<File>();
+    if (files == null) {
+      return segments;
+    }
+    for (File f : files) {
+      String name = f.getName();
+      if (name.startsWith(prefix) &&
+          isSegmentSuffix(name.substring(prefix.length()))) {
+        segments.add(f);
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  /**
+   * Check if a file name suffix looks like a timestamp.
+   */
+  private static boolean isSegmentSuffix(String suffix) {
+    if (suffix.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < suffix.length(); i++) {
+      char c = suffix.charAt(i);
+      if ((c < '0') || (c > '9')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void deleteOldSegments() {
+    if (maxSegments <= 0) {
+      return;
+    }
+    List<File> segments = listSegments();
+    for (int i = 0; i < segments.size() - maxSegments; i++) {
+      File segment = segments.get(i);
+      if (!segment.delete()) {
+        LOG.warn("Failed to delete old segment " + segment);
+      } else if (LOG.isDebugEnabled()) {
+        LOG.debug("Deleted old segment " + segment);
+      }
+    }
+  }
+
+  void close() throws IOException {
+    try {
+      stream.close();
+    } finally {
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+  }
+}
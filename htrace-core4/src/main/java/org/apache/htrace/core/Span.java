@@ -17,7 +17,6 @@
 package org.apache.htrace.core;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -132,7 +131,8 @@ public interface Span {
   /**
    * Get the key-value annotations associated with this span.
    *
-   * @return            The annotation map in read-only form.
+   * @return            A read-only snapshot of the annotation map.  It
+   *                    does not change if the span is annotated later.
    *                    Will never be null.
    */
   Map<String, String> getKVAnnotations();
@@ -140,7 +140,8 @@ public interface Span {
   /**
    * Get the timeline annotation list.
    *
-   * @return            The annotation list in read-only form.
+   * @return            A read-only snapshot of the annotation list.  It
+   *                    does not change if the span is annotated later.
    *                    Will never be null.
    */
   List<TimelineAnnotation> getTimelineAnnotations();
@@ -170,9 +171,12 @@ public interface Span {
     @Override
     public void serialize(Span span, JsonGenerator jgen, SerializerProvider provider)
         throws IOException {
+      char[] idBuf = new char[SpanId.SPAN_ID_STRING_LENGTH];
       jgen.writeStartObject();
       if (span.getSpanId().isValid()) {
-        jgen.writeStringField("a", span.getSpanId().toString());
+        jgen.writeFieldName("a");
+        span.getSpanId().writeHex(idBuf, 0);
+        jgen.writeString(idBuf, 0, idBuf.length);
       }
       if (span.getStartTimeMillis() != 0) {
         jgen.writeNumberField("b", span.getStartTimeMillis());
@@ -189,17 +193,22 @@ public interface Span {
       }
       jgen.writeArrayFieldStart("p");
       for (SpanId parent : span.getParents()) {
-        jgen.writeString(parent.toString());
+        parent.writeHex(idBuf, 0);
+        jgen.writeString(idBuf, 0, idBuf.length);
       }
       jgen.writeEndArray();
       Map<String, String> traceInfoMap = span.getKVAnnotations();
       if (!traceInfoMap.isEmpty()) {
         jgen.writeObjectFieldStart("n");
-        String[] keys = traceInfoMap.keySet().
-            toArray(new String[traceInfoMap.size()]);
-        Arrays.sort(keys);
-        for (String key : keys) {
-          jgen.writeStringField(key, traceInfoMap.get(key));
+        SpanJsonCodec codec = SpanJsonCodec.local();
+        String[] keys = codec.sortKeys(traceInfoMap);
+        int numKeys = traceInfoMap.size();
+        try {
+          for (int i = 0; i < numKeys; i++) {
+            jgen.writeStringField(keys[i], traceInfoMap.get(keys[i]));
+          }
+        } finally {
+          codec.releaseKeys(numKeys);
         }
         jgen.writeEndObject();
       }
@@ -0,0 +1,418 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.io.Closeable;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hands finished spans to the SpanReceivers on background threads.
+ *
+ * Without a dispatcher, {@link Tracer} calls every SpanReceiver on the thread
+ * which closes the span, so any I/O a receiver does adds to the latency of the
+ * traced operation.  With a dispatcher, closing a span just publishes it into
+ * a lock-free ring buffer, and a configurable number of dispatcher threads
+ * take spans out of the buffer and deliver them to the receivers of the
+ * {@link TracerPool}.
+ *
+ * If the ring buffer is full, the span is dropped and counted, rather than
+ * blocking the application thread.
+ *
+ * A TracerPool has at most one dispatcher.  It is started by the first Tracer
+ * whose configuration sets {@link #THREADS_KEY}, or by
+ * {@link TracerPool#startDispatcher(int, int, WaitStrategy)}.
+ */
+public final class SpanDispatcher implements Closeable {
+  private static final Log LOG = LogFactory.getLog(SpanDispatcher.class);
+
+  /**
+   * The number of dispatcher threads.  If this is 0, spans are delivered on
+   * the thread which closes them.
+   */
+  public final static String THREADS_KEY = "tracer.dispatcher.threads";
+
+  public final static int THREADS_DEFAULT = 0;
+
+  /**
+   * The number of spans the ring buffer can hold.  This will be rounded up to
+   * a power of two.
+   */
+  public final static String CAPACITY_KEY = "tracer.dispatcher.capacity";
+
+  public final static int CAPACITY_DEFAULT = 16384;
+
+  /**
+   * What dispatcher threads do while the ring buffer is empty.  One of
+   * blocking, sleeping, yielding, or busy-spin.
+   */
+  public final static String WAIT_STRATEGY_KEY =
+      "tracer.dispatcher.wait.strategy";
+
+  public final static String WAIT_STRATEGY_DEFAULT = "blocking";
+
+  /**
+   * The maximum number of spans a dispatcher thread takes from the ring
+   * buffer at once.
+   */
+  private static final int MAX_BATCH_SIZE = 128;
+
+  /**
+   * How long a blocked dispatcher thread parks before checking the ring buffer
+   * again, even if nobody wakes it.
+   */
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  /**
+   * How long a sleeping dispatcher thread parks between checks.
+   */
+  private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  /**
+   * How long to wait for the dispatcher threads to finish when closing.
+   */
+  private static final long CLOSE_TIMEOUT_MS = 30000;
+
+  /**
+   * The minimum interval between warnings about dropped spans.
+   */
+  private static final long DROP_WARNING_INTERVAL_MS = 60000;
+
+  /**
+   * What a dispatcher thread does while there are no spans to deliver.
+   */
+  public enum WaitStrategy {
+    /**
+     * Park until a publisher wakes us up.  Publishers pay for a wakeup only
+     * when a dispatcher thread is actually parked.  This uses the least CPU.
+     */
+    BLOCKING,
+
+    /**
+     * Spin, then yield, then park for short intervals.  Publishers never have
+     * to wake anyone up.
+     */
+    SLEEPING,
+
+    /**
+     * Call Thread#yield in a loop.
+     */
+    YIELDING,
+
+    /**
+     * Spin without yielding.  This gives the lowest delivery latency, but
+     * uses a whole CPU per dispatcher thread.
+     */
+    BUSY_SPIN;
+
+    /**
+     * Parse a wait strategy name, such as "blocking" or "busy-spin".
+     *
+     * @param str     The name.
+     * @return        The wait strategy.
+     */
+    public static WaitStrategy fromString(String str) {
+      String name = str.trim().toUpperCase(Locale.ROOT).replace('-', '_');
+      try {
+        return WaitStrategy.valueOf(name);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unknown wait strategy '" + str +
+            "'.  Valid wait strategies are blocking, sleeping, yielding, " +
+            "and busy-spin.");
+      }
+    }
+  }
+
+  private final TracerPool tracerPool;
+
+  private final SpanRingBuffer ringBuffer;
+
+  private final WaitStrategy waitStrategy;
+
+  private final Worker[] workers;
+
+  /**
+   * The number of workers which are parked, or about to park.
+   */
+  private final AtomicInteger numParked = new AtomicInteger(0);
+
+  /**
+   * The number of spans dropped because the ring buffer was full.
+   */
+  private final AtomicLong numDropped = new AtomicLong(0);
+
+  /**
+   * The last time we logged a warning about dropped spans.
+   */
+  private final AtomicLong lastDropWarningMs = new AtomicLong(0);
+
+  private volatile boolean shutdown = false;
+
+  private class Worker extends Thread {
+    private final Span[] batch = new Span[MAX_BATCH_SIZE];
+
+    private volatile boolean parked = false;
+
+    Worker(int index) {
+      setName("SpanDispatcher(" + tracerPool.getName() + ")-" + index);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      int idleCount = 0;
+      while (true) {
+        int num = ringBuffer.drainTo(batch, batch.length);
+        if (num > 0) {
+          deliver(batch, num);
+          idleCount = 0;
+        } else if (shutdown && ringBuffer.isEmpty()) {
+          return;
+        } else {
+          idle(idleCount++);
+        }
+      }
+    }
+
+    private void idle(int idleCount) {
+      switch (waitStrategy) {
+        case BLOCKING:
+          parked = true;
+          numParked.incrementAndGet();
+          try {
+            // Check again after advertising that we are parked, so that we
+            // can't miss a wakeup from a publisher.
+            if (ringBuffer.isEmpty() && !shutdown) {
+              LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            }
+          } finally {
+            numParked.decrementAndGet();
+            parked = false;
+          }
+          break;
+        case SLEEPING:
+          if (idleCount < 100) {
+            // spin
+          } else if (idleCount < 200) {
+            Thread.yield();
+          } else {
+            LockSupport.parkNanos(this, SLEEP_NANOS);
+          }
+          break;
+        case YIELDING:
+          Thread.yield();
+          break;
+        case BUSY_SPIN:
+          break;
+      }
+    }
+  }
+
+  SpanDispatcher(TracerPool tracerPool, int numThreads, int capacity,
+                 WaitStrategy waitStrategy) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("A SpanDispatcher needs at least " +
+          "one thread.");
+    }
+    this.tracerPool = tracerPool;
+    this.ringBuffer = new SpanRingBuffer(capacity);
+    this.waitStrategy = waitStrategy;
+    this.workers = new Worker[numThreads];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Worker(i);
+    }
+  }
+
+  void start() {
+    for (Worker worker : workers) {
+      worker.start();
+    }
+    LOG.debug("Started " + toString());
+  }
+
+  /**
+   * Publish a finished span, to be delivered to the receivers later.
+   *
+   * @param span    The span.
+   * @return        True if the span was published; false if it was dropped
+   *                  because the ring buffer was full.
+   */
+  boolean publish(Span span) {
+    if (!ringBuffer.offer(span)) {
+      dropped(span);
+      return false;
+    }
+    if ((waitStrategy == WaitStrategy.BLOCKING) && (numParked.get() > 0)) {
+      wakeOne();
+    }
+    return true;
+  }
+
+  private void wakeOne() {
+    for (Worker worker : workers) {
+      if (worker.parked) {
+        LockSupport.unpark(worker);
+        return;
+      }
+    }
+  }
+
+  private void dropped(Span span) {
+    long dropped = numDropped.incrementAndGet();
+    if (span instanceof PooledSpan) {
+      PooledSpan pooledSpan = (PooledSpan)span;
+      pooledSpan.setRefs(1);
+      pooledSpan.release();
+    }
+    long now = System.currentTimeMillis();
+    long last = lastDropWarningMs.get();
+    if ((now - last >= DROP_WARNING_INTERVAL_MS) &&
+        lastDropWarningMs.compareAndSet(last, now)) {
+      LOG.warn(toString() + ": the ring buffer is full, so spans are being " +
+          "dropped.  " + dropped + " span(s) dropped so far.");
+    }
+  }
+
+  private void deliver(Span[] batch, int num) {
+    SpanReceiver[] receivers = tracerPool.getReceivers();
+    int refs = Tracer.getRecycledSpanRefs(receivers);
+    for (int i = 0; i < num; i++) {
+      if (batch[i] instanceof PooledSpan) {
+        ((PooledSpan)batch[i]).setRefs(refs);
+      }
+    }
+    for (SpanReceiver receiver : receivers) {
+      try {
+        receiver.deliver(batch, 0, num);
+      } catch (Throwable t) {
+        LOG.error(toString() + ": error delivering " + num + " span(s) to " +
+            receiver.toString(), t);
+      }
+    }
+    for (int i = 0; i < num; i++) {
+      if (batch[i] instanceof PooledSpan) {
+        ((PooledSpan)batch[i]).release();
+      }
+      batch[i] = null;
+    }
+  }
+
+  /**
+   * Stop the dispatcher threads, once they have delivered every span which
+   * was already published.  Spans which are published after this call may
+   * not be delivered.
+   */
+  @Override
+  public void close() {
+    shutdown = true;
+    for (Worker worker : workers) {
+      LockSupport.unpark(worker);
+    }
+    long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+    for (Worker worker : workers) {
+      long remaining = deadline - System.currentTimeMillis();
+      try {
+        if (remaining > 0) {
+          worker.join(remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (worker.isAlive()) {
+        LOG.warn(toString() + ": timed out waiting for " + worker.getName() +
+            " to finish.");
+      }
+    }
+    // Deliver anything which was published while we were shutting down.
+    Span[] batch = new Span[MAX_BATCH_SIZE];
+    int num;
+    while ((num = ringBuffer.drainTo(batch, batch.length)) > 0) {
+      deliver(batch, num);
+    }
+    LOG.debug("Closed " + toString() + ".  Published " + getNumPublished() +
+        " span(s) and dropped " + getNumDropped() + " span(s).");
+  }
+
+  /**
+   * @return    The number of dispatcher threads.
+   */
+  public int getNumThreads() {
+    return workers.length;
+  }
+
+  /**
+   * @return    The number of spans the ring buffer can hold.
+   */
+  public int getCapacity() {
+    return ringBuffer.capacity();
+  }
+
+  public WaitStrategy getWaitStrategy() {
+    return waitStrategy;
+  }
+
+  /**
+   * @return    The number of spans which were published into the ring buffer.
+   */
+  public long getNumPublished() {
+    return ringBuffer.getNumAdded();
+  }
+
+  /**
+   * @return    The number of spans which dispatcher threads have taken out of
+   *              the ring buffer.
+   */
+  public long getNumDispatched() {
+    return ringBuffer.getNumRemoved();
+  }
+
+  /**
+   * @return    The number of spans which were dropped because the ring buffer
+   *              was full.
+   */
+  public long getNumDropped() {
+    return numDropped.get();
+  }
+
+  /**
+   * @return    The number of spans waiting in the ring buffer.
+   */
+  public long getNumPending() {
+    return Math.max(0, getNumPublished() - getNumDispatched());
+  }
+
+  /**
+   * @return    How full the ring buffer is, between 0 and 1.
+   */
+  public double getLoad() {
+    return Math.min(1.0, ((double)getNumPending()) / getCapacity());
+  }
+
+  @Override
+  public String toString() {
+    return "SpanDispatcher(" + tracerPool.getName() + ", numThreads=" +
+        workers.length + ", capacity=" + ringBuffer.capacity() +
+        ", waitStrategy=" + waitStrategy + ")";
+  }
+}
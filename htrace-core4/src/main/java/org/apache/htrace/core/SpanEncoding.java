@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+/**
+ * A way of serializing spans, whose output is cached on the span.
+ *
+ * When several receivers write the same span in the same format, only the
+ * first one pays for serializing it.  The others get the bytes which were
+ * cached on the span.  Only finished spans are cached, and changing a span
+ * drops its cache, so a cached encoding is never stale.
+ *
+ * The cache is keyed by SpanEncoding instance, so each format should have a
+ * single instance, such as {@link #JSON}.  The bytes returned by
+ * {@link #encode(Span)} may be shared with other receivers, so they must not
+ * be modified.
+ */
+public abstract class SpanEncoding {
+  /**
+   * The JSON format of {@link SpanJsonCodec}, without a trailing newline.
+   */
+  public static final SpanEncoding JSON = new SpanEncoding("json") {
+    @Override
+    protected byte[] doEncode(Span span) {
+      return SpanJsonCodec.local().toBytes(span);
+    }
+  };
+
+  private final String name;
+
+  protected SpanEncoding(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Get the encoding of a span, from its cache if possible.
+   *
+   * @param span    The span.
+   * @return        The encoded span.  This must not be modified.
+   */
+  public final byte[] encode(Span span) {
+    if (span instanceof MilliSpan) {
+      return ((MilliSpan)span).getEncoding(this);
+    }
+    return doEncode(span);
+  }
+
+  /**
+   * Serialize a span.  This must be thread-safe.
+   *
+   * @param span    The span.
+   * @return        A new array holding the encoded span.
+   */
+  protected abstract byte[] doEncode(Span span);
+
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String toString() {
+    return "SpanEncoding(" + name + ")";
+  }
+}
@@ -16,6 +16,8 @@
  */
 package org.apache.htrace.core;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -24,9 +26,44 @@ import java.util.concurrent.ThreadLocalRandom;
  * Span IDs are 128 bits in total.  The upper 64 bits of a span ID is the same
  * as the upper 64 bits of the parent span, if there is one.  The lower 64 bits
  * are always random.
+ *
+ * Span IDs have two serialized forms: 32 lowercase hex digits, and 16 bytes
+ * holding the high and low words in big-endian order.  The encoders and
+ * decoders here are table-driven, and can work on caller-supplied buffers
+ * without allocating anything other than the SpanId itself.
  */
 public final class SpanId implements Comparable<SpanId> {
-  private static final int SPAN_ID_STRING_LENGTH = 32;
+  /**
+   * The length of a span ID in hex form.
+   */
+  public static final int SPAN_ID_STRING_LENGTH = 32;
+
+  /**
+   * The length of a span ID in binary form.
+   */
+  public static final int SPAN_ID_BYTE_LENGTH = 16;
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /**
+   * Maps ASCII characters to their hex values, or -1 if they are not hex
+   * digits.
+   */
+  private static final byte[] HEX_VALUES = new byte[128];
+
+  static {
+    for (int i = 0; i < HEX_VALUES.length; i++) {
+      HEX_VALUES[i] = -1;
+    }
+    for (int i = 0; i < 10; i++) {
+      HEX_VALUES['0' + i] = (byte)i;
+    }
+    for (int i = 0; i < 6; i++) {
+      HEX_VALUES['a' + i] = (byte)(10 + i);
+      HEX_VALUES['A' + i] = (byte)(10 + i);
+    }
+  }
+
   private final long high;
   private final long low;
 
@@ -56,15 +93,144 @@ public final class SpanId implements Comparable<SpanId> {
       throw new RuntimeException("Invalid SpanID string: length was not " +
           SPAN_ID_STRING_LENGTH);
     }
-    long high =
-      ((Long.parseLong(str.substring(0, 8), 16)) << 32) |
-      (Long.parseLong(str.substring(8, 16), 16));
-    long low =
-      ((Long.parseLong(str.substring(16, 24), 16)) << 32) |
-      (Long.parseLong(str.substring(24, 32), 16));
+    return fromHex(str, 0);
+  }
+
+  /**
+   * Parse a span ID from 32 hex digits in a CharSequence.
+   *
+   * @param str     The characters to parse.
+   * @param off     The offset of the first hex digit.
+   * @return        The span ID.
+   */
+  public static SpanId fromHex(CharSequence str, int off) {
+    if (str.length() - off < SPAN_ID_STRING_LENGTH) {
+      throw new RuntimeException("Invalid SpanID string: fewer than " +
+          SPAN_ID_STRING_LENGTH + " characters available.");
+    }
+    long high = 0;
+    for (int i = 0; i < 16; i++) {
+      high = (high << 4) | hexValue(str.charAt(off + i));
+    }
+    long low = 0;
+    for (int i = 16; i < 32; i++) {
+      low = (low << 4) | hexValue(str.charAt(off + i));
+    }
+    return new SpanId(high, low);
+  }
+
+  /**
+   * Parse a span ID from 32 hex digits in a char array.
+   *
+   * @param buf     The array to parse.
+   * @param off     The offset of the first hex digit.
+   * @return        The span ID.
+   */
+  public static SpanId fromHex(char[] buf, int off) {
+    if (buf.length - off < SPAN_ID_STRING_LENGTH) {
+      throw new RuntimeException("Invalid SpanID string: fewer than " +
+          SPAN_ID_STRING_LENGTH + " characters available.");
+    }
+    long high = 0;
+    for (int i = 0; i < 16; i++) {
+      high = (high << 4) | hexValue(buf[off + i]);
+    }
+    long low = 0;
+    for (int i = 16; i < 32; i++) {
+      low = (low << 4) | hexValue(buf[off + i]);
+    }
+    return new SpanId(high, low);
+  }
+
+  /**
+   * Parse a span ID from 32 ASCII hex digits in a byte array.
+   *
+   * @param buf     The array to parse.
+   * @param off     The offset of the first hex digit.
+   * @return        The span ID.
+   */
+  public static SpanId fromHexBytes(byte[] buf, int off) {
+    if (buf.length - off < SPAN_ID_STRING_LENGTH) {
+      throw new RuntimeException("Invalid SpanID string: fewer than " +
+          SPAN_ID_STRING_LENGTH + " bytes available.");
+    }
+    long high = 0;
+    for (int i = 0; i < 16; i++) {
+      high = (high << 4) | hexValue((char)(buf[off + i] & 0xff));
+    }
+    long low = 0;
+    for (int i = 16; i < 32; i++) {
+      low = (low << 4) | hexValue((char)(buf[off + i] & 0xff));
+    }
+    return new SpanId(high, low);
+  }
+
+  private static long hexValue(char c) {
+    int val = (c < HEX_VALUES.length) ? HEX_VALUES[c] : -1;
+    if (val < 0) {
+      throw new NumberFormatException("Invalid SpanID string: '" + c +
+          "' is not a hex digit.");
+    }
+    return val;
+  }
+
+  /**
+   * Read a span ID from 16 bytes in big-endian order.
+   *
+   * @param buf     The array to read from.
+   * @param off     The offset of the first byte.
+   * @return        The span ID.
+   */
+  public static SpanId fromBytes(byte[] buf, int off) {
+    if (buf.length - off < SPAN_ID_BYTE_LENGTH) {
+      throw new RuntimeException("Invalid SpanID bytes: fewer than " +
+          SPAN_ID_BYTE_LENGTH + " bytes available.");
+    }
+    return new SpanId(readLong(buf, off), readLong(buf, off + 8));
+  }
+
+  /**
+   * Read a span ID from the next 16 bytes of a ByteBuffer.
+   *
+   * The bytes are always interpreted in big-endian order, regardless of the
+   * order the buffer is set to.
+   *
+   * @param buf     The buffer to read from.  Its position will be advanced
+   *                  by 16.
+   * @return        The span ID.
+   */
+  public static SpanId readFrom(ByteBuffer buf) {
+    long high = buf.getLong();
+    long low = buf.getLong();
+    if (buf.order() != ByteOrder.BIG_ENDIAN) {
+      high = Long.reverseBytes(high);
+      low = Long.reverseBytes(low);
+    }
     return new SpanId(high, low);
   }
 
+  private static long readLong(byte[] buf, int off) {
+    return ((buf[off + 0] & 0xffL) << 56) |
+           ((buf[off + 1] & 0xffL) << 48) |
+           ((buf[off + 2] & 0xffL) << 40) |
+           ((buf[off + 3] & 0xffL) << 32) |
+           ((buf[off + 4] & 0xffL) << 24) |
+           ((buf[off + 5] & 0xffL) << 16) |
+           ((buf[off + 6] & 0xffL) <<  8) |
+           ((buf[off + 7] & 0xffL) <<  0);
+  }
+
+  private static void writeLong(byte[] buf, int off, long val) {
+    buf[off + 0] = (byte)(val >>> 56);
+    buf[off + 1] = (byte)(val >>> 48);
+    buf[off + 2] = (byte)(val >>> 40);
+    buf[off + 3] = (byte)(val >>> 32);
+    buf[off + 4] = (byte)(val >>> 24);
+    buf[off + 5] = (byte)(val >>> 16);
+    buf[off + 6] = (byte)(val >>>  8);
+    buf[off + 7] = (byte)(val >>>  0);
+  }
+
   public SpanId(long high, long low) {
     this.high = high;
     this.low = low;
@@ -129,11 +295,109 @@ public final class SpanId implements Comparable<SpanId> {
 
   @Override
   public String toString() {
-    return String.format("%08x%08x%08x%08x",
-        (0x00000000ffffffffL & (high >> 32)),
-        (0x00000000ffffffffL & high),
-        (0x00000000ffffffffL & (low >> 32)),
-        (0x00000000ffffffffL & low));
+    char[] buf = new char[SPAN_ID_STRING_LENGTH];
+    writeHex(buf, 0);
+    return new String(buf);
+  }
+
+  /**
+   * Write this span ID as 32 hex digits.
+   *
+   * @param buf     The array to write to.
+   * @param off     The offset to start writing at.
+   */
+  public void writeHex(char[] buf, int off) {
+    if (buf.length - off < SPAN_ID_STRING_LENGTH) {
+      throw new ArrayIndexOutOfBoundsException("Need " +
+          SPAN_ID_STRING_LENGTH + " characters to write a SpanId.");
+    }
+    for (int i = 0; i < 16; i++) {
+      buf[off + i] = HEX_DIGITS[(int)(high >>> (60 - (4 * i))) & 0xf];
+    }
+    for (int i = 0; i < 16; i++) {
+      buf[off + 16 + i] = HEX_DIGITS[(int)(low >>> (60 - (4 * i))) & 0xf];
+    }
+  }
+
+  /**
+   * Write this span ID as 32 ASCII hex digits.
+   *
+   * @param buf     The array to write to.
+   * @param off     The offset to start writing at.
+   */
+  public void writeHexBytes(byte[] buf, int off) {
+    if (buf.length - off < SPAN_ID_STRING_LENGTH) {
+      throw new ArrayIndexOutOfBoundsException("Need " +
+          SPAN_ID_STRING_LENGTH + " bytes to write a SpanId.");
+    }
+    for (int i = 0; i < 16; i++) {
+      buf[off + i] =
+          (byte)HEX_DIGITS[(int)(high >>> (60 - (4 * i))) & 0xf];
+    }
+    for (int i = 0; i < 16; i++) {
+      buf[off + 16 + i] =
+          (byte)HEX_DIGITS[(int)(low >>> (60 - (4 * i))) & 0xf];
+    }
+  }
+
+  /**
+   * Append this span ID to a StringBuilder as 32 hex digits.
+   *
+   * @param bld     The StringBuilder to append to.
+   * @return        The StringBuilder.
+   */
+  public StringBuilder appendTo(StringBuilder bld) {
+    for (int i = 0; i < 16; i++) {
+      bld.append(HEX_DIGITS[(int)(high >>> (60 - (4 * i))) & 0xf]);
+    }
+    for (int i = 0; i < 16; i++) {
+      bld.append(HEX_DIGITS[(int)(low >>> (60 - (4 * i))) & 0xf]);
+    }
+    return bld;
+  }
+
+  /**
+   * Write this span ID as 16 bytes in big-endian order.
+   *
+   * @param buf     The array to write to.
+   * @param off     The offset to start writing at.
+   */
+  public void writeTo(byte[] buf, int off) {
+    if (buf.length - off < SPAN_ID_BYTE_LENGTH) {
+      throw new ArrayIndexOutOfBoundsException("Need " +
+          SPAN_ID_BYTE_LENGTH + " bytes to write a SpanId.");
+    }
+    writeLong(buf, off, high);
+    writeLong(buf, off + 8, low);
+  }
+
+  /**
+   * Write this span ID to a ByteBuffer as 16 bytes in big-endian order.
+   *
+   * The bytes are always written in big-endian order, regardless of the
+   * order the buffer is set to.
+   *
+   * @param buf     The buffer to write to.  Its position will be advanced
+   *                  by 16.
+   */
+  public void writeTo(ByteBuffer buf) {
+    if (buf.order() == ByteOrder.BIG_ENDIAN) {
+      buf.putLong(high);
+      buf.putLong(low);
+    } else {
+      buf.putLong(Long.reverseBytes(high));
+      buf.putLong(Long.reverseBytes(low));
+    }
+  }
+
+  /**
+   * @return        This span ID as a new 16-byte array, in big-endian
+   *                  order.
+   */
+  public byte[] toBytes() {
+    byte[] buf = new byte[SPAN_ID_BYTE_LENGTH];
+    writeTo(buf, 0);
+    return buf;
   }
 
   public boolean isValid() {
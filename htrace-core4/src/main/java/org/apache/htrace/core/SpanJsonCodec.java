@@ -0,0 +1,971 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A streaming JSON codec for spans which does not depend on Jackson.
+ *
+ * The output is the same short-key format that {@link Span.SpanSerializer}
+ * produces, byte for byte: a for the span ID, b and e for the begin and end
+ * times, d for the description, r for the tracer ID, p for the parents, n for
+ * the key-value annotations (sorted by key), and t for the timeline.
+ *
+ * Spans are encoded straight into a reusable byte buffer, and decoded straight
+ * from a byte range, without building an intermediate tree.  A codec keeps
+ * scratch state between calls, so it is not thread-safe.  Use one codec per
+ * thread.
+ */
+public final class SpanJsonCodec {
+  private static final byte[] HEX = "0123456789ABCDEF".
+      getBytes(StandardCharsets.US_ASCII);
+
+  private static final int INITIAL_BUFFER_SIZE = 512;
+
+  /**
+   * The largest buffer we keep around after {@link #toBytes(Span)} or
+   * {@link #toJson(Span)}.  One unusually large span should not pin a large
+   * buffer to a thread forever.
+   */
+  private static final int MAX_RETAINED_BUFFER_SIZE = 65536;
+
+  /**
+   * Per-thread codecs for callers which have no codec of their own, so that
+   * their scratch buffers are reused.
+   */
+  private static final ThreadLocal<SpanJsonCodec> LOCAL =
+      new ThreadLocal<SpanJsonCodec>() {
+        @Override
+        protected SpanJsonCodec initialValue() {
+          return new SpanJsonCodec();
+        }
+      };
+
+  static SpanJsonCodec local() {
+    return LOCAL.get();
+  }
+
+  /**
+   * The output buffer.
+   */
+  private byte[] buf;
+
+  /**
+   * The current output length.
+   */
+  private int len;
+
+  /**
+   * Scratch space for sorting annotation keys.
+   */
+  private String[] keys = new String[8];
+
+  /**
+   * Scratch space for decoding strings which are not plain ASCII.
+   */
+  private char[] chars = new char[64];
+
+  /**
+   * Scratch space for decoding parents.
+   */
+  private SpanId[] parents = new SpanId[2];
+
+  /**
+   * The input buffer we are decoding.
+   */
+  private byte[] in;
+
+  /**
+   * The current input position.
+   */
+  private int pos;
+
+  /**
+   * The end of the input range.
+   */
+  private int end;
+
+  /**
+   * The most recently decoded tracer ID.  Most spans in a file come from a
+   * handful of tracers, so this saves creating the same string again and
+   * again.
+   */
+  private String lastTracerId = "";
+
+  public SpanJsonCodec() {
+    this.buf = new byte[INITIAL_BUFFER_SIZE];
+    this.len = 0;
+  }
+
+  /**
+   * Encode a span into this codec's buffer, replacing what was there before.
+   *
+   * @param span    The span to encode.
+   * @return        The length of the encoded span.  The bytes are at the
+   *                  start of {@link #getBuffer()}.
+   */
+  public int encode(Span span) {
+    len = 0;
+    writeByte('{');
+    boolean first = true;
+    if (span.getSpanId().isValid()) {
+      writeKey("a", first);
+      first = false;
+      writeSpanId(span.getSpanId());
+    }
+    if (span.getStartTimeMillis() != 0) {
+      writeKey("b", first);
+      first = false;
+      writeLong(span.getStartTimeMillis());
+    }
+    if (span.getStopTimeMillis() != 0) {
+      writeKey("e", first);
+      first = false;
+      writeLong(span.getStopTimeMillis());
+    }
+    String description = span.getDescription();
+    if (!description.isEmpty()) {
+      writeKey("d", first);
+      first = false;
+      writeString(description);
+    }
+    String tracerId = span.getTracerId();
+    if (!tracerId.isEmpty()) {
+      writeKey("r", first);
+      first = false;
+      writeString(tracerId);
+    }
+    writeKey("p", first);
+    writeByte('[');
+    SpanId[] spanParents = span.getParents();
+    for (int i = 0; i < spanParents.length; i++) {
+      if (i > 0) {
+        writeByte(',');
+      }
+      writeSpanId(spanParents[i]);
+    }
+    writeByte(']');
+    if (span instanceof MilliSpan) {
+      writeAnnotations((MilliSpan)span);
+    } else {
+      writeAnnotations(span);
+    }
+    writeByte('}');
+    return len;
+  }
+
+  /**
+   * Write the annotations of a MilliSpan straight from its arrays.
+   */
+  private void writeAnnotations(MilliSpan span) {
+    int numKeys = span.getKVCount();
+    if (numKeys > 0) {
+      writeKey("n", false);
+      writeByte('{');
+      if (keys.length < numKeys) {
+        keys = new String[Math.max(numKeys, 2 * keys.length)];
+      }
+      for (int i = 0; i < numKeys; i++) {
+        keys[i] = span.getKVKey(i);
+      }
+      Arrays.sort(keys, 0, numKeys);
+      for (int i = 0; i < numKeys; i++) {
+        if (i > 0) {
+          writeByte(',');
+        }
+        writeString(keys[i]);
+        writeByte(':');
+        int idx = span.findKV(keys[i]);
+        switch (span.getKVType(idx)) {
+          case MilliSpan.KV_LONG:
+            writeByte('"');
+            writeLong(span.getKVNumber(idx));
+            writeByte('"');
+            break;
+          case MilliSpan.KV_DOUBLE:
+            writeString(Double.toString(
+                Double.longBitsToDouble(span.getKVNumber(idx))));
+            break;
+          default:
+            writeString(span.getKVValue(idx));
+            break;
+        }
+      }
+      releaseKeys(numKeys);
+      writeByte('}');
+    }
+    int numAnnotations = span.getTimelineCount();
+    if (numAnnotations > 0) {
+      writeKey("t", false);
+      writeByte('[');
+      for (int i = 0; i < numAnnotations; i++) {
+        if (i > 0) {
+          writeByte(',');
+        }
+        writeByte('{');
+        writeKey("t", true);
+        writeLong(span.getTimelineTime(i));
+        writeKey("m", false);
+        writeString(span.getTimelineMessage(i));
+        writeByte('}');
+      }
+      writeByte(']');
+    }
+  }
+
+  private void writeAnnotations(Span span) {
+    Map<String, String> traceInfo = span.getKVAnnotations();
+    if (!traceInfo.isEmpty()) {
+      writeKey("n", false);
+      writeByte('{');
+      String[] sorted = sortKeys(traceInfo);
+      int numKeys = traceInfo.size();
+      for (int i = 0; i < numKeys; i++) {
+        if (i > 0) {
+          writeByte(',');
+        }
+        writeString(sorted[i]);
+        writeByte(':');
+        writeString(traceInfo.get(sorted[i]));
+      }
+      releaseKeys(numKeys);
+      writeByte('}');
+    }
+    List<TimelineAnnotation> timeline = span.getTimelineAnnotations();
+    if (!timeline.isEmpty()) {
+      writeKey("t", false);
+      writeByte('[');
+      for (int i = 0; i < timeline.size(); i++) {
+        TimelineAnnotation annotation = timeline.get(i);
+        if (i > 0) {
+          writeByte(',');
+        }
+        writeByte('{');
+        writeKey("t", true);
+        writeLong(annotation.getTime());
+        writeKey("m", false);
+        writeString(annotation.getMessage());
+        writeByte('}');
+      }
+      writeByte(']');
+    }
+  }
+
+  /**
+   * Sort the keys of a map into this codec's scratch array.
+   *
+   * @param map     The map.
+   * @return        The scratch array.  The first map.size() entries are the
+   *                  sorted keys.  Call {@link #releaseKeys(int)} when done.
+   */
+  String[] sortKeys(Map<String, String> map) {
+    int numKeys = map.size();
+    if (keys.length < numKeys) {
+      keys = new String[Math.max(numKeys, 2 * keys.length)];
+    }
+    int i = 0;
+    for (String key : map.keySet()) {
+      keys[i++] = key;
+    }
+    Arrays.sort(keys, 0, numKeys);
+    return keys;
+  }
+
+  /**
+   * Clear the scratch array filled by {@link #sortKeys(Map)}, so that it
+   * does not keep the keys alive.
+   *
+   * @param numKeys The number of keys which were sorted.
+   */
+  void releaseKeys(int numKeys) {
+    Arrays.fill(keys, 0, numKeys, null);
+  }
+
+  /**
+   * Get the buffer which {@link #encode(Span)} writes to.  The buffer may be
+   * replaced by a larger one during encoding, so call this afterwards.
+   *
+   * @return        The buffer.
+   */
+  public byte[] getBuffer() {
+    return buf;
+  }
+
+  /**
+   * Encode a span and write it to an OutputStream.
+   *
+   * @param span    The span to encode.
+   * @param out     The stream to write to.
+   * @throws IOException If the stream could not be written to.
+   */
+  public void write(Span span, OutputStream out) throws IOException {
+    int length = encode(span);
+    out.write(buf, 0, length);
+  }
+
+  /**
+   * Encode a span into a new byte array of exactly the right size.
+   *
+   * @param span    The span to encode.
+   * @return        The encoded span.
+   */
+  public byte[] toBytes(Span span) {
+    int length = encode(span);
+    byte[] result = Arrays.copyOf(buf, length);
+    trimBuffer();
+    return result;
+  }
+
+  /**
+   * Encode a span into a string.
+   *
+   * @param span    The span to encode.
+   * @return        The JSON string.
+   */
+  public String toJson(Span span) {
+    int length = encode(span);
+    String result = new String(buf, 0, length, StandardCharsets.UTF_8);
+    trimBuffer();
+    return result;
+  }
+
+  private void trimBuffer() {
+    if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+      buf = new byte[INITIAL_BUFFER_SIZE];
+    }
+  }
+
+  private void ensureSpace(int needed) {
+    if (len + needed > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(len + needed, 2 * buf.length));
+    }
+  }
+
+  private void writeByte(char c) {
+    ensureSpace(1);
+    buf[len++] = (byte)c;
+  }
+
+  private void writeKey(String key, boolean first) {
+    ensureSpace(key.length() + 4);
+    if (!first) {
+      buf[len++] = ',';
+    }
+    buf[len++] = '"';
+    for (int i = 0; i < key.length(); i++) {
+      buf[len++] = (byte)key.charAt(i);
+    }
+    buf[len++] = '"';
+    buf[len++] = ':';
+  }
+
+  private void writeSpanId(SpanId spanId) {
+    ensureSpace(SpanId.SPAN_ID_STRING_LENGTH + 2);
+    buf[len++] = '"';
+    spanId.writeHexBytes(buf, len);
+    len += SpanId.SPAN_ID_STRING_LENGTH;
+    buf[len++] = '"';
+  }
+
+  private void writeLong(long val) {
+    // A long has at most 19 digits, plus a sign.
+    ensureSpace(20);
+    if (val == Long.MIN_VALUE) {
+      String str = Long.toString(val);
+      for (int i = 0; i < str.length(); i++) {
+        buf[len++] = (byte)str.charAt(i);
+      }
+      return;
+    }
+    if (val < 0) {
+      buf[len++] = '-';
+      val = -val;
+    }
+    int start = len;
+    do {
+      buf[len++] = (byte)('0' + (val % 10));
+      val /= 10;
+    } while (val != 0);
+    // Reverse the digits, which we wrote least significant first.
+    for (int i = start, j = len - 1; i < j; i++, j--) {
+      byte tmp = buf[i];
+      buf[i] = buf[j];
+      buf[j] = tmp;
+    }
+  }
+
+  private void writeString(String str) {
+    int strLen = str.length();
+    // Worst case: every char is a 6-byte \\uXXXX escape.
+    ensureSpace((6 * strLen) + 2);
+    buf[len++] = '"';
+    for (int i = 0; i < strLen; i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        if (c < 0x20) {
+          writeControlChar(c);
+        } else if ((c == '"') || (c == '\\')) {
+          buf[len++] = '\\';
+          buf[len++] = (byte)c;
+        } else {
+          buf[len++] = (byte)c;
+        }
+      } else if (c < 0x800) {
+        buf[len++] = (byte)(0xc0 | (c >> 6));
+        buf[len++] = (byte)(0x80 | (c & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        // Like Jackson, escape surrogates rather than combining them.
+        writeUnicodeEscape(c);
+      } else {
+        buf[len++] = (byte)(0xe0 | (c >> 12));
+        buf[len++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+        buf[len++] = (byte)(0x80 | (c & 0x3f));
+      }
+    }
+    buf[len++] = '"';
+  }
+
+  private void writeControlChar(char c) {
+    buf[len++] = '\\';
+    switch (c) {
+      case '\b':
+        buf[len++] = 'b';
+        return;
+      case '\t':
+        buf[len++] = 't';
+        return;
+      case '\n':
+        buf[len++] = 'n';
+        return;
+      case '\f':
+        buf[len++] = 'f';
+        return;
+      case '\r':
+        buf[len++] = 'r';
+        return;
+      default:
+        len--;
+        writeUnicodeEscape(c);
+        return;
+    }
+  }
+
+  private void writeUnicodeEscape(char c) {
+    buf[len++] = '\\';
+    buf[len++] = 'u';
+    buf[len++] = HEX[(c >> 12) & 0xf];
+    buf[len++] = HEX[(c >> 8) & 0xf];
+    buf[len++] = HEX[(c >> 4) & 0xf];
+    buf[len++] = HEX[c & 0xf];
+  }
+
+  /**
+   * Decode a span from a whole byte array.
+   *
+   * @param input   The JSON bytes.
+   * @return        The span.
+   * @throws IOException If the input is not a valid span.
+   */
+  public MilliSpan decode(byte[] input) throws IOException {
+    return decode(input, 0, input.length);
+  }
+
+  /**
+   * Decode a span from a byte range.
+   *
+   * Unknown keys are skipped.  Trailing whitespace is allowed, but nothing
+   * else may follow the span object.
+   *
+   * @param input   The buffer holding the JSON bytes.
+   * @param off     The offset of the first byte.
+   * @param length  The number of bytes.
+   * @return        The span.
+   * @throws IOException If the input is not a valid span.
+   */
+  public MilliSpan decode(byte[] input, int off, int length)
+      throws IOException {
+    this.in = input;
+    this.pos = off;
+    this.end = off + length;
+    try {
+      MilliSpan span = readSpan();
+      skipWhitespace();
+      if (pos != end) {
+        throw error("Unexpected data after the end of the span");
+      }
+      return span;
+    } finally {
+      this.in = null;
+    }
+  }
+
+  private MilliSpan readSpan() throws IOException {
+    MilliSpan.Builder builder = new MilliSpan.Builder();
+    expect('{');
+    if (peekNonWhitespace() == '}') {
+      pos++;
+      return builder.build();
+    }
+    do {
+      char key = readKey();
+      switch (key) {
+        case 'a':
+          builder.spanId(readSpanId());
+          break;
+        case 'b':
+          builder.begin(readLong());
+          break;
+        case 'e':
+          builder.end(readLong());
+          break;
+        case 'd':
+          builder.description(readString());
+          break;
+        case 'r':
+          builder.tracerId(readTracerId());
+          break;
+        case 'p':
+          builder.parents(readParents());
+          break;
+        case 'n':
+          builder.traceInfo(readTraceInfo());
+          break;
+        case 't':
+          builder.timeline(readTimeline());
+          break;
+        default:
+          skipValue();
+          break;
+      }
+    } while (nextMember('}'));
+    return builder.build();
+  }
+
+  /**
+   * Read an object key followed by a colon.
+   *
+   * @return    The key, if it is a single ASCII character; 0 otherwise.
+   */
+  private char readKey() throws IOException {
+    expect('"');
+    char key = 0;
+    if ((pos + 1 < end) && (in[pos + 1] == '"') && (in[pos] > 0)) {
+      key = (char)in[pos];
+      pos += 2;
+    } else {
+      pos--;
+      readString();
+    }
+    expect(':');
+    return key;
+  }
+
+  /**
+   * Consume the separator between two members of an object or array.
+   *
+   * @param close   The closing character of the container.
+   * @return        True if there is another member; false if we consumed
+   *                  the closing character.
+   */
+  private boolean nextMember(char close) throws IOException {
+    char c = peekNonWhitespace();
+    pos++;
+    if (c == ',') {
+      return true;
+    } else if (c == close) {
+      return false;
+    }
+    pos--;
+    throw error("Expected ',' or '" + close + "'");
+  }
+
+  private SpanId readSpanId() throws IOException {
+    expect('"');
+    if ((end - pos < SpanId.SPAN_ID_STRING_LENGTH + 1) ||
+        (in[pos + SpanId.SPAN_ID_STRING_LENGTH] != '"')) {
+      throw error("Expected a " + SpanId.SPAN_ID_STRING_LENGTH +
+          "-digit span ID");
+    }
+    SpanId spanId;
+    try {
+      spanId = SpanId.fromHexBytes(in, pos);
+    } catch (NumberFormatException e) {
+      throw error(e.getMessage());
+    }
+    pos += SpanId.SPAN_ID_STRING_LENGTH + 1;
+    return spanId;
+  }
+
+  private SpanId[] readParents() throws IOException {
+    expect('[');
+    if (peekNonWhitespace() == ']') {
+      pos++;
+      return MilliSpan.EMPTY_PARENT_ARRAY;
+    }
+    int numParents = 0;
+    do {
+      if (numParents == parents.length) {
+        parents = Arrays.copyOf(parents, 2 * parents.length);
+      }
+      skipWhitespace();
+      parents[numParents++] = readSpanId();
+    } while (nextMember(']'));
+    SpanId[] result = Arrays.copyOf(parents, numParents);
+    Arrays.fill(parents, 0, numParents, null);
+    return result;
+  }
+
+  private Map<String, String> readTraceInfo() throws IOException {
+    HashMap<String, String> traceInfo = new HashMap<String, String>();
+    expect('{');
+    if (peekNonWhitespace() == '}') {
+      pos++;
+      return traceInfo;
+    }
+    do {
+      skipWhitespace();
+      String key = readString();
+      expect(':');
+      skipWhitespace();
+      traceInfo.put(key, readString());
+    } while (nextMember('}'));
+    return traceInfo;
+  }
+
+  private List<TimelineAnnotation> readTimeline() throws IOException {
+    ArrayList<TimelineAnnotation> timeline =
+        new ArrayList<TimelineAnnotation>();
+    expect('[');
+    if (peekNonWhitespace() == ']') {
+      pos++;
+      return timeline;
+    }
+    do {
+      long time = 0;
+      String msg = "";
+      expect('{');
+      if (peekNonWhitespace() == '}') {
+        pos++;
+      } else {
+        do {
+          char key = readKey();
+          if (key == 't') {
+            time = readLong();
+          } else if (key == 'm') {
+            msg = readString();
+          } else {
+            skipValue();
+          }
+        } while (nextMember('}'));
+      }
+      timeline.add(new TimelineAnnotation(time, msg));
+    } while (nextMember(']'));
+    return timeline;
+  }
+
+  private long readLong() throws IOException {
+    skipWhitespace();
+    int start = pos;
+    boolean negative = false;
+    if ((pos < end) && (in[pos] == '-')) {
+      negative = true;
+      pos++;
+    }
+    long val = 0;
+    int digitsStart = pos;
+    while ((pos < end) && (in[pos] >= '0') && (in[pos] <= '9')) {
+      val = (val * 10) + (in[pos] - '0');
+      pos++;
+    }
+    if (pos == digitsStart) {
+      throw error("Expected a number");
+    }
+    if ((pos < end) &&
+        ((in[pos] == '.') || (in[pos] == 'e') || (in[pos] == 'E'))) {
+      // Fractional numbers are unusual here.  Take the slow path.
+      while ((pos < end) && (isNumberChar(in[pos]))) {
+        pos++;
+      }
+      String str = new String(in, start, pos - start,
+          StandardCharsets.US_ASCII);
+      try {
+        return (long)Double.parseDouble(str);
+      } catch (NumberFormatException e) {
+        throw error("Invalid number " + str);
+      }
+    }
+    if ((pos - digitsStart > 18) && (!fitsInLong(start, pos))) {
+      throw error("Number out of range");
+    }
+    return negative ? -val : val;
+  }
+
+  private static boolean isNumberChar(byte b) {
+    return ((b >= '0') && (b <= '9')) || (b == '.') || (b == 'e') ||
+        (b == 'E') || (b == '+') || (b == '-');
+  }
+
+  private boolean fitsInLong(int start, int stop) {
+    String str = new String(in, start, stop - start,
+        StandardCharsets.US_ASCII);
+    try {
+      Long.parseLong(str);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private String readTracerId() throws IOException {
+    skipWhitespace();
+    // The cached ID is plain ASCII, so if its bytes match exactly and are
+    // followed by a closing quote, the whole string is that ID.
+    String last = lastTracerId;
+    int lastLen = last.length();
+    if ((end - pos >= lastLen + 2) && (in[pos] == '"') &&
+        (in[pos + lastLen + 1] == '"')) {
+      int i = 0;
+      while ((i < lastLen) && (in[pos + 1 + i] == (byte)last.charAt(i))) {
+        i++;
+      }
+      if (i == lastLen) {
+        pos += lastLen + 2;
+        return last;
+      }
+    }
+    String tracerId = readString();
+    if (isPlainAscii(tracerId)) {
+      lastTracerId = tracerId;
+    }
+    return tracerId;
+  }
+
+  private static boolean isPlainAscii(String str) {
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      if ((c < 0x20) || (c >= 0x80) || (c == '"') || (c == '\\')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Read a JSON string, including its quotes.  A JSON null is read as an
+   * empty string.
+   */
+  private String readString() throws IOException {
+    skipWhitespace();
+    if ((end - pos >= 4) && (in[pos] == 'n') && (in[pos + 1] == 'u') &&
+        (in[pos + 2] == 'l') && (in[pos + 3] == 'l')) {
+      pos += 4;
+      return "";
+    }
+    expect('"');
+    int start = pos;
+    // Fast path: plain ASCII with no escapes.
+    while (pos < end) {
+      byte b = in[pos];
+      if (b == '"') {
+        String str = new String(in, start, pos - start,
+            StandardCharsets.US_ASCII);
+        pos++;
+        return str;
+      }
+      if ((b == '\\') || (b < 0)) {
+        break;
+      }
+      pos++;
+    }
+    pos = start;
+    return readStringSlow();
+  }
+
+  private String readStringSlow() throws IOException {
+    int numChars = 0;
+    while (true) {
+      if (pos >= end) {
+        throw error("Unterminated string");
+      }
+      if (chars.length - numChars < 2) {
+        chars = Arrays.copyOf(chars, 2 * chars.length);
+      }
+      int b = in[pos++] & 0xff;
+      if (b == '"') {
+        return new String(chars, 0, numChars);
+      } else if (b == '\\') {
+        numChars = readEscape(numChars);
+      } else if (b < 0x80) {
+        chars[numChars++] = (char)b;
+      } else if ((b & 0xe0) == 0xc0) {
+        chars[numChars++] = (char)(((b & 0x1f) << 6) | continuation());
+      } else if ((b & 0xf0) == 0xe0) {
+        int c = (b & 0x0f) << 12;
+        c |= continuation() << 6;
+        c |= continuation();
+        chars[numChars++] = (char)c;
+      } else if ((b & 0xf8) == 0xf0) {
+        int cp = (b & 0x07) << 18;
+        cp |= continuation() << 12;
+        cp |= continuation() << 6;
+        cp |= continuation();
+        chars[numChars++] = Character.highSurrogate(cp);
+        chars[numChars++] = Character.lowSurrogate(cp);
+      } else {
+        throw error("Invalid UTF-8");
+      }
+    }
+  }
+
+  private int continuation() throws IOException {
+    if (pos >= end) {
+      throw error("Truncated UTF-8 sequence");
+    }
+    int b = in[pos++] & 0xff;
+    if ((b & 0xc0) != 0x80) {
+      throw error("Invalid UTF-8");
+    }
+    return b & 0x3f;
+  }
+
+  private int readEscape(int numChars) throws IOException {
+    if (pos >= end) {
+      throw error("Unterminated escape");
+    }
+    byte b = in[pos++];
+    char c;
+    switch (b) {
+      case '"':
+      case '\\':
+      case '/':
+        c = (char)b;
+        break;
+      case 'b':
+        c = '\b';
+        break;
+      case 't':
+        c = '\t';
+        break;
+      case 'n':
+        c = '\n';
+        break;
+      case 'f':
+        c = '\f';
+        break;
+      case 'r':
+        c = '\r';
+        break;
+      case 'u':
+        if (end - pos < 4) {
+          throw error("Truncated unicode escape");
+        }
+        int val = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit((char)in[pos++], 16);
+          if (digit < 0) {
+            throw error("Invalid unicode escape");
+          }
+          val = (val << 4) | digit;
+        }
+        c = (char)val;
+        break;
+      default:
+        throw error("Invalid escape");
+    }
+    chars[numChars] = c;
+    return numChars + 1;
+  }
+
+  /**
+   * Skip over a value of any type.
+   */
+  private void skipValue() throws IOException {
+    char c = peekNonWhitespace();
+    switch (c) {
+      case '"':
+        readString();
+        return;
+      case '{':
+        pos++;
+        if (peekNonWhitespace() == '}') {
+          pos++;
+          return;
+        }
+        do {
+          skipWhitespace();
+          readString();
+          expect(':');
+          skipValue();
+        } while (nextMember('}'));
+        return;
+      case '[':
+        pos++;
+        if (peekNonWhitespace() == ']') {
+          pos++;
+          return;
+        }
+        do {
+          skipValue();
+        } while (nextMember(']'));
+        return;
+      default:
+        int start = pos;
+        while ((pos < end) && (in[pos] != ',') && (in[pos] != '}') &&
+            (in[pos] != ']') && (in[pos] > ' ')) {
+          pos++;
+        }
+        if (pos == start) {
+          throw error("Expected a value");
+        }
+        return;
+    }
+  }
+
+  private void skipWhitespace() {
+    while ((pos < end) && ((in[pos] == ' ') || (in[pos] == '\n') ||
+        (in[pos] == '\r') || (in[pos] == '\t'))) {
+      pos++;
+    }
+  }
+
+  private char peekNonWhitespace() throws IOException {
+    skipWhitespace();
+    if (pos >= end) {
+      throw error("Unexpected end of input");
+    }
+    return (char)in[pos];
+  }
+
+  private void expect(char c) throws IOException {
+    if (peekNonWhitespace() != c) {
+      throw error("Expected '" + c + "'");
+    }
+    pos++;
+  }
+
+  private IOException error(String msg) {
+    return new IOException(msg + " at offset " + pos + ".");
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A per-thread pool of recycled spans.
+ *
+ * Each Tracer configured with {@link Tracer#RECYCLE_SPANS_KEY} keeps one of
+ * these pools per thread.  Spans are only taken from the pool by the thread
+ * which owns it.  Spans released by the owning thread go straight back into
+ * the free array.  Spans released by other threads, for example because the
+ * scope was detached and closed elsewhere, are pushed onto a lock-free stack
+ * which the owner drains when the free array runs dry.
+ *
+ * If the pool is empty, we simply allocate a new span.  If the pool is full,
+ * returned spans are left to the garbage collector.
+ */
+final class SpanPool {
+  private final Tracer tracer;
+
+  private final Thread owner;
+
+  private final PooledSpan[] free;
+
+  private int numFree;
+
+  /**
+   * The top of the stack of spans returned by other threads.
+   */
+  private final AtomicReference<PooledSpan> returned =
+      new AtomicReference<PooledSpan>(null);
+
+  SpanPool(Tracer tracer, int capacity) {
+    this.tracer = tracer;
+    this.owner = Thread.currentThread();
+    this.free = new PooledSpan[capacity];
+    this.numFree = 0;
+  }
+
+  /**
+   * Take a span from the pool, or allocate a new one if the pool is empty.
+   * Must be called from the owning thread.
+   *
+   * @return    A span which is not in use.
+   */
+  PooledSpan allocate() {
+    if (numFree == 0) {
+      drainReturned();
+      if (numFree == 0) {
+        return new PooledSpan(tracer, this);
+      }
+    }
+    numFree--;
+    PooledSpan span = free[numFree];
+    free[numFree] = null;
+    return span;
+  }
+
+  /**
+   * Return a span to the pool.  May be called from any thread.
+   *
+   * @param span    The span to return.
+   */
+  void free(PooledSpan span) {
+    if (Thread.currentThread() != owner) {
+      PooledSpan head;
+      do {
+        head = returned.get();
+        span.nextReturned = head;
+      } while (!returned.compareAndSet(head, span));
+      return;
+    }
+    if (numFree < free.length) {
+      free[numFree] = span;
+      numFree++;
+    }
+  }
+
+  /**
+   * Move the spans that other threads returned into the free array.
+   * Since only the owner ever takes from the returned stack, and it takes the
+   * whole stack at once, there is no ABA problem here.
+   */
+  private void drainReturned() {
+    PooledSpan span = returned.getAndSet(null);
+    while ((span != null) && (numFree < free.length)) {
+      PooledSpan next = span.nextReturned;
+      span.nextReturned = null;
+      free[numFree] = span;
+      numFree++;
+      span = next;
+    }
+  }
+
+  /**
+   * @return The number of spans that the owner can take without allocating.
+   *         Only accurate when called from the owning thread.
+   */
+  int size() {
+    int size = numFree;
+    for (PooledSpan span = returned.get(); span != null;
+         span = span.nextReturned) {
+      size++;
+    }
+    return Math.min(size, free.length);
+  }
+}
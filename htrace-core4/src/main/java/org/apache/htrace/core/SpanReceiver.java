@@ -149,6 +149,26 @@ public abstract class SpanReceiver implements Closeable {
 
   private static final AtomicLong HIGHEST_SPAN_RECEIVER_ID = new AtomicLong(0);
 
+  /**
+   * Counts the spans delivered to this receiver.  Exposed over JMX while the
+   * receiver is in a TracerPool.
+   */
+  final SpanReceiverMetrics metrics;
+
+  /**
+   * The queue which isolates this receiver from the threads which deliver
+   * spans, or null if spans are handed to it directly.  Set by the TracerPool
+   * before the receiver is added to it.  A receiver with a queue is in
+   * exactly one TracerPool, which owns the queue.
+   */
+  volatile SpanReceiverQueue queue;
+
+  /**
+   * The number of TracerPools this receiver is in.  Guarded by
+   * TracerPool.RECEIVER_LOCK.
+   */
+  int numPools;
+
   /**
    * Get the ID for this SpanReceiver.
    *
@@ -160,6 +180,34 @@ public abstract class SpanReceiver implements Closeable {
 
   protected SpanReceiver() {
     this.id = HIGHEST_SPAN_RECEIVER_ID.incrementAndGet();
+    this.metrics = new SpanReceiverMetrics(this);
+  }
+
+  /**
+   * Hand a span to this receiver, through its queue if it has one.
+   */
+  final void deliver(Span span) {
+    SpanReceiverQueue curQueue = queue;
+    if (curQueue != null) {
+      curQueue.offer(span);
+    } else {
+      metrics.deliver(span);
+    }
+  }
+
+  /**
+   * Hand a batch of spans to this receiver, through its queue if it has one.
+   */
+  final void deliver(Span[] spans, int offset, int len) {
+    SpanReceiverQueue curQueue = queue;
+    if (curQueue != null) {
+      int end = offset + len;
+      for (int i = offset; i < end; i++) {
+        curQueue.offer(spans[i]);
+      }
+    } else {
+      metrics.deliver(spans, offset, len);
+    }
   }
 
   /**
@@ -168,4 +216,70 @@ public abstract class SpanReceiver implements Closeable {
    * @param span    The span to store with this SpanReceiver.
    */
   public abstract void receiveSpan(Span span);
+
+  /**
+   * Called when a batch of spans is ready to be delivered.
+   *
+   * The default implementation calls {@link #receiveSpan(Span)} for each
+   * span.  Receivers which take a lock or do I/O per span should override
+   * this to do that once per batch.  The receiver must not modify the array
+   * or keep a reference to it after returning.
+   *
+   * @param spans   The array holding the spans.
+   * @param offset  The index of the first span in the batch.
+   * @param len     The number of spans in the batch.
+   */
+  public void receiveSpans(Span[] spans, int offset, int len) {
+    int end = offset + len;
+    for (int i = offset; i < end; i++) {
+      receiveSpan(spans[i]);
+    }
+  }
+
+  /**
+   * Whether this receiver may keep references to spans after receiveSpan
+   * returns.
+   *
+   * When a Tracer recycles spans, a span is not reused until every receiver
+   * which retains spans has called {@link #releaseSpan(Span)} on it.  Receivers
+   * which are done with a span as soon as receiveSpan returns (for example,
+   * because they serialize it right away) should override this to return
+   * false.  Receivers which retain spans and never release them are safe; the
+   * spans they receive are simply never recycled.
+   *
+   * @return        True if this receiver may retain spans.
+   */
+  public boolean retainsSpans() {
+    return true;
+  }
+
+  /**
+   * Report how close this receiver is to falling behind.
+   *
+   * Samplers such as {@link AdaptiveSampler} poll this to back off before
+   * the receiver starts dropping spans.  Receivers which queue or buffer
+   * spans should override it.  It should be cheap, since it may be called
+   * about once a second.
+   *
+   * @return        A value between 0 (idle) and 1 (full; spans are being
+   *                  dropped or will be soon).  The default is 0.
+   */
+  public double getLoad() {
+    return 0.0;
+  }
+
+  /**
+   * Tell the Tracer that this receiver no longer holds a reference to a span
+   * it was given.  This is a no-op for spans which are not recycled.
+   *
+   * Only receivers which return true from {@link #retainsSpans()} should call
+   * this, and only once per span.
+   *
+   * @param span    The span to release.
+   */
+  protected static void releaseSpan(Span span) {
+    if (span instanceof PooledSpan) {
+      ((PooledSpan)span).release();
+    }
+  }
 }
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+/**
+ * The JMX view of a {@link SpanReceiver}'s metrics.
+ *
+ * Each receiver in a TracerPool is registered as
+ * {@code org.apache.htrace:type=SpanReceiver,id=<id>}, where the ID is
+ * {@link SpanReceiver#getId()}.  The counts and latencies cover the calls
+ * which the Tracer or the {@link SpanDispatcher} made to the receiver; a
+ * batch delivered with {@link SpanReceiver#receiveSpans} is one call.
+ */
+public interface SpanReceiverMXBean {
+  long getId();
+
+  String getClassName();
+
+  /**
+   * @return The number of spans delivered to the receiver.
+   */
+  long getNumSpans();
+
+  /**
+   * @return The number of receiveSpan or receiveSpans calls.
+   */
+  long getNumCalls();
+
+  /**
+   * @return The number of calls which threw an exception.
+   */
+  long getNumErrors();
+
+  /**
+   * @return The total time spent in the receiver, in nanoseconds.
+   */
+  long getTotalNanos();
+
+  double getMeanCallNanos();
+
+  long getCallNanos50th();
+
+  long getCallNanos99th();
+
+  long getCallNanos999th();
+
+  long getMaxCallNanos();
+
+  /**
+   * @return The receiver's {@link SpanReceiver#getLoad()}.
+   */
+  double getLoad();
+
+  /**
+   * @return The number of spans waiting in the receiver's queue, or 0 if it
+   *         has no queue.
+   */
+  long getQueueNumPending();
+
+  /**
+   * @return The number of spans dropped because the receiver's queue was
+   *         full.
+   */
+  long getQueueNumDropped();
+
+  /**
+   * @return The number of spans rejected because the receiver's circuit
+   *         breaker was open.
+   */
+  long getQueueNumRejected();
+
+  /**
+   * @return True if the receiver's circuit breaker is open.
+   */
+  boolean isCircuitOpen();
+
+  /**
+   * Clear the call latency histogram, so that the percentiles and maximum
+   * only cover calls from now on.  The counts are not reset.
+   */
+  void resetLatencies();
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the spans delivered to a SpanReceiver, and how long the receiver
+ * took to take them.
+ *
+ * Any thread which delivers spans records here, so the counters and the
+ * latency histogram are striped by thread.
+ */
+final class SpanReceiverMetrics implements SpanReceiverMXBean {
+  private static final int HISTOGRAM_STRIPES = StripedCounter.numStripes(8);
+
+  private final SpanReceiver receiver;
+
+  private final StripedCounter numSpans = new StripedCounter();
+
+  private final StripedCounter numCalls = new StripedCounter();
+
+  private final StripedCounter numErrors = new StripedCounter();
+
+  private final StripedCounter totalNanos = new StripedCounter();
+
+  /**
+   * Call latency bucket counts, one row of buckets per stripe.
+   */
+  private final AtomicLongArray buckets =
+      new AtomicLongArray(HISTOGRAM_STRIPES * LatencyHistogram.NUM_BUCKETS);
+
+  SpanReceiverMetrics(SpanReceiver receiver) {
+    this.receiver = receiver;
+  }
+
+  /**
+   * Deliver a span to the receiver, and record the call.
+   */
+  void deliver(Span span) {
+    long start = System.nanoTime();
+    try {
+      receiver.receiveSpan(span);
+    } catch (RuntimeException e) {
+      numErrors.increment();
+      throw e;
+    } catch (Error e) {
+      numErrors.increment();
+      throw e;
+    }
+    record(1, System.nanoTime() - start);
+  }
+
+  /**
+   * Deliver a batch of spans to the receiver, and record the call.
+   */
+  void deliver(Span[] spans, int offset, int len) {
+    long start = System.nanoTime();
+    try {
+      receiver.receiveSpans(spans, offset, len);
+    } catch (RuntimeException e) {
+      numErrors.increment();
+      throw e;
+    } catch (Error e) {
+      numErrors.increment();
+      throw e;
+    }
+    record(len, System.nanoTime() - start);
+  }
+
+  void record(int spans, long nanos) {
+    numSpans.add(spans);
+    numCalls.increment();
+    totalNanos.add(nanos);
+    int row = StripedCounter.stripe(HISTOGRAM_STRIPES) *
+        LatencyHistogram.NUM_BUCKETS;
+    buckets.getAndIncrement(row + LatencyHistogram.bucketIndex(nanos));
+  }
+
+  /**
+   * @return A histogram of call latencies in nanoseconds.
+   */
+  LatencyHistogram getLatencies() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int row = 0; row < HISTOGRAM_STRIPES; row++) {
+      int base = row * LatencyHistogram.NUM_BUCKETS;
+      for (int i = 0; i < LatencyHistogram.NUM_BUCKETS; i++) {
+        histogram.addBucketCount(i, buckets.get(base + i));
+      }
+    }
+    return histogram;
+  }
+
+  @Override
+  public long getId() {
+    return receiver.getId();
+  }
+
+  @Override
+  public String getClassName() {
+    return receiver.getClass().getName();
+  }
+
+  @Override
+  public long getNumSpans() {
+    return numSpans.sum();
+  }
+
+  @Override
+  public long getNumCalls() {
+    return numCalls.sum();
+  }
+
+  @Override
+  public long getNumErrors() {
+    return numErrors.sum();
+  }
+
+  @Override
+  public long getTotalNanos() {
+    return totalNanos.sum();
+  }
+
+  @Override
+  public double getMeanCallNanos() {
+    long calls = getNumCalls();
+    return (calls == 0) ? 0.0 : ((double)getTotalNanos()) / calls;
+  }
+
+  @Override
+  public long getCallNanos50th() {
+    return getLatencies().getValueAtPercentile(50);
+  }
+
+  @Override
+  public long getCallNanos99th() {
+    return getLatencies().getValueAtPercentile(99);
+  }
+
+  @Override
+  public long getCallNanos999th() {
+    return getLatencies().getValueAtPercentile(99.9);
+  }
+
+  @Override
+  public long getMaxCallNanos() {
+    return getLatencies().getMax();
+  }
+
+  @Override
+  public double getLoad() {
+    return receiver.getLoad();
+  }
+
+  @Override
+  public long getQueueNumPending() {
+    SpanReceiverQueue queue = receiver.queue;
+    return (queue == null) ? 0 : queue.getNumPending();
+  }
+
+  @Override
+  public long getQueueNumDropped() {
+    SpanReceiverQueue queue = receiver.queue;
+    return (queue == null) ? 0 : queue.getNumDropped();
+  }
+
+  @Override
+  public long getQueueNumRejected() {
+    SpanReceiverQueue queue = receiver.queue;
+    return (queue == null) ? 0 : queue.getNumRejected();
+  }
+
+  @Override
+  public boolean isCircuitOpen() {
+    SpanReceiverQueue queue = receiver.queue;
+    return (queue != null) && queue.isCircuitOpen();
+  }
+
+  @Override
+  public void resetLatencies() {
+    for (int i = 0; i < buckets.length(); i++) {
+      buckets.set(i, 0);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "SpanReceiverMetrics(" + receiver + ")";
+  }
+}
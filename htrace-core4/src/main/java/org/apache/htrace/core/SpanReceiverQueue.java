@@ -0,0 +1,484 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.io.Closeable;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Isolates a SpanReceiver from the threads which deliver spans to it.
+ *
+ * Spans for the receiver go into a bounded, lock-free ring buffer, and a
+ * dedicated thread takes them out and hands them to the receiver.  A receiver
+ * which stalls only fills its own queue; once the queue is full, its spans are
+ * dropped according to its {@link OverflowPolicy}, and the other receivers in
+ * the pool keep getting theirs.
+ *
+ * Each queue also has a circuit breaker.  A call to the receiver which throws,
+ * or which takes longer than {@link #BREAKER_LATENCY_MS_KEY}, is a failure.
+ * After {@link #BREAKER_FAILURES_KEY} failures in a row, the breaker opens,
+ * and spans for the receiver are rejected at once for
+ * {@link #BREAKER_COOLDOWN_MS_KEY}.  After that, spans are let through
+ * again, and the first call decides whether the breaker closes or opens for
+ * another cooldown period.
+ *
+ * A receiver is isolated when it is added to a TracerPool with a
+ * configuration which sets {@link #CAPACITY_KEY}.
+ */
+public final class SpanReceiverQueue implements Closeable {
+  private static final Log LOG = LogFactory.getLog(SpanReceiverQueue.class);
+
+  /**
+   * The number of spans which can wait for the receiver.  This will be
+   * rounded up to a power of two.  If this is 0, spans are handed to the
+   * receiver directly.
+   */
+  public final static String CAPACITY_KEY = "tracer.receiver.queue.capacity";
+
+  public final static int CAPACITY_DEFAULT = 0;
+
+  /**
+   * What to do with a span when the queue is full.  Either drop-newest or
+   * drop-oldest.
+   */
+  public final static String OVERFLOW_POLICY_KEY =
+      "tracer.receiver.queue.overflow.policy";
+
+  public final static String OVERFLOW_POLICY_DEFAULT = "drop-newest";
+
+  /**
+   * A call to the receiver which takes longer than this many milliseconds
+   * counts as a failure.
+   */
+  public final static String BREAKER_LATENCY_MS_KEY =
+      "tracer.receiver.breaker.latency.ms";
+
+  public final static long BREAKER_LATENCY_MS_DEFAULT = 1000;
+
+  /**
+   * The number of failures in a row which open the circuit breaker.
+   */
+  public final static String BREAKER_FAILURES_KEY =
+      "tracer.receiver.breaker.failures";
+
+  public final static int BREAKER_FAILURES_DEFAULT = 5;
+
+  /**
+   * How long the circuit breaker stays open before the receiver is tried
+   * again, in milliseconds.
+   */
+  public final static String BREAKER_COOLDOWN_MS_KEY =
+      "tracer.receiver.breaker.cooldown.ms";
+
+  public final static long BREAKER_COOLDOWN_MS_DEFAULT = 10000;
+
+  /**
+   * The maximum number of spans handed to the receiver at once.
+   */
+  private static final int MAX_BATCH_SIZE = 128;
+
+  /**
+   * How long an idle drain thread parks before checking the queue again,
+   * even if nobody wakes it.
+   */
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  /**
+   * How long to wait for the drain thread to finish when closing.
+   */
+  private static final long CLOSE_TIMEOUT_MS = 30000;
+
+  /**
+   * The minimum interval between warnings about dropped spans.
+   */
+  private static final long DROP_WARNING_INTERVAL_MS = 60000;
+
+  /**
+   * What to do with a span when the queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Drop the span which did not fit.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drop the oldest span in the queue to make room.  This favors recent
+     * spans, at the cost of some contention with the drain thread.
+     */
+    DROP_OLDEST;
+
+    /**
+     * Parse an overflow policy name, such as "drop-newest".
+     *
+     * @param str     The name.
+     * @return        The overflow policy.
+     */
+    public static OverflowPolicy fromString(String str) {
+      String name = str.trim().toUpperCase(Locale.ROOT).replace('-', '_');
+      try {
+        return OverflowPolicy.valueOf(name);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unknown overflow policy '" + str +
+            "'.  Valid overflow policies are drop-newest and drop-oldest.");
+      }
+    }
+  }
+
+  private final SpanReceiver receiver;
+
+  private final SpanRingBuffer ringBuffer;
+
+  private final OverflowPolicy overflowPolicy;
+
+  private final long breakerLatencyNanos;
+
+  private final int breakerFailures;
+
+  private final long breakerCooldownMs;
+
+  private final Drainer drainer;
+
+  /**
+   * The number of spans dropped because the queue was full.
+   */
+  private final AtomicLong numDropped = new AtomicLong(0);
+
+  /**
+   * The number of spans rejected because the circuit breaker was open, or
+   * the queue was closed.
+   */
+  private final AtomicLong numRejected = new AtomicLong(0);
+
+  /**
+   * The number of times the circuit breaker has opened.
+   */
+  private final AtomicLong numTrips = new AtomicLong(0);
+
+  /**
+   * The last time we logged a warning about dropped spans.
+   */
+  private final AtomicLong lastDropWarningMs = new AtomicLong(0);
+
+  /**
+   * When the circuit breaker may let spans through again, or 0 if it is
+   * closed.  Only the drain thread writes this.
+   */
+  private volatile long openUntilMs = 0;
+
+  private volatile boolean closed = false;
+
+  private class Drainer extends Thread {
+    private final Span[] batch = new Span[MAX_BATCH_SIZE];
+
+    /**
+     * The number of failed calls in a row.
+     */
+    private int numFailures = 0;
+
+    private volatile boolean parked = false;
+
+    Drainer() {
+      setName("SpanReceiverQueue(" + receiver.getId() + ")");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        int num = ringBuffer.drainTo(batch, batch.length);
+        if (num > 0) {
+          deliver(batch, num);
+        } else if (closed && ringBuffer.isEmpty()) {
+          return;
+        } else {
+          parked = true;
+          try {
+            // Check again after advertising that we are parked, so that we
+            // can't miss a wakeup.
+            if (ringBuffer.isEmpty() && !closed) {
+              LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            }
+          } finally {
+            parked = false;
+          }
+        }
+      }
+    }
+
+    void deliver(Span[] batch, int num) {
+      long openUntil = openUntilMs;
+      if ((openUntil != 0) && (System.currentTimeMillis() < openUntil)) {
+        // These were queued before the breaker opened.
+        for (int i = 0; i < num; i++) {
+          reject(batch[i]);
+          batch[i] = null;
+        }
+        return;
+      }
+      boolean failed = false;
+      long start = System.nanoTime();
+      try {
+        receiver.metrics.deliver(batch, 0, num);
+      } catch (Throwable t) {
+        failed = true;
+        LOG.error(SpanReceiverQueue.this.toString() + ": error delivering " +
+            num + " span(s)", t);
+      }
+      long elapsedNanos = System.nanoTime() - start;
+      if (failed || (elapsedNanos > breakerLatencyNanos)) {
+        failure(failed, elapsedNanos);
+      } else if (numFailures > 0) {
+        if (openUntilMs != 0) {
+          openUntilMs = 0;
+          LOG.info(SpanReceiverQueue.this.toString() + ": closed the " +
+              "circuit breaker.");
+        }
+        numFailures = 0;
+      }
+      boolean retains = receiver.retainsSpans();
+      for (int i = 0; i < num; i++) {
+        if (!retains) {
+          SpanReceiver.releaseSpan(batch[i]);
+        }
+        batch[i] = null;
+      }
+    }
+
+    private void failure(boolean failed, long elapsedNanos) {
+      numFailures++;
+      if (numFailures < breakerFailures) {
+        return;
+      }
+      openUntilMs = System.currentTimeMillis() + breakerCooldownMs;
+      numTrips.incrementAndGet();
+      LOG.warn(SpanReceiverQueue.this.toString() + ": opened the circuit " +
+          "breaker for " + breakerCooldownMs + " ms after " + numFailures +
+          " failure(s) in a row.  The last call " + (failed ? "threw" :
+          ("took " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms")) +
+          ".");
+    }
+  }
+
+  /**
+   * Create a queue for a receiver, if the configuration asks for one.
+   *
+   * @param receiver    The receiver.
+   * @param conf        The configuration.
+   * @return            The queue, which has not been started, or null if the
+   *                      configured capacity is 0.
+   */
+  static SpanReceiverQueue fromConf(SpanReceiver receiver,
+                                    HTraceConfiguration conf) {
+    int capacity = conf.getInt(CAPACITY_KEY, CAPACITY_DEFAULT);
+    if (capacity <= 0) {
+      return null;
+    }
+    OverflowPolicy overflowPolicy = OverflowPolicy.fromString(
+        conf.get(OVERFLOW_POLICY_KEY, OVERFLOW_POLICY_DEFAULT));
+    long breakerLatencyMs = getLong(conf, BREAKER_LATENCY_MS_KEY,
+        BREAKER_LATENCY_MS_DEFAULT);
+    int breakerFailures = conf.getInt(BREAKER_FAILURES_KEY,
+        BREAKER_FAILURES_DEFAULT);
+    long breakerCooldownMs = getLong(conf, BREAKER_COOLDOWN_MS_KEY,
+        BREAKER_COOLDOWN_MS_DEFAULT);
+    return new SpanReceiverQueue(receiver, capacity, overflowPolicy,
+        breakerLatencyMs, breakerFailures, breakerCooldownMs);
+  }
+
+  private static long getLong(HTraceConfiguration conf, String key,
+                              long defaultValue) {
+    String str = conf.get(key);
+    if (str == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(str.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid " + key + ": " + str);
+    }
+  }
+
+  SpanReceiverQueue(SpanReceiver receiver, int capacity,
+                    OverflowPolicy overflowPolicy, long breakerLatencyMs,
+                    int breakerFailures, long breakerCooldownMs) {
+    if (breakerLatencyMs <= 0) {
+      throw new IllegalArgumentException(BREAKER_LATENCY_MS_KEY +
+          " must be positive.");
+    }
+    if (breakerFailures < 1) {
+      throw new IllegalArgumentException(BREAKER_FAILURES_KEY +
+          " must be at least 1.");
+    }
+    if (breakerCooldownMs < 0) {
+      throw new IllegalArgumentException(BREAKER_COOLDOWN_MS_KEY +
+          " must not be negative.");
+    }
+    this.receiver = receiver;
+    this.ringBuffer = new SpanRingBuffer(capacity);
+    this.overflowPolicy = overflowPolicy;
+    this.breakerLatencyNanos = TimeUnit.MILLISECONDS.toNanos(breakerLatencyMs);
+    this.breakerFailures = breakerFailures;
+    this.breakerCooldownMs = breakerCooldownMs;
+    this.drainer = new Drainer();
+  }
+
+  void start() {
+    drainer.start();
+    LOG.debug("Started " + toString());
+  }
+
+  /**
+   * Queue a span for the receiver.  This never blocks.
+   *
+   * @param span    The span.
+   */
+  void offer(Span span) {
+    long openUntil = openUntilMs;
+    if (closed || ((openUntil != 0) &&
+        (System.currentTimeMillis() < openUntil))) {
+      reject(span);
+      return;
+    }
+    if (!ringBuffer.offer(span)) {
+      if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+        dropped(span);
+        return;
+      }
+      Span oldest = ringBuffer.poll();
+      if (oldest != null) {
+        dropped(oldest);
+      }
+      if (!ringBuffer.offer(span)) {
+        dropped(span);
+        return;
+      }
+    }
+    if (drainer.parked) {
+      LockSupport.unpark(drainer);
+    }
+  }
+
+  private void reject(Span span) {
+    numRejected.incrementAndGet();
+    SpanReceiver.releaseSpan(span);
+  }
+
+  private void dropped(Span span) {
+    long dropped = numDropped.incrementAndGet();
+    SpanReceiver.releaseSpan(span);
+    long now = System.currentTimeMillis();
+    long last = lastDropWarningMs.get();
+    if ((now - last >= DROP_WARNING_INTERVAL_MS) &&
+        lastDropWarningMs.compareAndSet(last, now)) {
+      LOG.warn(toString() + ": the queue is full, so spans are being " +
+          "dropped.  " + dropped + " span(s) dropped so far.");
+    }
+  }
+
+  /**
+   * Stop the drain thread, once it has handed the receiver every span which
+   * was already queued.  Spans which are offered after this call are
+   * rejected.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(drainer);
+    try {
+      drainer.join(CLOSE_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (drainer.isAlive()) {
+      LOG.warn(toString() + ": timed out waiting for " + drainer.getName() +
+          " to finish.");
+      return;
+    }
+    // Deliver anything which was queued while we were shutting down.
+    Span[] batch = new Span[MAX_BATCH_SIZE];
+    int num;
+    while ((num = ringBuffer.drainTo(batch, batch.length)) > 0) {
+      drainer.deliver(batch, num);
+    }
+    LOG.debug("Closed " + toString() + ".  Dropped " + getNumDropped() +
+        " span(s) and rejected " + getNumRejected() + " span(s).");
+  }
+
+  /**
+   * @return    The number of spans the queue can hold.
+   */
+  public int getCapacity() {
+    return ringBuffer.capacity();
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * @return    The number of spans waiting in the queue.
+   */
+  public long getNumPending() {
+    return Math.max(0,
+        ringBuffer.getNumAdded() - ringBuffer.getNumRemoved());
+  }
+
+  /**
+   * @return    The number of spans which were dropped because the queue was
+   *              full.
+   */
+  public long getNumDropped() {
+    return numDropped.get();
+  }
+
+  /**
+   * @return    The number of spans which were rejected because the circuit
+   *              breaker was open, or the queue was closed.
+   */
+  public long getNumRejected() {
+    return numRejected.get();
+  }
+
+  /**
+   * @return    The number of times the circuit breaker has opened.
+   */
+  public long getNumTrips() {
+    return numTrips.get();
+  }
+
+  /**
+   * @return    True if the circuit breaker is open, and spans are being
+   *              rejected.
+   */
+  public boolean isCircuitOpen() {
+    long openUntil = openUntilMs;
+    return (openUntil != 0) && (System.currentTimeMillis() < openUntil);
+  }
+
+  @Override
+  public String toString() {
+    return "SpanReceiverQueue(" + receiver + ", capacity=" +
+        ringBuffer.capacity() + ", overflowPolicy=" + overflowPolicy + ")";
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free ring buffer of spans.
+ *
+ * Any number of threads may offer and poll concurrently.  Each slot carries a
+ * sequence number which says whether it is ready to be written or read, so
+ * producers and consumers only contend with each other on the head and tail
+ * counters, and never block.  See Dmitry Vyukov's bounded MPMC queue.
+ */
+final class SpanRingBuffer {
+  private final int mask;
+
+  private final Span[] slots;
+
+  /**
+   * The sequence number of each slot.  A slot at index i is ready to be
+   * written at position p when its sequence is p, and ready to be read at
+   * position p when its sequence is p + 1.
+   */
+  private final AtomicLongArray sequences;
+
+  /**
+   * The next position to write.
+   */
+  private final AtomicLong tail = new AtomicLong(0);
+
+  /**
+   * The next position to read.
+   */
+  private final AtomicLong head = new AtomicLong(0);
+
+  /**
+   * Create a new ring buffer.
+   *
+   * @param capacity    The minimum capacity.  It will be rounded up to a
+   *                      power of two.
+   */
+  SpanRingBuffer(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The ring buffer capacity must " +
+          "be positive.");
+    }
+    if (capacity > (1 << 30)) {
+      throw new IllegalArgumentException("The ring buffer capacity must " +
+          "not be more than " + (1 << 30) + ".");
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.mask = size - 1;
+    this.slots = new Span[size];
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  int capacity() {
+    return slots.length;
+  }
+
+  /**
+   * Add a span to the buffer.
+   *
+   * @param span    The span.
+   * @return        True if the span was added; false if the buffer was full.
+   */
+  boolean offer(Span span) {
+    long pos = tail.get();
+    while (true) {
+      int idx = (int)(pos & mask);
+      long diff = sequences.get(idx) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          slots[idx] = span;
+          sequences.lazySet(idx, pos + 1);
+          return true;
+        }
+        pos = tail.get();
+      } else if (diff < 0) {
+        return false;
+      } else {
+        pos = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Remove a span from the buffer.
+   *
+   * @return        The span, or null if the buffer was empty.
+   */
+  Span poll() {
+    long pos = head.get();
+    while (true) {
+      int idx = (int)(pos & mask);
+      long diff = sequences.get(idx) - (pos + 1);
+      if (diff == 0) {
+        if (head.compareAndSet(pos, pos + 1)) {
+          Span span = slots[idx];
+          slots[idx] = null;
+          sequences.lazySet(idx, pos + mask + 1);
+          return span;
+        }
+        pos = head.get();
+      } else if (diff < 0) {
+        return null;
+      } else {
+        pos = head.get();
+      }
+    }
+  }
+
+  /**
+   * Remove up to len spans from the buffer.
+   *
+   * @param out     The array to put the spans into.
+   * @param len     The maximum number of spans to remove.
+   * @return        The number of spans removed.
+   */
+  int drainTo(Span[] out, int len) {
+    int num = 0;
+    while (num < len) {
+      Span span = poll();
+      if (span == null) {
+        break;
+      }
+      out[num++] = span;
+    }
+    return num;
+  }
+
+  /**
+   * @return        True if there is nothing left to read.  A span which is
+   *                  being written may not be visible yet.
+   */
+  boolean isEmpty() {
+    return head.get() >= tail.get();
+  }
+
+  /**
+   * @return        The total number of spans ever added.
+   */
+  long getNumAdded() {
+    return tail.get();
+  }
+
+  /**
+   * @return        The total number of spans ever removed.
+   */
+  long getNumRemoved() {
+    return head.get();
+  }
+}
@@ -31,6 +31,11 @@ public class StandardOutSpanReceiver extends SpanReceiver {
     LOG.trace("Created new StandardOutSpanReceiver.");
   }
 
+  @Override
+  public boolean retainsSpans() {
+    return false;
+  }
+
   @Override
   public void receiveSpan(Span span) {
     System.out.println(span);
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which many threads can add to without contending on a single
+ * memory location, like Java 8's LongAdder.
+ *
+ * The count is split across several stripes, each on its own cache line.
+ * A thread always adds to the same stripe, chosen by its ID.  Reading the
+ * counter sums the stripes, so it is slower than adding to it.
+ */
+final class StripedCounter {
+  /**
+   * The number of longs between the starts of two stripes.  This keeps
+   * stripes on separate 64-byte cache lines.
+   */
+  private static final int STRIDE = 8;
+
+  static final int NUM_STRIPES = numStripes(64);
+
+  private final AtomicLongArray cells =
+      new AtomicLongArray(NUM_STRIPES * STRIDE);
+
+  /**
+   * Get the number of stripes to use: the number of CPUs rounded up to a
+   * power of two, but no more than max.
+   */
+  static int numStripes(int max) {
+    int cpus = Runtime.getRuntime().availableProcessors();
+    int stripes = 1;
+    while ((stripes < cpus) && (stripes < max)) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+
+  /**
+   * Get the stripe the current thread uses.
+   *
+   * @param numStripes    The number of stripes, which must be a power of two.
+   * @return              The stripe index.
+   */
+  static int stripe(int numStripes) {
+    long id = Thread.currentThread().getId();
+    return (int)((id * 0x9E3779B97F4A7C15L) >>> 40) & (numStripes - 1);
+  }
+
+  void add(long delta) {
+    cells.getAndAdd(stripe(NUM_STRIPES) * STRIDE, delta);
+  }
+
+  void increment() {
+    add(1);
+  }
+
+  /**
+   * Add one to the calling thread's stripe.
+   *
+   * @return The new value of that stripe.
+   */
+  long incrementStripe() {
+    return cells.incrementAndGet(stripe(NUM_STRIPES) * STRIDE);
+  }
+
+  /**
+   * Add to a given stripe, rather than the calling thread's.
+   *
+   * @param stripe  The stripe index, less than NUM_STRIPES.
+   * @param delta   The amount to add.
+   */
+  void addToStripe(int stripe, long delta) {
+    cells.getAndAdd(stripe * STRIDE, delta);
+  }
+
+  long sum() {
+    long sum = 0;
+    for (int i = 0; i < NUM_STRIPES; i++) {
+      sum += cells.get(i * STRIDE);
+    }
+    return sum;
+  }
+
+  void reset() {
+    for (int i = 0; i < NUM_STRIPES; i++) {
+      cells.set(i * STRIDE, 0);
+    }
+  }
+}
@@ -0,0 +1,581 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A SpanReceiver which buffers spans by trace, and passes a trace on to
+ * another receiver only if it turns out to be interesting.
+ *
+ * Head sampling decides whether to trace a request before anything is known
+ * about it, so at a low sampling rate it misses almost every slow or failed
+ * request.  This receiver is meant to be used with a high sampling rate.  It
+ * holds the spans of each trace (that is, each {@link SpanId#getHigh()}) in
+ * memory until the trace's root span is received, or until the trace has
+ * been pending for {@link #TIMEOUT_MS_KEY}.  It then forwards the whole trace
+ * to the delegate receiver if any of these is true:
+ *
+ * <ul>
+ *   <li>The trace took at least {@link #MIN_DURATION_MS_KEY}.</li>
+ *   <li>A span in the trace has one of the KV annotations listed in
+ *       {@link #KV_KEYS_KEY}.</li>
+ *   <li>The trace took at least as long as the given percentile of recent
+ *       traces with the same root description
+ *       ({@link #LATENCY_PERCENTILE_KEY}).</li>
+ * </ul>
+ *
+ * Otherwise the trace is dropped.  Spans which arrive after their trace has
+ * been decided follow the same decision, as long as it is still remembered.
+ *
+ * A trace's root is a span with no parents, so traces which are continued
+ * from another process have no local root, and are decided when they time
+ * out.  Memory is bounded by {@link #MAX_SPANS_KEY}: when more spans than that
+ * are pending, the oldest traces are decided early.
+ */
+public class TailSamplingSpanReceiver extends SpanReceiver {
+  private static final Log LOG =
+      LogFactory.getLog(TailSamplingSpanReceiver.class);
+
+  /**
+   * The class name of the receiver to forward traces to.
+   */
+  public final static String DELEGATE_KEY =
+      "tail.sampling.span.receiver.delegate";
+
+  /**
+   * How long to wait for a trace's root span before deciding the trace.
+   */
+  public final static String TIMEOUT_MS_KEY =
+      "tail.sampling.span.receiver.timeout.ms";
+
+  public final static int TIMEOUT_MS_DEFAULT = 30000;
+
+  /**
+   * The maximum number of spans to hold.
+   */
+  public final static String MAX_SPANS_KEY =
+      "tail.sampling.span.receiver.max.spans";
+
+  public final static int MAX_SPANS_DEFAULT = 100000;
+
+  /**
+   * Forward traces which take at least this long.  Disabled if negative.
+   */
+  public final static String MIN_DURATION_MS_KEY =
+      "tail.sampling.span.receiver.min.duration.ms";
+
+  public final static int MIN_DURATION_MS_DEFAULT = -1;
+
+  /**
+   * A semicolon-separated list of KV annotation keys.  Traces with any of
+   * them are forwarded.  May be empty.
+   */
+  public final static String KV_KEYS_KEY =
+      "tail.sampling.span.receiver.kv.keys";
+
+  public final static String KV_KEYS_DEFAULT = "error";
+
+  /**
+   * Forward traces which take at least as long as this percentile (0 to 100)
+   * of the traces with the same root description.  Disabled if negative.
+   */
+  public final static String LATENCY_PERCENTILE_KEY =
+      "tail.sampling.span.receiver.latency.percentile";
+
+  public final static double LATENCY_PERCENTILE_DEFAULT = -1;
+
+  /**
+   * The number of traces a description needs before its percentile is used.
+   */
+  final static int MIN_PERCENTILE_SAMPLES = 100;
+
+  /**
+   * The number of traces after which a description's histogram is decayed,
+   * so that it follows changes in latency.
+   */
+  final static int DECAY_SAMPLES = 10000;
+
+  /**
+   * The maximum number of descriptions to keep histograms for.
+   */
+  final static int MAX_DESCRIPTIONS = 256;
+
+  /**
+   * The maximum number of decided traces to remember.
+   */
+  final static int MAX_DECISIONS = 10000;
+
+  /**
+   * A trace whose spans we are holding.
+   */
+  private static final class PendingTrace {
+    final long traceId;
+    final long createdNanos;
+    final ArrayList<Span> spans = new ArrayList<Span>(4);
+    Span root = null;
+    boolean flagged = false;
+
+    PendingTrace(long traceId, long createdNanos) {
+      this.traceId = traceId;
+      this.createdNanos = createdNanos;
+    }
+  }
+
+  private final SpanReceiver delegate;
+
+  private final boolean delegateRetainsSpans;
+
+  private final long timeoutNanos;
+
+  private final int maxSpans;
+
+  private final long minDurationMs;
+
+  private final String[] kvKeys;
+
+  private final double latencyPercentile;
+
+  /**
+   * Pending traces, oldest first.  Protected by the lock on this object, as
+   * are all the fields below.
+   */
+  private final LinkedHashMap<Long, PendingTrace> pending =
+      new LinkedHashMap<Long, PendingTrace>();
+
+  /**
+   * Whether recently decided traces were forwarded.
+   */
+  private final LinkedHashMap<Long, Boolean> decisions =
+      new LinkedHashMap<Long, Boolean>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> e) {
+          return size() > MAX_DECISIONS;
+        }
+      };
+
+  /**
+   * Latency histograms by root description, least recently used first.
+   */
+  private final LinkedHashMap<String, LatencyHistogram> histograms =
+      new LinkedHashMap<String, LatencyHistogram>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, LatencyHistogram> e) {
+          return size() > MAX_DESCRIPTIONS;
+        }
+      };
+
+  private int numBufferedSpans = 0;
+
+  private long tracesForwarded = 0;
+
+  private long tracesDropped = 0;
+
+  private long tracesTimedOut = 0;
+
+  private long tracesEvicted = 0;
+
+  private long spansForwarded = 0;
+
+  private long spansDropped = 0;
+
+  private boolean closed = false;
+
+  private final Thread reaper;
+
+  public TailSamplingSpanReceiver(HTraceConfiguration conf) {
+    this(conf, buildDelegate(conf));
+  }
+
+  public TailSamplingSpanReceiver(HTraceConfiguration conf,
+                                  SpanReceiver delegate) {
+    if (delegate == null) {
+      throw new IllegalArgumentException("You must supply a delegate " +
+          "receiver.");
+    }
+    int timeoutMs = conf.getInt(TIMEOUT_MS_KEY, TIMEOUT_MS_DEFAULT);
+    if (timeoutMs < 1) {
+      throw new IllegalArgumentException(TIMEOUT_MS_KEY +
+          " must be at least 1.");
+    }
+    this.maxSpans = conf.getInt(MAX_SPANS_KEY, MAX_SPANS_DEFAULT);
+    if (maxSpans < 1) {
+      throw new IllegalArgumentException(MAX_SPANS_KEY +
+          " must be at least 1.");
+    }
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    this.minDurationMs = conf.getInt(MIN_DURATION_MS_KEY,
+        MIN_DURATION_MS_DEFAULT);
+    this.kvKeys = parseKeys(conf.get(KV_KEYS_KEY, KV_KEYS_DEFAULT));
+    String percentileStr = conf.get(LATENCY_PERCENTILE_KEY);
+    this.latencyPercentile = (percentileStr == null) ?
+        LATENCY_PERCENTILE_DEFAULT : Double.parseDouble(percentileStr.trim());
+    if (latencyPercentile > 100) {
+      throw new IllegalArgumentException(LATENCY_PERCENTILE_KEY +
+          " must not be greater than 100.");
+    }
+    this.delegate = delegate;
+    this.delegateRetainsSpans = delegate.retainsSpans();
+    this.reaper = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        reap();
+      }
+    }, "TailSamplingSpanReceiver-" + getId());
+    this.reaper.setDaemon(true);
+    this.reaper.start();
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Created new TailSamplingSpanReceiver with delegate = " +
+          delegate.getClass().getName() + ", timeoutMs = " + timeoutMs +
+          ", maxSpans = " + maxSpans + ", minDurationMs = " + minDurationMs +
+          ", kvKeys = " + conf.get(KV_KEYS_KEY, KV_KEYS_DEFAULT) +
+          ", latencyPercentile = " + latencyPercentile);
+    }
+  }
+
+  private static SpanReceiver buildDelegate(HTraceConfiguration conf) {
+    String className = conf.get(DELEGATE_KEY);
+    if ((className == null) || className.isEmpty()) {
+      throw new IllegalArgumentException("You must set " + DELEGATE_KEY +
+          " to use the TailSamplingSpanReceiver.");
+    }
+    return new SpanReceiver.Builder(conf).className(className).build();
+  }
+
+  private static String[] parseKeys(String str) {
+    ArrayList<String> keys = new ArrayList<String>();
+    for (String key : str.split(";")) {
+      key = key.trim();
+      if (!key.isEmpty()) {
+        keys.add(key);
+      }
+    }
+    return keys.toArray(new String[keys.size()]);
+  }
+
+  public SpanReceiver getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public void receiveSpan(Span span) {
+    receiveSpans(new Span[] { span }, 0, 1);
+  }
+
+  @Override
+  public void receiveSpans(Span[] spans, int offset, int len) {
+    ArrayList<Span> toForward = new ArrayList<Span>();
+    ArrayList<Span> toDrop = new ArrayList<Span>();
+    int end = offset + len;
+    synchronized (this) {
+      if (closed) {
+        for (int i = offset; i < end; i++) {
+          toDrop.add(spans[i]);
+        }
+        spansDropped += len;
+      } else {
+        for (int i = offset; i < end; i++) {
+          add(spans[i], toForward, toDrop);
+        }
+        while (numBufferedSpans > maxSpans) {
+          Iterator<PendingTrace> iter = pending.values().iterator();
+          PendingTrace trace = iter.next();
+          iter.remove();
+          tracesEvicted++;
+          decide(trace, toForward, toDrop);
+        }
+      }
+    }
+    finish(toForward, toDrop);
+  }
+
+  private void add(Span span, ArrayList<Span> toForward,
+                   ArrayList<Span> toDrop) {
+    long traceId = span.getSpanId().getHigh();
+    PendingTrace trace = pending.get(traceId);
+    if (trace == null) {
+      Boolean forwarded = decisions.get(traceId);
+      if (forwarded != null) {
+        if (forwarded) {
+          toForward.add(span);
+          spansForwarded++;
+        } else {
+          toDrop.add(span);
+          spansDropped++;
+        }
+        return;
+      }
+      trace = new PendingTrace(traceId, System.nanoTime());
+      pending.put(traceId, trace);
+    }
+    trace.spans.add(span);
+    numBufferedSpans++;
+    if (!trace.flagged) {
+      trace.flagged = hasKey(span);
+    }
+    if (span.getParents().length == 0) {
+      trace.root = span;
+      pending.remove(traceId);
+      decide(trace, toForward, toDrop);
+    }
+  }
+
+  private boolean hasKey(Span span) {
+    if (kvKeys.length == 0) {
+      return false;
+    }
+    Map<String, String> kvs = span.getKVAnnotations();
+    if (kvs.isEmpty()) {
+      return false;
+    }
+    for (String key : kvKeys) {
+      if (kvs.containsKey(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Decide whether to forward a trace which has been removed from the
+   * pending map.
+   */
+  private void decide(PendingTrace trace, ArrayList<Span> toForward,
+                      ArrayList<Span> toDrop) {
+    numBufferedSpans -= trace.spans.size();
+    Span root = trace.root;
+    long durationMs;
+    if (root != null) {
+      durationMs = root.getAccumulatedMillis();
+    } else {
+      // Without a root, treat the earliest span as the root, and time the
+      // trace from its start to the last stop.
+      long start = Long.MAX_VALUE, stop = Long.MIN_VALUE;
+      for (Span span : trace.spans) {
+        if (span.getStartTimeMillis() < start) {
+          start = span.getStartTimeMillis();
+          root = span;
+        }
+        stop = Math.max(stop, span.getStopTimeMillis());
+      }
+      durationMs = Math.max(0, stop - start);
+    }
+    boolean forward = trace.flagged ||
+        ((minDurationMs >= 0) && (durationMs >= minDurationMs));
+    if (latencyPercentile >= 0) {
+      if (isSlow(root.getDescription(), durationMs)) {
+        forward = true;
+      }
+    }
+    decisions.put(trace.traceId, forward);
+    if (forward) {
+      toForward.addAll(trace.spans);
+      tracesForwarded++;
+      spansForwarded += trace.spans.size();
+    } else {
+      toDrop.addAll(trace.spans);
+      tracesDropped++;
+      spansDropped += trace.spans.size();
+    }
+  }
+
+  /**
+   * Record a trace duration and check it against the percentile for its
+   * description.
+   */
+  private boolean isSlow(String description, long durationMs) {
+    LatencyHistogram histogram = histograms.get(description);
+    if (histogram == null) {
+      histogram = new LatencyHistogram();
+      histograms.put(description, histogram);
+    }
+    boolean slow = (histogram.getCount() >= MIN_PERCENTILE_SAMPLES) &&
+        (durationMs >= histogram.getValueAtPercentile(latencyPercentile));
+    histogram.record(durationMs);
+    if (histogram.getCount() >= DECAY_SAMPLES) {
+      histogram.decay();
+    }
+    return slow;
+  }
+
+  /**
+   * Forward and release spans.  Called without holding the lock.
+   */
+  private void finish(ArrayList<Span> toForward, ArrayList<Span> toDrop) {
+    for (int i = 0; i < toDrop.size(); i++) {
+      releaseSpan(toDrop.get(i));
+    }
+    if (toForward.isEmpty()) {
+      return;
+    }
+    Span[] spans = toForward.toArray(new Span[toForward.size()]);
+    try {
+      delegate.receiveSpans(spans, 0, spans.length);
+    } catch (Throwable e) {
+      LOG.error("Delegate receiver " + delegate.getClass().getName() +
+          " threw an exception", e);
+    } finally {
+      // If the delegate retains spans, our reference is now its reference.
+      if (!delegateRetainsSpans) {
+        for (int i = 0; i < spans.length; i++) {
+          releaseSpan(spans[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Decide traces which have been pending for longer than the timeout.
+   */
+  void expire(long now) {
+    ArrayList<Span> toForward = new ArrayList<Span>();
+    ArrayList<Span> toDrop = new ArrayList<Span>();
+    synchronized (this) {
+      Iterator<PendingTrace> iter = pending.values().iterator();
+      while (iter.hasNext()) {
+        PendingTrace trace = iter.next();
+        if (now - trace.createdNanos < timeoutNanos) {
+          break;
+        }
+        iter.remove();
+        tracesTimedOut++;
+        decide(trace, toForward, toDrop);
+      }
+    }
+    finish(toForward, toDrop);
+  }
+
+  private void reap() {
+    long periodMs = Math.max(1,
+        Math.min(1000, TimeUnit.NANOSECONDS.toMillis(timeoutNanos) / 4));
+    while (true) {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        try {
+          wait(periodMs);
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (closed) {
+          return;
+        }
+      }
+      expire(System.nanoTime());
+    }
+  }
+
+  /**
+   * @return The number of traces which were forwarded.
+   */
+  public synchronized long getTracesForwarded() {
+    return tracesForwarded;
+  }
+
+  /**
+   * @return The number of traces which were dropped.
+   */
+  public synchronized long getTracesDropped() {
+    return tracesDropped;
+  }
+
+  /**
+   * @return The number of traces which were decided because they timed out.
+   */
+  public synchronized long getTracesTimedOut() {
+    return tracesTimedOut;
+  }
+
+  /**
+   * @return The number of traces which were decided early because too many
+   *           spans were buffered.
+   */
+  public synchronized long getTracesEvicted() {
+    return tracesEvicted;
+  }
+
+  public synchronized long getSpansForwarded() {
+    return spansForwarded;
+  }
+
+  public synchronized long getSpansDropped() {
+    return spansDropped;
+  }
+
+  public synchronized int getNumBufferedSpans() {
+    return numBufferedSpans;
+  }
+
+  public synchronized int getNumPendingTraces() {
+    return pending.size();
+  }
+
+  @Override
+  public double getLoad() {
+    double load;
+    synchronized (this) {
+      load = ((double)numBufferedSpans) / maxSpans;
+    }
+    return Math.max(load, delegate.getLoad());
+  }
+
+  /**
+   * Decides all pending traces, then closes the delegate.
+   */
+  @Override
+  public void close() {
+    ArrayList<Span> toForward = new ArrayList<Span>();
+    ArrayList<Span> toDrop = new ArrayList<Span>();
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+      for (PendingTrace trace : pending.values()) {
+        decide(trace, toForward, toDrop);
+      }
+      pending.clear();
+    }
+    try {
+      reaper.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    finish(toForward, toDrop);
+    try {
+      delegate.close();
+    } catch (Throwable e) {
+      LOG.error("Error closing delegate receiver " +
+          delegate.getClass().getName(), e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "TailSamplingSpanReceiver(" + delegate.getClass().getName() + ")";
+  }
+}
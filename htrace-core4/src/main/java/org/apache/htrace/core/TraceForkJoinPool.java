@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+
+/**
+ * A ForkJoinPool which carries the submitter's trace into the tasks
+ * submitted to it.
+ *
+ * Tasks submitted while the submitting thread has a current span run in a
+ * child span of it.  Only the span ID is captured at submission; a scope is
+ * opened when the task runs.  Tasks submitted without a current span are
+ * passed through unwrapped, at no extra cost.
+ *
+ * Tasks which are forked inside the pool bypass these methods.  To carry the
+ * trace into them, extend {@link TraceRecursiveTask} or
+ * {@link TraceRecursiveAction}.  Tasks of those types are never wrapped, since
+ * they capture their parent when they are created.
+ */
+public class TraceForkJoinPool extends ForkJoinPool {
+  private final Tracer tracer;
+  private final String description;
+
+  /**
+   * A task which runs another task in a child span.
+   */
+  private static final class TracedTask<T> extends ForkJoinTask<T> {
+    private static final long serialVersionUID = 1L;
+
+    private final ForkJoinTask<T> task;
+    private final transient ForkParent parent;
+    private T result;
+
+    TracedTask(ForkJoinTask<T> task, ForkParent parent) {
+      this.task = task;
+      this.parent = parent;
+    }
+
+    @Override
+    public T getRawResult() {
+      return result;
+    }
+
+    @Override
+    protected void setRawResult(T value) {
+      this.result = value;
+    }
+
+    @Override
+    protected boolean exec() {
+      TraceScope scope = parent.enter();
+      try {
+        result = task.invoke();
+      } finally {
+        if (scope != null) {
+          scope.close();
+        }
+      }
+      return true;
+    }
+  }
+
+  private static final class TracedRunnable implements Runnable {
+    private final Runnable runnable;
+    private final ForkParent parent;
+
+    TracedRunnable(Runnable runnable, ForkParent parent) {
+      this.runnable = runnable;
+      this.parent = parent;
+    }
+
+    @Override
+    public void run() {
+      TraceScope scope = parent.enter();
+      try {
+        runnable.run();
+      } finally {
+        if (scope != null) {
+          scope.close();
+        }
+      }
+    }
+  }
+
+  private static final class TracedCallable<V> implements Callable<V> {
+    private final Callable<V> callable;
+    private final ForkParent parent;
+
+    TracedCallable(Callable<V> callable, ForkParent parent) {
+      this.callable = callable;
+      this.parent = parent;
+    }
+
+    @Override
+    public V call() throws Exception {
+      TraceScope scope = parent.enter();
+      try {
+        return callable.call();
+      } finally {
+        if (scope != null) {
+          scope.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Create a pool with parallelism equal to the number of processors.
+   *
+   * @param tracer        The tracer.
+   * @param description   The description of the spans tasks run in, or null
+   *                        to use the name of the worker thread.
+   */
+  public TraceForkJoinPool(Tracer tracer, String description) {
+    super();
+    this.tracer = tracer;
+    this.description = description;
+  }
+
+  /**
+   * Create a pool.
+   *
+   * @param tracer        The tracer.
+   * @param description   The description of the spans tasks run in, or null
+   *                        to use the name of the worker thread.
+   * @param parallelism   The parallelism level.
+   */
+  public TraceForkJoinPool(Tracer tracer, String description,
+                           int parallelism) {
+    super(parallelism);
+    this.tracer = tracer;
+    this.description = description;
+  }
+
+  /**
+   * Capture the current span, if there is one.
+   *
+   * @return The captured parent, or null if there is no current span.
+   */
+  private ForkParent capture() {
+    if (!Tracer.peekCurrentSpanId().isValid()) {
+      return null;
+    }
+    return new ForkParent(tracer, description);
+  }
+
+  private <T> ForkJoinTask<T> wrap(ForkJoinTask<T> task) {
+    // These capture their parent themselves.  Wrapping them too would give
+    // them two parents.
+    if ((task instanceof TraceRecursiveTask) ||
+        (task instanceof TraceRecursiveAction)) {
+      return task;
+    }
+    ForkParent parent = capture();
+    return (parent == null) ? task : new TracedTask<T>(task, parent);
+  }
+
+  private Runnable wrap(Runnable runnable) {
+    ForkParent parent = capture();
+    return (parent == null) ? runnable : new TracedRunnable(runnable, parent);
+  }
+
+  private <V> Callable<V> wrap(Callable<V> callable) {
+    ForkParent parent = capture();
+    return (parent == null) ? callable :
+        new TracedCallable<V>(callable, parent);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * If the task is traced, it runs inside a wrapper task, and this returns
+   * the result of the wrapper, which is the same as the task's result.
+   */
+  @Override
+  public <T> T invoke(ForkJoinTask<T> task) {
+    return super.invoke(wrap(task));
+  }
+
+  @Override
+  public void execute(ForkJoinTask<?> task) {
+    super.execute(wrap(task));
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    super.execute(wrap(task));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * If the task is traced, the returned task is a wrapper which completes
+   * with the same result as the submitted task.
+   */
+  @Override
+  public <T> ForkJoinTask<T> submit(ForkJoinTask<T> task) {
+    return super.submit(wrap(task));
+  }
+
+  @Override
+  public <T> ForkJoinTask<T> submit(Callable<T> task) {
+    return super.submit(wrap(task));
+  }
+
+  @Override
+  public <T> ForkJoinTask<T> submit(Runnable task, T result) {
+    return super.submit(wrap(task), result);
+  }
+
+  @Override
+  public ForkJoinTask<?> submit(Runnable task) {
+    return super.submit(wrap(task));
+  }
+
+  @Override
+  public <T> List<Future<T>> invokeAll(
+      Collection<? extends Callable<T>> tasks) {
+    List<Callable<T>> wrapped = new ArrayList<Callable<T>>(tasks.size());
+    for (Callable<T> task : tasks) {
+      wrapped.add(wrap(task));
+    }
+    return super.invokeAll(wrapped);
+  }
+
+  public Tracer getTracer() {
+    return tracer;
+  }
+}
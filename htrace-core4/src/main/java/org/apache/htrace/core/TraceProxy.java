@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The InvocationHandler behind {@link Tracer#createProxy(Object)}.
+ *
+ * Each interface method is resolved once to a MethodHandle bound to the
+ * delegate, together with the description of its spans.  If the calling
+ * thread is not tracing, calls go straight to the delegate, without creating
+ * a span or doing any reflection.
+ */
+final class TraceProxy implements InvocationHandler {
+  private static final Object[] NO_ARGS = new Object[0];
+
+  /**
+   * A resolved interface method.
+   */
+  private static final class Target {
+    /**
+     * Invokes the method on the delegate.  Takes the arguments as an array,
+     * and returns the result as an Object.
+     */
+    final MethodHandle handle;
+
+    /**
+     * The description of spans for this method.
+     */
+    final String description;
+
+    /**
+     * True if this is a method of Object, such as hashCode.  These are
+     * never traced.
+     */
+    final boolean isObjectMethod;
+
+    Target(MethodHandle handle, String description, boolean isObjectMethod) {
+      this.handle = handle;
+      this.description = description;
+      this.isObjectMethod = isObjectMethod;
+    }
+  }
+
+  private final Tracer tracer;
+
+  private final Object instance;
+
+  private final ConcurrentHashMap<Method, Target> targets =
+      new ConcurrentHashMap<Method, Target>();
+
+  /**
+   * Create a proxy which traces calls to all the interfaces of an object.
+   *
+   * @param tracer      The tracer to create spans with.
+   * @param instance    The object to delegate to.
+   * @return            The proxy.
+   */
+  @SuppressWarnings("unchecked")
+  static <T> T create(Tracer tracer, T instance) {
+    Class<?> clazz = instance.getClass();
+    return (T)Proxy.newProxyInstance(clazz.getClassLoader(),
+        clazz.getInterfaces(), new TraceProxy(tracer, instance));
+  }
+
+  private TraceProxy(Tracer tracer, Object instance) {
+    this.tracer = tracer;
+    this.instance = instance;
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args)
+      throws Throwable {
+    Target target = targets.get(method);
+    if (target == null) {
+      target = resolve(method);
+    }
+    if (args == null) {
+      args = NO_ARGS;
+    }
+    if (target.isObjectMethod || (Tracer.getCurrentSpan() == null)) {
+      return (Object)target.handle.invokeExact(args);
+    }
+    try (TraceScope scope = tracer.newScope(target.description)) {
+      return (Object)target.handle.invokeExact(args);
+    }
+  }
+
+  private Target resolve(Method method) {
+    MethodHandle handle;
+    try {
+      handle = unreflect(method);
+    } catch (IllegalAccessException e) {
+      // The interface is not public.  The Proxy could call it, so we can too.
+      method.setAccessible(true);
+      try {
+        handle = unreflect(method);
+      } catch (IllegalAccessException e2) {
+        throw new RuntimeException("Unable to access " + method, e2);
+      }
+    }
+    Target target = new Target(handle, method.getName(),
+        method.getDeclaringClass() == Object.class);
+    Target prev = targets.putIfAbsent(method, target);
+    return (prev == null) ? target : prev;
+  }
+
+  private MethodHandle unreflect(Method method) throws IllegalAccessException {
+    int numParams = method.getParameterTypes().length;
+    return MethodHandles.publicLookup().unreflect(method).
+        bindTo(instance).
+        asType(MethodType.genericMethodType(numParams)).
+        asSpreader(Object[].class, numParams);
+  }
+}
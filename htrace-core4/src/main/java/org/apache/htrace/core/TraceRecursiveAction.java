@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A RecursiveAction which carries the trace of the thread which created it.
+ * See {@link TraceRecursiveTask}.
+ */
+public abstract class TraceRecursiveAction extends RecursiveAction {
+  private static final long serialVersionUID = 1L;
+
+  private final transient ForkParent parent;
+
+  /**
+   * @param tracer        The tracer.
+   * @param description   The description of child spans, or null to use the
+   *                        name of the thread which runs the task.
+   */
+  protected TraceRecursiveAction(Tracer tracer, String description) {
+    this.parent = new ForkParent(tracer, description);
+  }
+
+  @Override
+  protected final void compute() {
+    TraceScope scope = parent.enter();
+    try {
+      computeTraced();
+    } finally {
+      if (scope != null) {
+        scope.close();
+      }
+    }
+  }
+
+  /**
+   * The main computation performed by this task.
+   */
+  protected abstract void computeTraced();
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A RecursiveTask which carries the trace of the thread which created it.
+ *
+ * Subclasses implement {@link #computeTraced()} rather than compute.  If the
+ * task is stolen by another worker thread, it runs in a child span of the
+ * span which was current when it was created.  If it runs on the thread
+ * which created it, while that span is still current, as most subtasks of a
+ * divide-and-conquer computation do, no new span is created.
+ *
+ * @param <V> The type of the result.
+ */
+public abstract class TraceRecursiveTask<V> extends RecursiveTask<V> {
+  private static final long serialVersionUID = 1L;
+
+  private final transient ForkParent parent;
+
+  /**
+   * @param tracer        The tracer.
+   * @param description   The description of child spans, or null to use the
+   *                        name of the thread which runs the task.
+   */
+  protected TraceRecursiveTask(Tracer tracer, String description) {
+    this.parent = new ForkParent(tracer, description);
+  }
+
+  @Override
+  protected final V compute() {
+    TraceScope scope = parent.enter();
+    try {
+      return computeTraced();
+    } finally {
+      if (scope != null) {
+        scope.close();
+      }
+    }
+  }
+
+  /**
+   * The main computation performed by this task.
+   *
+   * @return The result.
+   */
+  protected abstract V computeTraced();
+}
@@ -63,9 +63,13 @@ public class TraceScope implements Closeable {
   /**
    * Returns the span ID which this scope is managing.
    *
+   * Since the ID is usually wanted in order to make it the parent of
+   * another span, the span will not be dropped by the short span filter.
+   *
    * @return The span ID.
    */
   public SpanId getSpanId() {
+    Tracer.markPropagated(span);
     return span.getSpanId();
   }
 
@@ -119,6 +123,22 @@ public class TraceScope implements Closeable {
     span.addKVAnnotation(key, value);
   }
 
+  public void addKVAnnotation(String key, long value) {
+    if (span instanceof MilliSpan) {
+      ((MilliSpan)span).addKVAnnotation(key, value);
+    } else {
+      span.addKVAnnotation(key, Long.toString(value));
+    }
+  }
+
+  public void addKVAnnotation(String key, double value) {
+    if (span instanceof MilliSpan) {
+      ((MilliSpan)span).addKVAnnotation(key, value);
+    } else {
+      span.addKVAnnotation(key, Double.toString(value));
+    }
+  }
+
   public void addTimelineAnnotation(String msg) {
     span.addTimelineAnnotation(msg);
   }
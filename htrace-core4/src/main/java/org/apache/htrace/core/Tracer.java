@@ -17,15 +17,16 @@
 package org.apache.htrace.core;
 
 import java.io.Closeable;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -41,6 +42,109 @@ public class Tracer implements Closeable {
   public final static String SPAN_RECEIVER_CLASSES_KEY = "span.receiver.classes";
   public final static String SAMPLER_CLASSES_KEY = "sampler.classes";
 
+  /**
+   * Configuration key which enables span recycling.
+   *
+   * When this is true, spans and scopes are taken from per-thread pools, and
+   * returned to the pool once every SpanReceiver is done with them.  This
+   * removes most of the per-span garbage.  The price is that spans and scopes
+   * must not be used after they are closed, and SpanReceivers must not keep
+   * references to spans unless they return true from
+   * {@link SpanReceiver#retainsSpans()}.
+   */
+  public final static String RECYCLE_SPANS_KEY = "tracer.recycle.spans";
+
+  /**
+   * The maximum number of free spans to keep in each per-thread pool.
+   */
+  public final static String RECYCLE_SPANS_POOL_SIZE_KEY =
+      "tracer.recycle.spans.pool.size";
+
+  public final static int RECYCLE_SPANS_POOL_SIZE_DEFAULT = 64;
+
+  /**
+   * Configuration key for the minimum duration of a span, in milliseconds.
+   *
+   * A span which has a parent and lasts less than this is not delivered to
+   * the SpanReceivers; what happens to it instead is decided by
+   * {@link #SHORT_SPAN_POLICY_KEY}.  Root spans are always delivered.  Since
+   * span times are in milliseconds, 1 filters out the spans which finish
+   * within the same millisecond they started.  0, the default, delivers
+   * every span.
+   *
+   * Spans whose IDs may have been given to other spans as a parent are
+   * always delivered too: those passed out by
+   * {@link #getCurrentSpanId()}, {@link TraceScope#getSpanId()},
+   * {@link Span#child(String)}, or the wrappers and executors built on them.
+   * A span ID which is read with {@link Span#getSpanId()} and handed to
+   * another thread or process by hand is not tracked.  If such a span is
+   * short, it is dropped, and its children are delivered pointing at a
+   * parent which does not exist.
+   */
+  public final static String MIN_SPAN_MILLIS_KEY = "tracer.min.span.millis";
+
+  public final static int MIN_SPAN_MILLIS_DEFAULT = 0;
+
+  /**
+   * Configuration key for what to do with spans shorter than
+   * {@link #MIN_SPAN_MILLIS_KEY}.  Either drop or count.
+   */
+  public final static String SHORT_SPAN_POLICY_KEY =
+      "tracer.short.span.policy";
+
+  public final static String SHORT_SPAN_POLICY_DEFAULT = "count";
+
+  /**
+   * The key-value annotation which counts the short spans compacted into a
+   * span, when the short span policy is count.
+   */
+  public final static String SHORT_SPANS_ANNOTATION = "htrace.short.spans";
+
+  /**
+   * What to do with a span which is shorter than the minimum duration.
+   */
+  public enum ShortSpanPolicy {
+    /**
+     * Discard the span.
+     */
+    DROP,
+
+    /**
+     * Discard the span, but count it in the {@link #SHORT_SPANS_ANNOTATION}
+     * of the enclosing span in the same thread, along with any short spans
+     * it had compacted.  If there is no enclosing span in the thread, the
+     * span is dropped.
+     */
+    COUNT;
+
+    /**
+     * Parse a short span policy name, such as "drop".
+     *
+     * @param str     The name.
+     * @return        The short span policy.
+     */
+    public static ShortSpanPolicy fromString(String str) {
+      try {
+        return ShortSpanPolicy.valueOf(str.trim().toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unknown short span policy '" +
+            str + "'.  Valid short span policies are drop and count.");
+      }
+    }
+  }
+
+  /**
+   * System property which chooses where each thread's tracing state is kept.
+   *
+   * "thread-local", the default, keeps it for the life of the thread.
+   * "transient" drops it whenever the thread has no open scopes, which
+   * suits servers that run each request on its own short-lived thread.
+   * This is a JVM-wide setting, read once, since all Tracers share the
+   * current scope of each thread.
+   */
+  public final static String CONTEXT_STORAGE_PROPERTY =
+      "htrace.context.storage";
+
   public static class Builder {
     private String name;
     private HTraceConfiguration conf = HTraceConfiguration.EMPTY;
@@ -98,6 +202,7 @@ public class Tracer implements Closeable {
           Sampler sampler = new Sampler.Builder(conf).
             className(className).
             classLoader(classLoader).
+            tracerPool(tracerPool).
             build();
           samplers.add(sampler);
           bld.append(prefix).append(className);
@@ -167,8 +272,27 @@ public class Tracer implements Closeable {
       LinkedList<Sampler> samplers = new LinkedList<Sampler>();
       loadSamplers(samplers);
       String tracerId = new TracerId(conf, name).get();
+      int spanPoolSize = 0;
+      if (conf.getBoolean(RECYCLE_SPANS_KEY, false)) {
+        spanPoolSize = conf.getInt(RECYCLE_SPANS_POOL_SIZE_KEY,
+            RECYCLE_SPANS_POOL_SIZE_DEFAULT);
+        if (spanPoolSize < 1) {
+          throw new IllegalArgumentException(RECYCLE_SPANS_POOL_SIZE_KEY +
+              " must not be less than 1.");
+        }
+      }
+      int minSpanMillis = conf.getInt(MIN_SPAN_MILLIS_KEY,
+          MIN_SPAN_MILLIS_DEFAULT);
+      if (minSpanMillis < 0) {
+        throw new IllegalArgumentException(MIN_SPAN_MILLIS_KEY +
+            " must not be negative.");
+      }
+      ShortSpanPolicy shortSpanPolicy = ShortSpanPolicy.fromString(
+          conf.get(SHORT_SPAN_POLICY_KEY, SHORT_SPAN_POLICY_DEFAULT));
+      tracerPool.configureDispatcher(conf);
       Tracer tracer = new Tracer(tracerId, tracerPool,
-          samplers.toArray(new Sampler[samplers.size()]));
+          samplers.toArray(new Sampler[samplers.size()]), spanPoolSize,
+          minSpanMillis, shortSpanPolicy);
       tracerPool.addTracer(tracer);
       loadSpanReceivers();
       if (LOG.isTraceEnabled()) {
@@ -187,27 +311,79 @@ public class Tracer implements Closeable {
    *
    * Note that we can't put the TraceScope objects themselves in this context,
    * since we need to be able to use TraceScopes created by other Tracers, and
-   * this context is per-Tracer.
+   * this context is per-Tracer.  The current TraceScope lives in the
+   * ThreadCarrier instead.
    */
   private static class ThreadContext {
+    /**
+     * The Tracer which this context belongs to.
+     */
+    private final Tracer tracer;
+
+    /**
+     * The carrier for the thread which this context belongs to.
+     */
+    private final ThreadCarrier carrier;
+
     private long depth;
 
-    ThreadContext() {
+    /**
+     * The pool of recycled spans for this thread, or null if this Tracer does
+     * not recycle spans.
+     */
+    private final SpanPool spanPool;
+
+    /**
+     * The thread which this context belongs to.
+     */
+    private final Thread owner;
+
+    /**
+     * This thread's counts of what this Tracer did.  Only the owning thread
+     * writes them, so it does not need atomic updates.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_COUNTS);
+
+    ThreadContext(Tracer tracer, ThreadCarrier carrier) {
+      this.tracer = tracer;
+      this.carrier = carrier;
       this.depth = 0;
+      this.spanPool = ((tracer.spanPoolSize == 0) || carrier.isTransient) ?
+          null : new SpanPool(tracer, tracer.spanPoolSize);
+      this.owner = Thread.currentThread();
     }
 
     boolean isTopLevel() {
       return (depth == 0);
     }
 
+    void count(int which) {
+      counts.lazySet(which, counts.get(which) + 1);
+    }
+
     void pushScope() {
       depth++;
     }
 
-    TraceScope pushNewScope(Tracer tracer, Span span, TraceScope parentScope) {
-      TraceScope scope = new TraceScope(tracer, span, parentScope);
-      threadLocalScope.set(scope);
+    TraceScope pushNullScope() {
+      depth++;
+      count(COUNT_NULL_SCOPES);
+      return tracer.nullScope;
+    }
+
+    TraceScope pushNewScope(Span span, TraceScope parentScope) {
+      TraceScope scope;
+      if (span instanceof PooledSpan) {
+        scope = ((PooledSpan)span).scope;
+        scope.setParent(parentScope);
+        scope.detached = false;
+      } else {
+        scope = new TraceScope(tracer, span, parentScope);
+      }
+      carrier.scope = scope;
+      carrier.hadSpans = true;
       depth++;
+      count(COUNT_SPANS);
       return scope;
     }
 
@@ -221,22 +397,138 @@ public class Tracer implements Closeable {
   };
 
   /**
-   * A subclass of ThreadLocal that starts off with a non-null initial value in
-   * each thread.
+   * All of the tracing state for a single thread.
+   *
+   * We keep the current trace scope and the per-Tracer contexts in one
+   * object, so that opening or closing a scope costs a single ThreadLocal
+   * lookup.  Most threads only ever use one Tracer, so we remember the context
+   * we used last and only search the array when the Tracer changes.
+   *
+   * Carriers live in the {@link ContextStorage}.
    */
-  private static class ThreadLocalContext extends ThreadLocal<ThreadContext> {
-    @Override
-    protected ThreadContext initialValue() {
-      return new ThreadContext();
+  static final class ThreadCarrier {
+    private static final ThreadContext[] EMPTY_CONTEXTS = new ThreadContext[0];
+
+    /**
+     * True if this carrier is dropped whenever its thread has no open
+     * scopes.  The contexts of a transient carrier are not registered with
+     * their Tracers; their counts are folded in whenever the thread has no
+     * open scopes.
+     */
+    final boolean isTransient;
+
+    /**
+     * True if this thread has created or reattached a span since the carrier
+     * was last released.
+     */
+    boolean hadSpans;
+
+    /**
+     * The current trace scope.  This is global, so it is shared amongst all
+     * libraries using HTrace.
+     */
+    TraceScope scope;
+
+    /**
+     * The context we used most recently, or null.
+     */
+    private ThreadContext lastContext;
+
+    /**
+     * The contexts of all the Tracers which have been used in this thread.
+     */
+    private ThreadContext[] contexts = EMPTY_CONTEXTS;
+
+    ThreadCarrier(boolean isTransient) {
+      this.isTransient = isTransient;
     }
-  };
+
+    /**
+     * Get this thread's context for a Tracer, creating it if needed.
+     *
+     * @param tracer      The Tracer.
+     * @return            The context.
+     */
+    ThreadContext getContext(Tracer tracer) {
+      ThreadContext context = lastContext;
+      if ((context != null) && (context.tracer == tracer)) {
+        return context;
+      }
+      return findContext(tracer);
+    }
+
+    private ThreadContext findContext(Tracer tracer) {
+      for (ThreadContext context : contexts) {
+        if (context.tracer == tracer) {
+          lastContext = context;
+          return context;
+        }
+      }
+      // Drop the contexts of Tracers which have been closed, unless they
+      // still have open scopes in this thread.
+      int numLive = 0;
+      ThreadContext[] newContexts = new ThreadContext[contexts.length + 1];
+      for (ThreadContext context : contexts) {
+        if ((!context.tracer.closed) || (!context.isTopLevel())) {
+          newContexts[numLive++] = context;
+        }
+      }
+      ThreadContext context = new ThreadContext(tracer, this);
+      if (!isTransient) {
+        tracer.addContext(context);
+      }
+      newContexts[numLive++] = context;
+      contexts = (numLive == newContexts.length) ? newContexts :
+          Arrays.copyOf(newContexts, numLive);
+      lastContext = context;
+      return context;
+    }
+
+    /**
+     * If this carrier's thread has no open scopes, fold the counts of its
+     * contexts into their Tracers, and empty the carrier if the thread has
+     * been in any spans.
+     *
+     * A thread which has only opened NullScopes holds nothing worth
+     * dropping, so we keep its carrier rather than allocating a new one for
+     * its next unsampled call.
+     *
+     * @return            True if the carrier was emptied.
+     */
+    boolean release() {
+      if (scope != null) {
+        return false;
+      }
+      for (ThreadContext context : contexts) {
+        if (!context.isTopLevel()) {
+          return false;
+        }
+      }
+      for (ThreadContext context : contexts) {
+        for (int i = 0; i < NUM_COUNTS; i++) {
+          long count = context.counts.get(i);
+          if (count != 0) {
+            context.counts.lazySet(i, 0);
+            context.tracer.releasedCounts[i].add(count);
+          }
+        }
+      }
+      if (!hadSpans) {
+        return false;
+      }
+      contexts = EMPTY_CONTEXTS;
+      lastContext = null;
+      hadSpans = false;
+      return true;
+    }
+  }
 
   /**
-   * The current trace scope.  This is global, so it is shared amongst all
-   * libraries using HTrace.
+   * Where the tracing state of each thread is kept.  This is only assigned
+   * outside of class initialization by tests.
    */
-  final static ThreadLocal<TraceScope> threadLocalScope =
-      new ThreadLocal<TraceScope>();
+  static ContextStorage contextStorage =
+      ContextStorage.create(System.getProperty(CONTEXT_STORAGE_PROPERTY));
 
   /**
    * An empty array of SpanId objects.  Can be used rather than constructing a
@@ -260,14 +552,57 @@ public class Tracer implements Closeable {
   private TracerPool tracerPool;
 
   /**
-   * The current thread-local context for this particualr Tracer.
+   * The NullScope instance for this Tracer.
    */
-  private final ThreadLocalContext threadContext;
+  private final NullScope nullScope;
 
   /**
-   * The NullScope instance for this Tracer.
+   * The capacity of each per-thread span pool, or 0 if we do not recycle
+   * spans.
    */
-  private final NullScope nullScope;
+  private final int spanPoolSize;
+
+  /**
+   * Spans with parents which are shorter than this are not delivered, or 0
+   * to deliver every span.
+   */
+  private final int minSpanMillis;
+
+  private final ShortSpanPolicy shortSpanPolicy;
+
+  /**
+   * True once this Tracer has been closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * The indices of the counters in each ThreadContext.
+   */
+  static final int COUNT_SPANS = 0;
+  static final int COUNT_NULL_SCOPES = 1;
+  static final int COUNT_SAMPLED = 2;
+  static final int COUNT_UNSAMPLED = 3;
+  static final int COUNT_SHORT_SPANS = 4;
+  static final int NUM_COUNTS = 5;
+
+  /**
+   * The contexts of the threads which have used this Tracer, so that we can
+   * sum their counts.  Protected by its own lock.
+   */
+  private final ArrayList<ThreadContext> contexts =
+      new ArrayList<ThreadContext>();
+
+  /**
+   * The counts of threads which have exited.  Protected by the lock on
+   * contexts.
+   */
+  private final long[] exitedCounts = new long[NUM_COUNTS];
+
+  /**
+   * The counts of transient thread contexts which have been released.
+   */
+  private final StripedCounter[] releasedCounts =
+      new StripedCounter[NUM_COUNTS];
 
   /**
    * The currently active Samplers.
@@ -287,77 +622,177 @@ public class Tracer implements Closeable {
     throw new RuntimeException(str);
   }
 
+  /**
+   * @return The current scope of the calling thread, or null.
+   */
+  private static TraceScope currentScope() {
+    ThreadCarrier carrier = contextStorage.peek();
+    return (carrier == null) ? null : carrier.scope;
+  }
+
   /**
    * @return If the current thread is tracing, this function returns the Tracer that is
    * being used; otherwise, it returns null.
    */
   public static Tracer curThreadTracer() {
-    TraceScope traceScope = threadLocalScope.get();
+    TraceScope traceScope = currentScope();
     if (traceScope == null) {
       return null;
     }
     return traceScope.tracer;
   }
 
-  Tracer(String tracerId, TracerPool tracerPool, Sampler[] curSamplers) {
+  Tracer(String tracerId, TracerPool tracerPool, Sampler[] curSamplers,
+         int spanPoolSize, int minSpanMillis,
+         ShortSpanPolicy shortSpanPolicy) {
     this.tracerId = tracerId;
     this.tracerPool = tracerPool;
-    this.threadContext = new ThreadLocalContext();
+    this.spanPoolSize = spanPoolSize;
+    this.minSpanMillis = minSpanMillis;
+    this.shortSpanPolicy = shortSpanPolicy;
     this.nullScope = new NullScope(this);
     this.curSamplers = curSamplers;
+    for (int i = 0; i < NUM_COUNTS; i++) {
+      releasedCounts[i] = new StripedCounter();
+    }
   }
 
   public String getTracerId() {
     return tracerId;
   }
 
-  private TraceScope newScopeImpl(ThreadContext context, String description) {
-    Span span = new MilliSpan.Builder().
+  private void addContext(ThreadContext context) {
+    synchronized (contexts) {
+      // Fold in the counts of threads which have exited, so that the list
+      // does not grow without bound when threads come and go.
+      for (Iterator<ThreadContext> iter = contexts.iterator();
+           iter.hasNext(); ) {
+        ThreadContext cur = iter.next();
+        if (!cur.owner.isAlive()) {
+          for (int i = 0; i < NUM_COUNTS; i++) {
+            exitedCounts[i] += cur.counts.get(i);
+          }
+          iter.remove();
+        }
+      }
+      contexts.add(context);
+    }
+  }
+
+  /**
+   * Sum a counter across all the threads which have used this Tracer.
+   */
+  long getCount(int which) {
+    synchronized (contexts) {
+      long total = exitedCounts[which] + releasedCounts[which].sum();
+      for (ThreadContext context : contexts) {
+        total += context.counts.get(which);
+      }
+      return total;
+    }
+  }
+
+  /**
+   * @return The number of spans this Tracer has created.
+   */
+  public long getNumSpans() {
+    return getCount(COUNT_SPANS);
+  }
+
+  /**
+   * @return The number of times this Tracer returned a NullScope, because
+   *           the samplers said no, or the thread was already inside a
+   *           NullScope, or newNullScope was called.
+   */
+  public long getNumNullScopes() {
+    return getCount(COUNT_NULL_SCOPES);
+  }
+
+  /**
+   * @return The number of top-level scopes the samplers chose to trace.
+   */
+  public long getNumSampled() {
+    return getCount(COUNT_SAMPLED);
+  }
+
+  /**
+   * @return The number of top-level scopes the samplers chose not to trace.
+   */
+  public long getNumUnsampled() {
+    return getCount(COUNT_UNSAMPLED);
+  }
+
+  /**
+   * @return The number of spans this Tracer did not deliver because they
+   *           were shorter than {@link #MIN_SPAN_MILLIS_KEY}.
+   */
+  public long getNumShortSpans() {
+    return getCount(COUNT_SHORT_SPANS);
+  }
+
+  /**
+   * Create a new span, taking it from the thread's span pool if we are
+   * recycling spans.
+   *
+   * @param context         The thread context.
+   * @param description     The description of the new span.
+   * @param spanId          The ID of the new span.
+   * @param firstParent     The first parent, or null if there are no parents.
+   * @param secondParent    The second parent, or null if there is at most one
+   *                          parent.
+   * @return                The new span.
+   */
+  private Span newSpan(ThreadContext context, String description,
+        SpanId spanId, SpanId firstParent, SpanId secondParent) {
+    long begin = System.currentTimeMillis();
+    if (context.spanPool != null) {
+      return context.spanPool.allocate().reset(tracerId, begin,
+          description, spanId, firstParent, secondParent);
+    }
+    SpanId[] parents;
+    if (firstParent == null) {
+      parents = EMPTY_PARENT_ARRAY;
+    } else if (secondParent == null) {
+      parents = new SpanId[] { firstParent };
+    } else {
+      parents = new SpanId[] { firstParent, secondParent };
+    }
+    return new MilliSpan.Builder().
         tracerId(tracerId).
-        begin(System.currentTimeMillis()).
+        begin(begin).
         description(description).
-        parents(EMPTY_PARENT_ARRAY).
-        spanId(SpanId.fromRandom()).
+        parents(parents).
+        spanId(spanId).
         build();
-    return context.pushNewScope(this, span, null);
+  }
+
+  private TraceScope newScopeImpl(ThreadContext context, String description) {
+    Span span = newSpan(context, description, SpanId.fromRandom(),
+        null, null);
+    return context.pushNewScope(span, null);
   }
 
   private TraceScope newScopeImpl(ThreadContext context, String description,
         TraceScope parentScope) {
     SpanId parentId = parentScope.getSpan().getSpanId();
-    Span span = new MilliSpan.Builder().
-        tracerId(tracerId).
-        begin(System.currentTimeMillis()).
-        description(description).
-        parents(new SpanId[] { parentId }).
-        spanId(parentId.newChildId()).
-        build();
-    return context.pushNewScope(this, span, parentScope);
+    Span span = newSpan(context, description, parentId.newChildId(),
+        parentId, null);
+    return context.pushNewScope(span, parentScope);
   }
 
   private TraceScope newScopeImpl(ThreadContext context, String description,
         SpanId parentId) {
-    Span span = new MilliSpan.Builder().
-        tracerId(tracerId).
-        begin(System.currentTimeMillis()).
-        description(description).
-        parents(new SpanId[] { parentId }).
-        spanId(parentId.newChildId()).
-        build();
-    return context.pushNewScope(this, span, null);
+    Span span = newSpan(context, description, parentId.newChildId(),
+        parentId, null);
+    return context.pushNewScope(span, null);
   }
 
   private TraceScope newScopeImpl(ThreadContext context, String description,
         TraceScope parentScope, SpanId secondParentId) {
     SpanId parentId = parentScope.getSpan().getSpanId();
-    Span span = new MilliSpan.Builder().
-        tracerId(tracerId).
-        begin(System.currentTimeMillis()).
-        description(description).
-        parents(new SpanId[] { parentId, secondParentId }).
-        spanId(parentId.newChildId()).
-        build();
-    return context.pushNewScope(this, span, parentScope);
+    Span span = newSpan(context, description, parentId.newChildId(),
+        parentId, secondParentId);
+    return context.pushNewScope(span, parentScope);
   }
 
   /**
@@ -373,27 +808,70 @@ public class Tracer implements Closeable {
    * @return                    The new trace scope.
    */
   public TraceScope newScope(String description, SpanId parentId) {
-    TraceScope parentScope = threadLocalScope.get();
-    ThreadContext context = threadContext.get();
+    return newScopeInternal(description, null, parentId);
+  }
+
+  /**
+   * Create a new trace scope, with a description which is only built if a
+   * span is created.
+   *
+   * This behaves like {@link #newScope(String, SpanId)}.
+   *
+   * @param description         Supplies the description of the new span.
+   * @param parentId            If this is a valid span ID, it will be added to
+   *                              the parents of the new span we create.
+   * @return                    The new trace scope.
+   */
+  public TraceScope newScope(DescriptionSupplier description,
+                             SpanId parentId) {
+    return newScopeInternal(null, description, parentId);
+  }
+
+  /**
+   * Create a new trace scope whose span has the given parent as its only
+   * parent, even if the calling thread is already in a span.
+   *
+   * The thread's current scope, if any, becomes current again once the new
+   * scope is closed, but the new span is not its child.  This is for work
+   * which belongs to another trace, such as a fork-join task which a worker
+   * runs while it waits in join.
+   *
+   * @param description         The description of the new span.
+   * @param parentId            The parent of the new span.  Must be valid.
+   * @return                    The new trace scope.
+   */
+  TraceScope newScopeWithOnlyParent(String description, SpanId parentId) {
+    ThreadCarrier carrier = contextStorage.get();
+    ThreadContext context = carrier.getContext(this);
+    Span span = newSpan(context, description, parentId.newChildId(),
+        parentId, null);
+    return context.pushNewScope(span, carrier.scope);
+  }
+
+  private TraceScope newScopeInternal(String description,
+        DescriptionSupplier supplier, SpanId parentId) {
+    ThreadCarrier carrier = contextStorage.get();
+    TraceScope parentScope = carrier.scope;
+    ThreadContext context = carrier.getContext(this);
     if (parentScope != null) {
       if (parentId.isValid() &&
           (!parentId.equals(parentScope.getSpan().getSpanId()))) {
-        return newScopeImpl(context, description, parentScope, parentId);
+        return newScopeImpl(context, describe(description, supplier),
+            parentScope, parentId);
       } else {
-        return newScopeImpl(context, description, parentScope);
+        return newScopeImpl(context, describe(description, supplier),
+            parentScope);
       }
     } else if (parentId.isValid()) {
-      return newScopeImpl(context, description, parentId);
+      return newScopeImpl(context, describe(description, supplier), parentId);
     }
     if (!context.isTopLevel()) {
-      context.pushScope();
-      return nullScope;
+      return context.pushNullScope();
     }
-    if (!sample()) {
-      context.pushScope();
-      return nullScope;
+    if (!sample(context)) {
+      return context.pushNullScope();
     }
-    return newScopeImpl(context, description);
+    return newScopeImpl(context, describe(description, supplier));
   }
 
   /**
@@ -406,20 +884,50 @@ public class Tracer implements Closeable {
    * @return                    The new trace scope.
    */
   public TraceScope newScope(String description) {
-    TraceScope parentScope = threadLocalScope.get();
-    ThreadContext context = threadContext.get();
+    return newScopeInternal(description, null);
+  }
+
+  /**
+   * Create a new trace scope, with a description which is only built if a
+   * span is created.
+   *
+   * This behaves like {@link #newScope(String)}.  Since most calls are not
+   * sampled, this avoids building descriptions which are never used.
+   *
+   * @param description         Supplies the description of the new span.
+   * @return                    The new trace scope.
+   */
+  public TraceScope newScope(DescriptionSupplier description) {
+    return newScopeInternal(null, description);
+  }
+
+  private TraceScope newScopeInternal(String description,
+        DescriptionSupplier supplier) {
+    ThreadCarrier carrier = contextStorage.get();
+    TraceScope parentScope = carrier.scope;
+    ThreadContext context = carrier.getContext(this);
     if (parentScope != null) {
-      return newScopeImpl(context, description, parentScope);
+      return newScopeImpl(context, describe(description, supplier),
+          parentScope);
     }
     if (!context.isTopLevel()) {
-      context.pushScope();
-      return nullScope;
+      return context.pushNullScope();
     }
-    if (!sample()) {
-      context.pushScope();
-      return nullScope;
+    if (!sample(context)) {
+      return context.pushNullScope();
     }
-    return newScopeImpl(context, description);
+    return newScopeImpl(context, describe(description, supplier));
+  }
+
+  /**
+   * Get the description of a span we are about to create.
+   *
+   * @param description   The description, if there is no supplier.
+   * @param supplier      Supplies the description, or null.
+   */
+  private static String describe(String description,
+        DescriptionSupplier supplier) {
+    return (supplier == null) ? description : supplier.getDescription();
   }
 
   /**
@@ -428,9 +936,8 @@ public class Tracer implements Closeable {
    * @return The null trace scope.
    */
   public TraceScope newNullScope() {
-    ThreadContext context = threadContext.get();
-    context.pushScope();
-    return nullScope;
+    ThreadContext context = contextStorage.get().getContext(this);
+    return context.pushNullScope();
   }
 
   /**
@@ -443,7 +950,7 @@ public class Tracer implements Closeable {
    * @return The callable provided, wrapped if tracing, 'callable' if not.
    */
   public <V> Callable<V> wrap(Callable<V> callable, String description) {
-    TraceScope parentScope = threadLocalScope.get();
+    TraceScope parentScope = currentScope();
     if (parentScope == null) {
       return callable;
     }
@@ -459,13 +966,26 @@ public class Tracer implements Closeable {
    * @return The runnable provided, wrapped if tracing, 'runnable' if not.
    */
   public Runnable wrap(Runnable runnable, String description) {
-    TraceScope parentScope = threadLocalScope.get();
+    TraceScope parentScope = currentScope();
     if (parentScope == null) {
       return runnable;
     }
     return new TraceRunnable(this, parentScope, runnable, description);
   }
 
+  /**
+   * Create a ForkJoinPool which carries the submitter's trace into tasks.
+   *
+   * @param parallelism   The parallelism level.
+   * @param description   The description of the spans tasks run in, or null
+   *                        to use the name of the worker thread.
+   * @return              The new pool.
+   */
+  public TraceForkJoinPool newTraceForkJoinPool(int parallelism,
+                                                String description) {
+    return new TraceForkJoinPool(this, description, parallelism);
+  }
+
   public TraceExecutorService newTraceExecutorService(ExecutorService impl) {
     return newTraceExecutorService(impl, null);
   }
@@ -494,23 +1014,14 @@ public class Tracer implements Closeable {
 
   /**
    * Returns an object that will trace all calls to itself.
+   *
+   * The object implements all the interfaces of the instance, and delegates
+   * every call to it.  When the calling thread is tracing, each call is
+   * wrapped in a span named after the method.  Otherwise, and for the methods
+   * of Object, the call goes straight to the instance.
    */
-  @SuppressWarnings("unchecked")
   <T, V> T createProxy(final T instance) {
-    InvocationHandler handler = new InvocationHandler() {
-      @Override
-      public Object invoke(Object obj, Method method, Object[] args)
-          throws Throwable {
-        try (TraceScope scope = Tracer.this.newScope(method.getName());) {
-          return method.invoke(instance, args);
-        } catch (Throwable ex) {
-          ex.printStackTrace();
-          throw ex;
-        }
-      }
-    };
-    return (T) Proxy.newProxyInstance(instance.getClass().getClassLoader(),
-        instance.getClass().getInterfaces(), handler);
+    return TraceProxy.create(this, instance);
   }
 
   /**
@@ -518,13 +1029,15 @@ public class Tracer implements Closeable {
    *
    * We will create the span if any configured sampler returns true.
    */
-  private boolean sample() {
+  private boolean sample(ThreadContext context) {
     Sampler[] samplers = curSamplers;
     for (Sampler sampler : samplers) {
       if (sampler.next()) {
+        context.count(COUNT_SAMPLED);
         return true;
       }
     }
+    context.count(COUNT_UNSAMPLED);
     return false;
   }
 
@@ -593,27 +1106,34 @@ public class Tracer implements Closeable {
   }
 
   void detachScope(TraceScope scope) {
-    TraceScope curScope = threadLocalScope.get();
+    ThreadCarrier carrier = contextStorage.get();
+    TraceScope curScope = carrier.scope;
     if (curScope != scope) {
       throwClientError("Can't detach TraceScope for " +
           scope.getSpan().toJson() + " because it is not the current " +
           "TraceScope in thread " + Thread.currentThread().getName());
     }
-    ThreadContext context = threadContext.get();
+    ThreadContext context = carrier.getContext(this);
     context.popScope();
-    threadLocalScope.set(scope.getParent());
+    carrier.scope = scope.getParent();
+    if (carrier.scope == null) {
+      contextStorage.idle(carrier);
+    }
   }
 
   void reattachScope(TraceScope scope) {
-    TraceScope parent = threadLocalScope.get();
-    Tracer.threadLocalScope.set(scope);
-    ThreadContext context = threadContext.get();
+    ThreadCarrier carrier = contextStorage.get();
+    TraceScope parent = carrier.scope;
+    carrier.scope = scope;
+    carrier.hadSpans = true;
+    ThreadContext context = carrier.getContext(this);
     context.pushScope();
     scope.setParent(parent);
   }
 
   void closeScope(TraceScope scope) {
-    TraceScope curScope = threadLocalScope.get();
+    ThreadCarrier carrier = contextStorage.get();
+    TraceScope curScope = carrier.scope;
     if (curScope != scope) {
       throwClientError("Can't close TraceScope for " +
           scope.getSpan().toJson() + " because it is not the current " +
@@ -626,30 +1146,133 @@ public class Tracer implements Closeable {
     if (receivers == null) {
       throwClientError(toString() + " is closed.");
     }
-    ThreadContext context = threadContext.get();
+    ThreadContext context = carrier.getContext(this);
     context.popScope();
-    threadLocalScope.set(scope.getParent());
+    TraceScope parentScope = scope.getParent();
+    carrier.scope = parentScope;
     scope.setParent(null);
     Span span = scope.getSpan();
     span.stop();
+    boolean isShort = (minSpanMillis > 0) && isShortSpan(span);
+    if (isShort) {
+      context.count(COUNT_SHORT_SPANS);
+    }
+    if (parentScope == null) {
+      contextStorage.idle(carrier);
+    }
+    if (isShort) {
+      discardShortSpan(span, parentScope);
+      return;
+    }
+    SpanDispatcher dispatcher = tracerPool.getDispatcher();
+    if (dispatcher != null) {
+      dispatcher.publish(span);
+      return;
+    }
+    deliverSpan(span, receivers);
+  }
+
+  private boolean isShortSpan(Span span) {
+    if ((span.getParents().length == 0) ||
+        (span.getStopTimeMillis() - span.getStartTimeMillis() >=
+            minSpanMillis)) {
+      return false;
+    }
+    // Spans whose IDs were handed out may have children elsewhere.
+    return !((span instanceof MilliSpan) && ((MilliSpan)span).isPropagated());
+  }
+
+  /**
+   * Discard a span which is too short to deliver, counting it in the span of
+   * the enclosing scope if the policy says so.
+   *
+   * @param span          The short span.
+   * @param parentScope   The enclosing scope in this thread, or null.
+   */
+  private void discardShortSpan(Span span, TraceScope parentScope) {
+    // Only count the span in its own parent.  The enclosing scope may
+    // belong to another trace, as with a fork-join task run inside join.
+    if ((shortSpanPolicy == ShortSpanPolicy.COUNT) && (parentScope != null) &&
+        (parentScope.getSpan() instanceof MilliSpan) &&
+        span.getParents()[0].equals(parentScope.getSpan().getSpanId())) {
+      long count = 1;
+      if (span instanceof MilliSpan) {
+        count += ((MilliSpan)span).getLongKVAnnotation(SHORT_SPANS_ANNOTATION);
+      }
+      ((MilliSpan)parentScope.getSpan()).incrementKVAnnotation(
+          SHORT_SPANS_ANNOTATION, count);
+    }
+    if (span instanceof PooledSpan) {
+      PooledSpan pooledSpan = (PooledSpan)span;
+      pooledSpan.setRefs(1);
+      pooledSpan.release();
+    }
+  }
+
+  /**
+   * Deliver a finished span to the receivers.
+   *
+   * @param span        The span.
+   * @param receivers   The receivers.
+   */
+  static void deliverSpan(Span span, SpanReceiver[] receivers) {
+    if (span instanceof PooledSpan) {
+      deliverPooledSpan((PooledSpan)span, receivers);
+      return;
+    }
+    for (SpanReceiver receiver : receivers) {
+      receiver.deliver(span);
+    }
+  }
+
+  /**
+   * Deliver a recycled span to the receivers.
+   *
+   * The span goes back to its pool once we are done delivering it, and every
+   * receiver that retains spans has released it.
+   */
+  private static void deliverPooledSpan(PooledSpan span,
+        SpanReceiver[] receivers) {
+    span.setRefs(getRecycledSpanRefs(receivers));
     for (SpanReceiver receiver : receivers) {
-      receiver.receiveSpan(span);
+      receiver.deliver(span);
     }
+    span.release();
+  }
+
+  /**
+   * Get the number of references a recycled span starts out with when it is
+   * delivered: one for the deliverer, plus one for each receiver which
+   * retains spans or has a queue.
+   *
+   * @param receivers   The receivers the span will be delivered to.
+   * @return            The number of references.
+   */
+  static int getRecycledSpanRefs(SpanReceiver[] receivers) {
+    int refs = 1;
+    for (SpanReceiver receiver : receivers) {
+      if (receiver.retainsSpans() || (receiver.queue != null)) {
+        refs++;
+      }
+    }
+    return refs;
   }
 
   void popNullScope() {
-    TraceScope curScope = threadLocalScope.get();
+    ThreadCarrier carrier = contextStorage.get();
+    TraceScope curScope = carrier.scope;
     if (curScope != null) {
       throwClientError("Attempted to close an empty scope, but it was not " +
           "the current thread scope in thread " +
           Thread.currentThread().getName());
     }
-    ThreadContext context = threadContext.get();
+    ThreadContext context = carrier.getContext(this);
     context.popScope();
+    contextStorage.idle(carrier);
   }
 
   public static Span getCurrentSpan() {
-    TraceScope curScope = threadLocalScope.get();
+    TraceScope curScope = currentScope();
     if (curScope == null) {
       return null;
     } else {
@@ -657,8 +1280,31 @@ public class Tracer implements Closeable {
     }
   }
 
+  /**
+   * Get the ID of the current span, to pass on as the parent of other spans.
+   *
+   * The current span will not be dropped by the short span filter, since
+   * the spans which use it as a parent would be left without one.
+   *
+   * @return The ID of the current span, or SpanId.INVALID if there is none.
+   */
   public static SpanId getCurrentSpanId() {
-    TraceScope curScope = threadLocalScope.get();
+    TraceScope curScope = currentScope();
+    if (curScope == null) {
+      return SpanId.INVALID;
+    } else {
+      markPropagated(curScope.getSpan());
+      return curScope.getSpan().getSpanId();
+    }
+  }
+
+  /**
+   * Get the ID of the current span, without marking it as propagated.
+   *
+   * @return The ID of the current span, or SpanId.INVALID if there is none.
+   */
+  static SpanId peekCurrentSpanId() {
+    TraceScope curScope = currentScope();
     if (curScope == null) {
       return SpanId.INVALID;
     } else {
@@ -666,12 +1312,22 @@ public class Tracer implements Closeable {
     }
   }
 
+  /**
+   * Note that a span's ID may have been given to other spans as a parent.
+   */
+  static void markPropagated(Span span) {
+    if (span instanceof MilliSpan) {
+      ((MilliSpan)span).markPropagated();
+    }
+  }
+
   @Override
   public synchronized void close() {
     if (tracerPool == null) {
       return;
     }
     curSamplers = new Sampler[0];
+    closed = true;
     tracerPool.removeTracer(this);
   }
 
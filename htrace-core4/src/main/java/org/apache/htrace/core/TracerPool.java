@@ -19,6 +19,8 @@ package org.apache.htrace.core;
 import java.util.Arrays;
 import java.util.HashSet;
 
+import javax.management.ObjectName;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -57,6 +59,73 @@ public class TracerPool {
     }
   }
 
+  /**
+   * The JMX view of this pool.
+   */
+  private class Metrics implements TracerPoolMXBean {
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public int getNumTracers() {
+      return getTracers().length;
+    }
+
+    @Override
+    public long[] getReceiverIds() {
+      SpanReceiver[] receivers = curReceivers;
+      long[] ids = new long[receivers.length];
+      for (int i = 0; i < receivers.length; i++) {
+        ids[i] = receivers[i].getId();
+      }
+      return ids;
+    }
+
+    @Override
+    public long getNumSpans() {
+      return getCount(Tracer.COUNT_SPANS);
+    }
+
+    @Override
+    public long getNumNullScopes() {
+      return getCount(Tracer.COUNT_NULL_SCOPES);
+    }
+
+    @Override
+    public long getNumSampled() {
+      return getCount(Tracer.COUNT_SAMPLED);
+    }
+
+    @Override
+    public long getNumUnsampled() {
+      return getCount(Tracer.COUNT_UNSAMPLED);
+    }
+
+    @Override
+    public long getNumShortSpans() {
+      return getCount(Tracer.COUNT_SHORT_SPANS);
+    }
+
+    @Override
+    public long getDispatcherNumPending() {
+      SpanDispatcher curDispatcher = dispatcher;
+      return (curDispatcher == null) ? 0 : curDispatcher.getNumPending();
+    }
+
+    @Override
+    public long getDispatcherNumDropped() {
+      SpanDispatcher curDispatcher = dispatcher;
+      return (curDispatcher == null) ? 0 : curDispatcher.getNumDropped();
+    }
+
+    @Override
+    public String toString() {
+      return "Metrics(" + TracerPool.this.toString() + ")";
+    }
+  }
+
   /**
    * The name of this TracerPool.
    */
@@ -70,6 +139,14 @@ public class TracerPool {
    */
   private volatile SpanReceiver[] curReceivers;
 
+  /**
+   * The dispatcher which delivers spans to the receivers, or null if spans are
+   * delivered on the threads which close them.
+   *
+   * Can be read locklessly.  Must be written under the lock.
+   */
+  private volatile SpanDispatcher dispatcher;
+
   /**
    * The currently installed shutdown hook, or null if no hook has been
    * installed.
@@ -81,6 +158,31 @@ public class TracerPool {
    */
   private final HashSet<Tracer> curTracers;
 
+  /**
+   * The counts of Tracers which have been removed from this pool.
+   */
+  private final long[] removedTracerCounts = new long[Tracer.NUM_COUNTS];
+
+  private final Metrics metrics = new Metrics();
+
+  /**
+   * Guards SpanReceiver#numPools and SpanReceiver#queue, which are shared by
+   * all of the pools a receiver is in.
+   */
+  private static final Object RECEIVER_LOCK = new Object();
+
+  /**
+   * The receivers whose MBeans this pool registered, and so must unregister.
+   */
+  private final HashSet<SpanReceiver> registeredReceivers =
+      new HashSet<SpanReceiver>();
+
+  /**
+   * The name this pool is registered under in JMX, or null if it is not
+   * registered.
+   */
+  private ObjectName mbeanName;
+
   /**
    * Get the global tracer pool.
    *
@@ -118,6 +220,77 @@ public class TracerPool {
     return curReceivers;
   }
 
+  /**
+   * Get the dispatcher which delivers spans to the receivers.
+   *
+   * @return The dispatcher, or null if spans are delivered on the threads
+   *         which close them.
+   */
+  public SpanDispatcher getDispatcher() {
+    return dispatcher;
+  }
+
+  /**
+   * Start delivering spans on background dispatcher threads.
+   *
+   * @param numThreads      The number of dispatcher threads.
+   * @param capacity        The number of spans which can wait to be
+   *                          delivered.  Rounded up to a power of two.
+   * @param waitStrategy    What dispatcher threads do when they are idle.
+   *
+   * @return                True if the dispatcher was started; false if this
+   *                          pool already had one.
+   */
+  public synchronized boolean startDispatcher(int numThreads, int capacity,
+      SpanDispatcher.WaitStrategy waitStrategy) {
+    if (dispatcher != null) {
+      LOG.trace(toString() + ": can't start a dispatcher since " +
+          dispatcher.toString() + " is already running.");
+      return false;
+    }
+    SpanDispatcher newDispatcher =
+        new SpanDispatcher(this, numThreads, capacity, waitStrategy);
+    newDispatcher.start();
+    registerShutdownHookIfNeeded();
+    dispatcher = newDispatcher;
+    return true;
+  }
+
+  /**
+   * Start a dispatcher if the configuration asks for one and this pool does
+   * not already have one.
+   *
+   * @param conf            The HTrace configuration.
+   */
+  synchronized void configureDispatcher(HTraceConfiguration conf) {
+    int numThreads = conf.getInt(SpanDispatcher.THREADS_KEY,
+        SpanDispatcher.THREADS_DEFAULT);
+    if (numThreads <= 0) {
+      return;
+    }
+    int capacity = conf.getInt(SpanDispatcher.CAPACITY_KEY,
+        SpanDispatcher.CAPACITY_DEFAULT);
+    SpanDispatcher.WaitStrategy waitStrategy =
+        SpanDispatcher.WaitStrategy.fromString(
+            conf.get(SpanDispatcher.WAIT_STRATEGY_KEY,
+                SpanDispatcher.WAIT_STRATEGY_DEFAULT));
+    startDispatcher(numThreads, capacity, waitStrategy);
+  }
+
+  /**
+   * Stop the dispatcher, if there is one, once it has delivered the spans
+   * which were already published.  Afterwards, spans are delivered on the
+   * threads which close them.
+   */
+  public synchronized void stopDispatcher() {
+    SpanDispatcher oldDispatcher = dispatcher;
+    if (oldDispatcher == null) {
+      return;
+    }
+    dispatcher = null;
+    oldDispatcher.close();
+  }
+
   /**
    * Add a new span receiver.
    *
@@ -126,7 +299,28 @@ public class TracerPool {
    * @return                True if the new receiver was added; false if it
    *                          already was there.
    */
-  public synchronized boolean addReceiver(SpanReceiver receiver) {
+  public boolean addReceiver(SpanReceiver receiver) {
+    return addReceiver(receiver, HTraceConfiguration.EMPTY);
+  }
+
+  /**
+   * Add a new span receiver, isolating it behind a {@link SpanReceiverQueue}
+   * if the configuration sets {@link SpanReceiverQueue#CAPACITY_KEY}.
+   *
+   * @param receiver        The new receiver to add.
+   * @param conf            The configuration of the receiver's queue.
+   *
+   * A receiver which is isolated behind a queue can only be in one pool,
+   * since the pool which owns the queue closes it when the receiver is
+   * removed.  So a receiver with a queue can't be added to a second pool, and
+   * a receiver which is already in another pool can't be given a queue.
+   *
+   * @return                True if the new receiver was added; false if it
+   *                          already was there, or could not share a queue
+   *                          with another pool.
+   */
+  public synchronized boolean addReceiver(SpanReceiver receiver,
+                                          HTraceConfiguration conf) {
     SpanReceiver[] receivers = curReceivers;
     for (int i = 0; i < receivers.length; i++) {
       if (receivers[i] == receiver) {
@@ -135,11 +329,33 @@ public class TracerPool {
         return false;
       }
     }
+    SpanReceiverQueue queue = SpanReceiverQueue.fromConf(receiver, conf);
+    synchronized (RECEIVER_LOCK) {
+      if ((receiver.numPools > 0) &&
+          ((queue != null) || (receiver.queue != null))) {
+        LOG.warn(toString() + ": can't add receiver " + receiver.toString() +
+            " since it is already in another pool, and a receiver with " +
+            "a queue can only be in one pool.");
+        return false;
+      }
+      if (queue != null) {
+        queue.start();
+      }
+      // Any queue left over from a pool the receiver was removed from is
+      // already closed.
+      receiver.queue = queue;
+      receiver.numPools++;
+    }
     SpanReceiver[] newReceivers =
         Arrays.copyOf(receivers, receivers.length + 1);
     newReceivers[receivers.length] = receiver;
     registerShutdownHookIfNeeded();
     curReceivers = newReceivers;
+    // If another pool already registered this receiver's MBean, leave it to
+    // that pool to unregister it.
+    if (MBeans.register(MBeans.spanReceiverName(receiver), receiver.metrics)) {
+      registeredReceivers.add(receiver);
+    }
     LOG.trace(toString() + ": added receiver " + receiver.toString());
     return true;
   }
@@ -173,6 +389,8 @@ public class TracerPool {
         System.arraycopy(receivers, i + 1, newReceivers, i,
             receivers.length - i - 1);
         curReceivers = newReceivers;
+        unregisterReceiver(receiver);
+        releaseReceiver(receiver);
         LOG.trace(toString() + ": removed receiver " + receiver.toString());
         return true;
       }
@@ -207,9 +425,13 @@ public class TracerPool {
    * Remove and close all of the span receivers.
    */
   private synchronized void removeAndCloseAllSpanReceivers() {
+    // Deliver the spans which are still waiting before closing the receivers.
+    stopDispatcher();
     SpanReceiver[] receivers = curReceivers;
     curReceivers = new SpanReceiver[0];
     for (SpanReceiver receiver : receivers) {
+      unregisterReceiver(receiver);
+      releaseReceiver(receiver);
       try {
         LOG.trace(toString() + ": closing receiver " + receiver.toString());
         receiver.close();
@@ -219,6 +441,36 @@ public class TracerPool {
     }
   }
 
+  /**
+   * Unregister a receiver's MBean, if this pool registered it.
+   */
+  private void unregisterReceiver(SpanReceiver receiver) {
+    if (registeredReceivers.remove(receiver)) {
+      MBeans.unregister(MBeans.spanReceiverName(receiver));
+    }
+  }
+
+  /**
+   * Release a receiver which was removed from this pool.  If it has a queue,
+   * hand the spans still queued to the receiver, and stop the drain thread.
+   * Spans which are delivered to the receiver afterwards are rejected.
+   */
+  private void releaseReceiver(SpanReceiver receiver) {
+    SpanReceiverQueue queue;
+    synchronized (RECEIVER_LOCK) {
+      receiver.numPools--;
+      queue = receiver.queue;
+    }
+    if (queue == null) {
+      return;
+    }
+    try {
+      queue.close();
+    } catch (Throwable t) {
+      LOG.error(toString() + ": error closing " + queue.toString(), t);
+    }
+  }
+
   /**
    * Given a SpanReceiver class name, return the existing instance of that span
    * receiver, if possible; otherwise, invoke the callable to create a new
@@ -248,7 +500,7 @@ public class TracerPool {
         className(className).
         classLoader(classLoader).
         build();
-    addReceiver(receiver);
+    addReceiver(receiver, conf);
     return receiver;
   }
 
@@ -270,6 +522,15 @@ public class TracerPool {
   synchronized void addTracer(Tracer tracer) {
     if (curTracers.add(tracer)) {
       LOG.trace(toString() + ": adding tracer " + tracer.toString());
+      if (mbeanName == null) {
+        // If another pool with the same name holds the MBean name, leave it
+        // alone, so that closing this pool does not unregister that pool's
+        // MBean.
+        ObjectName name = MBeans.tracerPoolName(this);
+        if (MBeans.register(name, metrics)) {
+          mbeanName = name;
+        }
+      }
     }
   }
 
@@ -282,12 +543,38 @@ public class TracerPool {
   synchronized void removeTracer(Tracer tracer) {
     if (curTracers.remove(tracer)) {
       LOG.trace(toString() + ": removing tracer " + tracer.toString());
+      for (int i = 0; i < Tracer.NUM_COUNTS; i++) {
+        removedTracerCounts[i] += tracer.getCount(i);
+      }
       if (curTracers.size() == 0) {
         removeAndCloseAllSpanReceivers();
+        if (mbeanName != null) {
+          MBeans.unregister(mbeanName);
+          mbeanName = null;
+        }
       }
     }
   }
 
+  /**
+   * Sum a counter over the current Tracers, and the ones which have been
+   * removed.
+   */
+  synchronized long getCount(int which) {
+    long total = removedTracerCounts[which];
+    for (Tracer tracer : curTracers) {
+      total += tracer.getCount(which);
+    }
+    return total;
+  }
+
+  /**
+   * @return The JMX view of this pool.
+   */
+  TracerPoolMXBean getMetrics() {
+    return metrics;
+  }
+
   @Override
   public String toString() {
     return "TracerPool(" + name + ")";
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+/**
+ * The JMX view of a {@link TracerPool}.
+ *
+ * Each pool with at least one Tracer is registered as
+ * {@code org.apache.htrace:type=TracerPool,name=<name>}.  The scope counts
+ * are summed over the Tracers in the pool, including ones which have been
+ * closed.
+ */
+public interface TracerPoolMXBean {
+  String getName();
+
+  int getNumTracers();
+
+  /**
+   * @return The IDs of the pool's receivers.  Each has its own
+   *           {@link SpanReceiverMXBean}.
+   */
+  long[] getReceiverIds();
+
+  /**
+   * @return The number of spans the pool's Tracers created.
+   */
+  long getNumSpans();
+
+  /**
+   * @return The number of NullScopes the pool's Tracers returned.
+   */
+  long getNumNullScopes();
+
+  /**
+   * @return The number of top-level scopes the samplers chose to trace.
+   */
+  long getNumSampled();
+
+  /**
+   * @return The number of top-level scopes the samplers chose not to trace.
+   */
+  long getNumUnsampled();
+
+  /**
+   * @return The number of spans which were not delivered because they were
+   *           shorter than {@link Tracer#MIN_SPAN_MILLIS_KEY}.
+   */
+  long getNumShortSpans();
+
+  /**
+   * @return The number of spans waiting in the {@link SpanDispatcher}, or 0
+   *           if there is none.
+   */
+  long getDispatcherNumPending();
+
+  /**
+   * @return The number of spans the {@link SpanDispatcher} dropped because
+   *           it was full, or 0 if there is none.
+   */
+  long getDispatcherNumDropped();
+}
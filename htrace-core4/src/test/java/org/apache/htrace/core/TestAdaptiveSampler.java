@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TestAdaptiveSampler {
+  private static final long SECOND = 1000000000L;
+
+  private static final double DELTA = 0.0000001;
+
+  /**
+   * A receiver which reports whatever load it is told to.
+   */
+  private static class LoadedSpanReceiver extends SpanReceiver {
+    volatile double load = 0.0;
+
+    @Override
+    public double getLoad() {
+      return load;
+    }
+
+    @Override
+    public void receiveSpan(Span span) {
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
+  private static HTraceConfiguration conf(String target) {
+    return HTraceConfiguration.fromKeyValuePairs(
+        AdaptiveSampler.SAMPLER_TARGET_SPANS_PER_SECOND_CONF_KEY, target,
+        AdaptiveSampler.SAMPLER_INITIAL_FRACTION_CONF_KEY, "0.5",
+        AdaptiveSampler.SAMPLER_MIN_FRACTION_CONF_KEY, "0.001");
+  }
+
+  @Test
+  public void testComputeFraction() {
+    AdaptiveSampler sampler = new AdaptiveSampler(conf("100"));
+    assertEquals(0.5, sampler.getFraction(), DELTA);
+    // Twice the target rate halves the probability.
+    assertEquals(0.25, sampler.computeFraction(0.5, 200, SECOND, 0.0), DELTA);
+    // The same number of spans over two seconds is on target.
+    assertEquals(0.5, sampler.computeFraction(0.5, 200, 2 * SECOND, 0.0),
+        DELTA);
+    // Below the target, the probability at most doubles per interval.
+    assertEquals(0.2, sampler.computeFraction(0.1, 1, SECOND, 0.0), DELTA);
+    assertEquals(0.2, sampler.computeFraction(0.1, 0, SECOND, 0.0), DELTA);
+    // The probability stays between the minimum and 1.
+    assertEquals(1.0, sampler.computeFraction(0.9, 0, SECOND, 0.0), DELTA);
+    assertEquals(0.001,
+        sampler.computeFraction(0.01, 1000000, SECOND, 0.0), DELTA);
+  }
+
+  @Test
+  public void testOverloadedReceiverCutsSampling() {
+    TracerPool pool = new TracerPool("testOverloadedReceiverCutsSampling");
+    LoadedSpanReceiver receiver = new LoadedSpanReceiver();
+    pool.addReceiver(receiver);
+    AdaptiveSampler sampler = new AdaptiveSampler(conf("100"), pool);
+    assertEquals(0.0, sampler.getLoad(), DELTA);
+    receiver.load = 0.5;
+    assertEquals(0.5, sampler.getLoad(), DELTA);
+    // Below the threshold, the span rate decides.
+    assertEquals(0.5, sampler.computeFraction(0.5, 100, SECOND,
+        sampler.getLoad()), DELTA);
+    // Above it, we cut hard even though we are under the target rate.
+    receiver.load = 0.9;
+    assertEquals(0.05, sampler.computeFraction(0.5, 10, SECOND,
+        sampler.getLoad()), DELTA);
+  }
+
+  @Test
+  public void testInvalidConfiguration() {
+    String[][] invalid = new String[][] {
+      new String[] { },
+      new String[] {
+        AdaptiveSampler.SAMPLER_TARGET_SPANS_PER_SECOND_CONF_KEY, "0" },
+      new String[] {
+        AdaptiveSampler.SAMPLER_TARGET_SPANS_PER_SECOND_CONF_KEY, "10",
+        AdaptiveSampler.SAMPLER_MIN_FRACTION_CONF_KEY, "0" },
+      new String[] {
+        AdaptiveSampler.SAMPLER_TARGET_SPANS_PER_SECOND_CONF_KEY, "10",
+        AdaptiveSampler.SAMPLER_INITIAL_FRACTION_CONF_KEY, "1.5" },
+      new String[] {
+        AdaptiveSampler.SAMPLER_TARGET_SPANS_PER_SECOND_CONF_KEY, "10",
+        AdaptiveSampler.SAMPLER_INTERVAL_MS_CONF_KEY, "0" },
+    };
+    for (String[] keyValues : invalid) {
+      try {
+        new AdaptiveSampler(HTraceConfiguration.fromKeyValuePairs(keyValues));
+        fail("Expected an IllegalArgumentException");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testAdjustsThroughTracer() throws Exception {
+    TracerPool pool = new TracerPool("testAdjustsThroughTracer");
+    LoadedSpanReceiver receiver = new LoadedSpanReceiver();
+    pool.addReceiver(receiver);
+    Tracer tracer = new Tracer.Builder("TestAdaptiveSampler").
+        tracerPool(pool).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            Tracer.SAMPLER_CLASSES_KEY, "AdaptiveSampler",
+            AdaptiveSampler.SAMPLER_TARGET_SPANS_PER_SECOND_CONF_KEY, "1000",
+            AdaptiveSampler.SAMPLER_INITIAL_FRACTION_CONF_KEY, "1.0",
+            AdaptiveSampler.SAMPLER_INTERVAL_MS_CONF_KEY, "1")).
+        build();
+    try {
+      AdaptiveSampler sampler = (AdaptiveSampler)tracer.getSamplers()[0];
+      // The sampler reads the pool's span counts, rather than adding a
+      // receiver to the pool.
+      assertEquals(1, pool.getReceivers().length);
+      receiver.load = 1.0;
+      long deadline = System.currentTimeMillis() + 30000;
+      while (sampler.getFraction() > 0.5) {
+        assertTrue("The sampler never backed off.",
+            System.currentTimeMillis() < deadline);
+        tracer.newScope("span").close();
+      }
+    } finally {
+      tracer.close();
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testCountsPoolSpans() throws Exception {
+    TracerPool pool = new TracerPool("testCountsPoolSpans");
+    Tracer tracer = new Tracer.Builder("TestAdaptiveSampler").
+        tracerPool(pool).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            Tracer.SAMPLER_CLASSES_KEY, "AlwaysSampler")).
+        build();
+    try {
+      AdaptiveSampler sampler = new AdaptiveSampler(
+          HTraceConfiguration.fromKeyValuePairs(
+              AdaptiveSampler.SAMPLER_TARGET_SPANS_PER_SECOND_CONF_KEY, "10",
+              AdaptiveSampler.SAMPLER_INITIAL_FRACTION_CONF_KEY, "0.5",
+              AdaptiveSampler.SAMPLER_INTERVAL_MS_CONF_KEY, "1"), pool);
+      assertEquals(0, pool.getReceivers().length);
+      // Spans from another sampler in the same pool count against the
+      // target too.
+      for (int i = 0; i < 1000; i++) {
+        tracer.newScope("span").close();
+      }
+      long deadline = System.currentTimeMillis() + 30000;
+      while (sampler.getFraction() >= 0.5) {
+        assertTrue("The sampler never backed off.",
+            System.currentTimeMillis() < deadline);
+        Thread.sleep(2);
+        sampler.next();
+      }
+    } finally {
+      tracer.close();
+    }
+  }
+}
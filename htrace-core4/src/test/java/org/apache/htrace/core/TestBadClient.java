@@ -35,7 +35,7 @@ public class TestBadClient {
   public void clearBadState() {
     // Clear the bad trace state so that we don't disrupt other unit tests
     // that run in this JVM.
-    Tracer.threadLocalScope.set(null);
+    Tracer.contextStorage.get().scope = null;
   }
 
   /**
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestContextStorage {
+  private ContextStorage saved;
+
+  @Before
+  public void useTransientStorage() {
+    saved = Tracer.contextStorage;
+    Tracer.contextStorage = ContextStorage.create(ContextStorage.TRANSIENT);
+  }
+
+  @After
+  public void restoreStorage() {
+    Tracer.contextStorage = saved;
+  }
+
+  @Test
+  public void testCreate() {
+    assertTrue(ContextStorage.create(null) instanceof
+        ContextStorage.ThreadLocalStorage);
+    assertTrue(ContextStorage.create(" Thread-Local") instanceof
+        ContextStorage.ThreadLocalStorage);
+    assertTrue(ContextStorage.create("transient") instanceof
+        ContextStorage.TransientStorage);
+    assertTrue(ContextStorage.create("bogus") instanceof
+        ContextStorage.ThreadLocalStorage);
+  }
+
+  @Test(timeout = 60000)
+  public void testThreadLocalPeekDoesNotCreate() throws Exception {
+    final ContextStorage storage =
+        ContextStorage.create(ContextStorage.THREAD_LOCAL);
+    final AtomicReference<Tracer.ThreadCarrier> before =
+        new AtomicReference<Tracer.ThreadCarrier>();
+    final AtomicReference<Tracer.ThreadCarrier> created =
+        new AtomicReference<Tracer.ThreadCarrier>();
+    final AtomicReference<Tracer.ThreadCarrier> after =
+        new AtomicReference<Tracer.ThreadCarrier>();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        before.set(storage.peek());
+        created.set(storage.get());
+        after.set(storage.peek());
+      }
+    };
+    thread.start();
+    thread.join();
+    assertNull(before.get());
+    assertNotNull(created.get());
+    assertSame(created.get(), after.get());
+  }
+
+  @Test
+  public void testCarrierDroppedAfterLastScope() {
+    Tracer tracer = TracerTestUtil.newTracer("TestContextStorage",
+        new TracerPool("testCarrierDroppedAfterLastScope"),
+        Tracer.RECYCLE_SPANS_KEY, "true");
+    try {
+      assertNull(Tracer.contextStorage.peek());
+      assertNull(Tracer.getCurrentSpan());
+      // Reading the current span does not create a carrier.
+      assertNull(Tracer.contextStorage.peek());
+      TraceScope outer = tracer.newScope("outer");
+      TraceScope inner = tracer.newScope("inner");
+      assertEquals(outer.getSpanId(), inner.getSpan().getParents()[0]);
+      inner.close();
+      assertNotNull(Tracer.contextStorage.peek());
+      outer.close();
+      assertNull(Tracer.contextStorage.peek());
+      // The counts of dropped carriers are kept.
+      assertEquals(2, tracer.getNumSpans());
+      assertEquals(1, tracer.getNumSampled());
+    } finally {
+      tracer.close();
+    }
+  }
+
+  @Test
+  public void testCarrierKeptInsideNullScope() {
+    Tracer tracer = TracerTestUtil.newTracer("TestContextStorage",
+        new TracerPool("testCarrierKeptInsideNullScope"),
+        Tracer.SAMPLER_CLASSES_KEY, "NeverSampler",
+        Tracer.RECYCLE_SPANS_KEY, "true");
+    try {
+      TraceScope outer = tracer.newScope("outer");
+      assertNull(Tracer.getCurrentSpan());
+      // The null scope has no span, but the carrier still has to remember
+      // that we are not at the top level.
+      assertNotNull(Tracer.contextStorage.peek());
+      TraceScope inner = tracer.newScope("inner");
+      inner.close();
+      assertNotNull(Tracer.contextStorage.peek());
+      outer.close();
+      // A thread which only opened NullScopes keeps its carrier, so that
+      // its next unsampled call does not allocate one.
+      Tracer.ThreadCarrier carrier = Tracer.contextStorage.peek();
+      assertNotNull(carrier);
+      assertEquals(2, tracer.getNumNullScopes());
+      assertEquals(1, tracer.getNumUnsampled());
+      tracer.newScope("again").close();
+      assertSame(carrier, Tracer.contextStorage.peek());
+      assertEquals(3, tracer.getNumNullScopes());
+      assertEquals(2, tracer.getNumUnsampled());
+      // Once the thread creates a span, its carrier is dropped again.
+      tracer.newScope("remote child", new SpanId(100, 200)).close();
+      assertNull(Tracer.contextStorage.peek());
+      assertEquals(1, tracer.getNumSpans());
+    } finally {
+      tracer.close();
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testDetachAndReattach() throws Exception {
+    final Tracer tracer = TracerTestUtil.newTracer("TestContextStorage",
+        new TracerPool("testDetachAndReattach"),
+        Tracer.RECYCLE_SPANS_KEY, "true");
+    try {
+      final TraceScope scope = tracer.newScope("moving");
+      scope.detach();
+      assertNull(Tracer.contextStorage.peek());
+      final AtomicReference<SpanId> current = new AtomicReference<SpanId>();
+      final AtomicReference<Tracer.ThreadCarrier> after =
+          new AtomicReference<Tracer.ThreadCarrier>();
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          scope.reattach();
+          current.set(Tracer.getCurrentSpanId());
+          scope.close();
+          after.set(Tracer.contextStorage.peek());
+        }
+      };
+      thread.start();
+      thread.join();
+      assertEquals(scope.getSpanId(), current.get());
+      assertNull(after.get());
+      assertEquals(1, tracer.getNumSpans());
+    } finally {
+      tracer.close();
+    }
+  }
+}
@@ -16,6 +16,8 @@
  */
 package org.apache.htrace.core;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -38,4 +40,90 @@ public class TestCountSampler {
     Assert.assertEquals(2, hundredCount);
     Assert.assertEquals(100, halfCount);
   }
+
+  /**
+   * Run threads which each call the sampler a few times.
+   *
+   * @return The number of calls which were sampled.
+   */
+  private static long runThreads(final CountSampler sampler, int numThreads,
+        int maxConcurrent, final int callsPerThread) throws Exception {
+    final AtomicLong sampled = new AtomicLong(0);
+    Thread[] threads = new Thread[maxConcurrent];
+    for (int i = 0; i < numThreads; i++) {
+      int slot = i % maxConcurrent;
+      if (threads[slot] != null) {
+        threads[slot].join();
+      }
+      threads[slot] = new Thread() {
+        @Override
+        public void run() {
+          long count = 0;
+          for (int j = 0; j < callsPerThread; j++) {
+            if (sampler.next()) {
+              count++;
+            }
+          }
+          sampled.addAndGet(count);
+        }
+      };
+      threads[slot].start();
+    }
+    for (Thread thread : threads) {
+      if (thread != null) {
+        thread.join();
+      }
+    }
+    return sampled.get();
+  }
+
+  /**
+   * Check that the number of samples is what the stripes allow: each
+   * stripe samples floor or ceil of its calls divided by the frequency.
+   */
+  private static void assertSampled(long total, long frequency,
+        long sampled) {
+    long expected = total / frequency;
+    int stripes = StripedCounter.NUM_STRIPES;
+    Assert.assertTrue("Sampled " + sampled + " of " + total + " calls, " +
+        "but expected about " + expected,
+        (sampled >= expected - stripes) && (sampled <= expected + stripes));
+  }
+
+  @Test(timeout = 60000)
+  public void testAcrossThreads() throws Exception {
+    CountSampler sampler = new CountSampler(HTraceConfiguration.
+        fromKeyValuePairs("sampler.frequency", "7"));
+    int numThreads = 8;
+    int callsPerThread = 10000;
+    assertSampled(numThreads * callsPerThread, 7,
+        runThreads(sampler, numThreads, numThreads, callsPerThread));
+  }
+
+  /**
+   * Threads which make only a few calls each must still be sampled at the
+   * configured rate, even when the frequency is a power of two.
+   */
+  @Test(timeout = 120000)
+  public void testShortLivedThreads() throws Exception {
+    for (int trial = 0; trial < 3; trial++) {
+      CountSampler sampler = new CountSampler(HTraceConfiguration.
+          fromKeyValuePairs("sampler.frequency", "1024"));
+      assertSampled(20000 * 5, 1024, runThreads(sampler, 20000, 16, 5));
+    }
+    CountSampler sampler = new CountSampler(HTraceConfiguration.
+        fromKeyValuePairs("sampler.frequency", "64"));
+    assertSampled(6400, 64, runThreads(sampler, 6400, 16, 1));
+  }
+
+  @Test
+  public void testInvalidFrequency() {
+    try {
+      new CountSampler(HTraceConfiguration.
+          fromKeyValuePairs("sampler.frequency", "0"));
+      Assert.fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
 }
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestDescriptionTemplate {
+  private static class CountingSupplier implements DescriptionSupplier {
+    final AtomicInteger numCalls = new AtomicInteger(0);
+    private final String description;
+
+    CountingSupplier(String description) {
+      this.description = description;
+    }
+
+    @Override
+    public String getDescription() {
+      numCalls.incrementAndGet();
+      return description;
+    }
+  }
+
+  @Test
+  public void testFormat() throws Exception {
+    assertEquals("read /a offset 10",
+        new DescriptionTemplate("read {} offset {}", "/a", 10L).
+            getDescription());
+    assertEquals("no placeholders",
+        new DescriptionTemplate("no placeholders", 1, 2).getDescription());
+    assertEquals("missing null and {}",
+        new DescriptionTemplate("missing {} and {}", (Object)null).
+            getDescription());
+    assertEquals("{}{}", new DescriptionTemplate("{}{}").getDescription());
+    assertEquals("ab", new DescriptionTemplate("{}{}", "a", "b").
+        getDescription());
+  }
+
+  @Test
+  public void testUnsampledScopeSkipsDescription() throws Exception {
+    Tracer tracer = new Tracer.Builder("TestDescriptionTemplate").
+        tracerPool(new TracerPool("testUnsampledScopeSkipsDescription")).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            Tracer.SAMPLER_CLASSES_KEY, "NeverSampler")).
+        build();
+    try {
+      CountingSupplier supplier = new CountingSupplier("unused");
+      for (int i = 0; i < 10; i++) {
+        tracer.newScope(supplier).close();
+      }
+      tracer.newScope(supplier, SpanId.INVALID).close();
+      assertEquals(0, supplier.numCalls.get());
+    } finally {
+      tracer.close();
+    }
+  }
+
+  @Test
+  public void testSampledScopeUsesDescription() throws Exception {
+    TracerPool pool = new TracerPool("testSampledScopeUsesDescription");
+    POJOSpanReceiver receiver =
+        new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    pool.addReceiver(receiver);
+    Tracer tracer = new Tracer.Builder("TestDescriptionTemplate").
+        tracerPool(pool).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            Tracer.SAMPLER_CLASSES_KEY, "AlwaysSampler")).
+        build();
+    CountingSupplier supplier = new CountingSupplier("child");
+    try {
+      try (TraceScope scope = tracer.newScope(
+          new DescriptionTemplate("root {}", 1))) {
+        tracer.newScope(supplier).close();
+      }
+      tracer.newScope(supplier, new SpanId(100, 200)).close();
+    } finally {
+      tracer.close();
+    }
+    assertEquals(2, supplier.numCalls.get());
+    TraceGraph graph = new TraceGraph(receiver.getSpans());
+    Span root = graph.getSpansByParent().find(SpanId.INVALID).get(0);
+    assertEquals("root 1", root.getDescription());
+    assertEquals("child", graph.getSpansByParent().
+        find(root.getSpanId()).get(0).getDescription());
+    assertEquals("child", graph.getSpansByParent().
+        find(new SpanId(100, 200)).get(0).getDescription());
+  }
+}
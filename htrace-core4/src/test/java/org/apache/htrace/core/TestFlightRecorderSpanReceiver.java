@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class TestFlightRecorderSpanReceiver {
+  private static Span makeSpan(int i, long durationMs) {
+    return new MilliSpan.Builder().
+        spanId(new SpanId(300, i + 1)).
+        description("span" + i).
+        begin(1000).
+        end(1000 + durationMs).
+        build();
+  }
+
+  private static String[] dumpLines(FlightRecorderSpanReceiver receiver)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long numSpans = receiver.dump(out);
+    String str = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    if (str.isEmpty()) {
+      assertEquals(0, numSpans);
+      return new String[0];
+    }
+    String[] lines = str.split("\n");
+    assertEquals(numSpans, lines.length);
+    return lines;
+  }
+
+  /**
+   * When the ring fills up, the oldest spans are overwritten, and the dump
+   * holds the newest ones in order.
+   */
+  @Test
+  public void testRingOverwritesOldestSpans() throws IOException {
+    FlightRecorderSpanReceiver receiver = new FlightRecorderSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(
+            FlightRecorderSpanReceiver.CAPACITY_BYTES_KEY, "1024"));
+    try {
+      assertEquals(0, dumpLines(receiver).length);
+      int numSpans = 100;
+      for (int i = 0; i < numSpans; i++) {
+        receiver.receiveSpan(makeSpan(i, 1));
+      }
+      assertEquals(numSpans, receiver.getNumRecorded());
+      assertTrue(receiver.getNumOverwritten() > 0);
+      assertEquals(numSpans, receiver.getNumOverwritten() +
+          receiver.getNumBufferedSpans());
+      assertTrue(receiver.getUsedBytes() <= 1024);
+      String[] lines = dumpLines(receiver);
+      assertEquals(receiver.getNumBufferedSpans(), lines.length);
+      int first = numSpans - lines.length;
+      for (int i = 0; i < lines.length; i++) {
+        assertEquals("span" + (first + i),
+            MilliSpan.fromJson(lines[i]).getDescription());
+      }
+    } finally {
+      receiver.close();
+    }
+  }
+
+  @Test
+  public void testSpanLargerThanRing() throws IOException {
+    FlightRecorderSpanReceiver receiver = new FlightRecorderSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(
+            FlightRecorderSpanReceiver.CAPACITY_BYTES_KEY, "1024"));
+    try {
+      char[] description = new char[2000];
+      Arrays.fill(description, 'x');
+      receiver.receiveSpan(new MilliSpan.Builder().
+          spanId(new SpanId(300, 1)).
+          description(new String(description)).
+          build());
+      receiver.receiveSpan(makeSpan(1, 1));
+      assertEquals(1, receiver.getNumTooLarge());
+      assertEquals(1, dumpLines(receiver).length);
+    } finally {
+      receiver.close();
+    }
+  }
+
+  /**
+   * A slow span triggers a dump to the dump directory, and triggers are
+   * rate-limited.
+   */
+  @Test(timeout=60000)
+  public void testLatencyTrigger() throws Exception {
+    File dir = Files.createTempDirectory("testLatencyTrigger").toFile();
+    dir.deleteOnExit();
+    FlightRecorderSpanReceiver receiver = new FlightRecorderSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(
+            FlightRecorderSpanReceiver.DUMP_DIR_KEY, dir.getAbsolutePath(),
+            FlightRecorderSpanReceiver.LATENCY_THRESHOLD_MS_KEY, "500",
+            FlightRecorderSpanReceiver.TRIGGER_DELAY_MS_KEY, "0",
+            FlightRecorderSpanReceiver.MIN_TRIGGER_INTERVAL_MS_KEY,
+                "3600000"));
+    receiver.receiveSpans(new Span[] { makeSpan(0, 10), makeSpan(1, 20) },
+        0, 2);
+    receiver.receiveSpan(makeSpan(2, 600));
+    // Closing waits for the triggered dump to be written.
+    receiver.close();
+    assertFalse(receiver.trigger("after close"));
+    File[] files = dir.listFiles();
+    assertEquals(1, files.length);
+    files[0].deleteOnExit();
+    List<String> lines =
+        Files.readAllLines(files[0].toPath(), StandardCharsets.UTF_8);
+    assertEquals(3, lines.size());
+    assertEquals("span2", MilliSpan.fromJson(lines.get(2)).getDescription());
+  }
+
+  @Test
+  public void testTriggerRateLimit() throws IOException {
+    File dir = Files.createTempDirectory("testTriggerRateLimit").toFile();
+    dir.deleteOnExit();
+    FlightRecorderSpanReceiver receiver = new FlightRecorderSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(
+            FlightRecorderSpanReceiver.DUMP_DIR_KEY, dir.getAbsolutePath(),
+            FlightRecorderSpanReceiver.TRIGGER_DELAY_MS_KEY, "0",
+            FlightRecorderSpanReceiver.MIN_TRIGGER_INTERVAL_MS_KEY,
+                "3600000"));
+    receiver.receiveSpan(makeSpan(0, 1));
+    assertTrue(receiver.trigger("first"));
+    assertFalse(receiver.trigger("second"));
+    receiver.close();
+    File[] files = dir.listFiles();
+    assertEquals(1, files.length);
+    files[0].deleteOnExit();
+  }
+
+  @Test
+  public void testJmx() throws Exception {
+    File file = File.createTempFile("testJmx", ".json");
+    file.deleteOnExit();
+    FlightRecorderSpanReceiver receiver = new FlightRecorderSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(
+            FlightRecorderSpanReceiver.OFF_HEAP_KEY, "true"));
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(
+        "org.apache.htrace:type=FlightRecorder,id=" + receiver.getId());
+    try {
+      receiver.receiveSpan(makeSpan(0, 1));
+      receiver.receiveSpan(makeSpan(1, 1));
+      assertEquals(2L, server.getAttribute(name, "NumRecorded"));
+      Object numSpans = server.invoke(name, "dumpTo",
+          new Object[] { file.getAbsolutePath() },
+          new String[] { String.class.getName() });
+      assertEquals(2L, numSpans);
+      assertEquals(2, Files.readAllLines(file.toPath(),
+          StandardCharsets.UTF_8).size());
+    } finally {
+      receiver.close();
+    }
+    assertFalse(server.isRegistered(name));
+  }
+}
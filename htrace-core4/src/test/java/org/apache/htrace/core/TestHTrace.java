@@ -111,6 +111,50 @@ public class TestHTrace {
     Assert.assertEquals(0, spansByParentId.find(rpcTraceChild3.getSpanId()).size());
   }
 
+  @Test
+  public void TestInterleavedTracersInOneThread() throws Exception {
+    TracerPool pool = new TracerPool("TestInterleavedTracersInOneThread");
+    POJOSpanReceiver receiver =
+        new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    pool.addReceiver(receiver);
+    Tracer never = new Tracer.Builder("never").
+        tracerPool(pool).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            "sampler.classes", "NeverSampler")).
+        build();
+    Tracer always = new Tracer.Builder("always").
+        tracerPool(pool).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            "sampler.classes", "AlwaysSampler")).
+        build();
+    // The unsampled outer scope makes "never" non-top-level in this thread,
+    // but must not affect the sampling decision of "always".
+    TraceScope outer = never.newScope("outer");
+    Assert.assertNull(outer.getSpan());
+    TraceScope inner = always.newScope("inner");
+    Assert.assertNotNull(inner.getSpan());
+    TraceScope child = never.newScope("child");
+    Assert.assertEquals(inner.getSpanId(), child.getSpan().getParents()[0]);
+    child.close();
+    inner.close();
+    outer.close();
+    Assert.assertEquals(2, receiver.getSpans().size());
+
+    // A closed Tracer's thread state is dropped, and a new Tracer starts
+    // with fresh state.
+    never.close();
+    Tracer another = new Tracer.Builder("another").
+        tracerPool(pool).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            "sampler.classes", "AlwaysSampler")).
+        build();
+    TraceScope scope = another.newScope("another");
+    Assert.assertNotNull(scope.getSpan());
+    scope.close();
+    another.close();
+    always.close();
+  }
+
   @Test(timeout=60000)
   public void testRootSpansHaveNonZeroSpanId() throws Exception {
     Tracer tracer = new Tracer.Builder().
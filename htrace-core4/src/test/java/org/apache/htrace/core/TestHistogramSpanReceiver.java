@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestHistogramSpanReceiver {
+  private static Span span(String tracerId, String description,
+                           long durationMs) {
+    return new MilliSpan.Builder().
+        spanId(SpanId.fromRandom()).
+        tracerId(tracerId).
+        description(description).
+        begin(1000).
+        end(1000 + durationMs).
+        build();
+  }
+
+  private static HistogramSpanReceiver create(SpanReceiver delegate,
+                                              String... pairs) {
+    return new HistogramSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(pairs), delegate);
+  }
+
+  private static LatencyHistogram get(Map<HistogramSpanReceiver.Key,
+      LatencyHistogram> snapshot, String tracerId, String description) {
+    return snapshot.get(new HistogramSpanReceiver.Key(tracerId, description));
+  }
+
+  @Test
+  public void testMergeAcrossThreads() throws Exception {
+    final HistogramSpanReceiver rcvr = create(null);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 1; i <= 100; i++) {
+            rcvr.receiveSpan(span("svc", "get", i));
+          }
+          rcvr.receiveSpans(new Span[] {
+              span("svc", "put", 7), span("other", "get", 9) }, 0, 2);
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Map<HistogramSpanReceiver.Key, LatencyHistogram> snapshot =
+        rcvr.snapshot();
+    Assert.assertEquals(3, snapshot.size());
+    LatencyHistogram get = get(snapshot, "svc", "get");
+    Assert.assertEquals(400, get.getCount());
+    Assert.assertEquals(50.5, get.getMean(), 0.001);
+    Assert.assertEquals(4, get(snapshot, "svc", "put").getCount());
+    Assert.assertEquals(7, get(snapshot, "svc", "put").getValueAtPercentile(50));
+    Assert.assertEquals(4, get(snapshot, "other", "get").getCount());
+
+    // The next snapshot only has what was recorded since.
+    rcvr.receiveSpan(span("svc", "get", 3));
+    snapshot = rcvr.snapshot();
+    Assert.assertEquals(1, snapshot.size());
+    Assert.assertEquals(1, get(snapshot, "svc", "get").getCount());
+    Assert.assertTrue(rcvr.snapshot().isEmpty());
+    rcvr.close();
+  }
+
+  @Test
+  public void testMaxDescriptions() throws Exception {
+    HistogramSpanReceiver rcvr = create(null,
+        HistogramSpanReceiver.MAX_DESCRIPTIONS_KEY, "2");
+    rcvr.receiveSpan(span("svc", "a", 1));
+    rcvr.receiveSpan(span("svc", "b", 1));
+    rcvr.receiveSpan(span("svc", "c", 1));
+    rcvr.receiveSpan(span("svc", "a", 1));
+    Assert.assertEquals(1, rcvr.getNumDropped());
+    Map<HistogramSpanReceiver.Key, LatencyHistogram> snapshot =
+        rcvr.snapshot();
+    Assert.assertEquals(2, get(snapshot, "svc", "a").getCount());
+    Assert.assertNull(get(snapshot, "svc", "c"));
+    rcvr.close();
+  }
+
+  @Test
+  public void testExportSummarySpans() throws Exception {
+    POJOSpanReceiver pojo = new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    HistogramSpanReceiver rcvr = create(pojo);
+    for (int i = 0; i < 1000; i++) {
+      rcvr.receiveSpan(span("svc", "get", (i < 990) ? 10 : 1000));
+    }
+    rcvr.close();
+    Assert.assertEquals(1, pojo.getSpans().size());
+    Span summary = pojo.getSpans().iterator().next();
+    Assert.assertEquals("svc", summary.getTracerId());
+    Assert.assertEquals("get", summary.getDescription());
+    Map<String, String> kvs = summary.getKVAnnotations();
+    Assert.assertEquals("1000", kvs.get("count"));
+    Assert.assertEquals("10", kvs.get("p50"));
+    Assert.assertEquals("10", kvs.get("p90"));
+    Assert.assertEquals("10", kvs.get("p99"));
+    Assert.assertEquals("1023", kvs.get("p999"));
+    Assert.assertEquals("19.900", kvs.get("mean"));
+    Assert.assertEquals(LatencyHistogram.bucketIndex(10) + ":990 " +
+        LatencyHistogram.bucketIndex(1000) + ":10", kvs.get("buckets"));
+  }
+
+  @Test
+  public void testLastSummariesWithoutDelegate() throws Exception {
+    HistogramSpanReceiver rcvr = create(null);
+    Assert.assertTrue(rcvr.getLastSummaries().isEmpty());
+    rcvr.receiveSpan(span("svc", "get", 10));
+    rcvr.receiveSpan(span("svc", "get", 20));
+    rcvr.export();
+    List<Span> summaries = rcvr.getLastSummaries();
+    Assert.assertEquals(1, summaries.size());
+    Assert.assertEquals("2", summaries.get(0).getKVAnnotations().get("count"));
+    // An interval with no spans has no summaries.
+    rcvr.export();
+    Assert.assertTrue(rcvr.getLastSummaries().isEmpty());
+    rcvr.close();
+  }
+
+  @Test
+  public void testSharedHistograms() throws Exception {
+    final HistogramSpanReceiver rcvr = create(null,
+        HistogramSpanReceiver.MAX_THREAD_HISTOGRAMS_KEY, "2",
+        HistogramSpanReceiver.MAX_DESCRIPTIONS_KEY, "2");
+    // The first thread gets histograms of its own; the others share.
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 1; i <= 100; i++) {
+            rcvr.receiveSpan(span("svc", "get", i));
+            rcvr.receiveSpan(span("svc", "put", i));
+          }
+          rcvr.receiveSpan(span("svc", "delete", 1));
+        }
+      };
+      threads[t].start();
+      threads[t].join();
+    }
+    Map<HistogramSpanReceiver.Key, LatencyHistogram> snapshot =
+        rcvr.snapshot();
+    Assert.assertEquals(2, snapshot.size());
+    Assert.assertEquals(800, get(snapshot, "svc", "get").getCount());
+    Assert.assertEquals(50.5, get(snapshot, "svc", "get").getMean(), 0.001);
+    Assert.assertEquals(800, get(snapshot, "svc", "put").getCount());
+    // Neither the threads nor the shared histograms have room for a third
+    // description.
+    Assert.assertEquals(8, rcvr.getNumDropped());
+
+    // The snapshot saw the first thread exit, so a new thread can have its
+    // own histograms again.
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        rcvr.receiveSpan(span("svc", "delete", 1));
+      }
+    };
+    thread.start();
+    thread.join();
+    snapshot = rcvr.snapshot();
+    Assert.assertEquals(1, get(snapshot, "svc", "delete").getCount());
+    rcvr.close();
+  }
+
+  private static class CountingReceiver extends SpanReceiver {
+    final AtomicInteger count = new AtomicInteger(0);
+
+    @Override
+    public void receiveSpan(Span span) {
+      count.incrementAndGet();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  @Test
+  public void testExportThread() throws Exception {
+    CountingReceiver counter = new CountingReceiver();
+    HistogramSpanReceiver rcvr = create(counter,
+        HistogramSpanReceiver.INTERVAL_MS_KEY, "10");
+    rcvr.receiveSpan(span("svc", "get", 1));
+    long deadline = System.currentTimeMillis() + 60000;
+    while (counter.count.get() == 0) {
+      Assert.assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+    rcvr.close();
+    Assert.assertEquals(1, counter.count.get());
+  }
+}
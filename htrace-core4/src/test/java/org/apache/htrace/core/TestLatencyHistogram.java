@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+  @Test
+  public void testBucketBounds() {
+    Assert.assertEquals(0, LatencyHistogram.bucketIndex(-5));
+    for (int i = 0; i < 8; i++) {
+      Assert.assertEquals(i, LatencyHistogram.bucketIndex(i));
+    }
+    // Every bucket holds exactly the values between its bounds.
+    for (int i = 0; i < LatencyHistogram.NUM_BUCKETS; i++) {
+      long lower = LatencyHistogram.bucketLowerBound(i);
+      long upper = LatencyHistogram.bucketUpperBound(i);
+      Assert.assertTrue(lower <= upper);
+      Assert.assertEquals(i, LatencyHistogram.bucketIndex(lower));
+      Assert.assertEquals(i, LatencyHistogram.bucketIndex(upper));
+      if (i > 0) {
+        Assert.assertEquals(lower - 1,
+            LatencyHistogram.bucketUpperBound(i - 1));
+      }
+      // A bucket is never wider than 1/8th of its lower bound.
+      if (lower >= 8) {
+        Assert.assertTrue((upper - lower) < (lower / 8) + 1);
+      }
+    }
+    Assert.assertEquals(LatencyHistogram.NUM_BUCKETS - 1,
+        LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    Assert.assertEquals(0, histogram.getValueAtPercentile(50));
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    Assert.assertEquals(1000, histogram.getCount());
+    Assert.assertEquals(1, histogram.getMin());
+    Assert.assertEquals(1000, histogram.getMax());
+    Assert.assertEquals(500.5, histogram.getMean(), 0.001);
+    assertWithin(500, histogram.getValueAtPercentile(50));
+    assertWithin(990, histogram.getValueAtPercentile(99));
+    Assert.assertEquals(1000, histogram.getValueAtPercentile(100));
+    Assert.assertEquals(1, histogram.getValueAtPercentile(0));
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    Assert.assertTrue("expected about " + expected + ", got " + actual,
+        (actual >= expected) && (actual <= expected + expected / 8));
+  }
+
+  @Test
+  public void testAddDecayAndReset() {
+    LatencyHistogram a = new LatencyHistogram();
+    LatencyHistogram b = new LatencyHistogram();
+    for (int i = 0; i < 100; i++) {
+      a.record(10);
+      b.record(1000);
+    }
+    a.add(b);
+    Assert.assertEquals(200, a.getCount());
+    Assert.assertEquals(10, a.getMin());
+    Assert.assertEquals(1000, a.getMax());
+    a.decay();
+    Assert.assertEquals(100, a.getCount());
+    Assert.assertEquals(50, a.getBucketCount(LatencyHistogram.bucketIndex(10)));
+    a.reset();
+    Assert.assertEquals(0, a.getCount());
+    Assert.assertEquals(0, a.getMin());
+    Assert.assertEquals(0, a.getMax());
+  }
+}
@@ -20,8 +20,18 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.Test;
@@ -62,4 +72,169 @@ public class TestLocalFileSpanReceiver {
     assertEquals("testWriteToLocalFile", span.getDescription());
     assertEquals("testWriteToLocalFileTracer", span.getTracerId());
   }
+
+  @Test
+  public void testReceiveSpansInBatches() throws IOException {
+    File traceFile = File.createTempFile("testReceiveSpansInBatches", ".json");
+    traceFile.deleteOnExit();
+    LocalFileSpanReceiver receiver = new LocalFileSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(
+            LocalFileSpanReceiver.PATH_KEY, traceFile.getAbsolutePath(),
+            LocalFileSpanReceiver.CAPACITY_KEY, "3"));
+    Span[] spans = new Span[10];
+    for (int i = 0; i < spans.length; i++) {
+      spans[i] = new MilliSpan.Builder().
+          spanId(new SpanId(100, i + 1)).
+          description("span" + i).
+          build();
+    }
+    // The first batch fills up the buffer twice, and leaves one span in it.
+    receiver.receiveSpans(spans, 0, 7);
+    receiver.receiveSpans(spans, 7, 3);
+    receiver.close();
+
+    List<String> lines =
+        Files.readAllLines(traceFile.toPath(), StandardCharsets.UTF_8);
+    assertEquals(spans.length, lines.size());
+    for (int i = 0; i < spans.length; i++) {
+      MilliSpan span = MilliSpan.fromJson(lines.get(i));
+      assertEquals("span" + i, span.getDescription());
+    }
+  }
+
+  private static Span[] makeSpans(int num) {
+    Span[] spans = new Span[num];
+    for (int i = 0; i < spans.length; i++) {
+      spans[i] = new MilliSpan.Builder().
+          spanId(new SpanId(200, i + 1)).
+          description("span" + i).
+          build();
+    }
+    return spans;
+  }
+
+  /**
+   * Spans in partly full buffers are written out after the linger interval,
+   * without closing the receiver.
+   */
+  @Test(timeout=60000)
+  public void testFlushAfterLinger() throws Exception {
+    File traceFile = File.createTempFile("testFlushAfterLinger", ".json");
+    traceFile.deleteOnExit();
+    LocalFileSpanReceiver receiver = new LocalFileSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(
+            LocalFileSpanReceiver.PATH_KEY, traceFile.getAbsolutePath(),
+            LocalFileSpanReceiver.CAPACITY_KEY, "100",
+            LocalFileSpanReceiver.MAX_LINGER_MS_KEY, "10"));
+    try {
+      Span[] spans = makeSpans(5);
+      for (Span span : spans) {
+        receiver.receiveSpan(span);
+      }
+      while (true) {
+        List<String> lines =
+            Files.readAllLines(traceFile.toPath(), StandardCharsets.UTF_8);
+        if (lines.size() == spans.length) {
+          for (int i = 0; i < spans.length; i++) {
+            assertEquals("span" + i,
+                MilliSpan.fromJson(lines.get(i)).getDescription());
+          }
+          break;
+        }
+        Thread.sleep(10);
+      }
+    } finally {
+      receiver.close();
+    }
+  }
+
+  @Test
+  public void testFsyncPolicies() throws IOException {
+    for (String policy : new String[] { "none", "interval", "BATCH" }) {
+      File traceFile = File.createTempFile("testFsyncPolicies", ".json");
+      traceFile.deleteOnExit();
+      LocalFileSpanReceiver receiver = new LocalFileSpanReceiver(
+          HTraceConfiguration.fromKeyValuePairs(
+              LocalFileSpanReceiver.PATH_KEY, traceFile.getAbsolutePath(),
+              LocalFileSpanReceiver.CAPACITY_KEY, "2",
+              LocalFileSpanReceiver.FSYNC_KEY, policy,
+              LocalFileSpanReceiver.FSYNC_INTERVAL_MS_KEY, "0"));
+      Span[] spans = makeSpans(5);
+      receiver.receiveSpans(spans, 0, spans.length);
+      receiver.close();
+      List<String> lines =
+          Files.readAllLines(traceFile.toPath(), StandardCharsets.UTF_8);
+      assertEquals(spans.length, lines.size());
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testInvalidFsyncPolicy() throws IOException {
+    new LocalFileSpanReceiver(HTraceConfiguration.fromKeyValuePairs(
+        LocalFileSpanReceiver.FSYNC_KEY, "sometimes"));
+  }
+
+  /**
+   * Spans received after close are ignored.
+   */
+  @Test
+  public void testReceiveAfterClose() throws IOException {
+    File traceFile = File.createTempFile("testReceiveAfterClose", ".json");
+    traceFile.deleteOnExit();
+    LocalFileSpanReceiver receiver = new LocalFileSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(
+            LocalFileSpanReceiver.PATH_KEY, traceFile.getAbsolutePath()));
+    Span[] spans = makeSpans(2);
+    receiver.receiveSpan(spans[0]);
+    receiver.close();
+    receiver.receiveSpan(spans[1]);
+    receiver.receiveSpans(spans, 0, 2);
+    List<String> lines =
+        Files.readAllLines(traceFile.toPath(), StandardCharsets.UTF_8);
+    assertEquals(1, lines.size());
+    assertEquals(0, receiver.getNumDropped());
+  }
+
+  /**
+   * With rolling and compression, every span ends up in one of the gzipped
+   * segments.
+   */
+  @Test
+  public void testRollingCompressedSegments() throws IOException {
+    File dir = Files.createTempDirectory("testRollingCompressed").toFile();
+    dir.deleteOnExit();
+    File traceFile = new File(dir, "spans.json.gz");
+    LocalFileSpanReceiver receiver = new LocalFileSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(
+            LocalFileSpanReceiver.PATH_KEY, traceFile.getAbsolutePath(),
+            LocalFileSpanReceiver.CAPACITY_KEY, "10",
+            LocalFileSpanReceiver.MAX_PENDING_BUFFERS_KEY, "1000",
+            LocalFileSpanReceiver.ROLL_SIZE_BYTES_KEY, "1",
+            LocalFileSpanReceiver.COMPRESSION_KEY, "gzip"));
+    Span[] spans = makeSpans(100);
+    receiver.receiveSpans(spans, 0, spans.length);
+    receiver.close();
+
+    List<File> files = new ArrayList<File>();
+    for (File file : dir.listFiles()) {
+      files.add(file);
+      file.deleteOnExit();
+    }
+    Set<String> descriptions = new HashSet<String>();
+    for (File file : files) {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new GZIPInputStream(new FileInputStream(file)),
+          StandardCharsets.UTF_8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          assertTrue(descriptions.add(
+              MilliSpan.fromJson(line).getDescription()));
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    assertEquals(spans.length, descriptions.size());
+  }
 }
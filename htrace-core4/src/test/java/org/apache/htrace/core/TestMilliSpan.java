@@ -142,4 +142,95 @@ public class TestMilliSpan {
     MilliSpan dspan = MilliSpan.fromJson(json);
     compareSpans(span, dspan);
   }
+
+  @Test
+  public void testTypedKVAnnotations() throws Exception {
+    MilliSpan span = new MilliSpan.Builder().
+        description("typed").
+        begin(1).
+        spanId(new SpanId(1L, 2L)).
+        build();
+    span.addKVAnnotation("bytes", 1234567890123L);
+    span.addKVAnnotation("negative", -5L);
+    span.addKVAnnotation("ratio", 0.25);
+    span.addKVAnnotation("name", "value");
+    Map<String, String> kvs = span.getKVAnnotations();
+    assertEquals(4, kvs.size());
+    assertEquals("1234567890123", kvs.get("bytes"));
+    assertEquals("-5", kvs.get("negative"));
+    assertEquals("0.25", kvs.get("ratio"));
+    assertEquals("value", kvs.get("name"));
+    assertEquals(null, kvs.get("missing"));
+    Map<String, String> expected = new HashMap<String, String>();
+    expected.put("bytes", "1234567890123");
+    expected.put("negative", "-5");
+    expected.put("ratio", "0.25");
+    expected.put("name", "value");
+    assertEquals(expected, kvs);
+
+    // Overwriting a key replaces its value, whatever the types.
+    span.addKVAnnotation("name", 7L);
+    span.addKVAnnotation("bytes", "lots");
+    assertEquals("7", span.getKVAnnotations().get("name"));
+    assertEquals("lots", span.getKVAnnotations().get("bytes"));
+    assertEquals(4, span.getKVAnnotations().size());
+
+    span.stop();
+    String json = span.toJson();
+    assertTrue(json, json.contains("\"name\":\"7\""));
+    assertTrue(json, json.contains("\"ratio\":\"0.25\""));
+    compareSpans(span, MilliSpan.fromJson(json));
+  }
+
+  @Test
+  public void testManyAnnotations() throws Exception {
+    MilliSpan span = new MilliSpan.Builder().
+        description("many").
+        begin(1).
+        end(2).
+        spanId(new SpanId(1L, 3L)).
+        build();
+    Map<String, String> expected = new HashMap<String, String>();
+    for (int i = 0; i < 100; i++) {
+      span.addKVAnnotation("key" + i, (long)i);
+      expected.put("key" + i, Integer.toString(i));
+      span.addTimelineAnnotation("event" + i);
+    }
+    // Overwrite some of them, once the keys are indexed.
+    for (int i = 0; i < 100; i += 10) {
+      span.addKVAnnotation("key" + i, "v" + i);
+      expected.put("key" + i, "v" + i);
+    }
+    assertEquals(expected, span.getKVAnnotations());
+    List<TimelineAnnotation> timeline = span.getTimelineAnnotations();
+    assertEquals(100, timeline.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("event" + i, timeline.get(i).getMessage());
+    }
+    compareSpans(span, MilliSpan.fromJson(span.toJson()));
+  }
+
+  @Test
+  public void testAnnotationsAreSnapshots() {
+    MilliSpan span = new MilliSpan.Builder().build();
+    span.addKVAnnotation("count", 1L);
+    span.addTimelineAnnotation("first");
+    Map<String, String> kvs = span.getKVAnnotations();
+    List<TimelineAnnotation> timeline = span.getTimelineAnnotations();
+    span.incrementKVAnnotation("count", 1);
+    span.addKVAnnotation("other", "value");
+    span.addTimelineAnnotation("second");
+    assertEquals(1, kvs.size());
+    assertEquals("1", kvs.get("count"));
+    assertEquals(1, timeline.size());
+    assertEquals("2", span.getKVAnnotations().get("count"));
+    assertEquals(2, span.getTimelineAnnotations().size());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testKVAnnotationsAreReadOnly() {
+    MilliSpan span = new MilliSpan.Builder().build();
+    span.addKVAnnotation("k", "v");
+    span.getKVAnnotations().put("k", "w");
+  }
 }
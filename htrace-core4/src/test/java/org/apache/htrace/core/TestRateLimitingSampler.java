@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TestRateLimitingSampler {
+  private static final long SECOND = 1000000000L;
+
+  private static RateLimitingSampler newSampler(String tracesPerSecond,
+        String burst) {
+    if (burst == null) {
+      return new RateLimitingSampler(HTraceConfiguration.fromKeyValuePairs(
+          RateLimitingSampler.SAMPLER_TRACES_PER_SECOND_CONF_KEY,
+          tracesPerSecond));
+    }
+    return new RateLimitingSampler(HTraceConfiguration.fromKeyValuePairs(
+        RateLimitingSampler.SAMPLER_TRACES_PER_SECOND_CONF_KEY,
+        tracesPerSecond,
+        RateLimitingSampler.SAMPLER_BURST_CONF_KEY, burst));
+  }
+
+  private static int countSampled(RateLimitingSampler sampler, long now,
+        int attempts) {
+    int sampled = 0;
+    for (int i = 0; i < attempts; i++) {
+      if (sampler.next(now)) {
+        sampled++;
+      }
+    }
+    return sampled;
+  }
+
+  @Test
+  public void testBurstThenSteadyRate() {
+    RateLimitingSampler sampler = newSampler("10", "5");
+    long now = System.nanoTime();
+    // The bucket starts out full.
+    assertEquals(5, countSampled(sampler, now, 100));
+    // A tenth of a second refills one token.
+    now += SECOND / 10;
+    assertEquals(1, countSampled(sampler, now, 100));
+    // A long quiet period refills the bucket, but only up to the burst size.
+    now += 60 * SECOND;
+    assertEquals(5, countSampled(sampler, now, 100));
+    // Over a second of steady calls, we get about 10 traces.
+    int sampled = 0;
+    for (int i = 0; i < 1000; i++) {
+      now += SECOND / 1000;
+      if (sampler.next(now)) {
+        sampled++;
+      }
+    }
+    assertEquals(10, sampled);
+  }
+
+  @Test
+  public void testFractionalRate() {
+    RateLimitingSampler sampler = newSampler("0.5", null);
+    long now = System.nanoTime();
+    assertEquals(1, countSampled(sampler, now, 10));
+    now += SECOND;
+    assertFalse(sampler.next(now));
+    now += SECOND;
+    assertTrue(sampler.next(now));
+  }
+
+  @Test
+  public void testZeroRateNeverSamples() {
+    RateLimitingSampler sampler = newSampler("0", null);
+    assertEquals(0, countSampled(sampler, System.nanoTime(), 100));
+  }
+
+  @Test
+  public void testInvalidConfiguration() {
+    String[][] invalid = new String[][] {
+      new String[] { "-1", null },
+      new String[] { "10", "0" },
+    };
+    for (String[] conf : invalid) {
+      try {
+        newSampler(conf[0], conf[1]);
+        fail("Expected an IllegalArgumentException for rate " + conf[0] +
+            ", burst " + conf[1]);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    try {
+      new RateLimitingSampler(HTraceConfiguration.EMPTY);
+      fail("Expected an IllegalArgumentException with no rate.");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains(
+          RateLimitingSampler.SAMPLER_TRACES_PER_SECOND_CONF_KEY));
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentCallersShareTheBurst() throws Exception {
+    final RateLimitingSampler sampler = newSampler("1", "100");
+    final long now = System.nanoTime();
+    final AtomicLong sampled = new AtomicLong(0);
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          sampled.addAndGet(countSampled(sampler, now, 1000));
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(100, sampled.get());
+  }
+
+  @Test
+  public void testCreateThroughTracerBuilder() {
+    Tracer tracer = new Tracer.Builder("TestRateLimitingSampler").
+        tracerPool(new TracerPool("testCreateThroughTracerBuilder")).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            Tracer.SAMPLER_CLASSES_KEY, "RateLimitingSampler",
+            RateLimitingSampler.SAMPLER_TRACES_PER_SECOND_CONF_KEY, "0.001",
+            RateLimitingSampler.SAMPLER_BURST_CONF_KEY, "1")).
+        build();
+    try {
+      assertEquals(1, tracer.getSamplers().length);
+      assertTrue(tracer.getSamplers()[0] instanceof RateLimitingSampler);
+      TraceScope first = tracer.newScope("first");
+      assertFalse(first instanceof NullScope);
+      first.close();
+      TraceScope second = tracer.newScope("second");
+      assertTrue(second instanceof NullScope);
+      second.close();
+    } finally {
+      tracer.close();
+    }
+  }
+}
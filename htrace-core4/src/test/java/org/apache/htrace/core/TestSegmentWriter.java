@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class TestSegmentWriter {
+  private static File createTempDir() throws IOException {
+    File dir = Files.createTempDirectory("TestSegmentWriter").toFile();
+    dir.deleteOnExit();
+    return dir;
+  }
+
+  private static void writeBatch(SegmentWriter writer, String... records)
+      throws IOException {
+    writer.beginBatch();
+    for (String record : records) {
+      writer.append(record.getBytes(StandardCharsets.UTF_8));
+    }
+    writer.endBatch();
+  }
+
+  /**
+   * Read lines from a stream until the end, or until a truncated gzip member.
+   */
+  private static List<String> readLines(InputStream in) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(in, StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    } catch (EOFException e) {
+      // The last member was truncated.
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  private static List<String> readGzipLines(byte[] data) throws IOException {
+    return readLines(new GZIPInputStream(new ByteArrayInputStream(data)));
+  }
+
+  @Test
+  public void testRollBySize() throws IOException {
+    File dir = createTempDir();
+    File file = new File(dir, "spans");
+    SegmentWriter writer = new SegmentWriter(file.getPath(), 10, 0, 0,
+        SegmentWriter.Compression.NONE, true);
+    writeBatch(writer, "abc");
+    assertFalse(writer.maybeRoll(System.currentTimeMillis()));
+    writeBatch(writer, "defgh", "ij");
+    assertTrue(writer.maybeRoll(System.currentTimeMillis()));
+    writeBatch(writer, "klm");
+    writer.close();
+
+    List<File> segments = writer.listSegments();
+    assertEquals(1, segments.size());
+    assertEquals(Arrays.asList("abc", "defgh", "ij"),
+        Files.readAllLines(segments.get(0).toPath(), StandardCharsets.UTF_8));
+    assertEquals(Arrays.asList("klm"),
+        Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testRollByAge() throws IOException {
+    File dir = createTempDir();
+    File file = new File(dir, "spans");
+    SegmentWriter writer = new SegmentWriter(file.getPath(), 0, 1000, 0,
+        SegmentWriter.Compression.NONE, true);
+    long now = System.currentTimeMillis();
+    // Empty segments are never rolled.
+    assertFalse(writer.maybeRoll(now + 2000));
+    writeBatch(writer, "abc");
+    assertFalse(writer.maybeRoll(now));
+    assertTrue(writer.maybeRoll(now + 2000));
+    writer.close();
+    assertEquals(1, writer.listSegments().size());
+    assertEquals(0, file.length());
+  }
+
+  @Test
+  public void testMaxSegments() throws IOException {
+    File dir = createTempDir();
+    File file = new File(dir, "spans");
+    // Files which only look a bit like segments are left alone.
+    File other = new File(dir, "spans.old");
+    assertTrue(other.createNewFile());
+    SegmentWriter writer = new SegmentWriter(file.getPath(), 1, 0, 2,
+        SegmentWriter.Compression.NONE, true);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 5; i++) {
+      writeBatch(writer, "record" + i);
+      assertTrue(writer.maybeRoll(now));
+    }
+    writer.close();
+    List<File> segments = writer.listSegments();
+    assertEquals(2, segments.size());
+    assertEquals(Arrays.asList("record3"),
+        Files.readAllLines(segments.get(0).toPath(), StandardCharsets.UTF_8));
+    assertEquals(Arrays.asList("record4"),
+        Files.readAllLines(segments.get(1).toPath(), StandardCharsets.UTF_8));
+    assertTrue(other.exists());
+  }
+
+  @Test
+  public void testGzip() throws IOException {
+    File dir = createTempDir();
+    File file = new File(dir, "spans.gz");
+    SegmentWriter writer = new SegmentWriter(file.getPath(), 0, 0, 0,
+        SegmentWriter.Compression.GZIP, true);
+    List<String> expected = new ArrayList<String>();
+    for (int batch = 0; batch < 3; batch++) {
+      String[] records = new String[100];
+      for (int i = 0; i < records.length; i++) {
+        records[i] = "{\"a\":\"" + Integer.toHexString(i) +
+            "\",\"d\":\"batch" + batch + "\"}";
+        expected.add(records[i]);
+      }
+      writeBatch(writer, records);
+    }
+    writer.close();
+    byte[] data = Files.readAllBytes(file.toPath());
+    assertEquals(expected, readGzipLines(data));
+
+    // If the last member is cut short, the earlier ones can still be read.
+    List<String> lines = readGzipLines(Arrays.copyOf(data, data.length - 5));
+    assertTrue(lines.size() >= 200);
+    assertEquals(expected.subList(0, lines.size()), lines);
+  }
+
+  /**
+   * A non-empty gzip file is rolled when it is reopened, so that new members
+   * never follow a member which was truncated by a crash.
+   */
+  @Test
+  public void testGzipReopen() throws IOException {
+    File dir = createTempDir();
+    File file = new File(dir, "spans.gz");
+    Files.write(file.toPath(), new byte[] { (byte)0x1f, (byte)0x8b, 8 });
+    SegmentWriter writer = new SegmentWriter(file.getPath(), 0, 0, 0,
+        SegmentWriter.Compression.GZIP, true);
+    writeBatch(writer, "abc");
+    writer.close();
+    assertEquals(1, writer.listSegments().size());
+    assertEquals(Arrays.asList("abc"),
+        readLines(new GZIPInputStream(new FileInputStream(file))));
+  }
+
+  @Test
+  public void testWithoutNewlines() throws IOException {
+    File dir = createTempDir();
+    File file = new File(dir, "spans");
+    SegmentWriter writer = new SegmentWriter(file.getPath(), 0, 0, 0,
+        SegmentWriter.Compression.NONE, false);
+    String[] records = new String[50];
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < records.length; i++) {
+      records[i] = "r" + i;
+      expected.append(records[i]);
+    }
+    writeBatch(writer, records);
+    writer.close();
+    assertEquals(expected.toString(), new String(
+        Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testInvalidCompression() {
+    try {
+      SegmentWriter.Compression.fromString("bzip2");
+      fail("expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+    }
+    assertEquals(SegmentWriter.Compression.GZIP,
+        SegmentWriter.Compression.fromString(" Gzip"));
+  }
+}
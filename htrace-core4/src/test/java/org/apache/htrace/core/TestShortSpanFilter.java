@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestShortSpanFilter {
+  /**
+   * Every span we create here finishes well within a minute.
+   */
+  private static final String MIN_SPAN_MILLIS = "60000";
+
+  private static Map<String, Span> spansByDescription(POJOSpanReceiver rcvr) {
+    Map<String, Span> spans = new HashMap<String, Span>();
+    for (Span span : rcvr.getSpans()) {
+      spans.put(span.getDescription(), span);
+    }
+    return spans;
+  }
+
+  @Test
+  public void testCountShortSpans() throws Exception {
+    TracerPool pool = new TracerPool("testCountShortSpans");
+    POJOSpanReceiver receiver =
+        new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    pool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("TestShortSpanFilter", pool,
+        Tracer.MIN_SPAN_MILLIS_KEY, MIN_SPAN_MILLIS);
+    try {
+      TraceScope root = tracer.newScope("root");
+      TraceScope child = tracer.newScope("child");
+      tracer.newScope("grandchild1").close();
+      tracer.newScope("grandchild2").close();
+      child.close();
+      tracer.newScope("child2").close();
+      root.close();
+    } finally {
+      tracer.close();
+    }
+    Map<String, Span> spans = spansByDescription(receiver);
+    assertEquals(1, spans.size());
+    // The child carries its own two grandchildren up to the root.
+    assertEquals("4", spans.get("root").getKVAnnotations().
+        get(Tracer.SHORT_SPANS_ANNOTATION));
+    assertEquals(4, tracer.getNumShortSpans());
+  }
+
+  @Test
+  public void testDropShortSpans() throws Exception {
+    TracerPool pool = new TracerPool("testDropShortSpans");
+    POJOSpanReceiver receiver =
+        new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    pool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("TestShortSpanFilter", pool,
+        Tracer.MIN_SPAN_MILLIS_KEY, MIN_SPAN_MILLIS,
+        Tracer.SHORT_SPAN_POLICY_KEY, "drop");
+    try {
+      TraceScope root = tracer.newScope("root");
+      tracer.newScope("child1").close();
+      tracer.newScope("child2").close();
+      root.close();
+    } finally {
+      tracer.close();
+    }
+    Map<String, Span> spans = spansByDescription(receiver);
+    assertEquals(1, spans.size());
+    assertNull(spans.get("root").getKVAnnotations().
+        get(Tracer.SHORT_SPANS_ANNOTATION));
+    assertEquals(2, tracer.getNumShortSpans());
+    assertEquals(2, pool.getMetrics().getNumShortSpans());
+  }
+
+  @Test
+  public void testRemoteChildIsFiltered() throws Exception {
+    TracerPool pool = new TracerPool("testRemoteChildIsFiltered");
+    POJOSpanReceiver receiver =
+        new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    pool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("TestShortSpanFilter", pool,
+        Tracer.MIN_SPAN_MILLIS_KEY, MIN_SPAN_MILLIS);
+    try {
+      // A span with a parent in another process is filtered, even though
+      // it has nothing to be counted in.
+      tracer.newScope("remote", new SpanId(100, 200)).close();
+      tracer.newScope("local root").close();
+    } finally {
+      tracer.close();
+    }
+    Map<String, Span> spans = spansByDescription(receiver);
+    assertEquals(1, spans.size());
+    assertEquals(0, spans.get("local root").getKVAnnotations().size());
+    assertEquals(1, tracer.getNumShortSpans());
+  }
+
+  @Test(timeout = 60000)
+  public void testPropagatedSpansAreKept() throws Exception {
+    TracerPool pool = new TracerPool("testPropagatedSpansAreKept");
+    POJOSpanReceiver receiver =
+        new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    pool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("TestShortSpanFilter", pool,
+        Tracer.MIN_SPAN_MILLIS_KEY, MIN_SPAN_MILLIS);
+    // The other side of an RPC, which delivers every span.
+    Tracer remote =
+        TracerTestUtil.newTracer("TestShortSpanFilterRemote", pool);
+    try {
+      TraceScope root = tracer.newScope("root");
+      TraceScope wrapped = tracer.newScope("wrapped");
+      Thread thread = new Thread(tracer.wrap(new Runnable() {
+        @Override
+        public void run() {
+        }
+      }, "runnable"));
+      thread.start();
+      thread.join();
+      wrapped.close();
+      TraceScope rpc = tracer.newScope("rpc");
+      remote.newScope("server", Tracer.getCurrentSpanId()).close();
+      rpc.close();
+      tracer.newScope("short").close();
+      root.close();
+    } finally {
+      tracer.close();
+      remote.close();
+    }
+    Map<String, Span> spans = spansByDescription(receiver);
+    // The runnable's own span is short and has no children, so it is
+    // dropped, but the span it was wrapped in is kept.
+    assertEquals(4, spans.size());
+    assertNull(spans.get("runnable"));
+    assertNotNull(spans.get("wrapped"));
+    assertEquals(spans.get("rpc").getSpanId(),
+        spans.get("server").getParents()[0]);
+    assertEquals("1", spans.get("root").getKVAnnotations().
+        get(Tracer.SHORT_SPANS_ANNOTATION));
+  }
+
+  @Test
+  public void testUntrackedPropagationOrphansChildren() throws Exception {
+    TracerPool pool = new TracerPool("testUntrackedPropagation");
+    POJOSpanReceiver receiver =
+        new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    pool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("TestShortSpanFilter", pool,
+        Tracer.MIN_SPAN_MILLIS_KEY, MIN_SPAN_MILLIS);
+    Tracer remote =
+        TracerTestUtil.newTracer("TestShortSpanFilterRemote", pool);
+    try {
+      TraceScope root = tracer.newScope("root");
+      TraceScope rpc = tracer.newScope("rpc");
+      // Reading the ID from the Span itself is not tracked, so the short
+      // rpc span is dropped and the server span is left without a parent.
+      SpanId rpcId = rpc.getSpan().getSpanId();
+      remote.newScope("server", rpcId).close();
+      rpc.close();
+      root.close();
+    } finally {
+      tracer.close();
+      remote.close();
+    }
+    Map<String, Span> spans = spansByDescription(receiver);
+    assertEquals(2, spans.size());
+    assertNull(spans.get("rpc"));
+    assertEquals(1, spans.get("server").getParents().length);
+  }
+
+  @Test
+  public void testRecycledShortSpans() throws Exception {
+    TracerPool pool = new TracerPool("testRecycledShortSpans");
+    POJOSpanReceiver receiver =
+        new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    pool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("TestShortSpanFilter", pool,
+        Tracer.MIN_SPAN_MILLIS_KEY, MIN_SPAN_MILLIS,
+        Tracer.RECYCLE_SPANS_KEY, "true");
+    try {
+      for (int i = 0; i < 10; i++) {
+        TraceScope root = tracer.newScope("root" + i);
+        tracer.newScope("child").close();
+        root.close();
+      }
+    } finally {
+      tracer.close();
+    }
+    Map<String, Span> spans = spansByDescription(receiver);
+    assertEquals(10, spans.size());
+    for (int i = 0; i < 10; i++) {
+      assertEquals("1", spans.get("root" + i).getKVAnnotations().
+          get(Tracer.SHORT_SPANS_ANNOTATION));
+    }
+  }
+
+  @Test
+  public void testInvalidConfiguration() throws Exception {
+    TracerPool pool = new TracerPool("testInvalidConfiguration");
+    try {
+      TracerTestUtil.newTracer("TestShortSpanFilter", pool,
+          Tracer.SHORT_SPAN_POLICY_KEY, "compress");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      TracerTestUtil.newTracer("TestShortSpanFilter", pool,
+          Tracer.MIN_SPAN_MILLIS_KEY, "-1");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(Tracer.ShortSpanPolicy.DROP,
+        Tracer.ShortSpanPolicy.fromString(" Drop"));
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class TestSpanDispatcher {
+  /**
+   * A receiver which records the IDs of the spans it receives, and which
+   * thread delivered them.
+   */
+  private static class RecordingSpanReceiver extends SpanReceiver {
+    final Set<SpanId> spanIds = new HashSet<SpanId>();
+    final Set<Thread> threads = new HashSet<Thread>();
+    int numBatches = 0;
+
+    @Override
+    public boolean retainsSpans() {
+      return false;
+    }
+
+    @Override
+    public synchronized void receiveSpan(Span span) {
+      if (!spanIds.add(span.getSpanId())) {
+        fail("Received span " + span.getSpanId() + " twice.");
+      }
+      threads.add(Thread.currentThread());
+    }
+
+    @Override
+    public synchronized void receiveSpans(Span[] spans, int offset,
+                                          int len) {
+      numBatches++;
+      super.receiveSpans(spans, offset, len);
+    }
+
+    synchronized int size() {
+      return spanIds.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
+  /**
+   * A receiver which blocks until it is allowed to proceed.
+   */
+  private static class BlockingSpanReceiver extends SpanReceiver {
+    final CountDownLatch proceed = new CountDownLatch(1);
+
+    @Override
+    public boolean retainsSpans() {
+      return false;
+    }
+
+    @Override
+    public void receiveSpan(Span span) {
+      try {
+        proceed.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
+  @Test
+  public void testRingBuffer() throws Exception {
+    SpanRingBuffer ringBuffer = new SpanRingBuffer(3);
+    assertEquals(4, ringBuffer.capacity());
+    assertTrue(ringBuffer.isEmpty());
+    assertNull(ringBuffer.poll());
+    Span[] spans = new Span[10];
+    for (int i = 0; i < spans.length; i++) {
+      spans[i] = new MilliSpan.Builder().spanId(new SpanId(1, i + 1)).build();
+    }
+    // Go around the ring a few times.
+    for (int i = 0; i < 2; i++) {
+      for (int j = 0; j < 4; j++) {
+        assertTrue(ringBuffer.offer(spans[j]));
+      }
+      assertFalse(ringBuffer.offer(spans[4]));
+      assertSame(spans[0], ringBuffer.poll());
+      assertTrue(ringBuffer.offer(spans[4]));
+      Span[] out = new Span[10];
+      assertEquals(4, ringBuffer.drainTo(out, out.length));
+      for (int j = 0; j < 4; j++) {
+        assertSame(spans[j + 1], out[j]);
+      }
+      assertTrue(ringBuffer.isEmpty());
+    }
+    assertEquals(10, ringBuffer.getNumAdded());
+    assertEquals(10, ringBuffer.getNumRemoved());
+  }
+
+  @Test
+  public void testWaitStrategyFromString() throws Exception {
+    assertEquals(SpanDispatcher.WaitStrategy.BLOCKING,
+        SpanDispatcher.WaitStrategy.fromString("blocking"));
+    assertEquals(SpanDispatcher.WaitStrategy.BUSY_SPIN,
+        SpanDispatcher.WaitStrategy.fromString(" busy-spin "));
+    try {
+      SpanDispatcher.WaitStrategy.fromString("napping");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("napping"));
+    }
+  }
+
+  private static void deliverFromManyThreads(String waitStrategy,
+      boolean recycle) throws Exception {
+    final int numThreads = 4;
+    final int numSpansPerThread = 2000;
+    TracerPool pool = new TracerPool("deliverFromManyThreads");
+    RecordingSpanReceiver receiver = new RecordingSpanReceiver();
+    pool.addReceiver(receiver);
+    final Tracer tracer = TracerTestUtil.newTracer("TestSpanDispatcher", pool,
+        SpanDispatcher.THREADS_KEY, "2",
+        SpanDispatcher.WAIT_STRATEGY_KEY, waitStrategy,
+        Tracer.RECYCLE_SPANS_KEY, Boolean.toString(recycle));
+    SpanDispatcher dispatcher = pool.getDispatcher();
+    assertNotNull(dispatcher);
+    assertEquals(SpanDispatcher.WaitStrategy.fromString(waitStrategy),
+        dispatcher.getWaitStrategy());
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < numSpansPerThread; j++) {
+            TraceScope scope = tracer.newScope("span" + j);
+            scope.close();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long total = numThreads * numSpansPerThread;
+    assertEquals(total,
+        dispatcher.getNumPublished() + dispatcher.getNumDropped());
+    // Closing the last tracer delivers the pending spans before closing the
+    // receivers.
+    tracer.close();
+    assertNull(pool.getDispatcher());
+    assertEquals(dispatcher.getNumPublished(), receiver.size());
+    assertEquals(0, dispatcher.getNumPending());
+    for (Thread thread : receiver.threads) {
+      assertTrue(thread.getName().startsWith("SpanDispatcher("));
+    }
+    // The dispatcher delivers spans in batches.
+    assertTrue(receiver.numBatches > 0);
+    assertTrue(receiver.numBatches <= receiver.size());
+  }
+
+  @Test(timeout = 60000)
+  public void testBlocking() throws Exception {
+    deliverFromManyThreads("blocking", false);
+  }
+
+  @Test(timeout = 60000)
+  public void testSleeping() throws Exception {
+    deliverFromManyThreads("sleeping", true);
+  }
+
+  @Test(timeout = 60000)
+  public void testYielding() throws Exception {
+    deliverFromManyThreads("yielding", false);
+  }
+
+  @Test(timeout = 60000)
+  public void testBusySpin() throws Exception {
+    deliverFromManyThreads("busy-spin", true);
+  }
+
+  @Test(timeout = 60000)
+  public void testOverflowIsCounted() throws Exception {
+    TracerPool pool = new TracerPool("testOverflowIsCounted");
+    BlockingSpanReceiver blocker = new BlockingSpanReceiver();
+    RecordingSpanReceiver receiver = new RecordingSpanReceiver();
+    pool.addReceiver(blocker);
+    pool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("TestSpanDispatcher", pool,
+        SpanDispatcher.CAPACITY_KEY, "4",
+        SpanDispatcher.THREADS_KEY, "1",
+        Tracer.RECYCLE_SPANS_KEY, "true");
+    SpanDispatcher dispatcher = pool.getDispatcher();
+    assertEquals(1, dispatcher.getNumThreads());
+    assertEquals(4, dispatcher.getCapacity());
+    for (int i = 0; i < 100; i++) {
+      tracer.newScope("span" + i).close();
+    }
+    // The dispatcher thread holds at most one batch while it is blocked, and
+    // the ring buffer holds at most 4 more spans.
+    assertTrue(dispatcher.getNumDropped() > 0);
+    assertEquals(100, dispatcher.getNumPublished() +
+        dispatcher.getNumDropped());
+    blocker.proceed.countDown();
+    tracer.close();
+    assertEquals(dispatcher.getNumPublished(), receiver.size());
+  }
+
+  @Test
+  public void testNoDispatcherByDefault() throws Exception {
+    TracerPool pool = new TracerPool("testNoDispatcherByDefault");
+    RecordingSpanReceiver receiver = new RecordingSpanReceiver();
+    pool.addReceiver(receiver);
+    Tracer tracer = new Tracer.Builder("TestSpanDispatcher").
+        tracerPool(pool).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            Tracer.SAMPLER_CLASSES_KEY, "AlwaysSampler")).
+        build();
+    assertNull(pool.getDispatcher());
+    tracer.newScope("inline").close();
+    assertEquals(1, receiver.size());
+    assertEquals(0, receiver.numBatches);
+    assertTrue(receiver.threads.contains(Thread.currentThread()));
+    tracer.close();
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestSpanEncoding {
+  /**
+   * An encoding which counts how many times it really encodes a span.
+   */
+  private static class CountingEncoding extends SpanEncoding {
+    final AtomicInteger numEncoded = new AtomicInteger(0);
+
+    CountingEncoding(String name) {
+      super(name);
+    }
+
+    @Override
+    protected byte[] doEncode(Span span) {
+      numEncoded.incrementAndGet();
+      return span.getDescription().getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  private static MilliSpan finishedSpan(String description) {
+    return new MilliSpan.Builder().
+        spanId(new SpanId(1, 2)).
+        description(description).
+        begin(100).
+        end(200).
+        build();
+  }
+
+  @Test
+  public void testEncodingIsCached() {
+    CountingEncoding foo = new CountingEncoding("foo");
+    CountingEncoding bar = new CountingEncoding("bar");
+    MilliSpan span = finishedSpan("desc");
+    byte[] fooBytes = foo.encode(span);
+    assertSame(fooBytes, foo.encode(span));
+    assertEquals(1, foo.numEncoded.get());
+    byte[] barBytes = bar.encode(span);
+    assertSame(barBytes, bar.encode(span));
+    assertSame(fooBytes, foo.encode(span));
+    assertEquals(1, foo.numEncoded.get());
+    assertEquals(1, bar.numEncoded.get());
+  }
+
+  @Test
+  public void testJsonEncoding() {
+    MilliSpan span = finishedSpan("desc");
+    assertArrayEquals(span.toJson().getBytes(StandardCharsets.UTF_8),
+        SpanEncoding.JSON.encode(span));
+  }
+
+  /**
+   * Spans which are still running are not cached, and changing a span drops
+   * its cached encodings.
+   */
+  @Test
+  public void testCacheInvalidation() {
+    CountingEncoding foo = new CountingEncoding("foo");
+    MilliSpan running = new MilliSpan.Builder().
+        spanId(new SpanId(1, 3)).
+        description("running").
+        begin(100).
+        build();
+    assertNotSame(foo.encode(running), foo.encode(running));
+    assertEquals(2, foo.numEncoded.get());
+    running.stop();
+    byte[] bytes = foo.encode(running);
+    assertSame(bytes, foo.encode(running));
+    assertEquals(3, foo.numEncoded.get());
+
+    running.addKVAnnotation("key", "value");
+    assertNotSame(bytes, foo.encode(running));
+    assertEquals(4, foo.numEncoded.get());
+    running.addTimelineAnnotation("msg");
+    foo.encode(running);
+    running.setTracerId("tracer");
+    foo.encode(running);
+    running.setParents(new SpanId[] { new SpanId(1, 1) });
+    foo.encode(running);
+    assertEquals(7, foo.numEncoded.get());
+  }
+
+  /**
+   * An encoding made while the span changed is returned, but not cached.
+   */
+  @Test
+  public void testChangeDuringEncoding() {
+    SpanEncoding annotating = new SpanEncoding("annotating") {
+      @Override
+      protected byte[] doEncode(Span span) {
+        byte[] bytes = span.getKVAnnotations().toString().
+            getBytes(StandardCharsets.UTF_8);
+        if (span.getKVAnnotations().isEmpty()) {
+          // Stands in for another thread annotating the span mid-encode.
+          span.addKVAnnotation("late", "value");
+        }
+        return bytes;
+      }
+    };
+    MilliSpan span = finishedSpan("desc");
+    byte[] stale = annotating.encode(span);
+    assertArrayEquals("{}".getBytes(StandardCharsets.UTF_8), stale);
+    byte[] fresh = annotating.encode(span);
+    assertArrayEquals("{late=value}".getBytes(StandardCharsets.UTF_8), fresh);
+    assertSame(fresh, annotating.encode(span));
+  }
+
+  /**
+   * Recycled spans don't keep the encodings of their previous use.
+   */
+  @Test
+  public void testRecycledSpan() throws IOException {
+    Tracer tracer = new Tracer.Builder().
+        name("TestSpanEncoding").
+        tracerPool(new TracerPool("testRecycledSpan")).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            "sampler.classes", "AlwaysSampler",
+            Tracer.RECYCLE_SPANS_KEY, "true")).
+        build();
+    try {
+      TraceScope scope = tracer.newScope("first");
+      Span first = scope.getSpan();
+      scope.close();
+      String firstJson = new String(SpanEncoding.JSON.encode(first),
+          StandardCharsets.UTF_8);
+      assertEquals("first", MilliSpan.fromJson(firstJson).getDescription());
+      scope = tracer.newScope("second");
+      Span second = scope.getSpan();
+      scope.close();
+      String secondJson = new String(SpanEncoding.JSON.encode(second),
+          StandardCharsets.UTF_8);
+      assertEquals("second", MilliSpan.fromJson(secondJson).getDescription());
+    } finally {
+      tracer.close();
+    }
+  }
+}
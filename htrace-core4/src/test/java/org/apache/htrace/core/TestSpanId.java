@@ -16,6 +16,8 @@
  */
 package org.apache.htrace.core;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Random;
 
 import org.junit.Assert;
@@ -26,6 +28,40 @@ public class TestSpanId {
     String str = id.toString();
     SpanId id2 = SpanId.fromString(str);
     Assert.assertEquals(id, id2);
+    Assert.assertEquals(String.format("%016x%016x", id.getHigh(), id.getLow()),
+        str);
+
+    StringBuilder bld = new StringBuilder("xy");
+    id.appendTo(bld);
+    Assert.assertEquals("xy" + str, bld.toString());
+    Assert.assertEquals(id, SpanId.fromHex(bld, 2));
+
+    char[] chars = new char[40];
+    id.writeHex(chars, 3);
+    Assert.assertEquals(id, SpanId.fromHex(chars, 3));
+
+    byte[] hexBytes = new byte[SpanId.SPAN_ID_STRING_LENGTH];
+    id.writeHexBytes(hexBytes, 0);
+    Assert.assertEquals(str, new String(hexBytes, "US-ASCII"));
+    Assert.assertEquals(id, SpanId.fromHexBytes(hexBytes, 0));
+
+    byte[] bytes = id.toBytes();
+    Assert.assertEquals(SpanId.SPAN_ID_BYTE_LENGTH, bytes.length);
+    Assert.assertEquals(id, SpanId.fromBytes(bytes, 0));
+
+    for (ByteOrder order : new ByteOrder[] {
+          ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+      ByteBuffer bb = ByteBuffer.allocate(20).order(order);
+      bb.putInt(1);
+      id.writeTo(bb);
+      Assert.assertEquals(20, bb.position());
+      byte[] written = new byte[SpanId.SPAN_ID_BYTE_LENGTH];
+      System.arraycopy(bb.array(), 4, written, 0, written.length);
+      Assert.assertArrayEquals(bytes, written);
+      bb.flip();
+      bb.getInt();
+      Assert.assertEquals(id, SpanId.readFrom(bb));
+    }
   }
 
   @Test
@@ -40,6 +76,22 @@ public class TestSpanId {
     }
   }
 
+  @Test
+  public void testParseErrors() throws Exception {
+    Assert.assertEquals(new SpanId(0xabcdef0123456789L, 0x0123456789abcdefL),
+        SpanId.fromString("ABCDEF01234567890123456789ABCDEF"));
+    try {
+      SpanId.fromString("0123456789abcdef0123456789abcdeg");
+      Assert.fail("expected an exception for an invalid hex digit");
+    } catch (NumberFormatException e) {
+    }
+    try {
+      SpanId.fromString("0123");
+      Assert.fail("expected an exception for a short string");
+    } catch (RuntimeException e) {
+    }
+  }
+
   @Test
   public void testValidAndInvalidIds() throws Exception {
     Assert.assertFalse(SpanId.INVALID.isValid());
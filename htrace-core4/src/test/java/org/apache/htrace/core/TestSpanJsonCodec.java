@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestSpanJsonCodec {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static final String[] STRINGS = new String[] {
+    "",
+    "plain",
+    "quote\"and\\backslash/slash",
+    "tab\tnewline\nreturn\rbackspace\bformfeed\f",
+    "control\u0001\u001f\u007f",
+    "latin \u00E9\u00FC and cjk \u4E2D\u6587",
+    "emoji \uD83D\uDE00 supplementary",
+  };
+
+  private static MilliSpan makeSpan(String str) {
+    Map<String, String> traceInfo = new HashMap<String, String>();
+    traceInfo.put("zkey", str);
+    traceInfo.put("akey" + str, "123");
+    traceInfo.put("mkey", "456");
+    List<TimelineAnnotation> timeline = new LinkedList<TimelineAnnotation>();
+    timeline.add(new TimelineAnnotation(-1L, str));
+    timeline.add(new TimelineAnnotation(Long.MAX_VALUE, "later"));
+    return new MilliSpan.Builder().
+        description("desc " + str).
+        begin(Long.MIN_VALUE).
+        end(1234567890123L).
+        parents(new SpanId[] { new SpanId(1L, 2L),
+            new SpanId(0xfedcba9876543210L, 0x0123456789abcdefL) }).
+        tracerId("tracer" + str).
+        spanId(new SpanId(-1L, 0x7fffffffffffffffL)).
+        traceInfo(traceInfo).
+        timeline(timeline).
+        build();
+  }
+
+  private static void assertSpansEqual(Span expected, Span got) {
+    assertEquals(expected.getStartTimeMillis(), got.getStartTimeMillis());
+    assertEquals(expected.getStopTimeMillis(), got.getStopTimeMillis());
+    assertEquals(expected.getDescription(), got.getDescription());
+    assertEquals(expected.getSpanId(), got.getSpanId());
+    assertEquals(expected.getTracerId(), got.getTracerId());
+    assertArrayEquals(expected.getParents(), got.getParents());
+    assertEquals(expected.getKVAnnotations(), got.getKVAnnotations());
+    List<TimelineAnnotation> expectedTimeline =
+        expected.getTimelineAnnotations();
+    List<TimelineAnnotation> gotTimeline = got.getTimelineAnnotations();
+    assertEquals(expectedTimeline.size(), gotTimeline.size());
+    for (int i = 0; i < expectedTimeline.size(); i++) {
+      assertEquals(expectedTimeline.get(i).getTime(),
+          gotTimeline.get(i).getTime());
+      assertEquals(expectedTimeline.get(i).getMessage(),
+          gotTimeline.get(i).getMessage());
+    }
+  }
+
+  @Test
+  public void testSameBytesAsJackson() throws Exception {
+    SpanJsonCodec codec = new SpanJsonCodec();
+    for (String str : STRINGS) {
+      MilliSpan span = makeSpan(str);
+      byte[] expected = MAPPER.writeValueAsBytes(span);
+      assertEquals(new String(expected, StandardCharsets.UTF_8),
+          codec.toJson(span));
+      assertArrayEquals(expected, codec.toBytes(span));
+    }
+    MilliSpan empty = new MilliSpan.Builder().build();
+    assertArrayEquals(MAPPER.writeValueAsBytes(empty), codec.toBytes(empty));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    SpanJsonCodec codec = new SpanJsonCodec();
+    for (String str : STRINGS) {
+      MilliSpan span = makeSpan(str);
+      assertSpansEqual(span, codec.decode(codec.toBytes(span)));
+      // The Jackson deserializer and the codec should agree.
+      assertSpansEqual(span,
+          MAPPER.readValue(codec.toBytes(span), MilliSpan.class));
+      assertSpansEqual(span, MilliSpan.fromJson(span.toJson()));
+    }
+  }
+
+  @Test
+  public void testWriteToStream() throws Exception {
+    SpanJsonCodec codec = new SpanJsonCodec();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MilliSpan span1 = makeSpan("one");
+    MilliSpan span2 = makeSpan("two");
+    codec.write(span1, out);
+    out.write('\n');
+    codec.write(span2, out);
+    out.write('\n');
+    byte[] bytes = out.toByteArray();
+    int newline = 0;
+    while (bytes[newline] != '\n') {
+      newline++;
+    }
+    assertSpansEqual(span1, codec.decode(bytes, 0, newline));
+    assertSpansEqual(span2,
+        codec.decode(bytes, newline + 1, bytes.length - newline - 1));
+  }
+
+  @Test
+  public void testDecodeLenientInput() throws Exception {
+    SpanJsonCodec codec = new SpanJsonCodec();
+    String json = " { \"a\" : \"00000000000000010000000000000002\", " +
+        "\"x\": {\"nested\": [1, 2.5, true, null, {}]}, " +
+        "\"b\": 1.5e3, \"e\": 2000, \"d\": null, \"r\": \"tr\\u0041cer\", " +
+        "\"p\": [ ], \"n\": {\"k\": \"v\"}, " +
+        "\"t\": [{\"m\": \"msg\", \"t\": 5, \"extra\": 1}] } \n";
+    MilliSpan span = codec.decode(json.getBytes(StandardCharsets.UTF_8));
+    assertEquals(new SpanId(1L, 2L), span.getSpanId());
+    assertEquals(1500L, span.getStartTimeMillis());
+    assertEquals(2000L, span.getStopTimeMillis());
+    assertEquals("", span.getDescription());
+    assertEquals("trAcer", span.getTracerId());
+    assertEquals(0, span.getParents().length);
+    assertEquals("v", span.getKVAnnotations().get("k"));
+    assertEquals(1, span.getTimelineAnnotations().size());
+    assertEquals(5L, span.getTimelineAnnotations().get(0).getTime());
+    assertEquals("msg", span.getTimelineAnnotations().get(0).getMessage());
+  }
+
+  @Test
+  public void testTracerIdCache() throws Exception {
+    SpanJsonCodec codec = new SpanJsonCodec();
+    String[] tracerIds = new String[] {
+      "host:1", "host:1", "host:10", "host:", "host:1", "", "host:1",
+      "h\u00F6st", "h\u00F6st", "host:1"
+    };
+    for (String tracerId : tracerIds) {
+      MilliSpan span = new MilliSpan.Builder().tracerId(tracerId).build();
+      assertEquals(tracerId,
+          codec.decode(codec.toBytes(span)).getTracerId());
+    }
+  }
+
+  @Test
+  public void testDecodeErrors() throws Exception {
+    String[] invalid = new String[] {
+      "",
+      "[]",
+      "{\"a\":\"0000000000000001000000000000000\"}",
+      "{\"a\":\"0000000000000001000000000000000g\"}",
+      "{\"b\":}",
+      "{\"b\":99999999999999999999}",
+      "{\"d\":\"unterminated}",
+      "{\"d\":\"bad \\q escape\"}",
+      "{\"p\":[\"00000000000000010000000000000002\"}",
+      "{\"d\":\"x\"} trailing",
+      "{\"d\":\"x\"",
+    };
+    SpanJsonCodec codec = new SpanJsonCodec();
+    for (String json : invalid) {
+      try {
+        codec.decode(json.getBytes(StandardCharsets.UTF_8));
+        fail("Expected an IOException when decoding " + json);
+      } catch (IOException e) {
+        // expected
+      }
+    }
+    // The codec should still work after errors.
+    MilliSpan span = makeSpan("ok");
+    assertSpansEqual(span, codec.decode(codec.toBytes(span)));
+  }
+
+  @Test
+  public void testLargeSpanGrowsBuffer() throws Exception {
+    char[] chars = new char[100000];
+    Arrays.fill(chars, '\u4E2D');
+    MilliSpan span = makeSpan(new String(chars));
+    SpanJsonCodec codec = new SpanJsonCodec();
+    assertArrayEquals(MAPPER.writeValueAsBytes(span), codec.toBytes(span));
+    assertSpansEqual(span, codec.decode(codec.toBytes(span)));
+  }
+}
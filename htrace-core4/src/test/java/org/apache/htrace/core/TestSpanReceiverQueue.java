@@ -0,0 +1,271 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestSpanReceiverQueue {
+  /**
+   * A receiver which can be made to block or fail.
+   */
+  private static class ControlledSpanReceiver extends SpanReceiver {
+    final List<Span> spans = new ArrayList<Span>();
+    final AtomicInteger numCalls = new AtomicInteger(0);
+    volatile CountDownLatch gate = null;
+    volatile int numFailures = 0;
+
+    @Override
+    public void receiveSpan(Span span) {
+      int call = numCalls.incrementAndGet();
+      CountDownLatch curGate = gate;
+      if (curGate != null) {
+        try {
+          curGate.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (call <= numFailures) {
+        throw new RuntimeException("failure " + call);
+      }
+      synchronized (this) {
+        spans.add(span);
+      }
+    }
+
+    synchronized int getNumSpans() {
+      return spans.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
+  private static Span newSpan(String description) {
+    return new MilliSpan.Builder().
+        spanId(SpanId.fromRandom()).
+        description(description).
+        begin(1).
+        end(2).
+        build();
+  }
+
+  private static void waitFor(AtomicInteger counter, int value)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 30000;
+    while (counter.get() < value) {
+      assertTrue("Timed out waiting for " + value + " call(s)",
+          System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testStalledReceiverDoesNotBlockOthers() throws Exception {
+    TracerPool pool = new TracerPool("testStalledReceiverDoesNotBlockOthers");
+    ControlledSpanReceiver stalled = new ControlledSpanReceiver();
+    stalled.gate = new CountDownLatch(1);
+    ControlledSpanReceiver healthy = new ControlledSpanReceiver();
+    pool.addReceiver(stalled, HTraceConfiguration.fromKeyValuePairs(
+        SpanReceiverQueue.CAPACITY_KEY, "8",
+        SpanReceiverQueue.BREAKER_LATENCY_MS_KEY, "60000"));
+    pool.addReceiver(healthy);
+    Tracer tracer = new Tracer.Builder("TestSpanReceiverQueue").
+        tracerPool(pool).
+        conf(HTraceConfiguration.fromKeyValuePairs(
+            Tracer.SAMPLER_CLASSES_KEY, "AlwaysSampler")).
+        build();
+    try {
+      for (int i = 0; i < 100; i++) {
+        tracer.newScope("span" + i).close();
+      }
+      assertEquals(100, healthy.getNumSpans());
+      SpanReceiverQueue queue = stalled.queue;
+      // The drain thread is stuck with one batch, and the queue is full.
+      assertTrue(queue.getNumDropped() > 0);
+      assertEquals(queue.getNumDropped(),
+          stalled.metrics.getQueueNumDropped());
+    } finally {
+      stalled.gate.countDown();
+      tracer.close();
+    }
+    // Closing the pool hands the queued spans to the receiver.
+    assertEquals(100 - stalled.queue.getNumDropped(), stalled.getNumSpans());
+  }
+
+  @Test(timeout = 60000)
+  public void testDropOldest() throws Exception {
+    ControlledSpanReceiver receiver = new ControlledSpanReceiver();
+    SpanReceiverQueue queue = new SpanReceiverQueue(receiver, 4,
+        SpanReceiverQueue.OverflowPolicy.DROP_OLDEST, 60000, 5, 1000);
+    // Fill the queue before the drain thread starts.
+    for (int i = 0; i < 10; i++) {
+      queue.offer(newSpan("span" + i));
+    }
+    assertEquals(6, queue.getNumDropped());
+    queue.start();
+    queue.close();
+    assertEquals(4, receiver.getNumSpans());
+    for (int i = 0; i < 4; i++) {
+      assertEquals("span" + (6 + i), receiver.spans.get(i).getDescription());
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testDropNewest() throws Exception {
+    ControlledSpanReceiver receiver = new ControlledSpanReceiver();
+    SpanReceiverQueue queue = new SpanReceiverQueue(receiver, 4,
+        SpanReceiverQueue.OverflowPolicy.DROP_NEWEST, 60000, 5, 1000);
+    for (int i = 0; i < 10; i++) {
+      queue.offer(newSpan("span" + i));
+    }
+    assertEquals(6, queue.getNumDropped());
+    queue.start();
+    queue.close();
+    assertEquals(4, receiver.getNumSpans());
+    for (int i = 0; i < 4; i++) {
+      assertEquals("span" + i, receiver.spans.get(i).getDescription());
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testCircuitBreakerOpens() throws Exception {
+    ControlledSpanReceiver receiver = new ControlledSpanReceiver();
+    receiver.numFailures = Integer.MAX_VALUE;
+    SpanReceiverQueue queue = new SpanReceiverQueue(receiver, 16,
+        SpanReceiverQueue.OverflowPolicy.DROP_NEWEST, 60000, 2, 60000);
+    queue.start();
+    try {
+      queue.offer(newSpan("first"));
+      waitFor(receiver.numCalls, 1);
+      assertFalse(queue.isCircuitOpen());
+      queue.offer(newSpan("second"));
+      waitFor(receiver.numCalls, 2);
+      long deadline = System.currentTimeMillis() + 30000;
+      while (!queue.isCircuitOpen()) {
+        assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(1);
+      }
+      assertEquals(1, queue.getNumTrips());
+      queue.offer(newSpan("third"));
+      assertEquals(1, queue.getNumRejected());
+      assertEquals(2, receiver.numCalls.get());
+      assertEquals(2, receiver.metrics.getNumErrors());
+    } finally {
+      queue.close();
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testCircuitBreakerCloses() throws Exception {
+    ControlledSpanReceiver receiver = new ControlledSpanReceiver();
+    receiver.numFailures = 1;
+    SpanReceiverQueue queue = new SpanReceiverQueue(receiver, 16,
+        SpanReceiverQueue.OverflowPolicy.DROP_NEWEST, 60000, 1, 50);
+    queue.start();
+    try {
+      queue.offer(newSpan("first"));
+      long deadline = System.currentTimeMillis() + 30000;
+      while (queue.getNumTrips() == 0) {
+        assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(1);
+      }
+      // Once the cooldown is over, the next span is a trial, and it succeeds.
+      while (queue.isCircuitOpen()) {
+        assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(1);
+      }
+      queue.offer(newSpan("second"));
+      waitFor(receiver.numCalls, 2);
+      queue.offer(newSpan("third"));
+      waitFor(receiver.numCalls, 3);
+      assertFalse(queue.isCircuitOpen());
+      assertEquals(1, queue.getNumTrips());
+    } finally {
+      queue.close();
+    }
+    assertEquals(2, receiver.getNumSpans());
+  }
+
+  @Test
+  public void testQueuedReceiverInOnePool() throws Exception {
+    HTraceConfiguration queued = HTraceConfiguration.fromKeyValuePairs(
+        SpanReceiverQueue.CAPACITY_KEY, "8");
+    TracerPool first = new TracerPool("testQueuedReceiverInOnePool1");
+    TracerPool second = new TracerPool("testQueuedReceiverInOnePool2");
+    ControlledSpanReceiver receiver = new ControlledSpanReceiver();
+    assertTrue(first.addReceiver(receiver, queued));
+    SpanReceiverQueue queue = receiver.queue;
+    // The second pool can't take over, or share, the first pool's queue.
+    assertFalse(second.addReceiver(receiver, queued));
+    assertFalse(second.addReceiver(receiver));
+    assertEquals(0, second.getReceivers().length);
+    assertTrue(queue == receiver.queue);
+    receiver.deliver(newSpan("first"));
+    waitFor(receiver.numCalls, 1);
+    assertEquals(0, queue.getNumRejected());
+
+    // Once the first pool lets go of it, the receiver can go elsewhere.
+    assertTrue(first.removeReceiver(receiver));
+    assertTrue(second.addReceiver(receiver, queued));
+    assertTrue(queue != receiver.queue);
+    receiver.deliver(newSpan("second"));
+    waitFor(receiver.numCalls, 2);
+    assertEquals(0, queue.getNumRejected());
+    queue.offer(newSpan("rejected"));
+    assertEquals(1, queue.getNumRejected());
+    assertTrue(second.removeReceiver(receiver));
+
+    // A receiver which is in two pools can't be given a queue.
+    assertTrue(first.addReceiver(receiver));
+    assertTrue(second.addReceiver(receiver));
+    TracerPool third = new TracerPool("testQueuedReceiverInOnePool3");
+    assertFalse(third.addReceiver(receiver, queued));
+    assertEquals(null, receiver.queue);
+    assertTrue(first.removeReceiver(receiver));
+    assertTrue(second.removeReceiver(receiver));
+  }
+
+  @Test
+  public void testInvalidConfiguration() throws Exception {
+    TracerPool pool = new TracerPool("testInvalidConfiguration");
+    ControlledSpanReceiver receiver = new ControlledSpanReceiver();
+    try {
+      pool.addReceiver(receiver, HTraceConfiguration.fromKeyValuePairs(
+          SpanReceiverQueue.CAPACITY_KEY, "8",
+          SpanReceiverQueue.OVERFLOW_POLICY_KEY, "drop-everything"));
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(0, pool.getReceivers().length);
+    assertEquals(SpanReceiverQueue.OverflowPolicy.DROP_OLDEST,
+        SpanReceiverQueue.OverflowPolicy.fromString(" Drop-Oldest"));
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestSpanRecycling {
+  /**
+   * A receiver which serializes spans right away, and keeps only the JSON.
+   */
+  private static class JsonSpanReceiver extends SpanReceiver {
+    final List<String> json = new ArrayList<String>();
+
+    @Override
+    public boolean retainsSpans() {
+      return false;
+    }
+
+    @Override
+    public void receiveSpan(Span span) {
+      json.add(span.toJson());
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
+  /**
+   * A receiver which holds on to spans until it is told to release them.
+   */
+  private static class HoldingSpanReceiver extends SpanReceiver {
+    final List<Span> spans = new ArrayList<Span>();
+
+    @Override
+    public void receiveSpan(Span span) {
+      spans.add(span);
+    }
+
+    void releaseAll() {
+      for (Span span : spans) {
+        releaseSpan(span);
+      }
+      spans.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
+  @Test
+  public void testScopesAndSpansAreReused() throws Exception {
+    TracerPool pool = new TracerPool("testScopesAndSpansAreReused");
+    JsonSpanReceiver receiver = new JsonSpanReceiver();
+    pool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("TestSpanRecycling", pool,
+        Tracer.RECYCLE_SPANS_KEY, "true");
+    TraceScope first = tracer.newScope("first");
+    Span firstSpan = first.getSpan();
+    TraceScope child = tracer.newScope("child");
+    assertEquals(first.getSpanId(), child.getSpan().getParents()[0]);
+    child.close();
+    first.close();
+    TraceScope second = tracer.newScope("second");
+    assertSame(first, second);
+    assertSame(firstSpan, second.getSpan());
+    assertEquals("second", second.getSpan().getDescription());
+    assertEquals(0, second.getSpan().getParents().length);
+    assertTrue(second.getSpan().getKVAnnotations().isEmpty());
+    second.close();
+    assertEquals(3, receiver.json.size());
+    assertTrue(receiver.json.get(0).contains("\"d\":\"child\""));
+    assertTrue(receiver.json.get(1).contains("\"d\":\"first\""));
+    assertTrue(receiver.json.get(2).contains("\"d\":\"second\""));
+    tracer.close();
+  }
+
+  @Test
+  public void testRetainedSpansAreNotReusedUntilReleased() throws Exception {
+    TracerPool pool = new TracerPool("testRetainedSpans");
+    HoldingSpanReceiver receiver = new HoldingSpanReceiver();
+    pool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("TestSpanRecycling", pool,
+        Tracer.RECYCLE_SPANS_KEY, "true");
+    TraceScope first = tracer.newScope("first");
+    first.close();
+    TraceScope second = tracer.newScope("second");
+    assertNotSame(first, second);
+    second.close();
+    assertEquals("first", receiver.spans.get(0).getDescription());
+    receiver.releaseAll();
+    TraceScope third = tracer.newScope("third");
+    assertTrue((third == first) || (third == second));
+    third.close();
+    tracer.close();
+  }
+
+  @Test
+  public void testSpansReleasedOnOtherThreadsAreReused() throws Exception {
+    TracerPool pool = new TracerPool("testSpansReleasedOnOtherThreads");
+    final HoldingSpanReceiver receiver = new HoldingSpanReceiver();
+    pool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("TestSpanRecycling", pool,
+        Tracer.RECYCLE_SPANS_KEY, "true");
+    TraceScope first = tracer.newScope("first");
+    first.close();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        receiver.releaseAll();
+      }
+    };
+    thread.start();
+    thread.join();
+    TraceScope second = tracer.newScope("second");
+    assertSame(first, second);
+    second.close();
+    tracer.close();
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTailSamplingSpanReceiver {
+  private static final SpanId[] NO_PARENTS = new SpanId[0];
+
+  private static TailSamplingSpanReceiver create(POJOSpanReceiver pojo,
+                                                 String... pairs) {
+    return new TailSamplingSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(pairs), pojo);
+  }
+
+  private static Span span(long traceId, long spanId, SpanId parent,
+                           long durationMs) {
+    return new MilliSpan.Builder().
+        spanId(new SpanId(traceId, spanId)).
+        parents((parent == null) ? NO_PARENTS : new SpanId[] { parent }).
+        description("op").
+        begin(1000).
+        end(1000 + durationMs).
+        build();
+  }
+
+  @Test
+  public void testForwardSlowAndFlaggedTraces() throws Exception {
+    POJOSpanReceiver pojo = new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    TailSamplingSpanReceiver rcvr = create(pojo,
+        TailSamplingSpanReceiver.MIN_DURATION_MS_KEY, "100");
+
+    // A fast trace is dropped when its root arrives.
+    SpanId root1 = new SpanId(1, 1);
+    rcvr.receiveSpan(span(1, 2, root1, 5));
+    Assert.assertEquals(1, rcvr.getNumBufferedSpans());
+    rcvr.receiveSpan(span(1, 1, null, 10));
+    Assert.assertEquals(0, rcvr.getNumBufferedSpans());
+    Assert.assertEquals(1, rcvr.getTracesDropped());
+    Assert.assertTrue(pojo.getSpans().isEmpty());
+
+    // A slow trace is forwarded whole.
+    SpanId root2 = new SpanId(2, 1);
+    rcvr.receiveSpans(new Span[] {
+        span(2, 2, root2, 5), span(2, 3, root2, 50), span(2, 1, null, 150)
+      }, 0, 3);
+    Assert.assertEquals(1, rcvr.getTracesForwarded());
+    Assert.assertEquals(3, pojo.getSpans().size());
+
+    // A fast trace with an error annotation is forwarded.
+    SpanId root3 = new SpanId(3, 1);
+    Span error = span(3, 2, root3, 1);
+    error.addKVAnnotation("error", "timed out");
+    rcvr.receiveSpan(error);
+    rcvr.receiveSpan(span(3, 1, null, 1));
+    Assert.assertEquals(2, rcvr.getTracesForwarded());
+    Assert.assertEquals(5, pojo.getSpans().size());
+
+    // Late spans follow their trace's decision.
+    rcvr.receiveSpan(span(1, 9, root1, 1));
+    rcvr.receiveSpan(span(2, 9, root2, 1));
+    Assert.assertEquals(6, pojo.getSpans().size());
+    Assert.assertEquals(0, rcvr.getNumPendingTraces());
+    Assert.assertEquals(6, rcvr.getSpansForwarded());
+    Assert.assertEquals(3, rcvr.getSpansDropped());
+    rcvr.close();
+  }
+
+  @Test
+  public void testTimeoutAndEviction() throws Exception {
+    POJOSpanReceiver pojo = new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    TailSamplingSpanReceiver rcvr = create(pojo,
+        TailSamplingSpanReceiver.TIMEOUT_MS_KEY, "600000",
+        TailSamplingSpanReceiver.MAX_SPANS_KEY, "3",
+        TailSamplingSpanReceiver.MIN_DURATION_MS_KEY, "100");
+    // Traces with no local root.
+    rcvr.receiveSpan(span(1, 2, new SpanId(1, 1), 500));
+    rcvr.receiveSpan(span(2, 2, new SpanId(2, 1), 1));
+    rcvr.receiveSpan(span(3, 2, new SpanId(3, 1), 1));
+    Assert.assertEquals(3, rcvr.getNumPendingTraces());
+    Assert.assertEquals(0, rcvr.getTracesEvicted());
+
+    // Going over the limit decides the oldest trace.
+    rcvr.receiveSpan(span(4, 2, new SpanId(4, 1), 1));
+    Assert.assertEquals(1, rcvr.getTracesEvicted());
+    Assert.assertEquals(1, rcvr.getTracesForwarded());
+    Assert.assertEquals(1, pojo.getSpans().size());
+    Assert.assertEquals(3, rcvr.getNumBufferedSpans());
+
+    // Nothing has timed out yet.
+    rcvr.expire(System.nanoTime());
+    Assert.assertEquals(3, rcvr.getNumPendingTraces());
+    rcvr.expire(System.nanoTime() + 600001000000L);
+    Assert.assertEquals(0, rcvr.getNumPendingTraces());
+    Assert.assertEquals(3, rcvr.getTracesTimedOut());
+    Assert.assertEquals(3, rcvr.getTracesDropped());
+    rcvr.close();
+  }
+
+  @Test
+  public void testTimeoutThread() throws Exception {
+    POJOSpanReceiver pojo = new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    TailSamplingSpanReceiver rcvr = create(pojo,
+        TailSamplingSpanReceiver.TIMEOUT_MS_KEY, "10",
+        TailSamplingSpanReceiver.MIN_DURATION_MS_KEY, "0");
+    rcvr.receiveSpan(span(1, 2, new SpanId(1, 1), 1));
+    long deadline = System.currentTimeMillis() + 60000;
+    while (rcvr.getTracesTimedOut() == 0) {
+      Assert.assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+    synchronized (rcvr) {
+      Assert.assertEquals(1, pojo.getSpans().size());
+    }
+    rcvr.close();
+  }
+
+  @Test
+  public void testLatencyPercentile() throws Exception {
+    POJOSpanReceiver pojo = new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    TailSamplingSpanReceiver rcvr = create(pojo,
+        TailSamplingSpanReceiver.KV_KEYS_KEY, "",
+        TailSamplingSpanReceiver.LATENCY_PERCENTILE_KEY, "99");
+    long traceId = 1;
+    // Until there are enough samples, nothing is forwarded.
+    for (int i = 0; i < TailSamplingSpanReceiver.MIN_PERCENTILE_SAMPLES; i++) {
+      rcvr.receiveSpan(span(traceId++, 1, null, 10 + (i % 10)));
+    }
+    Assert.assertEquals(0, rcvr.getTracesForwarded());
+    rcvr.receiveSpan(span(traceId++, 1, null, 12));
+    Assert.assertEquals(0, rcvr.getTracesForwarded());
+    rcvr.receiveSpan(span(traceId++, 1, null, 1000));
+    Assert.assertEquals(1, rcvr.getTracesForwarded());
+    Assert.assertEquals(1, pojo.getSpans().size());
+    rcvr.close();
+  }
+
+  @Test
+  public void testCloseDecidesPendingTraces() throws Exception {
+    POJOSpanReceiver pojo = new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    TailSamplingSpanReceiver rcvr = create(pojo);
+    Span child = span(1, 2, new SpanId(1, 1), 1);
+    child.addKVAnnotation("error", "oops");
+    rcvr.receiveSpan(child);
+    rcvr.receiveSpan(span(2, 2, new SpanId(2, 1), 1));
+    rcvr.close();
+    Assert.assertEquals(Collections.singleton(child),
+        new HashSet<Span>(pojo.getSpans()));
+    Assert.assertEquals(1, rcvr.getTracesDropped());
+    // Spans received after close are dropped.
+    rcvr.receiveSpan(span(3, 1, null, 1000));
+    Assert.assertEquals(1, pojo.getSpans().size());
+  }
+
+  @Test
+  public void testBuildDelegateFromConf() throws Exception {
+    Map<String, String> conf = new HashMap<String, String>();
+    conf.put(TailSamplingSpanReceiver.DELEGATE_KEY, "POJOSpanReceiver");
+    SpanReceiver rcvr = new SpanReceiver.Builder(
+        HTraceConfiguration.fromMap(conf)).
+        className(TailSamplingSpanReceiver.class.getName()).build();
+    Assert.assertTrue(((TailSamplingSpanReceiver)rcvr).getDelegate()
+        instanceof POJOSpanReceiver);
+    rcvr.close();
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestTraceForkJoinPool {
+  private static final int WAIT_TIME_SECONDS = 60;
+
+  /**
+   * A receiver which can take spans from several threads at once.
+   */
+  private static class QueueSpanReceiver extends SpanReceiver {
+    final ConcurrentLinkedQueue<Span> spans =
+        new ConcurrentLinkedQueue<Span>();
+
+    @Override
+    public void receiveSpan(Span span) {
+      spans.add(span);
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
+  private static class Sum extends TraceRecursiveTask<Long> {
+    private static final long serialVersionUID = 1L;
+
+    private final Tracer tracer;
+    private final long lo;
+    private final long hi;
+
+    /**
+     * The span which was current when this task was created.
+     */
+    private final SpanId expectedParent;
+
+    /**
+     * Maps the ID of each task span to the span its task was created in.
+     */
+    private final ConcurrentHashMap<SpanId, SpanId> expectedParents;
+
+    Sum(Tracer tracer, long lo, long hi,
+        ConcurrentHashMap<SpanId, SpanId> expectedParents) {
+      super(tracer, "sum");
+      this.tracer = tracer;
+      this.lo = lo;
+      this.hi = hi;
+      this.expectedParent = Tracer.getCurrentSpanId();
+      this.expectedParents = expectedParents;
+    }
+
+    @Override
+    protected Long computeTraced() {
+      SpanId spanId = Tracer.getCurrentSpanId();
+      if (!spanId.equals(expectedParent)) {
+        expectedParents.put(spanId, expectedParent);
+      }
+      if (hi - lo <= 100) {
+        long sum = 0;
+        for (long i = lo; i < hi; i++) {
+          sum += i;
+        }
+        return sum;
+      }
+      long mid = (lo + hi) / 2;
+      Sum left = new Sum(tracer, lo, mid, expectedParents);
+      Sum right = new Sum(tracer, mid, hi, expectedParents);
+      left.fork();
+      return right.compute() + left.join();
+    }
+  }
+
+  /**
+   * Check that every task span has exactly the parent its task was created
+   * under, and belongs to the trace of that parent.
+   *
+   * @return The number of task spans in the trace.
+   */
+  private static int checkTaskSpans(Collection<Span> spans, SpanId rootId,
+        Map<SpanId, SpanId> expectedParents) {
+    int numSpans = 0;
+    for (Span span : spans) {
+      if (span.getSpanId().getHigh() != rootId.getHigh()) {
+        continue;
+      }
+      if (span.getSpanId().equals(rootId)) {
+        assertEquals(0, span.getParents().length);
+        continue;
+      }
+      numSpans++;
+      SpanId expectedParent = expectedParents.get(span.getSpanId());
+      assertNotNull("Unexpected span " + span.toJson(), expectedParent);
+      assertEquals(rootId.getHigh(), expectedParent.getHigh());
+      assertEquals(1, span.getParents().length);
+      assertEquals(expectedParent, span.getParents()[0]);
+    }
+    return numSpans;
+  }
+
+  @Test(timeout = 60000)
+  public void testRecursiveTask() throws Exception {
+    QueueSpanReceiver receiver = new QueueSpanReceiver();
+    TracerPool tracerPool = new TracerPool("testRecursiveTask");
+    tracerPool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("testRecursiveTask", tracerPool);
+    TraceForkJoinPool pool = tracer.newTraceForkJoinPool(4, null);
+    ConcurrentHashMap<SpanId, SpanId> expectedParents =
+        new ConcurrentHashMap<SpanId, SpanId>();
+    try {
+      SpanId rootId;
+      long sum;
+      try (TraceScope scope = tracer.newScope("root")) {
+        rootId = scope.getSpanId();
+        sum = pool.invoke(new Sum(tracer, 0, 10000, expectedParents));
+      }
+      assertEquals(10000L * 9999L / 2, sum);
+      // Every span but the root is the span of a task.
+      assertEquals(receiver.spans.size() - 1, expectedParents.size());
+      int numSpans = checkTaskSpans(receiver.spans, rootId, expectedParents);
+      assertEquals(expectedParents.size(), numSpans);
+      // 10000 / 100 leaves, plus the tasks which split them.  Tasks which
+      // run on the thread which forked them don't get a span.
+      int numTasks = 255;
+      assertTrue("Expected at most " + numTasks + " spans, but got " +
+          numSpans, numSpans <= numTasks);
+    } finally {
+      pool.shutdown();
+      tracer.close();
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentTraces() throws Exception {
+    QueueSpanReceiver receiver = new QueueSpanReceiver();
+    TracerPool tracerPool = new TracerPool("testConcurrentTraces");
+    tracerPool.addReceiver(receiver);
+    final Tracer tracer =
+        TracerTestUtil.newTracer("testConcurrentTraces", tracerPool);
+    final TraceForkJoinPool pool = tracer.newTraceForkJoinPool(4, null);
+    final ConcurrentHashMap<SpanId, SpanId> expectedParents =
+        new ConcurrentHashMap<SpanId, SpanId>();
+    final int numTraces = 2;
+    final SpanId[] rootIds = new SpanId[numTraces];
+    final long[] sums = new long[numTraces];
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[numTraces];
+    try {
+      for (int i = 0; i < numTraces; i++) {
+        final int trace = i;
+        threads[i] = new Thread("testConcurrentTraces" + i) {
+          @Override
+          public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+            try (TraceScope scope = tracer.newScope("root" + trace)) {
+              rootIds[trace] = scope.getSpanId();
+              sums[trace] = pool.invoke(
+                  new Sum(tracer, 0, 20000, expectedParents));
+            }
+          }
+        };
+        threads[i].start();
+      }
+      start.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      int numSpans = 0;
+      for (int i = 0; i < numTraces; i++) {
+        assertEquals(20000L * 19999L / 2, sums[i]);
+        assertNotNull(rootIds[i]);
+        // The task spans of each trace only have parents in that trace.
+        numSpans += checkTaskSpans(receiver.spans, rootIds[i],
+            expectedParents) + 1;
+      }
+      assertEquals(receiver.spans.size(), numSpans);
+    } finally {
+      pool.shutdown();
+      tracer.close();
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testSubmitCallable() throws Exception {
+    QueueSpanReceiver receiver = new QueueSpanReceiver();
+    TracerPool tracerPool = new TracerPool("testSubmitCallable");
+    tracerPool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("testSubmitCallable", tracerPool);
+    TraceForkJoinPool pool = tracer.newTraceForkJoinPool(2, "child");
+    Callable<SpanId> callable = new Callable<SpanId>() {
+      @Override
+      public SpanId call() {
+        return Tracer.getCurrentSpanId();
+      }
+    };
+    try {
+      // Without a current span, the task runs untraced.
+      assertEquals(SpanId.INVALID, pool.submit(callable).
+          get(WAIT_TIME_SECONDS, TimeUnit.SECONDS));
+      assertTrue(receiver.spans.isEmpty());
+
+      SpanId rootId;
+      SpanId childId;
+      try (TraceScope scope = tracer.newScope("root")) {
+        rootId = scope.getSpanId();
+        childId = pool.submit(callable).
+            get(WAIT_TIME_SECONDS, TimeUnit.SECONDS);
+      }
+      assertTrue(childId.isValid());
+      assertTrue(!childId.equals(rootId));
+      assertEquals(2, receiver.spans.size());
+      for (Span span : receiver.spans) {
+        if (span.getSpanId().equals(childId)) {
+          assertEquals("child", span.getDescription());
+          assertEquals(rootId, span.getParents()[0]);
+        }
+      }
+    } finally {
+      pool.shutdown();
+      tracer.close();
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testInvokeOnForkingThread() throws Exception {
+    QueueSpanReceiver receiver = new QueueSpanReceiver();
+    TracerPool tracerPool = new TracerPool("testInvokeOnForkingThread");
+    tracerPool.addReceiver(receiver);
+    Tracer tracer =
+        TracerTestUtil.newTracer("testInvokeOnForkingThread", tracerPool);
+    try {
+      long sum;
+      try (TraceScope scope = tracer.newScope("root")) {
+        // Small enough that the task does not fork.
+        sum = new Sum(tracer, 0, 50,
+            new ConcurrentHashMap<SpanId, SpanId>()).invoke();
+      }
+      assertEquals(50L * 49L / 2, sum);
+      assertEquals(1, receiver.spans.size());
+    } finally {
+      tracer.close();
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testInvokePlainTask() throws Exception {
+    QueueSpanReceiver receiver = new QueueSpanReceiver();
+    TracerPool tracerPool = new TracerPool("testInvokePlainTask");
+    tracerPool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("testInvokePlainTask", tracerPool);
+    TraceForkJoinPool pool = tracer.newTraceForkJoinPool(2, "plain");
+    try {
+      SpanId rootId;
+      SpanId childId;
+      try (TraceScope scope = tracer.newScope("root")) {
+        rootId = scope.getSpanId();
+        childId = pool.invoke(new RecursiveTask<SpanId>() {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected SpanId compute() {
+            return Tracer.getCurrentSpanId();
+          }
+        });
+      }
+      assertTrue(childId.isValid());
+      assertTrue(!childId.equals(rootId));
+      assertEquals(2, receiver.spans.size());
+    } finally {
+      pool.shutdown();
+      tracer.close();
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.junit.Test;
+
+public class TestTraceProxy {
+  public interface Calculator {
+    int add(int a, int b);
+
+    String describe();
+
+    void fail(String message) throws IOException;
+  }
+
+  private static class CalculatorImpl implements Calculator {
+    @Override
+    public int add(int a, int b) {
+      return a + b;
+    }
+
+    @Override
+    public String describe() {
+      Span span = Tracer.getCurrentSpan();
+      return (span == null) ? "untraced" : span.getDescription();
+    }
+
+    @Override
+    public void fail(String message) throws IOException {
+      throw new IOException(message);
+    }
+  }
+
+  @Test
+  public void testTracedCalls() throws Exception {
+    TracerPool pool = new TracerPool("testTracedCalls");
+    POJOSpanReceiver receiver =
+        new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    pool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("TestTraceProxy", pool);
+    try {
+      Calculator calc = tracer.createProxy(new CalculatorImpl());
+      try (TraceScope scope = tracer.newScope("root")) {
+        assertEquals(5, calc.add(2, 3));
+        assertEquals("describe", calc.describe());
+        assertEquals("describe", calc.describe());
+      }
+    } finally {
+      tracer.close();
+    }
+    Collection<Span> spans = receiver.getSpans();
+    assertEquals(4, spans.size());
+    TraceGraph graph = new TraceGraph(spans);
+    Span root = graph.getSpansByParent().find(SpanId.INVALID).
+        iterator().next();
+    assertEquals("root", root.getDescription());
+    assertEquals(3, graph.getSpansByParent().find(root.getSpanId()).size());
+  }
+
+  @Test
+  public void testUntracedCallsSkipTracing() throws Exception {
+    TracerPool pool = new TracerPool("testUntracedCallsSkipTracing");
+    POJOSpanReceiver receiver =
+        new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    pool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("TestTraceProxy", pool);
+    try {
+      Calculator calc = tracer.createProxy(new CalculatorImpl());
+      assertEquals(7, calc.add(3, 4));
+      assertEquals("untraced", calc.describe());
+      try (TraceScope scope = tracer.newScope("root")) {
+        // Methods of Object are never traced.
+        calc.hashCode();
+        calc.toString();
+      }
+    } finally {
+      tracer.close();
+    }
+    assertEquals(1, receiver.getSpans().size());
+  }
+
+  @Test
+  public void testExceptionsAreNotWrapped() throws Exception {
+    TracerPool pool = new TracerPool("testExceptionsAreNotWrapped");
+    Tracer tracer = TracerTestUtil.newTracer("TestTraceProxy", pool);
+    try {
+      Calculator calc = tracer.createProxy(new CalculatorImpl());
+      IOException thrown = null;
+      try (TraceScope scope = tracer.newScope("root")) {
+        calc.fail("oops");
+        fail("Expected an IOException");
+      } catch (IOException e) {
+        thrown = e;
+      }
+      assertEquals("oops", thrown.getMessage());
+      // The span for the failed call was closed.
+      assertSame(null, Tracer.getCurrentSpan());
+    } finally {
+      tracer.close();
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTracerMetrics {
+  @Test
+  public void testScopeCounts() throws Exception {
+    TracerPool pool = new TracerPool("testScopeCounts");
+    final Tracer sampled = TracerTestUtil.newTracer("TestTracerMetrics", pool);
+    Tracer unsampled = TracerTestUtil.newTracer("TestTracerMetrics", pool,
+        Tracer.SAMPLER_CLASSES_KEY, "NeverSampler");
+    TraceScope outer = sampled.newScope("outer");
+    sampled.newScope("inner").close();
+    outer.close();
+    TraceScope nullScope = unsampled.newScope("unsampled");
+    unsampled.newScope("nested").close();
+    nullScope.close();
+    unsampled.newNullScope().close();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        sampled.newScope("other thread").close();
+      }
+    };
+    thread.start();
+    thread.join();
+
+    Assert.assertEquals(3, sampled.getNumSpans());
+    Assert.assertEquals(2, sampled.getNumSampled());
+    Assert.assertEquals(0, sampled.getNumUnsampled());
+    Assert.assertEquals(0, sampled.getNumNullScopes());
+    Assert.assertEquals(0, unsampled.getNumSpans());
+    Assert.assertEquals(1, unsampled.getNumUnsampled());
+    Assert.assertEquals(3, unsampled.getNumNullScopes());
+
+    // Counts from the exited thread survive when it is pruned.
+    Thread another = new Thread() {
+      @Override
+      public void run() {
+        sampled.newScope("yet another thread").close();
+      }
+    };
+    another.start();
+    another.join();
+    Assert.assertEquals(4, sampled.getNumSpans());
+
+    TracerPoolMXBean metrics = pool.getMetrics();
+    Assert.assertEquals(2, metrics.getNumTracers());
+    Assert.assertEquals(4, metrics.getNumSpans());
+    Assert.assertEquals(3, metrics.getNumSampled());
+    Assert.assertEquals(1, metrics.getNumUnsampled());
+    Assert.assertEquals(3, metrics.getNumNullScopes());
+    // Closing a Tracer does not lose its counts.
+    unsampled.close();
+    Assert.assertEquals(1, metrics.getNumTracers());
+    Assert.assertEquals(3, metrics.getNumNullScopes());
+    sampled.close();
+  }
+
+  private static class SlowReceiver extends SpanReceiver {
+    @Override
+    public boolean retainsSpans() {
+      return false;
+    }
+
+    @Override
+    public void receiveSpan(Span span) {
+      if (span.getDescription().equals("fail")) {
+        throw new RuntimeException("failing on purpose");
+      }
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  @Test
+  public void testReceiverMetrics() throws Exception {
+    TracerPool pool = new TracerPool("testReceiverMetrics");
+    SlowReceiver receiver = new SlowReceiver();
+    pool.addReceiver(receiver);
+    Tracer tracer = TracerTestUtil.newTracer("TestTracerMetrics", pool);
+    for (int i = 0; i < 10; i++) {
+      tracer.newScope("op").close();
+    }
+    try {
+      tracer.newScope("fail").close();
+      Assert.fail("expected the receiver's exception");
+    } catch (RuntimeException e) {
+      Assert.assertEquals("failing on purpose", e.getMessage());
+    }
+    SpanReceiverMXBean metrics = receiver.metrics;
+    Assert.assertEquals(10, metrics.getNumSpans());
+    Assert.assertEquals(10, metrics.getNumCalls());
+    Assert.assertEquals(1, metrics.getNumErrors());
+    Assert.assertTrue(metrics.getTotalNanos() >= 10000000L);
+    Assert.assertTrue(metrics.getCallNanos50th() >= 1000000L);
+    Assert.assertTrue(metrics.getMaxCallNanos() >=
+        metrics.getCallNanos99th());
+    metrics.resetLatencies();
+    Assert.assertEquals(0, metrics.getCallNanos99th());
+    Assert.assertEquals(10, metrics.getNumCalls());
+    tracer.close();
+  }
+
+  @Test
+  public void testJmxRegistration() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    TracerPool pool = new TracerPool("testJmxRegistration");
+    POJOSpanReceiver receiver =
+        new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    pool.addReceiver(receiver);
+    ObjectName receiverName = new ObjectName(
+        "org.apache.htrace:type=SpanReceiver,id=" + receiver.getId());
+    ObjectName poolName = new ObjectName(
+        "org.apache.htrace:type=TracerPool,name=\"testJmxRegistration\"");
+    Assert.assertTrue(server.isRegistered(receiverName));
+    Assert.assertFalse(server.isRegistered(poolName));
+
+    Tracer tracer = TracerTestUtil.newTracer("TestTracerMetrics", pool);
+    Assert.assertTrue(server.isRegistered(poolName));
+    tracer.newScope("op").close();
+    Assert.assertEquals(1L, server.getAttribute(poolName, "NumSpans"));
+    Assert.assertArrayEquals(new long[] { receiver.getId() },
+        (long[])server.getAttribute(poolName, "ReceiverIds"));
+    Assert.assertEquals(1L, server.getAttribute(receiverName, "NumSpans"));
+    Assert.assertEquals(POJOSpanReceiver.class.getName(),
+        server.getAttribute(receiverName, "ClassName"));
+
+    // Closing the last Tracer closes the receivers and unregisters
+    // everything.
+    tracer.close();
+    Assert.assertFalse(server.isRegistered(poolName));
+    Assert.assertFalse(server.isRegistered(receiverName));
+  }
+
+  @Test
+  public void testJmxNameCollision() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName poolName = new ObjectName(
+        "org.apache.htrace:type=TracerPool,name=\"testJmxNameCollision\"");
+    Tracer first = TracerTestUtil.newTracer("TestTracerMetrics",
+        new TracerPool("testJmxNameCollision"));
+    Tracer second = TracerTestUtil.newTracer("TestTracerMetrics",
+        new TracerPool("testJmxNameCollision"));
+    first.newScope("op").close();
+    Assert.assertTrue(server.isRegistered(poolName));
+    Assert.assertEquals(1L, server.getAttribute(poolName, "NumSpans"));
+
+    // The second pool never got the name, so closing it leaves the first
+    // pool's MBean alone.
+    second.close();
+    Assert.assertTrue(server.isRegistered(poolName));
+    Assert.assertEquals(1L, server.getAttribute(poolName, "NumSpans"));
+    first.close();
+    Assert.assertFalse(server.isRegistered(poolName));
+  }
+
+  @Test
+  public void testReceiverInTwoPools() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    TracerPool first = new TracerPool("testReceiverInTwoPools1");
+    TracerPool second = new TracerPool("testReceiverInTwoPools2");
+    POJOSpanReceiver receiver =
+        new POJOSpanReceiver(HTraceConfiguration.EMPTY);
+    ObjectName receiverName = new ObjectName(
+        "org.apache.htrace:type=SpanReceiver,id=" + receiver.getId());
+    Assert.assertTrue(first.addReceiver(receiver));
+    Assert.assertTrue(second.addReceiver(receiver));
+    Assert.assertTrue(server.isRegistered(receiverName));
+
+    // The second pool did not register the receiver's MBean, so removing
+    // the receiver from it leaves the MBean alone.
+    Assert.assertTrue(second.removeReceiver(receiver));
+    Assert.assertTrue(server.isRegistered(receiverName));
+    Assert.assertTrue(first.removeReceiver(receiver));
+    Assert.assertFalse(server.isRegistered(receiverName));
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds the Tracers used by the tests.
+ */
+public final class TracerTestUtil {
+  private TracerTestUtil() {
+  }
+
+  /**
+   * Build a Tracer which samples every span, unless the configuration
+   * sets another sampler.
+   *
+   * @param tracerId    The tracer ID.
+   * @param pool        The TracerPool to use.
+   * @param keyValues   Configuration keys and values, which override the
+   *                      sampler.
+   * @return            The new Tracer.
+   */
+  public static Tracer newTracer(String tracerId, TracerPool pool,
+                                 String... keyValues) {
+    if ((keyValues.length % 2) != 0) {
+      throw new IllegalArgumentException("You must specify an equal " +
+          "number of keys and values.");
+    }
+    Map<String, String> conf = new HashMap<String, String>();
+    conf.put(Tracer.SAMPLER_CLASSES_KEY, "AlwaysSampler");
+    for (int i = 0; i < keyValues.length; i += 2) {
+      conf.put(keyValues[i], keyValues[i + 1]);
+    }
+    return new Tracer.Builder(tracerId).
+        tracerPool(pool).
+        conf(HTraceConfiguration.fromMap(conf)).
+        build();
+  }
+}
@@ -266,6 +266,12 @@ public class FlumeSpanReceiver extends SpanReceiver {
     }
   }
 
+  @Override
+  public double getLoad() {
+    int size = queue.size();
+    return ((double)size) / (size + queue.remainingCapacity());
+  }
+
   @Override
   public void receiveSpan(Span span) {
     if (running.get()) {
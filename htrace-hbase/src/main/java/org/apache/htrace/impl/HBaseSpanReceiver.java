@@ -321,6 +321,12 @@ public class HBaseSpanReceiver extends SpanReceiver {
     }
   }
 
+  @Override
+  public double getLoad() {
+    int size = queue.size();
+    return ((double)size) / (size + queue.remainingCapacity());
+  }
+
   @Override
   public void receiveSpan(Span span) {
     if (running.get()) {
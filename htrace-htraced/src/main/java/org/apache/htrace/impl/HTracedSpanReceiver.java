@@ -146,48 +146,93 @@ public class HTracedSpanReceiver extends SpanReceiver {
     LOG.debug("Created new HTracedSpanReceiver with " + conf.toString());
   }
 
+  @Override
+  public boolean retainsSpans() {
+    // Spans are serialized into the active buffer before receiveSpan returns.
+    return false;
+  }
+
+  @Override
+  public double getLoad() {
+    lock.lock();
+    try {
+      if (shutdown) {
+        return 0.0;
+      }
+      if (unbufferableSpans > 0) {
+        // We have dropped spans since the last flush.
+        return 1.0;
+      }
+      double load = ((double)bufferManager[activeBuf].contentLength()) /
+          conf.bufferSize;
+      return Math.min(1.0, load);
+    } finally {
+      lock.unlock();
+    }
+  }
+
   @Override
   public void receiveSpan(Span span) {
+    receiveSpans(new Span[] { span }, 0, 1);
+  }
+
+  @Override
+  public void receiveSpans(Span[] spans, int offset, int len) {
+    int idx = offset;
+    int end = offset + len;
     long startTimeMs = 0;
     int numTries = 1;
     while (true) {
       lock.lock();
       try {
         if (shutdown) {
-          LOG.info("Unable to add span because HTracedSpanReceiver is shutting down.");
+          LOG.info("Unable to add " + (end - idx) + " span(s) because " +
+              "HTracedSpanReceiver is shutting down.");
           return;
         }
         Throwable exc = null;
         try {
-          bufferManager[activeBuf].writeSpan(span);
-          int contentLength = bufferManager[activeBuf].contentLength();
-          if (contentLength > conf.triggerSize) {
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("Triggering buffer #" + activeBuf + " flush because" +
-                  " buffer contains " + contentLength + " bytes, and " +
-                  "triggerSize is " + conf.triggerSize);
-            }
-            faultInjector.handleContentLengthTrigger(contentLength);
-            wakePostSpansThread.signal();
+          while (idx < end) {
+            bufferManager[activeBuf].writeSpan(spans[idx]);
+            idx++;
+            startTimeMs = 0;
+            numTries = 1;
           }
-          return;
         } catch (Exception e) {
           exc = e;
         } catch (Error e) {
           exc = e;
         }
+        int contentLength = bufferManager[activeBuf].contentLength();
+        if (contentLength > conf.triggerSize) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Triggering buffer #" + activeBuf + " flush because" +
+                " buffer contains " + contentLength + " bytes, and " +
+                "triggerSize is " + conf.triggerSize);
+          }
+          faultInjector.handleContentLengthTrigger(contentLength);
+          wakePostSpansThread.signal();
+        }
+        if (exc == null) {
+          return;
+        }
         if (startTimeMs == 0) {
           startTimeMs = TimeUtil.nowMs();
         }
         long deltaMs = TimeUtil.deltaMs(startTimeMs, TimeUtil.nowMs());
         if (deltaMs > conf.spanDropTimeoutMs) {
-          StringBuilder bld = new StringBuilder();
           spanDropLog.error("Dropping a span after unsuccessfully " +
               "attempting to add it for " + deltaMs + " ms.  There is not " +
               "enough buffer space. Please increase " + Conf.BUFFER_SIZE_KEY +
               " or decrease the rate of spans being generated.");
           unbufferableSpans++;
-          return;
+          idx++;
+          startTimeMs = 0;
+          numTries = 1;
+          if (idx == end) {
+            return;
+          }
+          continue;
         } else if (LOG.isDebugEnabled()) {
           LOG.debug("Unable to write span to buffer #" + activeBuf +
               " after " + numTries + " attempt(s) and " + deltaMs + " ms" +
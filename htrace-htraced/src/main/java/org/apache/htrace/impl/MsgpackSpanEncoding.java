@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.impl;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.htrace.core.Span;
+import org.apache.htrace.core.SpanEncoding;
+
+/**
+ * The msgpack encoding of spans which htraced uses, as produced by
+ * {@link PackedBuffer#writeSpan(Span)}.
+ */
+final class MsgpackSpanEncoding extends SpanEncoding {
+  static final MsgpackSpanEncoding INSTANCE = new MsgpackSpanEncoding();
+
+  /**
+   * The maximum length of an encoded span.
+   */
+  static final int MAX_LENGTH = PackedBuffer.MAX_HRPC_BODY_LENGTH;
+
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+
+  /**
+   * A reusable buffer for encoding spans.
+   */
+  private static final class Encoder {
+    private PackedBuffer buf =
+        new PackedBuffer(ByteBuffer.allocate(INITIAL_BUFFER_SIZE));
+
+    byte[] encode(Span span) {
+      while (true) {
+        ByteBuffer bb = buf.getBuffer();
+        bb.clear();
+        try {
+          buf.reset();
+          buf.writeSpan(span);
+          return Arrays.copyOf(bb.array(), bb.position());
+        } catch (BufferOverflowException e) {
+          grow();
+        } catch (Exception e) {
+          throw new RuntimeException("Failed to encode span " + span, e);
+        }
+      }
+    }
+
+    private void grow() {
+      int size = buf.getBuffer().capacity();
+      if (size >= MAX_LENGTH) {
+        throw new RuntimeException("Span too large to encode: more than " +
+            MAX_LENGTH + " bytes.");
+      }
+      // Don't close the old PackedBuffer, since that would try to flush the
+      // partial span which overflowed it.
+      size = Math.min(size * 2, MAX_LENGTH);
+      this.buf = new PackedBuffer(ByteBuffer.allocate(size));
+    }
+  }
+
+  private final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+    @Override
+    protected Encoder initialValue() {
+      return new Encoder();
+    }
+  };
+
+  private MsgpackSpanEncoding() {
+    super("msgpack");
+  }
+
+  @Override
+  protected byte[] doEncode(Span span) {
+    return encoders.get().encode(span);
+  }
+}
@@ -94,7 +94,7 @@ class PackedBuffer {
   static final int HRPC_RESP_FRAME_LENGTH = 20;
   static final int MAX_HRPC_ERROR_LENGTH = 4 * 1024 * 1024;
   static final int MAX_HRPC_BODY_LENGTH = 64 * 1024 * 1024;
-  private static final int SPAN_ID_BYTE_LENGTH = 16;
+  private static final int SPAN_ID_BYTE_LENGTH = SpanId.SPAN_ID_BYTE_LENGTH;
   static final MessagePack.Config MSGPACK_CONF =
       new MessagePack.ConfigBuilder()
         .readBinaryAsString(false)
@@ -153,23 +153,8 @@ class PackedBuffer {
     }
   }
 
-  /**
-   * Write an 8-byte value to a byte array as little-endian.
-   */
-  private static void longToBigEndian(byte b[], int pos, long val) {
-    b[pos + 0] =(byte) ((val >> 56) & 0xff);
-    b[pos + 1] =(byte) ((val >> 48) & 0xff);
-    b[pos + 2] =(byte) ((val >> 40) & 0xff);
-    b[pos + 3] =(byte) ((val >> 32) & 0xff);
-    b[pos + 4] =(byte) ((val >> 24) & 0xff);
-    b[pos + 5] =(byte) ((val >> 16) & 0xff);
-    b[pos + 6] =(byte) ((val >>  8) & 0xff);
-    b[pos + 7] =(byte) ((val >>  0) & 0xff);
-  }
-
   private void writeSpanId(SpanId spanId) throws IOException {
-    longToBigEndian(temp, 0, spanId.getHigh());
-    longToBigEndian(temp, 8, spanId.getLow());
+    spanId.writeTo(temp, 0);
     packer.packBinaryHeader(SPAN_ID_BYTE_LENGTH);
     packer.writePayload(temp, 0, SPAN_ID_BYTE_LENGTH);
   }
@@ -285,24 +270,7 @@ class PackedBuffer {
     }
     byte[] payload = new byte[SPAN_ID_BYTE_LENGTH];
     unpacker.readPayload(payload);
-    return new SpanId(
-        ((payload[ 7] & 0xffL) <<  0) |
-        ((payload[ 6] & 0xffL) <<  8) |
-        ((payload[ 5] & 0xffL) << 16) |
-        ((payload[ 4] & 0xffL) << 24) |
-        ((payload[ 3] & 0xffL) << 32) |
-        ((payload[ 2] & 0xffL) << 40) |
-        ((payload[ 1] & 0xffL) << 48) |
-        ((payload[ 0] & 0xffL) << 56),
-        ((payload[15] & 0xffL) <<  0) |
-        ((payload[14] & 0xffL) <<  8) |
-        ((payload[13] & 0xffL) << 16) |
-        ((payload[12] & 0xffL) << 24) |
-        ((payload[11] & 0xffL) << 32) |
-        ((payload[10] & 0xffL) << 40) |
-        ((payload[ 9] & 0xffL) << 48) |
-        ((payload[ 8] & 0xffL) << 56)
-      );
+    return SpanId.fromBytes(payload, 0);
   }
 
   /**
@@ -55,7 +55,9 @@ class PackedBufferManager implements BufferManager {
 
   @Override
   public void writeSpan(Span span) throws IOException {
-    spans.writeSpan(span);
+    // Copy in the msgpack encoding cached on the span, if another receiver
+    // has already produced it.  Nothing is written if the span doesn't fit.
+    spans.getBuffer().put(MsgpackSpanEncoding.INSTANCE.encode(span));
     numSpans++;
     if (LOG.isTraceEnabled()) {
       LOG.trace("wrote " + span.toJson() + " to PackedBuffer for " +
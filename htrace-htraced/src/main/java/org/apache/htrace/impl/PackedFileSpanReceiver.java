@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.apache.htrace.core.HTraceConfiguration;
+import org.apache.htrace.core.LocalFileSpanReceiver;
+import org.apache.htrace.core.Span;
+
+/**
+ * A LocalFileSpanReceiver which writes spans in a binary format.
+ *
+ * Each record is a 4-byte little-endian length, followed by the span in the
+ * same msgpack encoding which is sent to htraced.  The msgpack encoding is
+ * cached on the span, so it is shared with an HTracedSpanReceiver.  This is
+ * faster to write and much faster to read back than JSON.  Use
+ * {@link SpanLogReader} to read the file.
+ *
+ * This receiver takes the same configuration as LocalFileSpanReceiver, but
+ * with keys which start with "packed.file.span.receiver." rather than
+ * "local.file.span.receiver.", so that both receivers can be used at once.
+ * If no path is set, the default path is the LocalFileSpanReceiver default
+ * with ".packed" appended.
+ */
+public class PackedFileSpanReceiver extends LocalFileSpanReceiver {
+  static final String KEY_PREFIX = "packed.file.span.receiver.";
+
+  private static final String LOCAL_KEY_PREFIX = "local.file.span.receiver.";
+
+  public static final String PATH_KEY = KEY_PREFIX + "path";
+
+  /**
+   * The length of the header which precedes each record.
+   */
+  public static final int HEADER_LENGTH = 4;
+
+  /**
+   * The maximum length of a record, not counting the header.
+   */
+  public static final int MAX_RECORD_LENGTH = MsgpackSpanEncoding.MAX_LENGTH;
+
+  /**
+   * Presents the packed.file.span.receiver keys as the
+   * local.file.span.receiver keys LocalFileSpanReceiver reads.
+   */
+  private static final class PackedConf extends HTraceConfiguration {
+    private final HTraceConfiguration conf;
+
+    PackedConf(HTraceConfiguration conf) {
+      this.conf = conf;
+    }
+
+    @Override
+    public String get(String key) {
+      if (key.startsWith(LOCAL_KEY_PREFIX)) {
+        String packedKey =
+            KEY_PREFIX + key.substring(LOCAL_KEY_PREFIX.length());
+        String val = conf.get(packedKey);
+        if ((val == null || val.isEmpty()) && packedKey.equals(PATH_KEY)) {
+          val = getUniqueLocalTraceFileName() + ".packed";
+        }
+        return val;
+      }
+      return conf.get(key);
+    }
+
+    @Override
+    public String get(String key, String defaultValue) {
+      String val = get(key);
+      return (val == null) ? defaultValue : val;
+    }
+  }
+
+  public PackedFileSpanReceiver(HTraceConfiguration conf) {
+    super(new PackedConf(conf), false);
+  }
+
+  @Override
+  protected byte[] encode(Span span) {
+    byte[] packed = MsgpackSpanEncoding.INSTANCE.encode(span);
+    byte[] record = new byte[HEADER_LENGTH + packed.length];
+    ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN).
+        putInt(packed.length);
+    System.arraycopy(packed, 0, record, HEADER_LENGTH, packed.length);
+    return record;
+  }
+}
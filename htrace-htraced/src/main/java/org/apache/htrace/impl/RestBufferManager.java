@@ -30,6 +30,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.apache.htrace.core.Span;
+import org.apache.htrace.core.SpanEncoding;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.ContentProvider;
 import org.eclipse.jetty.client.api.ContentResponse;
@@ -125,12 +126,14 @@ class RestBufferManager implements BufferManager {
 
   @Override
   public void writeSpan(Span span) throws IOException {
-    byte[] spanJsonBytes = span.toString().getBytes(UTF8);
-    if ((spans.capacity() - spans.position()) < spanJsonBytes.length) {
+    // Use the JSON encoding cached on the span, if another receiver has
+    // already produced it.
+    byte[] json = SpanEncoding.JSON.encode(span);
+    if ((spans.capacity() - spans.position()) < json.length) {
       // Make sure we have enough space for the span JSON.
       throw new IOException("Not enough space remaining in span buffer.");
     }
-    spans.put(spanJsonBytes);
+    spans.put(json);
     numSpans++;
   }
 
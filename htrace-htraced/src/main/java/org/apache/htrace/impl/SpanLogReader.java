@@ -0,0 +1,327 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.htrace.core.Span;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.core.buffer.ByteBufferInput;
+
+/**
+ * Reads a file written by {@link PackedFileSpanReceiver}.
+ *
+ * The file, or a part of it, is memory-mapped, and {@link #next()} steps
+ * through the records without copying them.  {@link #record()} returns the
+ * current record as a slice of the mapping, and {@link #span()} decodes it.
+ *
+ * To read a big file in parallel, use {@link #split(File, long)} to divide it
+ * into parts which start and end on record boundaries, and give each part to
+ * its own reader.  A part must be less than 2 GB, since that is the most a
+ * single mapping can hold.
+ *
+ * If the last record in the file is incomplete, because the process which
+ * wrote it crashed, the reader stops before it and
+ * {@link #isTruncated()} returns true.  Compressed files can't be read.
+ *
+ * This class is not thread-safe.
+ */
+public final class SpanLogReader implements Closeable {
+  private static final int HEADER_LENGTH = PackedFileSpanReceiver.HEADER_LENGTH;
+
+  /**
+   * The size of the windows {@link #split(File, long)} maps while scanning
+   * record headers.
+   */
+  private static final long SPLIT_WINDOW_SIZE = 64L * 1024L * 1024L;
+
+  /**
+   * A part of a file which starts and ends on record boundaries.
+   */
+  public static final class Split {
+    private final File file;
+    private final long offset;
+    private final long length;
+
+    Split(File file, long offset, long length) {
+      this.file = file;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    @Override
+    public String toString() {
+      return "Split(" + file + ", offset=" + offset + ", length=" +
+          length + ")";
+    }
+  }
+
+  private final RandomAccessFile raf;
+
+  private final long baseOffset;
+
+  private final MappedByteBuffer map;
+
+  private final MessageUnpacker unpacker;
+
+  /**
+   * The offset of the current record in the mapping, or -1 before the first
+   * call to next.
+   */
+  private int recordOffset = -1;
+
+  private int recordLength = 0;
+
+  /**
+   * The offset of the next record in the mapping.
+   */
+  private int nextOffset = 0;
+
+  private boolean truncated = false;
+
+  /**
+   * Read a whole file.
+   *
+   * @param file    The file.
+   */
+  public SpanLogReader(File file) throws IOException {
+    this(file, 0, Long.MAX_VALUE);
+  }
+
+  /**
+   * Read a split returned by {@link #split(File, long)}.
+   *
+   * @param split   The split.
+   */
+  public SpanLogReader(Split split) throws IOException {
+    this(split.getFile(), split.getOffset(), split.getLength());
+  }
+
+  /**
+   * Read part of a file.
+   *
+   * @param file    The file.
+   * @param offset  Where to start.  This must be a record boundary.
+   * @param length  How many bytes to read.  This is truncated to the end of
+   *                  the file.
+   */
+  public SpanLogReader(File file, long offset, long length)
+      throws IOException {
+    this.raf = new RandomAccessFile(file, "r");
+    boolean success = false;
+    try {
+      long size = raf.length();
+      if ((offset < 0) || (offset > size)) {
+        throw new IllegalArgumentException("Offset " + offset + " is " +
+            "outside " + file + ", which is " + size + " bytes.");
+      }
+      length = Math.min(length, size - offset);
+      if (length > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Can't map " + length + " bytes " +
+            "of " + file + " at once.  Use SpanLogReader#split to read it " +
+            "in parts.");
+      }
+      this.baseOffset = offset;
+      this.map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+          offset, length);
+      this.map.order(ByteOrder.LITTLE_ENDIAN);
+      this.unpacker = new MessageUnpacker(
+          new ByteBufferInput(ByteBuffer.allocate(0)),
+          PackedBuffer.MSGPACK_CONF);
+      success = true;
+    } finally {
+      if (!success) {
+        raf.close();
+      }
+    }
+  }
+
+  /**
+   * Read the length of the record at the given offset.
+   *
+   * @return        The length of the record, including its header, or -1 if
+   *                  the record is incomplete.
+   */
+  private static long recordLength(ByteBuffer buf, int offset, long limit,
+                                   long position) throws IOException {
+    if (limit - position < HEADER_LENGTH) {
+      return -1;
+    }
+    long len = buf.getInt(offset) & 0xffffffffL;
+    if ((len == 0) || (len > PackedFileSpanReceiver.MAX_RECORD_LENGTH)) {
+      throw new IOException("Invalid record length " + len + " at offset " +
+          position);
+    }
+    len += HEADER_LENGTH;
+    if (limit - position < len) {
+      return -1;
+    }
+    return len;
+  }
+
+  /**
+   * Move to the next record.
+   *
+   * @return        True if there is a record; false at the end.
+   * @throws IOException  If the record's length is invalid, which means that
+   *                        the file is corrupt, or that we didn't start on
+   *                        a record boundary.
+   */
+  public boolean next() throws IOException {
+    if (nextOffset == map.limit()) {
+      recordOffset = nextOffset;
+      recordLength = 0;
+      return false;
+    }
+    long len = recordLength(map, nextOffset, map.limit(), nextOffset);
+    if (len < 0) {
+      truncated = true;
+      recordOffset = nextOffset;
+      recordLength = 0;
+      return false;
+    }
+    recordOffset = nextOffset + HEADER_LENGTH;
+    recordLength = (int)len - HEADER_LENGTH;
+    nextOffset += (int)len;
+    return true;
+  }
+
+  private void checkRecord() {
+    if ((recordOffset < 0) || (recordLength == 0)) {
+      throw new IllegalStateException("There is no current record.");
+    }
+  }
+
+  /**
+   * @return        The msgpack-encoded current record, without its header.
+   *                  This is a view of the mapped file, so it is only valid
+   *                  until the reader is closed.
+   */
+  public ByteBuffer record() {
+    checkRecord();
+    ByteBuffer buf = map.duplicate();
+    buf.position(recordOffset);
+    buf.limit(recordOffset + recordLength);
+    return buf.slice();
+  }
+
+  /**
+   * @return        The offset in the file of the current record's header.
+   */
+  public long getRecordOffset() {
+    checkRecord();
+    return baseOffset + recordOffset - HEADER_LENGTH;
+  }
+
+  /**
+   * Decode the current record.
+   *
+   * @return        The span.
+   */
+  public Span span() throws IOException {
+    unpacker.reset(new ByteBufferInput(record()));
+    return PackedBuffer.readSpan(unpacker);
+  }
+
+  /**
+   * @return        True if the reader stopped at an incomplete record.
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  @Override
+  public void close() throws IOException {
+    raf.close();
+  }
+
+  /**
+   * Divide a file into splits which start and end on record boundaries.
+   *
+   * This reads only the record headers.  If the last record is incomplete,
+   * it is left out.
+   *
+   * @param file        The file.
+   * @param targetSize  The size of each split.  Splits end at the first
+   *                      record boundary at or after this size, so they may
+   *                      be bigger by up to a record.
+   * @return            The splits, in order.
+   */
+  public static List<Split> split(File file, long targetSize)
+      throws IOException {
+    if (targetSize < 1) {
+      throw new IllegalArgumentException("Invalid target split size " +
+          targetSize);
+    }
+    List<Split> splits = new ArrayList<Split>();
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      long position = 0;
+      long splitStart = 0;
+      long windowStart = 0;
+      MappedByteBuffer window = null;
+      while (position < size) {
+        if ((window == null) ||
+            (position + HEADER_LENGTH > windowStart + window.limit())) {
+          windowStart = position;
+          window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+              Math.min(SPLIT_WINDOW_SIZE, size - windowStart));
+          window.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        long len = recordLength(window, (int)(position - windowStart),
+            size, position);
+        if (len < 0) {
+          break;
+        }
+        position += len;
+        if (position - splitStart >= targetSize) {
+          splits.add(new Split(file, splitStart, position - splitStart));
+          splitStart = position;
+        }
+      }
+      if (position > splitStart) {
+        splits.add(new Split(file, splitStart, position - splitStart));
+      }
+    } finally {
+      raf.close();
+    }
+    return splits;
+  }
+}
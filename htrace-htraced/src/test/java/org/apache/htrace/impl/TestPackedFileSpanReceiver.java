@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.impl;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.htrace.core.HTraceConfiguration;
+import org.apache.htrace.core.LocalFileSpanReceiver;
+import org.apache.htrace.core.MilliSpan;
+import org.apache.htrace.core.Span;
+import org.apache.htrace.core.SpanId;
+import org.apache.htrace.util.TestUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPackedFileSpanReceiver {
+  private static File createTempDir() throws Exception {
+    File dir = Files.createTempDirectory("TestPackedFileSpanReceiver").
+        toFile();
+    dir.deleteOnExit();
+    return dir;
+  }
+
+  static List<Span> readAll(File file) throws Exception {
+    List<Span> spans = new ArrayList<Span>();
+    SpanLogReader reader = new SpanLogReader(file);
+    try {
+      while (reader.next()) {
+        spans.add(reader.span());
+      }
+      Assert.assertFalse(reader.isTruncated());
+    } finally {
+      reader.close();
+    }
+    return spans;
+  }
+
+  @Test(timeout = 60000)
+  public void testWriteAndRead() throws Exception {
+    File file = new File(createTempDir(), "spans.packed");
+    file.deleteOnExit();
+    PackedFileSpanReceiver receiver = new PackedFileSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(
+            PackedFileSpanReceiver.PATH_KEY, file.getAbsolutePath(),
+            PackedFileSpanReceiver.KEY_PREFIX + "capacity", "7"));
+    Span[] spans = TestUtil.randomSpans(new Random(123), 100);
+    receiver.receiveSpans(spans, 0, 50);
+    for (int i = 50; i < spans.length; i++) {
+      receiver.receiveSpan(spans[i]);
+    }
+    receiver.close();
+
+    List<Span> respans = readAll(file);
+    Assert.assertEquals(spans.length, respans.size());
+    for (int i = 0; i < spans.length; i++) {
+      Assert.assertEquals(spans[i].toJson(), respans.get(i).toJson());
+    }
+  }
+
+  /**
+   * Spans which don't fit in the initial encoding buffer are still written.
+   */
+  @Test(timeout = 60000)
+  public void testLargeSpan() throws Exception {
+    File file = new File(createTempDir(), "spans.packed");
+    file.deleteOnExit();
+    PackedFileSpanReceiver receiver = new PackedFileSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(
+            PackedFileSpanReceiver.PATH_KEY, file.getAbsolutePath()));
+    char[] description = new char[100000];
+    Arrays.fill(description, 'x');
+    Span big = new MilliSpan.Builder().
+        spanId(new SpanId(1, 2)).
+        description(new String(description)).
+        build();
+    Span small = new MilliSpan.Builder().
+        spanId(new SpanId(1, 3)).
+        description("small").
+        build();
+    receiver.receiveSpan(big);
+    receiver.receiveSpan(small);
+    receiver.close();
+
+    List<Span> respans = readAll(file);
+    Assert.assertEquals(2, respans.size());
+    Assert.assertEquals(big.toJson(), respans.get(0).toJson());
+    Assert.assertEquals(small.toJson(), respans.get(1).toJson());
+  }
+
+  /**
+   * The receiver reads its own keys, not those of LocalFileSpanReceiver.
+   */
+  @Test(timeout = 60000)
+  public void testConfigurationKeys() throws Exception {
+    File dir = createTempDir();
+    File packedFile = new File(dir, "spans.packed");
+    File jsonFile = new File(dir, "spans.json");
+    packedFile.deleteOnExit();
+    jsonFile.deleteOnExit();
+    PackedFileSpanReceiver receiver = new PackedFileSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(
+            PackedFileSpanReceiver.PATH_KEY, packedFile.getAbsolutePath(),
+            LocalFileSpanReceiver.PATH_KEY, jsonFile.getAbsolutePath()));
+    receiver.receiveSpan(new MilliSpan.Builder().
+        spanId(new SpanId(1, 2)).
+        description("foo").
+        build());
+    receiver.close();
+    Assert.assertFalse(jsonFile.exists());
+    Assert.assertEquals(1, readAll(packedFile).size());
+  }
+}
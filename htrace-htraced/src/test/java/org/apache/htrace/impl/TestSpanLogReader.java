@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.htrace.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.htrace.core.HTraceConfiguration;
+import org.apache.htrace.core.Span;
+import org.apache.htrace.util.TestUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSpanLogReader {
+  private static File writeSpans(Span[] spans) throws Exception {
+    File file = File.createTempFile("TestSpanLogReader", ".packed");
+    file.deleteOnExit();
+    PackedFileSpanReceiver receiver = new PackedFileSpanReceiver(
+        HTraceConfiguration.fromKeyValuePairs(
+            PackedFileSpanReceiver.PATH_KEY, file.getAbsolutePath()));
+    receiver.receiveSpans(spans, 0, spans.length);
+    receiver.close();
+    return file;
+  }
+
+  @Test(timeout = 60000)
+  public void testRecords() throws Exception {
+    Span[] spans = TestUtil.randomSpans(new Random(456), 10);
+    File file = writeSpans(spans);
+    SpanLogReader reader = new SpanLogReader(file);
+    try {
+      long offset = 0;
+      for (int i = 0; i < spans.length; i++) {
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(offset, reader.getRecordOffset());
+        ByteBuffer record = reader.record();
+        offset += PackedFileSpanReceiver.HEADER_LENGTH + record.remaining();
+        Assert.assertEquals(spans[i].toJson(), reader.span().toJson());
+      }
+      Assert.assertFalse(reader.next());
+      Assert.assertFalse(reader.isTruncated());
+      Assert.assertEquals(file.length(), offset);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testSplits() throws Exception {
+    Span[] spans = TestUtil.randomSpans(new Random(789), 200);
+    File file = writeSpans(spans);
+    List<SpanLogReader.Split> splits =
+        SpanLogReader.split(file, file.length() / 7);
+    Assert.assertTrue(splits.size() >= 7);
+    long offset = 0;
+    int idx = 0;
+    for (SpanLogReader.Split split : splits) {
+      Assert.assertEquals(offset, split.getOffset());
+      offset += split.getLength();
+      SpanLogReader reader = new SpanLogReader(split);
+      try {
+        while (reader.next()) {
+          Assert.assertEquals(spans[idx].toJson(), reader.span().toJson());
+          idx++;
+        }
+        Assert.assertFalse(reader.isTruncated());
+      } finally {
+        reader.close();
+      }
+    }
+    Assert.assertEquals(file.length(), offset);
+    Assert.assertEquals(spans.length, idx);
+  }
+
+  /**
+   * A record which was cut short by a crash is skipped.
+   */
+  @Test(timeout = 60000)
+  public void testTruncatedFile() throws Exception {
+    Span[] spans = TestUtil.randomSpans(new Random(101), 3);
+    File file = writeSpans(spans);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() - 1);
+    } finally {
+      raf.close();
+    }
+    SpanLogReader reader = new SpanLogReader(file);
+    try {
+      Assert.assertTrue(reader.next());
+      Assert.assertTrue(reader.next());
+      Assert.assertFalse(reader.next());
+      Assert.assertTrue(reader.isTruncated());
+    } finally {
+      reader.close();
+    }
+    List<SpanLogReader.Split> splits = SpanLogReader.split(file, 1);
+    Assert.assertEquals(2, splits.size());
+  }
+
+  @Test(timeout = 60000)
+  public void testCorruptFile() throws Exception {
+    File file = File.createTempFile("TestSpanLogReader", ".packed");
+    file.deleteOnExit();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.write(new byte[] { 0, 0, 0, 0, 1, 2, 3 });
+    } finally {
+      raf.close();
+    }
+    SpanLogReader reader = new SpanLogReader(file);
+    try {
+      reader.next();
+      Assert.fail("Expected an IOException for a zero-length record.");
+    } catch (IOException e) {
+      // expected
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -358,6 +358,12 @@ public class ZipkinSpanReceiver extends SpanReceiver {
     }
   }
 
+  @Override
+  public double getLoad() {
+    int size = queue.size();
+    return ((double)size) / (size + queue.remainingCapacity());
+  }
+
   @Override
   public void receiveSpan(Span span) {
     if (running.get()) {